@@ -0,0 +1,227 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.myhexaville.androidwebrtc.web_rtc.PeerConnectionClient.PeerConnectionParameters;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.webrtc.EglBase;
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+import org.webrtc.SessionDescription;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoCapturer;
+import org.webrtc.VideoRenderer;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation tests of {@link PeerConnectionClient} keeping its factory and video source
+ * between calls.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PeerConnectionClientTest {
+    private static final int WAIT_TIMEOUT_MS = 10000;
+    private static final int EXPECTED_VIDEO_FRAMES = 10;
+    private static final int VIDEO_WIDTH = 320;
+    private static final int VIDEO_HEIGHT = 240;
+
+    @Test
+    public void twoCallsInARowReuseTheVideoSource() throws InterruptedException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        PeerConnectionClient client = PeerConnectionClient.getInstance();
+        try {
+            // Like CallActivity, both calls render with the shared EGL context.
+            EglBase.Context eglContext = PeerConnectionClient.getSharedEglBase().getEglBaseContext();
+            FakeCapturer firstCapturer = new FakeCapturer();
+            runCall(context, client, eglContext, firstCapturer);
+            assertNotNull(firstCapturer.surfaceTextureHelper);
+            FakeCapturer secondCapturer = new FakeCapturer();
+            runCall(context, client, eglContext, secondCapturer);
+
+            // The first capturer kept serving; the second was disposed unused.
+            assertEquals(0, firstCapturer.disposeCount);
+            assertEquals(2, firstCapturer.startCount);
+            assertEquals(1, secondCapturer.disposeCount);
+            assertNull(secondCapturer.surfaceTextureHelper);
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void callWithAnotherEglContextRecreatesTheVideoSource() throws InterruptedException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        PeerConnectionClient client = PeerConnectionClient.getInstance();
+        EglBase firstEglBase = EglBase.create();
+        try {
+            FakeCapturer firstCapturer = new FakeCapturer();
+            runCall(context, client, firstEglBase.getEglBaseContext(), firstCapturer);
+            FakeCapturer secondCapturer = new FakeCapturer();
+            runCall(context, client, PeerConnectionClient.getSharedEglBase().getEglBaseContext(),
+                    secondCapturer);
+
+            assertEquals(1, firstCapturer.disposeCount);
+            assertEquals(0, secondCapturer.disposeCount);
+            assertNotNull(secondCapturer.surfaceTextureHelper);
+            assertNotSame(firstCapturer.surfaceTextureHelper, secondCapturer.surfaceTextureHelper);
+        } finally {
+            client.shutdown();
+            // The second call replaced the video source that rendered with it.
+            firstEglBase.release();
+        }
+    }
+
+    // Runs a call like CallActivity does, up to the local preview.
+    private static void runCall(Context context, PeerConnectionClient client,
+                                EglBase.Context eglContext, FakeCapturer capturer)
+            throws InterruptedException {
+        CountingRenderer localRenderer = new CountingRenderer(EXPECTED_VIDEO_FRAMES);
+        ClosedEvents events = new ClosedEvents();
+        try {
+            client.createPeerConnectionFactory(
+                    context, PeerConnectionParameters.createDefault(), events);
+            client.prewarm(eglContext, localRenderer, capturer,
+                    Collections.<PeerConnection.IceServer>emptyList());
+            assertTrue("Local video frames were not rendered.",
+                    localRenderer.await(WAIT_TIMEOUT_MS));
+        } finally {
+            client.close();
+            assertTrue("Peer connection was not closed.", events.awaitClosed(WAIT_TIMEOUT_MS));
+        }
+        assertNull(events.error);
+    }
+
+    // Delivers gray NV21 frames at 30 fps while started.
+    private static class FakeCapturer implements VideoCapturer {
+        private CapturerObserver observer;
+        private SurfaceTextureHelper surfaceTextureHelper;
+        private Thread captureThread;
+        private volatile boolean capturing;
+        private volatile int startCount;
+        private volatile int disposeCount;
+
+        @Override
+        public void initialize(SurfaceTextureHelper surfaceTextureHelper, Context applicationContext,
+                               CapturerObserver observer) {
+            this.surfaceTextureHelper = surfaceTextureHelper;
+            this.observer = observer;
+        }
+
+        @Override
+        public void startCapture(int width, int height, int framerate) {
+            startCount++;
+            capturing = true;
+            captureThread = new Thread(() -> {
+                byte[] frame = new byte[VIDEO_WIDTH * VIDEO_HEIGHT * 3 / 2];
+                observer.onCapturerStarted(true);
+                while (capturing) {
+                    observer.onByteBufferFrameCaptured(frame, VIDEO_WIDTH, VIDEO_HEIGHT, 0,
+                            System.nanoTime());
+                    try {
+                        Thread.sleep(33);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            captureThread.start();
+        }
+
+        @Override
+        public void stopCapture() throws InterruptedException {
+            capturing = false;
+            if (captureThread != null) {
+                captureThread.join();
+                captureThread = null;
+            }
+            observer.onCapturerStopped();
+        }
+
+        @Override
+        public void changeCaptureFormat(int width, int height, int framerate) {
+        }
+
+        @Override
+        public void dispose() {
+            disposeCount++;
+        }
+
+        @Override
+        public boolean isScreencast() {
+            return false;
+        }
+    }
+
+    private static class CountingRenderer implements VideoRenderer.Callbacks {
+        private final CountDownLatch frames;
+
+        CountingRenderer(int expectedFrames) {
+            frames = new CountDownLatch(expectedFrames);
+        }
+
+        @Override
+        public void renderFrame(VideoRenderer.I420Frame frame) {
+            frames.countDown();
+            VideoRenderer.renderFrameDone(frame);
+        }
+
+        boolean await(int timeoutMs) throws InterruptedException {
+            return frames.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static class ClosedEvents implements PeerConnectionClient.PeerConnectionEvents {
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile String error;
+
+        boolean awaitClosed(int timeoutMs) throws InterruptedException {
+            return closed.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onLocalDescription(SessionDescription sdp) {
+        }
+
+        @Override
+        public void onIceCandidate(IceCandidate candidate) {
+        }
+
+        @Override
+        public void onIceCandidatesRemoved(IceCandidate[] candidates) {
+        }
+
+        @Override
+        public void onIceConnected() {
+        }
+
+        @Override
+        public void onIceDisconnected() {
+        }
+
+        @Override
+        public void onPeerConnectionClosed() {
+            closed.countDown();
+        }
+
+        @Override
+        public void onPeerConnectionStatsReady(StatsSnapshot snapshot) {
+        }
+
+        @Override
+        public void onPeerConnectionError(String description) {
+            error = description;
+        }
+    }
+}
@@ -11,11 +11,10 @@
 package com.myhexaville.androidwebrtc.call;
 
 import android.app.AlertDialog;
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
+import android.content.Context;
 import android.content.Intent;
 import android.databinding.DataBindingUtil;
+import android.net.Uri;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
@@ -30,39 +29,66 @@ import android.view.WindowManager.LayoutParams;
 import android.widget.Toast;
 
 import com.myhexaville.androidwebrtc.R;
+import com.myhexaville.androidwebrtc.control.BluetoothCommandWriter;
+import com.myhexaville.androidwebrtc.control.BluetoothConnectionManager;
+import com.myhexaville.androidwebrtc.control.ClockSync;
+import com.myhexaville.androidwebrtc.control.ControlAckReceiver;
+import com.myhexaville.androidwebrtc.control.ControlChannelSender;
+import com.myhexaville.androidwebrtc.control.ControlCommandScheduler;
+import com.myhexaville.androidwebrtc.control.FrameLatencyMeter;
+import com.myhexaville.androidwebrtc.control.JoystickReader;
+import com.myhexaville.androidwebrtc.control.LatencyMonitor;
+import com.myhexaville.androidwebrtc.control.ServoController;
+import com.myhexaville.androidwebrtc.control.VideoLatencyProbe;
 import com.myhexaville.androidwebrtc.databinding.ActivityCallBinding;
 import com.myhexaville.androidwebrtc.web_rtc.AppRTCAudioManager;
 import com.myhexaville.androidwebrtc.web_rtc.AppRTCClient;
 import com.myhexaville.androidwebrtc.web_rtc.AppRTCClient.RoomConnectionParameters;
 import com.myhexaville.androidwebrtc.web_rtc.AppRTCClient.SignalingParameters;
+import com.myhexaville.androidwebrtc.web_rtc.DirectRTCClient;
+import com.myhexaville.androidwebrtc.web_rtc.FrameStampCapturer;
+import com.myhexaville.androidwebrtc.web_rtc.IceServerCache;
 import com.myhexaville.androidwebrtc.web_rtc.PeerConnectionClient;
 import com.myhexaville.androidwebrtc.web_rtc.PeerConnectionClient.PeerConnectionParameters;
+import com.myhexaville.androidwebrtc.web_rtc.StatsEngine;
+import com.myhexaville.androidwebrtc.web_rtc.StatsSnapshot;
 import com.myhexaville.androidwebrtc.web_rtc.WebSocketRTCClient;
 
 import org.webrtc.Camera1Enumerator;
 import org.webrtc.Camera2Enumerator;
 import org.webrtc.CameraEnumerator;
-import org.webrtc.DataChannel;
 import org.webrtc.EglBase;
 import org.webrtc.IceCandidate;
 import org.webrtc.Logging;
 import org.webrtc.SessionDescription;
-import org.webrtc.StatsReport;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoRenderer;
 
-import java.io.IOException;
+import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import static com.myhexaville.androidwebrtc.util.Constants.BLUETOOTH_CONNECT_TIMEOUT_MS;
+import static com.myhexaville.androidwebrtc.util.Constants.BLUETOOTH_QUEUE_CAPACITY;
 import static com.myhexaville.androidwebrtc.util.Constants.CAPTURE_PERMISSION_REQUEST_CODE;
+import static com.myhexaville.androidwebrtc.util.Constants.CLOCK_SYNC_INTERVAL_TICKS;
+import static com.myhexaville.androidwebrtc.util.Constants.CLOCK_SYNC_WINDOW;
+import static com.myhexaville.androidwebrtc.util.Constants.CONTROL_ABSOLUTE_MODE;
+import static com.myhexaville.androidwebrtc.util.Constants.CONTROL_ABSOLUTE_REFRESH_TICKS;
+import static com.myhexaville.androidwebrtc.util.Constants.CONTROL_CHANNEL_LABEL;
+import static com.myhexaville.androidwebrtc.util.Constants.CONTROL_LATENCY_DUMP_FILE;
+import static com.myhexaville.androidwebrtc.util.Constants.CONTROL_MAX_BUFFERED_BYTES;
+import static com.myhexaville.androidwebrtc.util.Constants.CONTROL_TICK_RATE_HZ;
+import static com.myhexaville.androidwebrtc.util.Constants.EXTRA_MEASURE_LATENCY;
 import static com.myhexaville.androidwebrtc.util.Constants.EXTRA_MODE;
 import static com.myhexaville.androidwebrtc.util.Constants.EXTRA_ROOMID;
+import static com.myhexaville.androidwebrtc.util.Constants.EXTRA_TELEOP;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEOP_PROFILE_BY_DEFAULT;
 import static com.myhexaville.androidwebrtc.util.Constants.LOCAL_HEIGHT_CONNECTED;
 import static com.myhexaville.androidwebrtc.util.Constants.LOCAL_HEIGHT_CONNECTING;
 import static com.myhexaville.androidwebrtc.util.Constants.LOCAL_WIDTH_CONNECTED;
@@ -75,7 +101,9 @@ import static com.myhexaville.androidwebrtc.util.Constants.REMOTE_HEIGHT;
 import static com.myhexaville.androidwebrtc.util.Constants.REMOTE_WIDTH;
 import static com.myhexaville.androidwebrtc.util.Constants.REMOTE_X;
 import static com.myhexaville.androidwebrtc.util.Constants.REMOTE_Y;
+import static com.myhexaville.androidwebrtc.util.Constants.SERVO_CENTIDEGREES_PER_STEP;
 import static com.myhexaville.androidwebrtc.util.Constants.STAT_CALLBACK_PERIOD;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEMETRY_CHANNEL_LABEL;
 import static org.webrtc.RendererCommon.ScalingType.SCALE_ASPECT_FILL;
 import static org.webrtc.RendererCommon.ScalingType.SCALE_ASPECT_FIT;
 
@@ -85,12 +113,19 @@ import static org.webrtc.RendererCommon.ScalingType.SCALE_ASPECT_FIT;
  * and call view.
  */
 public class CallActivity extends AppCompatActivity
-        implements AppRTCClient.SignalingEvents, PeerConnectionClient.PeerConnectionEvents, OnCallEvents {
+        implements AppRTCClient.SignalingEvents, PeerConnectionClient.PeerConnectionEvents, OnCallEvents,
+        BluetoothConnectionManager.BluetoothConnectionEvents {
     private static final String LOG_TAG = "CallActivity";
 
     private PeerConnectionClient peerConnectionClient;
+    private ControlChannelSender controlSender;
+    // Reliable, ordered sender for calibration.
+    private ControlChannelSender reliableSender;
+    private ControlCommandScheduler commandScheduler;
     private AppRTCClient appRtcClient;
     private SignalingParameters signalingParameters;
+    // Opened in onCreate and handed to the peer connection once the room join completes.
+    private VideoCapturer videoCapturer;
     private AppRTCAudioManager audioManager;
     private EglBase rootEglBase;
     private final List<VideoRenderer.Callbacks> remoteRenderers = new ArrayList<>();
@@ -112,17 +147,38 @@ public class CallActivity extends AppCompatActivity
 
     private static final float NS2S = 1.0f / 1000000000.0f;
     private float[] angle = new float[3];
-    private BluetoothAdapter BA;
-    private Set<BluetoothDevice> pairedDevices;
-    private InputStream mmInputStream;
-    private static OutputStream mmOutputStream;
-    private static boolean isConnect = false;
+    private BluetoothConnectionManager bluetoothManager;
+    private volatile InputStream mmInputStream;
+    // Camera only: forwards servo step codes to the HC-05.
+    private BluetoothCommandWriter bluetoothWriter;
+    // Viewer only: reads the optional Bluetooth joystick while it is connected. Guarded by
+    // |joystickLock|, as it is started from the UI and the Bluetooth thread.
+    private final Object joystickLock = new Object();
+    private JoystickReader joystickReader;
+    // Control loop latency, viewer or camera stages depending on the role.
+    private final LatencyMonitor latencyMonitor = new LatencyMonitor();
+    // disconnect() may run more than once; the latencies are only dumped the first time.
+    private boolean latencyDumped;
     private boolean isCamera;
+    // Record video latency into |latencyMonitor|: stats based estimates on both sides, and
+    // glass-to-glass latency of frames stamped by the camera on the viewer.
+    private boolean measureLatency;
+    // Registered with the session's stats engine on the first ICE connection of the call.
+    private VideoLatencyProbe videoLatencyProbe;
+    private StatsEngine videoLatencyStatsEngine;
+    // Viewer only, in measurement mode.
+    private ClockSync clockSync;
+    private FrameLatencyMeter frameLatencyMeter;
     private int xcurrent,zgravity = 0,xprevious = 0,zcurrent,zprevious;
+    private float yawReference, pitchReference;
+    // Written by the sensor listener and the calibration click handler.
+    private volatile boolean hasOrientationReference;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        // Keeps TURN credentials fresh for the rest of this call; released in onDestroy().
+        IceServerCache.getInstance().acquire();
         getWindow().addFlags(LayoutParams.FLAG_DISMISS_KEYGUARD | LayoutParams.FLAG_SHOW_WHEN_LOCKED
                 | LayoutParams.FLAG_TURN_SCREEN_ON);
         getWindow().getDecorView().setSystemUiVisibility(View.SYSTEM_UI_FLAG_HIDE_NAVIGATION
@@ -132,14 +188,25 @@ public class CallActivity extends AppCompatActivity
         final Intent intent = getIntent();
         String roomId = intent.getStringExtra(EXTRA_ROOMID);
         isCamera = intent.getBooleanExtra(EXTRA_MODE, false);
+        measureLatency = intent.getBooleanExtra(EXTRA_MEASURE_LATENCY, false);
 //        Log.wtf(LOG_TAG, "isCamera?:"+isCamera);
+        if (isCamera) {
+            bluetoothWriter = new BluetoothCommandWriter(BLUETOOTH_QUEUE_CAPACITY, latencyMonitor);
+            bluetoothWriter.start();
+        }
         setupBluetooth(isCamera);
 
         remoteRenderers.add(binding.remoteVideoView);
+        if (measureLatency && !isCamera) {
+            clockSync = new ClockSync(CLOCK_SYNC_WINDOW);
+            frameLatencyMeter = new FrameLatencyMeter(clockSync, latencyMonitor);
+            remoteRenderers.add(frameLatencyMeter);
+        }
 
 
         // Create video renderers.
-        rootEglBase = EglBase.create();
+        // Shared between calls, so the next call reuses this one's video source.
+        rootEglBase = PeerConnectionClient.getSharedEglBase();
         binding.localVideoView.init(rootEglBase.getEglBaseContext(), null);
         binding.remoteVideoView.init(rootEglBase.getEglBaseContext(), null);
 
@@ -159,25 +226,67 @@ public class CallActivity extends AppCompatActivity
         }
 
         // If capturing format is not specified for screencapture, use screen resolution.
-        peerConnectionParameters = PeerConnectionParameters.createDefault();
+        peerConnectionParameters = intent.getBooleanExtra(EXTRA_TELEOP, TELEOP_PROFILE_BY_DEFAULT)
+                ? PeerConnectionParameters.createTeleop()
+                : PeerConnectionParameters.createDefault();
 
         // Create connection client. Use DirectRTCClient if room name is an IP otherwise use the
         // standard WebSocketRTCClient.
-        appRtcClient = new WebSocketRTCClient(this);
+        if (DirectRTCClient.isDirectRoomId(roomId)) {
+            Log.i(LOG_TAG, "Using DirectRTCClient because room name looks like an IP.");
+            appRtcClient = new DirectRTCClient(this);
+        } else {
+            Log.i(LOG_TAG, "Using WebSocketRTCClient because room name does not look like an IP.");
+            appRtcClient = new WebSocketRTCClient(this);
+        }
 
-        // Create connection parameters.
-        roomConnectionParameters = new RoomConnectionParameters("https://appr.tc", roomId, false);
+        // Create connection parameters. The room server comes from the settings via the intent
+        // data.
+        Uri roomUri = intent.getData();
+        String roomUrl = roomUri != null
+                ? roomUri.toString() : getString(R.string.pref_room_server_url_default);
+        roomConnectionParameters = new RoomConnectionParameters(roomUrl, roomId, false);
 
         //setupListeners();
 
         peerConnectionClient = PeerConnectionClient.getInstance();
+        controlSender = new ControlChannelSender(peerConnectionClient, CONTROL_CHANNEL_LABEL);
+        reliableSender = new ControlChannelSender(peerConnectionClient, TELEMETRY_CHANNEL_LABEL);
+        if (isCamera) {
+            ServoController servoController =
+                    new ServoController(SERVO_CENTIDEGREES_PER_STEP, bluetoothWriter);
+            peerConnectionClient.registerDataChannelHandler(CONTROL_CHANNEL_LABEL, servoController);
+            peerConnectionClient.registerDataChannelHandler(TELEMETRY_CHANNEL_LABEL, servoController);
+        } else {
+            ControlAckReceiver ackReceiver = new ControlAckReceiver(latencyMonitor, clockSync);
+            peerConnectionClient.registerDataChannelHandler(CONTROL_CHANNEL_LABEL, ackReceiver);
+            peerConnectionClient.registerDataChannelHandler(TELEMETRY_CHANNEL_LABEL, ackReceiver);
+        }
 
         peerConnectionClient.createPeerConnectionFactory(this, peerConnectionParameters, this);
+        if (frameLatencyMeter != null) {
+            // The meter reads the stamp from the pixels of decoded frames.
+            peerConnectionClient.setDecodeToTextures(false);
+        }
+        // Open the camera and start ICE gathering while the room join is in flight.
+        if (peerConnectionParameters.videoCallEnabled) {
+            videoCapturer = measureLatency && isCamera
+                    ? createStampingVideoCapturer() : createVideoCapturer();
+        }
+        peerConnectionClient.prewarm(rootEglBase.getEglBaseContext(), binding.localVideoView,
+                videoCapturer, IceServerCache.getInstance().peek(roomConnectionParameters.roomUrl));
 
         if (!isCamera) {
+            commandScheduler = new ControlCommandScheduler(controlSender, reliableSender,
+                    latencyMonitor, CONTROL_MAX_BUFFERED_BYTES, CONTROL_ABSOLUTE_REFRESH_TICKS);
+            if (clockSync != null) {
+                commandScheduler.setClockSync(clockSync, CLOCK_SYNC_INTERVAL_TICKS);
+            }
+            commandScheduler.start(CONTROL_TICK_RATE_HZ);
             SensorThread sensorThread = new SensorThread();
             sensorThread.start();
-//            readBluetoothData();
+            // The joystick may have connected before the scheduler existed.
+            startJoystickReader();
         }
 
         startCall();
@@ -191,7 +300,9 @@ public class CallActivity extends AppCompatActivity
                 @Override
                 public void onClick(View v) {
                     Log.wtf(LOG_TAG,"校正");
-                    sendWifiData(4);
+                    // The current head orientation becomes the new reference.
+                    hasOrientationReference = false;
+                    commandScheduler.calibrate();
                 }
             });
             Log.d("RunTag", Thread.currentThread().getName()); // To display thread
@@ -211,23 +322,57 @@ public class CallActivity extends AppCompatActivity
 
             public void onSensorChanged(SensorEvent event) {
 //                Log.d("ListenerTag", Thread.currentThread().getName()); // To display thread
+                if (CONTROL_ABSOLUTE_MODE) {
+                    if (event.accuracy == SensorManager.SENSOR_STATUS_UNRELIABLE) {
+                        loseOrientationReference();
+                    } else {
+                        updateAbsoluteTarget(event.values[0], event.values[2]);
+                    }
+                    return;
+                }
                 xcurrent = Math.round(event.values[0]);
                 zcurrent = Math.round(event.values[2]);
 //                Log.wtf(LOG_TAG, "-----onSensorChanged-----");
                 if (xprevious > xcurrent + 1)
-                    sendWifiData(1);
+                    commandScheduler.stepPan(-1);//right
                 else if (xprevious < xcurrent - 1)
-                    sendWifiData(0);
+                    commandScheduler.stepPan(1);//left
 
                 if ((zprevious > zcurrent + 1 && zgravity>0) || (zprevious < zcurrent - 1 && zgravity<0))
-                    sendWifiData(2);//down
+                    commandScheduler.stepTilt(-1);//down
                 else if ((zprevious < zcurrent - 1 && zgravity>0) || (zprevious > zcurrent + 1 && zgravity<0))
-                    sendWifiData(3);//up
+                    commandScheduler.stepTilt(1);//up
 
                 xprevious = xcurrent;
                 zprevious = zcurrent;
             }
         }
+        // Sends yaw/pitch relative to the orientation captured at calibration. Uses the same
+        // sign convention as the step mode: positive yaw turns left, and tilt follows the roll
+        // axis, flipped when gravity says the phone is upside down.
+        private void updateAbsoluteTarget(float azimuth, float roll) {
+            float pitch = zgravity < 0 ? -roll : roll;
+            if (!hasOrientationReference) {
+                yawReference = azimuth;
+                pitchReference = pitch;
+                hasOrientationReference = true;
+            }
+            // Wrap yaw to [-180, 180).
+            float yaw = ((azimuth - yawReference + 540f) % 360f) - 180f;
+            commandScheduler.setAbsoluteTarget(
+                    Math.round(yaw * 100), Math.round((pitch - pitchReference) * 100));
+        }
+
+        // Readings no longer relate to the reference, e.g. the compass needs recalibration.
+        // Stop steering until the sensor recovers; its next reading becomes the reference.
+        private void loseOrientationReference() {
+            if (hasOrientationReference) {
+                Log.w(LOG_TAG, "Orientation reference lost");
+                hasOrientationReference = false;
+                commandScheduler.clearAbsoluteTarget();
+            }
+        }
+
         private class MySensorListener_gravity implements SensorEventListener {
             public void onAccuracyChanged(Sensor sensor, int accuracy) {
             }
@@ -238,59 +383,34 @@ public class CallActivity extends AppCompatActivity
         }
     }
 
-    private void sendWifiData(int angle){
-        String data = String.valueOf(angle);
-        ByteBuffer buffer = ByteBuffer.wrap(data.getBytes());
-        DataChannel.Buffer dcBuffer = new DataChannel.Buffer(buffer, false);
-        if(peerConnectionClient.getDataChannel() != null) {
-            if (peerConnectionClient.getDataChannel().send(dcBuffer)){
-
+    // Viewer only: reads the joystick once it is connected and the scheduler exists. Called
+    // for both and again after every reconnect.
+    private void startJoystickReader() {
+        synchronized (joystickLock) {
+            InputStream inputStream = mmInputStream;
+            if (isCamera || commandScheduler == null || inputStream == null) {
+                return;
             }
-//                Log.wtf(LOG_TAG, "----------Success----------");
-        }
-    }
-
-    public static void sendBluetoothData(int angle){
-        Log.wtf(LOG_TAG, "-----Angle"+angle+"-----");
-
-        if(isConnect) {
-            try {
-                mmOutputStream.write(angle);
-                mmOutputStream.flush();
-            }catch (Exception e){
-                e.printStackTrace();
-                Log.wtf(LOG_TAG, "sendBluetoothData failed");
+            stopJoystickReader();
+            joystickReader = new JoystickReader(inputStream, commandScheduler);
+            BluetoothConnectionManager manager = bluetoothManager;
+            if (manager != null) {
+                joystickReader.setReadErrorListener(manager::onConnectionLost);
             }
+            joystickReader.start();
         }
     }
 
-    private void readBluetoothData(){
-        Log.wtf(LOG_TAG,"Reading bluetooth");
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while (true) {
-                    try {
-//                        Log.wtf(LOG_TAG,"In read bluetooth Thread");
-                        // Read from the InputStream
-                        //int availableBytes = mmInputStream.available();
-                        byte[] buffer = new byte[1];
-                        int bytes;
-                        bytes = mmInputStream.read(buffer,0,buffer.length);
-                        String readMessage = new String(buffer, 0, bytes);
-                        int data = buffer[0];
-                        Log.wtf(LOG_TAG, "JoyStick data Message :: "+data);
-                        sendWifiData(data);
-                    } catch (IOException e) {
-                        break;
-                    }
-                }
+    private void stopJoystickReader() {
+        synchronized (joystickLock) {
+            if (joystickReader != null) {
+                joystickReader.stop();
+                joystickReader = null;
             }
-        }).start();
+        }
     }
 
     private void setupBluetooth(boolean isCamera){
-        BA = BluetoothAdapter.getDefaultAdapter();
         String bluetoothDevice = isCamera ? "HC-05" : "joystick";
 //        sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
 //        gyroSensor = sensorManager
@@ -314,35 +434,40 @@ public class CallActivity extends AppCompatActivity
             params.screenBrightness = 0;
             getWindow().setAttributes(params);
         }*/
-        if(BA.isEnabled()) {
-            pairedDevices = BA.getBondedDevices();
-
-            final ArrayList list = new ArrayList();
-            for (BluetoothDevice bt : pairedDevices)
-                list.add(bt.getName());
-
-            Toast.makeText(getApplicationContext(), "Showing Paired Devices",
-                    Toast.LENGTH_SHORT).show();
-            for (BluetoothDevice bt : pairedDevices) {
-                if (bt.getName().equals(bluetoothDevice)) {
-                    UUID uuid = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-
-                    try {
-                        BluetoothSocket mmSocket = bt.createRfcommSocketToServiceRecord(uuid);
-                        mmSocket.connect();  // blocking call
-                        mmOutputStream = mmSocket.getOutputStream();
-                        mmInputStream = mmSocket.getInputStream();
-                        Toast.makeText(getApplicationContext(), "成功辣",
-                                Toast.LENGTH_SHORT).show();
-                        isConnect = true;
-
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+        // Connect in the background; the call does not wait for the serial adapter.
+        bluetoothManager = new BluetoothConnectionManager(
+                bluetoothDevice, BLUETOOTH_CONNECT_TIMEOUT_MS, this);
+        if (bluetoothWriter != null) {
+            bluetoothWriter.setWriteErrorListener(bluetoothManager::onConnectionLost);
+        }
+        bluetoothManager.connect();
+    }
 
-                }
-            }
+    // BluetoothConnectionEvents, called on the connection manager thread.
+    @Override
+    public void onBluetoothStateChanged(BluetoothConnectionManager.ConnectionState state) {
+        Log.d(LOG_TAG, "Bluetooth state: " + state);
+    }
+
+    @Override
+    public void onBluetoothConnected(InputStream inputStream, OutputStream outputStream) {
+        if (bluetoothWriter != null) {
+            bluetoothWriter.setOutputStream(outputStream);
         }
+        mmInputStream = inputStream;
+        startJoystickReader();
+        runOnUiThread(() -> Toast.makeText(getApplicationContext(), "成功辣",
+                Toast.LENGTH_SHORT).show());
+    }
+
+    @Override
+    public void onBluetoothDisconnected() {
+        if (bluetoothWriter != null) {
+            bluetoothWriter.setOutputStream(null);
+        }
+        mmInputStream = null;
+        // The manager closed the socket, which ends a pending read.
+        stopJoystickReader();
     }
 
 
@@ -448,7 +573,7 @@ public class CallActivity extends AppCompatActivity
             logToast.cancel();
         }
         activityRunning = false;
-        rootEglBase.release();
+        IceServerCache.getInstance().release();
         super.onDestroy();
     }
 
@@ -529,6 +654,14 @@ public class CallActivity extends AppCompatActivity
         updateVideoView();
         // Enable statistics callback.
         peerConnectionClient.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
+        if (measureLatency && videoLatencyProbe == null) {
+            StatsEngine statsEngine = peerConnectionClient.getStatsEngine();
+            if (statsEngine != null) {
+                videoLatencyProbe = new VideoLatencyProbe(latencyMonitor);
+                videoLatencyStatsEngine = statsEngine;
+                statsEngine.addListener(videoLatencyProbe);
+            }
+        }
     }
 
     // This method is called when the audio manager reports audio device change,
@@ -543,14 +676,47 @@ public class CallActivity extends AppCompatActivity
     // Disconnect from remote resources, dispose of local resources, and exit.
     private void disconnect() {
         activityRunning = false;
+        stopJoystickReader();
+        if (commandScheduler != null) {
+            // Sensor listeners may still fire; stepping a stopped scheduler is harmless.
+            commandScheduler.stop();
+            Log.d(LOG_TAG, "Control scheduler: skipped " + commandScheduler.getSkippedTicks()
+                    + " ticks, discarded " + commandScheduler.getDiscardedSteps() + " steps");
+        }
         if (appRtcClient != null) {
             appRtcClient.disconnectFromRoom();
             appRtcClient = null;
         }
+        if (videoLatencyProbe != null) {
+            videoLatencyStatsEngine.removeListener(videoLatencyProbe);
+            videoLatencyProbe = null;
+            videoLatencyStatsEngine = null;
+        }
         if (peerConnectionClient != null) {
             peerConnectionClient.close();
             peerConnectionClient = null;
         }
+        // The writer and joystick reader report errors to the manager, so stop them first.
+        if (bluetoothWriter != null) {
+            Log.d(LOG_TAG, "Bluetooth writer: written " + bluetoothWriter.getWrittenCount()
+                    + ", dropped " + bluetoothWriter.getDroppedCount() + ", max write latency "
+                    + bluetoothWriter.getMaxWriteLatencyUs() + " us");
+            bluetoothWriter.stop();
+        }
+        if (bluetoothManager != null) {
+            bluetoothManager.close();
+            bluetoothManager = null;
+        }
+        if (frameLatencyMeter != null) {
+            Log.d(LOG_TAG, "Glass-to-glass: measured " + frameLatencyMeter.getMeasuredFrames()
+                    + " frames, " + frameLatencyMeter.getUnmeasuredFrames() + " not measured, clock offset "
+                    + clockSync.getOffsetUs() + " us +- " + clockSync.getRoundTripUs() / 2 + " us");
+        }
+        if (!latencyDumped) {
+            latencyDumped = true;
+            Log.d(LOG_TAG, "Latency:\n" + latencyMonitor);
+            dumpLatencyInBackground();
+        }
         binding.localVideoView.release();
         binding.remoteVideoView.release();
         if (audioManager != null) {
@@ -565,6 +731,22 @@ public class CallActivity extends AppCompatActivity
         finish();
     }
 
+    // Writes the latency histograms to the app's external files directory off the UI thread.
+    // The thread exits once the file is written, even if the activity is gone by then.
+    private void dumpLatencyInBackground() {
+        final Context appContext = getApplicationContext();
+        ExecutorService dumpExecutor = Executors.newSingleThreadExecutor();
+        dumpExecutor.execute(() -> {
+            File dir = appContext.getExternalFilesDir(null);
+            if (dir == null) {
+                Log.w(LOG_TAG, "External storage unavailable, latency not dumped.");
+                return;
+            }
+            latencyMonitor.dump(new File(dir, CONTROL_LATENCY_DUMP_FILE));
+        });
+        dumpExecutor.shutdown();
+    }
+
     private void disconnectWithErrorMessage(final String errorMessage) {
         if (!activityRunning) {
             Log.e(LOG_TAG, "Critical error: " + errorMessage);
@@ -607,7 +789,8 @@ public class CallActivity extends AppCompatActivity
         VideoCapturer videoCapturer;
         if (useCamera2()) {
             Logging.d(LOG_TAG, "Creating capturer using camera2 API.");
-            videoCapturer = createCameraCapturer(new Camera2Enumerator(this));
+            // The capturer may outlive this activity, see PeerConnectionClient.
+            videoCapturer = createCameraCapturer(new Camera2Enumerator(getApplicationContext()));
         } else {
             Logging.d(LOG_TAG, "Creating capturer using camera1 API.");
             videoCapturer = createCameraCapturer(new Camera1Enumerator(captureToTexture()));
@@ -619,6 +802,17 @@ public class CallActivity extends AppCompatActivity
         return videoCapturer;
     }
 
+    // Camera side of the glass-to-glass measurement: frames in memory so they can be stamped.
+    private VideoCapturer createStampingVideoCapturer() {
+        Logging.d(LOG_TAG, "Creating stamping capturer using camera1 API.");
+        VideoCapturer videoCapturer = createCameraCapturer(new Camera1Enumerator(false));
+        if (videoCapturer == null) {
+            reportError("Failed to open camera");
+            return null;
+        }
+        return new FrameStampCapturer(videoCapturer);
+    }
+
     // -----Implementation of AppRTCClient.AppRTCSignalingEvents ---------------
     // All callbacks are invoked from websocket signaling looper thread and
     // are routed to UI thread.
@@ -627,10 +821,6 @@ public class CallActivity extends AppCompatActivity
 
         signalingParameters = params;
         logAndToast("Creating peer connection, delay=" + delta + "ms");
-        VideoCapturer videoCapturer = null;
-        if (peerConnectionParameters.videoCallEnabled) {
-            videoCapturer = createVideoCapturer();
-        }
         peerConnectionClient.createPeerConnection(rootEglBase.getEglBaseContext(), binding.localVideoView,
                 remoteRenderers, videoCapturer, signalingParameters);
 
@@ -780,9 +970,14 @@ public class CallActivity extends AppCompatActivity
     }
 
     @Override
-    public void onPeerConnectionStatsReady(final StatsReport[] reports) {
-        runOnUiThread(() -> {
-        });
+    public void onPeerConnectionStatsReady(final StatsSnapshot snapshot) {
+    }
+
+    /**
+     * Returns the control loop latency histograms of this call.
+     */
+    public LatencyMonitor getLatencyMonitor() {
+        return latencyMonitor;
     }
 
     @Override
@@ -0,0 +1,304 @@
+package com.myhexaville.androidwebrtc.control;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes servo step codes to the Bluetooth SPP socket on a dedicated thread.
+ * <p>
+ * <p>Producers ({@link #offer}) put codes into a bounded lock-free ring and return
+ * immediately, so the data channel callback never blocks on the RFCOMM socket. When the
+ * ring is full the code is dropped and counted. The writer thread drains everything queued,
+ * cancels opposite steps on the same axis (LEFT then RIGHT is a no-op), and writes the
+ * remaining steps with a single write and flush. {@link ControlFrame#CALIBRATE} acts as a
+ * barrier: the servos re-center, so steps queued before it are discarded.
+ */
+public class BluetoothCommandWriter {
+    private static final String TAG = "BluetoothWriter";
+    // Upper bound for the idle park, so a missed wakeup costs at most this much latency.
+    private static final long IDLE_PARK_NS = 50_000_000;
+
+    private final int capacity;
+    private final int mask;
+    private final int[] codes;
+    // System.nanoTime() at offer, per slot.
+    private final long[] offerTimesNs;
+    // Vyukov bounded queue: slot i is free for enqueue position p when sequences[i] == p and
+    // holds the element of position p when sequences[i] == p + 1.
+    private final AtomicLongArray sequences;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    // Only accessed on the writer thread, published for getQueueDepth().
+    private volatile long dequeuePosition;
+    private final byte[] batch;
+
+    private volatile OutputStream outputStream;
+    private volatile Runnable writeErrorListener;
+    private volatile Thread writerThread;
+    private volatile boolean running;
+    private volatile boolean parked;
+
+    private final LatencyMonitor latencyMonitor;
+    // Offer time of the oldest command in the current batch.
+    private long batchStartNs;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    // Codes accepted by offer() that never reached the socket.
+    private final AtomicLong lostCount = new AtomicLong();
+    private volatile long writtenCount;
+    private volatile long lastWriteLatencyUs;
+    private volatile long maxWriteLatencyUs;
+
+    /**
+     * @param capacity       queue capacity, rounded up to a power of two.
+     * @param latencyMonitor receives the {@link LatencyMonitor.Stage#DECODE_TO_BLUETOOTH}
+     *                       latency of every batch, measured from the oldest command in it.
+     */
+    public BluetoothCommandWriter(int capacity, LatencyMonitor latencyMonitor) {
+        this.latencyMonitor = latencyMonitor;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.capacity = size;
+        mask = size - 1;
+        codes = new int[size];
+        offerTimesNs = new long[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        // Worst case one drained queue of steps plus a calibrate.
+        batch = new byte[size + 1];
+    }
+
+    /**
+     * Sets the stream of the connected socket, or null when disconnected. Commands drained
+     * while there is no stream are dropped.
+     */
+    public void setOutputStream(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    public boolean isConnected() {
+        return outputStream != null;
+    }
+
+    /**
+     * Sets a callback run on the writer thread when a write fails, e.g. to reconnect.
+     */
+    public void setWriteErrorListener(Runnable writeErrorListener) {
+        this.writeErrorListener = writeErrorListener;
+    }
+
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        writerThread = new Thread(this::run, "BluetoothWriter");
+        writerThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        Thread thread = writerThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            writerThread = null;
+        }
+    }
+
+    /**
+     * Queues a step code. Never blocks; may be called from any thread.
+     *
+     * @return false if the queue is full and the code was dropped.
+     */
+    public boolean offer(int code) {
+        long position = enqueuePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    codes[index] = code;
+                    offerTimesNs[index] = System.nanoTime();
+                    // Full barrier, so the |parked| read below cannot move before the publish.
+                    sequences.set(index, position + 1);
+                    break;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {
+                droppedCount.incrementAndGet();
+                return false;
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+        if (parked) {
+            Thread thread = writerThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+        return true;
+    }
+
+    public int getQueueDepth() {
+        return (int) Math.max(0, enqueuePosition.get() - dequeuePosition);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of steps that were queued but not written, because there was no
+     * stream or the write failed. Unlike a full queue, which {@link #offer} reports, such a
+     * loss makes a servo position tracked from queued steps wrong.
+     */
+    public long getLostCount() {
+        return lostCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    public long getLastWriteLatencyUs() {
+        return lastWriteLatencyUs;
+    }
+
+    public long getMaxWriteLatencyUs() {
+        return maxWriteLatencyUs;
+    }
+
+    private void run() {
+        Log.d(TAG, "Writer thread started");
+        while (running) {
+            int length = drain();
+            if (length < 0) {
+                parked = true;
+                // Re-check after publishing |parked| so an offer racing with it is not missed.
+                if (isEmpty() && running) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NS);
+                }
+                parked = false;
+                continue;
+            }
+            if (length > 0) {
+                write(length);
+            }
+        }
+        Log.d(TAG, "Writer thread stopped");
+    }
+
+    private boolean isEmpty() {
+        long position = dequeuePosition;
+        return sequences.get((int) position & mask) != position + 1;
+    }
+
+    /**
+     * Moves all queued codes into |batch| with per-axis cancellation.
+     *
+     * @return number of bytes to write, or -1 if the queue was empty.
+     */
+    private int drain() {
+        long position = dequeuePosition;
+        boolean calibrate = false;
+        int pan = 0;
+        int tilt = 0;
+        int drained = 0;
+        // Bounded by |capacity| so the batch cannot overflow while producers keep up.
+        while (drained < capacity) {
+            int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                break;
+            }
+            int code = codes[index];
+            if (drained == 0) {
+                batchStartNs = offerTimesNs[index];
+            }
+            sequences.lazySet(index, position + capacity);
+            position++;
+            drained++;
+            switch (code) {
+                case ControlFrame.STEP_LEFT:
+                    pan++;
+                    break;
+                case ControlFrame.STEP_RIGHT:
+                    pan--;
+                    break;
+                case ControlFrame.STEP_UP:
+                    tilt++;
+                    break;
+                case ControlFrame.STEP_DOWN:
+                    tilt--;
+                    break;
+                case ControlFrame.CALIBRATE:
+                    calibrate = true;
+                    pan = 0;
+                    tilt = 0;
+                    break;
+                default:
+                    Log.w(TAG, "Dropping unknown code " + code);
+            }
+        }
+        dequeuePosition = position;
+        if (drained == 0) {
+            return -1;
+        }
+        int length = 0;
+        if (calibrate) {
+            batch[length++] = ControlFrame.CALIBRATE;
+        }
+        byte panCode = (byte) (pan > 0 ? ControlFrame.STEP_LEFT : ControlFrame.STEP_RIGHT);
+        for (int i = Math.abs(pan); i > 0; i--) {
+            batch[length++] = panCode;
+        }
+        byte tiltCode = (byte) (tilt > 0 ? ControlFrame.STEP_UP : ControlFrame.STEP_DOWN);
+        for (int i = Math.abs(tilt); i > 0; i--) {
+            batch[length++] = tiltCode;
+        }
+        return length;
+    }
+
+    private void write(int length) {
+        OutputStream stream = outputStream;
+        if (stream == null) {
+            droppedCount.addAndGet(length);
+            lostCount.addAndGet(length);
+            return;
+        }
+        long startNs = System.nanoTime();
+        try {
+            stream.write(batch, 0, length);
+            stream.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Bluetooth write failed", e);
+            droppedCount.addAndGet(length);
+            lostCount.addAndGet(length);
+            // Drop commands until the connection is re-established.
+            outputStream = null;
+            // After stop() the socket is expected to be closing under the write.
+            Runnable listener = writeErrorListener;
+            if (listener != null && running) {
+                listener.run();
+            }
+            return;
+        }
+        long endNs = System.nanoTime();
+        long latencyUs = (endNs - startNs) / 1000;
+        latencyMonitor.record(LatencyMonitor.Stage.DECODE_TO_BLUETOOTH, (endNs - batchStartNs) / 1000);
+        lastWriteLatencyUs = latencyUs;
+        if (latencyUs > maxWriteLatencyUs) {
+            maxWriteLatencyUs = latencyUs;
+        }
+        writtenCount += length;
+    }
+}
@@ -0,0 +1,219 @@
+package com.myhexaville.androidwebrtc.control;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to a paired Bluetooth SPP device (HC-05 or joystick) in the background.
+ * <p>
+ * <p>The blocking {@link BluetoothSocket#connect()} runs on the manager's own thread, so
+ * call setup proceeds in parallel. A connect attempt that does not finish within the timeout
+ * is aborted by closing the socket from a watchdog thread. Failed attempts and lost
+ * connections are retried with exponential backoff. Events are delivered on the manager
+ * thread.
+ */
+public class BluetoothConnectionManager {
+    private static final String TAG = "BluetoothConnection";
+    // Well-known Serial Port Profile UUID.
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final long MIN_RECONNECT_DELAY_MS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MS = 30000;
+
+    public enum ConnectionState {
+        DISCONNECTED, CONNECTING, CONNECTED, CLOSED
+    }
+
+    /**
+     * Callback interface for connection state changes.
+     */
+    public interface BluetoothConnectionEvents {
+        void onBluetoothStateChanged(ConnectionState state);
+
+        void onBluetoothConnected(InputStream inputStream, OutputStream outputStream);
+
+        void onBluetoothDisconnected();
+    }
+
+    private final String deviceName;
+    private final long connectTimeoutMs;
+    private final BluetoothConnectionEvents events;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    // Separate thread, since the executor thread is blocked inside connect().
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+
+    // Only accessed on the executor thread.
+    private BluetoothSocket socket;
+    private long reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+    private ScheduledFuture<?> reconnectFuture;
+    private volatile ConnectionState state = ConnectionState.DISCONNECTED;
+    // Set by close(); nothing is queued on |executor| afterwards. Guarded by |this|.
+    private boolean closed;
+
+    public BluetoothConnectionManager(
+            String deviceName, long connectTimeoutMs, BluetoothConnectionEvents events) {
+        this.deviceName = deviceName;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.events = events;
+    }
+
+    public ConnectionState getState() {
+        return state;
+    }
+
+    /**
+     * Starts connecting asynchronously. Keeps retrying until connected or closed.
+     */
+    public synchronized void connect() {
+        if (closed) {
+            return;
+        }
+        executor.execute(this::connectInternal);
+    }
+
+    /**
+     * Reports that reading or writing the socket failed. Closes it and reconnects. Ignored
+     * after {@link #close()}, since the reader and writer may still fail on the closed socket.
+     */
+    public synchronized void onConnectionLost() {
+        if (closed) {
+            return;
+        }
+        executor.execute(() -> {
+            if (state != ConnectionState.CONNECTED) {
+                return;
+            }
+            Log.w(TAG, "Connection to " + deviceName + " lost");
+            closeSocket();
+            setState(ConnectionState.DISCONNECTED);
+            events.onBluetoothDisconnected();
+            scheduleReconnect();
+        });
+    }
+
+    /**
+     * Closes the connection and stops reconnecting.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        executor.execute(() -> {
+            boolean wasConnected = state == ConnectionState.CONNECTED;
+            setState(ConnectionState.CLOSED);
+            if (reconnectFuture != null) {
+                reconnectFuture.cancel(false);
+                reconnectFuture = null;
+            }
+            closeSocket();
+            if (wasConnected) {
+                events.onBluetoothDisconnected();
+            }
+        });
+        executor.shutdown();
+        watchdog.shutdown();
+    }
+
+    private void connectInternal() {
+        reconnectFuture = null;
+        if (state != ConnectionState.DISCONNECTED) {
+            return;
+        }
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null || !adapter.isEnabled()) {
+            Log.w(TAG, "Bluetooth is not available");
+            scheduleReconnect();
+            return;
+        }
+        BluetoothDevice device = null;
+        for (BluetoothDevice bonded : adapter.getBondedDevices()) {
+            if (deviceName.equals(bonded.getName())) {
+                device = bonded;
+                break;
+            }
+        }
+        if (device == null) {
+            Log.w(TAG, deviceName + " is not paired");
+            scheduleReconnect();
+            return;
+        }
+
+        setState(ConnectionState.CONNECTING);
+        long startMs = System.currentTimeMillis();
+        ScheduledFuture<?> timeout = null;
+        try {
+            final BluetoothSocket connectingSocket = device.createRfcommSocketToServiceRecord(SPP_UUID);
+            socket = connectingSocket;
+            // Discovery slows down connect considerably.
+            adapter.cancelDiscovery();
+            timeout = watchdog.schedule(() -> {
+                Log.w(TAG, "Connect to " + deviceName + " timed out");
+                closeQuietly(connectingSocket);
+            }, connectTimeoutMs, TimeUnit.MILLISECONDS);
+            connectingSocket.connect();
+            timeout.cancel(false);
+            InputStream inputStream = connectingSocket.getInputStream();
+            OutputStream outputStream = connectingSocket.getOutputStream();
+            Log.d(TAG, "Connected to " + deviceName + " in "
+                    + (System.currentTimeMillis() - startMs) + " ms");
+            reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+            setState(ConnectionState.CONNECTED);
+            events.onBluetoothConnected(inputStream, outputStream);
+        } catch (IOException e) {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            Log.w(TAG, "Connect to " + deviceName + " failed: " + e.getMessage());
+            closeSocket();
+            setState(ConnectionState.DISCONNECTED);
+            scheduleReconnect();
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (state == ConnectionState.CLOSED || executor.isShutdown()) {
+            return;
+        }
+        Log.d(TAG, "Reconnecting to " + deviceName + " in " + reconnectDelayMs + " ms");
+        reconnectFuture =
+                executor.schedule(this::connectInternal, reconnectDelayMs, TimeUnit.MILLISECONDS);
+        reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+    }
+
+    private void setState(ConnectionState newState) {
+        if (state == newState) {
+            return;
+        }
+        if (state == ConnectionState.CLOSED) {
+            return;
+        }
+        state = newState;
+        events.onBluetoothStateChanged(newState);
+    }
+
+    private void closeSocket() {
+        if (socket != null) {
+            closeQuietly(socket);
+            socket = null;
+        }
+    }
+
+    private static void closeQuietly(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close socket", e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.myhexaville.androidwebrtc.control;
+
+/**
+ * Viewer side estimate of the camera clock, from {@link ControlFrame#OP_CLOCK} round trips.
+ * <p>
+ * <p>Each reply carries the camera time at which the request arrived. Assuming the request
+ * and the reply took equally long, the offset between the clocks is the camera time minus the
+ * midpoint of the round trip. Queuing makes the two legs unequal, so of the last |window|
+ * samples the one with the shortest round trip is used, as in NTP.
+ * <p>
+ * <p>Both clocks are System.nanoTime() in microseconds. Methods may be called from any thread.
+ */
+public class ClockSync {
+    private final long[] offsetsUs;
+    private final long[] roundTripsUs;
+    // Guarded by |this|.
+    private int sampleCount;
+    private int next;
+
+    public ClockSync(int window) {
+        offsetsUs = new long[window];
+        roundTripsUs = new long[window];
+    }
+
+    /**
+     * Adds the sample of a {@link ControlFrame#OP_CLOCK_REPLY} received at |nowUs|.
+     * |echoedSendUs| is the low 32 bits of the request's send time.
+     *
+     * @return false if the reply is implausible and was ignored.
+     */
+    public synchronized boolean onReply(long cameraUs, long echoedSendUs, long nowUs) {
+        // Restore the high bits of the send time from the receive time.
+        long roundTripUs = (nowUs - echoedSendUs) & 0xFFFFFFFFL;
+        if (roundTripUs > Integer.MAX_VALUE) {
+            return false;
+        }
+        long sendUs = nowUs - roundTripUs;
+        offsetsUs[next] = cameraUs - (sendUs + roundTripUs / 2);
+        roundTripsUs[next] = roundTripUs;
+        next = (next + 1) % offsetsUs.length;
+        sampleCount = Math.min(sampleCount + 1, offsetsUs.length);
+        return true;
+    }
+
+    public synchronized boolean hasOffset() {
+        return sampleCount > 0;
+    }
+
+    /**
+     * Returns camera clock minus viewer clock, or 0 before the first reply.
+     */
+    public synchronized long getOffsetUs() {
+        int best = bestSample();
+        return best < 0 ? 0 : offsetsUs[best];
+    }
+
+    /**
+     * Returns the round trip of the sample the offset is taken from, or -1.
+     */
+    public synchronized long getRoundTripUs() {
+        int best = bestSample();
+        return best < 0 ? -1 : roundTripsUs[best];
+    }
+
+    public long toCameraUs(long viewerUs) {
+        return viewerUs + getOffsetUs();
+    }
+
+    private int bestSample() {
+        int best = -1;
+        for (int i = 0; i < sampleCount; i++) {
+            if (best < 0 || roundTripsUs[i] < roundTripsUs[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,46 @@
+package com.myhexaville.androidwebrtc.control;
+
+import com.myhexaville.androidwebrtc.web_rtc.PeerConnectionClient;
+
+import org.webrtc.DataChannel;
+
+/**
+ * Viewer side: turns {@link ControlFrame#OP_ACK} frames echoed by the camera into round-trip
+ * samples. The echoed timestamp was taken from this device's clock when the frame was sent.
+ * Clock replies are passed to a {@link ClockSync}.
+ */
+public class ControlAckReceiver implements PeerConnectionClient.DataChannelHandler {
+    private final LatencyMonitor latencyMonitor;
+    // Fed with OP_CLOCK_REPLY frames, may be null.
+    private final ClockSync clockSync;
+    // Reused for every message; only accessed on the data channel observer thread.
+    private final ControlFrame frame = new ControlFrame();
+
+    public ControlAckReceiver(LatencyMonitor latencyMonitor) {
+        this(latencyMonitor, null);
+    }
+
+    public ControlAckReceiver(LatencyMonitor latencyMonitor, ClockSync clockSync) {
+        this.latencyMonitor = latencyMonitor;
+        this.clockSync = clockSync;
+    }
+
+    @Override
+    public void onMessage(DataChannel channel, DataChannel.Buffer buffer) {
+        if (!buffer.binary || !ControlFrame.decode(buffer.data, frame)) {
+            return;
+        }
+        long nowUs = System.nanoTime() / 1000;
+        if (frame.opcode == ControlFrame.OP_CLOCK_REPLY && clockSync != null) {
+            clockSync.onReply(frame.timestampUs,
+                    ((frame.arg0 & 0xFFFFL) << 16) | (frame.arg1 & 0xFFFFL), nowUs);
+            return;
+        }
+        if (frame.opcode != ControlFrame.OP_ACK) {
+            return;
+        }
+        long roundTripUs = nowUs - frame.timestampUs;
+        latencyMonitor.record(LatencyMonitor.Stage.ROUND_TRIP, roundTripUs);
+        latencyMonitor.record(LatencyMonitor.Stage.ONE_WAY_ESTIMATE, roundTripUs / 2);
+    }
+}
@@ -0,0 +1,76 @@
+package com.myhexaville.androidwebrtc.control;
+
+import com.myhexaville.androidwebrtc.web_rtc.PeerConnectionClient;
+
+import org.webrtc.DataChannel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sends {@link ControlFrame}s over one of the peer connection data channels.
+ * <p>
+ * <p>A single direct buffer and DataChannel.Buffer wrapper are reused for every frame, so
+ * sending does not allocate on the Java side. Methods may be called from any thread.
+ */
+public class ControlChannelSender {
+    private final PeerConnectionClient peerConnectionClient;
+    private final String label;
+    private final ByteBuffer frameBuffer = ByteBuffer.allocateDirect(ControlFrame.FRAME_SIZE);
+    private final DataChannel.Buffer channelBuffer = new DataChannel.Buffer(frameBuffer, true);
+    private int sequence;
+
+    public ControlChannelSender(PeerConnectionClient peerConnectionClient, String label) {
+        this.peerConnectionClient = peerConnectionClient;
+        this.label = label;
+    }
+
+    public boolean sendStep(int stepCode) {
+        return send(ControlFrame.OP_STEP, stepCode, 0);
+    }
+
+    /**
+     * Sends a calibrate frame. |controlSequence| is the sequence number the next frame on the
+     * realtime control channel will carry, so the receiver can drop control frames that were
+     * sent before the calibration but arrive after it.
+     */
+    public boolean sendCalibrate(int controlSequence) {
+        return send(ControlFrame.OP_CALIBRATE, (short) controlSequence, 0);
+    }
+
+    /**
+     * Returns the sequence number of the next frame sent by this sender.
+     */
+    public synchronized int getNextSequence() {
+        return sequence;
+    }
+
+    public boolean send(int opcode, int arg0, int arg1) {
+        return send(opcode, arg0, arg1, System.nanoTime() / 1000);
+    }
+
+    /**
+     * Returns the number of bytes queued on the data channel, or -1 if it is not open.
+     */
+    public long getBufferedAmount() {
+        DataChannel dataChannel = peerConnectionClient.getDataChannel(label);
+        if (dataChannel == null || dataChannel.state() != DataChannel.State.OPEN) {
+            return -1;
+        }
+        return dataChannel.bufferedAmount();
+    }
+
+    /**
+     * Encodes and sends a frame.
+     *
+     * @return false if the data channel is not open or the send failed.
+     */
+    public synchronized boolean send(int opcode, int arg0, int arg1, long timestampUs) {
+        DataChannel dataChannel = peerConnectionClient.getDataChannel(label);
+        if (dataChannel == null || dataChannel.state() != DataChannel.State.OPEN) {
+            return false;
+        }
+        ControlFrame.encode(frameBuffer, opcode, sequence, timestampUs, arg0, arg1);
+        sequence = (sequence + 1) & 0xFFFF;
+        return dataChannel.send(channelBuffer);
+    }
+}
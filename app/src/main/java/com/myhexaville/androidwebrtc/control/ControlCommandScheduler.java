@@ -0,0 +1,241 @@
+package com.myhexaville.androidwebrtc.control;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sits between the sensor listeners and the data channel and limits the control rate.
+ * <p>
+ * <p>Step requests only move a per-axis target. On every tick the difference between the
+ * target and the position already sent is transmitted as a single {@link ControlFrame#OP_MOVE}
+ * frame, so bursts of steps collapse into one message per tick. When the data channel has
+ * more than |maxBufferedBytes| queued the tick is skipped; the pending movement is kept and
+ * goes out coalesced with later steps once the channel drains.
+ * <p>
+ * <p>In absolute mode ({@link #setAbsoluteTarget}) the latest yaw/pitch target is sent as
+ * {@link ControlFrame#OP_ABSOLUTE} whenever it changes, and re-sent every |refreshTicks|
+ * ticks so a lost frame on an unreliable channel is corrected quickly. Steps requested
+ * meanwhile, e.g. by the joystick, are discarded and counted, since the target already sets
+ * the servo position.
+ * <p>
+ * <p>Calibration goes over |reliableSender| so it is never lost, and carries the next control
+ * sequence number so the receiver can discard control frames sent before it.
+ */
+public class ControlCommandScheduler {
+    private static final String TAG = "ControlScheduler";
+
+    private final ControlChannelSender sender;
+    private final ControlChannelSender reliableSender;
+    private final LatencyMonitor latencyMonitor;
+    private final long maxBufferedBytes;
+    private final int refreshTicks;
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture<?> tickFuture;
+    // Probes the camera clock every |clockSyncTicks| ticks if set.
+    private volatile ClockSync clockSync;
+    private volatile int clockSyncTicks;
+
+    // Written by sensor threads, read by the tick thread.
+    private final AtomicInteger panTarget = new AtomicInteger();
+    private final AtomicInteger tiltTarget = new AtomicInteger();
+    private volatile boolean calibratePending;
+    // Yaw (high 32 bits) and pitch (low 32 bits) in centidegrees, published atomically.
+    private final AtomicLong absoluteTarget = new AtomicLong();
+    private volatile boolean absoluteMode;
+    // System.nanoTime() of the latest input, for the sensor-to-send latency.
+    private volatile long inputTimeNs;
+    // Only accessed on the tick thread.
+    private int panSent;
+    private int tiltSent;
+    private long absoluteSent;
+    private int ticksSinceAbsolute;
+    private int skippedTicks;
+    private volatile int discardedSteps;
+    private int ticksSinceClockSync;
+
+    public ControlCommandScheduler(ControlChannelSender sender, ControlChannelSender reliableSender,
+                                   LatencyMonitor latencyMonitor, long maxBufferedBytes,
+                                   int refreshTicks) {
+        this.sender = sender;
+        this.reliableSender = reliableSender;
+        this.latencyMonitor = latencyMonitor;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.refreshTicks = refreshTicks;
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Starts sending at |rateHz| ticks per second.
+     */
+    public void start(int rateHz) {
+        long periodUs = TimeUnit.SECONDS.toMicros(1) / Math.max(1, rateHz);
+        Log.d(TAG, "Start control scheduler at " + rateHz + " Hz");
+        tickFuture = executor.scheduleAtFixedRate(this::tick, periodUs, periodUs, TimeUnit.MICROSECONDS);
+    }
+
+    public void stop() {
+        if (tickFuture != null) {
+            tickFuture.cancel(false);
+            tickFuture = null;
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Moves the pan target by |steps|; positive values turn left.
+     */
+    public void stepPan(int steps) {
+        inputTimeNs = System.nanoTime();
+        panTarget.addAndGet(steps);
+    }
+
+    /**
+     * Moves the tilt target by |steps|; positive values tilt up.
+     */
+    public void stepTilt(int steps) {
+        inputTimeNs = System.nanoTime();
+        tiltTarget.addAndGet(steps);
+    }
+
+    /**
+     * Switches to absolute mode and sets the target orientation relative to the calibration
+     * reference, in hundredths of a degree.
+     */
+    public void setAbsoluteTarget(int yawCentidegrees, int pitchCentidegrees) {
+        inputTimeNs = System.nanoTime();
+        absoluteTarget.set(((long) yawCentidegrees << 32) | (pitchCentidegrees & 0xFFFFFFFFL));
+        absoluteMode = true;
+    }
+
+    /**
+     * Leaves absolute mode, for when the orientation the target is relative to is lost. The
+     * servos hold their position until the next target or step.
+     */
+    public void clearAbsoluteTarget() {
+        absoluteMode = false;
+    }
+
+    /**
+     * Requests servo calibration. Pending movement is discarded since calibration resets the
+     * servos to their reference position.
+     */
+    public void calibrate() {
+        calibratePending = true;
+    }
+
+    /**
+     * Sends a {@link ControlFrame#OP_CLOCK} probe every |intervalTicks| ticks so replies can
+     * keep |clockSync| up to date. Must be called before {@link #start}.
+     */
+    public void setClockSync(ClockSync clockSync, int intervalTicks) {
+        this.clockSync = clockSync;
+        this.clockSyncTicks = intervalTicks;
+    }
+
+    public int getSkippedTicks() {
+        return skippedTicks;
+    }
+
+    /**
+     * Returns the number of pan and tilt steps discarded in absolute mode.
+     */
+    public int getDiscardedSteps() {
+        return discardedSteps;
+    }
+
+    // Package-private for tests; otherwise only run by |executor|.
+    void tick() {
+        try {
+            if (clockSync != null && ++ticksSinceClockSync >= clockSyncTicks) {
+                ticksSinceClockSync = 0;
+                sender.send(ControlFrame.OP_CLOCK, 0, 0);
+            }
+            if (calibratePending) {
+                if (!reliableSender.sendCalibrate(sender.getNextSequence())) {
+                    return;
+                }
+                calibratePending = false;
+                panSent = panTarget.get();
+                tiltSent = tiltTarget.get();
+                // Force the current absolute target out after the servos re-center.
+                ticksSinceAbsolute = refreshTicks;
+            }
+            if (absoluteMode) {
+                discardPendingSteps();
+                sendAbsoluteTarget();
+                return;
+            }
+            int pan = panTarget.get() - panSent;
+            int tilt = tiltTarget.get() - tiltSent;
+            if (pan == 0 && tilt == 0) {
+                return;
+            }
+            long buffered = sender.getBufferedAmount();
+            if (buffered < 0 || buffered > maxBufferedBytes) {
+                skippedTicks++;
+                return;
+            }
+            pan = clamp(pan);
+            tilt = clamp(tilt);
+            if (sender.send(ControlFrame.OP_MOVE, pan, tilt)) {
+                panSent += pan;
+                tiltSent += tilt;
+                recordSensorToSend();
+            }
+        } catch (RuntimeException e) {
+            // Keep the periodic task alive; an exception would cancel it.
+            Log.e(TAG, "Control tick failed", e);
+        }
+    }
+
+    private void discardPendingSteps() {
+        int pan = panTarget.get() - panSent;
+        int tilt = tiltTarget.get() - tiltSent;
+        if (pan == 0 && tilt == 0) {
+            return;
+        }
+        if (discardedSteps == 0) {
+            Log.w(TAG, "Discarding steps while absolute targets are sent");
+        }
+        panSent += pan;
+        tiltSent += tilt;
+        discardedSteps += Math.abs(pan) + Math.abs(tilt);
+    }
+
+    private void sendAbsoluteTarget() {
+        long target = absoluteTarget.get();
+        ticksSinceAbsolute++;
+        if (target == absoluteSent && ticksSinceAbsolute < refreshTicks) {
+            return;
+        }
+        long buffered = sender.getBufferedAmount();
+        if (buffered < 0 || buffered > maxBufferedBytes) {
+            skippedTicks++;
+            return;
+        }
+        if (sender.send(ControlFrame.OP_ABSOLUTE, clamp((int) (target >> 32)), clamp((int) target))) {
+            if (target != absoluteSent) {
+                // Refreshes of an unchanged target carry no new input.
+                recordSensorToSend();
+            }
+            absoluteSent = target;
+            ticksSinceAbsolute = 0;
+        }
+    }
+
+    private void recordSensorToSend() {
+        latencyMonitor.record(LatencyMonitor.Stage.SENSOR_TO_SEND,
+                (System.nanoTime() - inputTimeNs) / 1000);
+    }
+
+    // Frame arguments are 16 bit.
+    private static int clamp(int value) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+}
@@ -0,0 +1,115 @@
+package com.myhexaville.androidwebrtc.control;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary frame exchanged over the control data channel.
+ * <p>
+ * <p>Layout (big endian, {@link #FRAME_SIZE} bytes):
+ * <pre>
+ *  0      version
+ *  1      opcode
+ *  2..3   sequence number (unsigned 16 bit, wraps around)
+ *  4..11  sender timestamp in microseconds (sender monotonic clock)
+ *  12..13 arg0
+ *  14..15 arg1
+ * </pre>
+ * Instances are mutable so a receiver can decode every message into the same object.
+ */
+public final class ControlFrame {
+    public static final int FRAME_SIZE = 16;
+    public static final int VERSION = 1;
+
+    // Opcodes.
+    public static final int OP_STEP = 1;
+    public static final int OP_CALIBRATE = 2;
+    // arg0: signed pan steps (positive is left), arg1: signed tilt steps (positive is up).
+    public static final int OP_MOVE = 3;
+    // arg0: yaw, arg1: pitch, both in centidegrees relative to the calibration reference.
+    // Idempotent, so it can be sent over an unordered, unreliable channel.
+    public static final int OP_ABSOLUTE = 4;
+    // Camera -> viewer echo of a received frame: sequence and timestamp are copied from it,
+    // arg0 is its opcode. Lets the sender measure the round trip on its own clock.
+    public static final int OP_ACK = 5;
+    // Viewer -> camera clock probe; the timestamp is the viewer send time.
+    public static final int OP_CLOCK = 6;
+    // Camera -> viewer answer to OP_CLOCK: the timestamp is the camera receive time, arg0 and
+    // arg1 the high and low 16 bits of the low 32 bits of the probe's timestamp.
+    public static final int OP_CLOCK_REPLY = 7;
+
+    // Step codes understood by the servo controller, also used as arg0 of OP_STEP.
+    public static final int STEP_LEFT = 0;
+    public static final int STEP_RIGHT = 1;
+    public static final int STEP_DOWN = 2;
+    public static final int STEP_UP = 3;
+    public static final int CALIBRATE = 4;
+
+    private static final int OFFSET_VERSION = 0;
+    private static final int OFFSET_OPCODE = 1;
+    private static final int OFFSET_SEQUENCE = 2;
+    private static final int OFFSET_TIMESTAMP = 4;
+    private static final int OFFSET_ARG0 = 12;
+    private static final int OFFSET_ARG1 = 14;
+
+    public int opcode;
+    public int sequence;
+    public long timestampUs;
+    public int arg0;
+    public int arg1;
+
+    /**
+     * Writes a frame into |buffer| starting at position 0 and flips it for sending.
+     */
+    public static void encode(ByteBuffer buffer, int opcode, int sequence, long timestampUs,
+                              int arg0, int arg1) {
+        buffer.clear();
+        buffer.put(OFFSET_VERSION, (byte) VERSION);
+        buffer.put(OFFSET_OPCODE, (byte) opcode);
+        buffer.putShort(OFFSET_SEQUENCE, (short) sequence);
+        buffer.putLong(OFFSET_TIMESTAMP, timestampUs);
+        buffer.putShort(OFFSET_ARG0, (short) arg0);
+        buffer.putShort(OFFSET_ARG1, (short) arg1);
+        buffer.limit(FRAME_SIZE);
+    }
+
+    /**
+     * Decodes the frame at the current position of |buffer| into |frame| using absolute
+     * reads only, so neither the buffer position nor the heap is touched.
+     *
+     * @return false if the buffer does not hold a frame of a known version.
+     */
+    public static boolean decode(ByteBuffer buffer, ControlFrame frame) {
+        int base = buffer.position();
+        if (buffer.limit() - base < FRAME_SIZE || buffer.get(base + OFFSET_VERSION) != VERSION) {
+            return false;
+        }
+        frame.opcode = buffer.get(base + OFFSET_OPCODE) & 0xFF;
+        frame.sequence = buffer.getShort(base + OFFSET_SEQUENCE) & 0xFFFF;
+        frame.timestampUs = buffer.getLong(base + OFFSET_TIMESTAMP);
+        frame.arg0 = buffer.getShort(base + OFFSET_ARG0);
+        frame.arg1 = buffer.getShort(base + OFFSET_ARG1);
+        return true;
+    }
+
+    /**
+     * Parses a legacy text command (an ASCII decimal step code) without allocating.
+     *
+     * @return the parsed value, or -1 if the buffer is not a non-negative integer.
+     */
+    public static int parseLegacyCommand(ByteBuffer buffer) {
+        int end = buffer.limit();
+        int start = buffer.position();
+        if (start == end || end - start > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
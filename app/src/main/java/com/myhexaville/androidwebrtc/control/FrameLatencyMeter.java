@@ -0,0 +1,69 @@
+package com.myhexaville.androidwebrtc.control;
+
+import com.myhexaville.androidwebrtc.web_rtc.FrameStamp;
+
+import org.webrtc.VideoRenderer;
+
+/**
+ * Viewer side of the glass-to-glass measurement: a remote video renderer that reads the
+ * {@link FrameStamp} written by the camera's FrameStampCapturer and records the time since
+ * then, on the camera clock estimated by {@link ClockSync}, as
+ * {@link LatencyMonitor.Stage#VIDEO_GLASS_TO_GLASS}.
+ * <p>
+ * <p>Frames must be decoded to memory; texture frames are only counted. Called on the
+ * decoder thread.
+ */
+public class FrameLatencyMeter implements VideoRenderer.Callbacks {
+    // Stamps older than this are taken for misreads.
+    private static final long MAX_LATENCY_MS = 60000;
+
+    private final ClockSync clockSync;
+    private final LatencyMonitor latencyMonitor;
+    private volatile long measuredFrames;
+    private volatile long unmeasuredFrames;
+
+    public FrameLatencyMeter(ClockSync clockSync, LatencyMonitor latencyMonitor) {
+        this.clockSync = clockSync;
+        this.latencyMonitor = latencyMonitor;
+    }
+
+    @Override
+    public void renderFrame(VideoRenderer.I420Frame frame) {
+        try {
+            if (measure(frame)) {
+                measuredFrames++;
+            } else {
+                unmeasuredFrames++;
+            }
+        } finally {
+            VideoRenderer.renderFrameDone(frame);
+        }
+    }
+
+    public long getMeasuredFrames() {
+        return measuredFrames;
+    }
+
+    public long getUnmeasuredFrames() {
+        return unmeasuredFrames;
+    }
+
+    private boolean measure(VideoRenderer.I420Frame frame) {
+        if (!frame.yuvFrame || !clockSync.hasOffset()) {
+            return false;
+        }
+        long stampMs = FrameStamp.read(frame.yuvPlanes[0], frame.yuvStrides[0], frame.width,
+                frame.height);
+        if (stampMs == FrameStamp.NOT_FOUND) {
+            return false;
+        }
+        long cameraNowMs = clockSync.toCameraUs(System.nanoTime() / 1000) / 1000;
+        // The stamp holds the low 32 bits of the camera time.
+        long latencyMs = (cameraNowMs - stampMs) & 0xFFFFFFFFL;
+        if (latencyMs > MAX_LATENCY_MS) {
+            return false;
+        }
+        latencyMonitor.record(LatencyMonitor.Stage.VIDEO_GLASS_TO_GLASS, latencyMs * 1000);
+        return true;
+    }
+}
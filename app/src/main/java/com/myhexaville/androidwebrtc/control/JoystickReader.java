@@ -0,0 +1,202 @@
+package com.myhexaville.androidwebrtc.control;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the Bluetooth joystick and feeds its state into a {@link ControlCommandScheduler}.
+ * <p>
+ * <p>Framed protocol ({@link #FRAME_SIZE} bytes):
+ * <pre>
+ *  0      0xAA sync
+ *  1      0x55 sync
+ *  2..3   yaw in centidegrees, signed big endian, positive is left
+ *  4..5   pitch in centidegrees, signed big endian, positive is up
+ *  6      buttons, bit 0 is calibrate
+ *  7      XOR of bytes 2..6
+ * </pre>
+ * Bytes outside a frame in the range 0..4 are legacy single step codes
+ * ({@link ControlFrame#STEP_LEFT} ... {@link ControlFrame#CALIBRATE}), so old joystick
+ * firmware keeps working.
+ * <p>
+ * <p>Every read fills a reused buffer. All frames and steps in it are reduced to the latest
+ * target plus a net step count per axis, and published to the scheduler once. The scheduler
+ * sends at most one message per tick, however fast the joystick streams.
+ */
+public class JoystickReader {
+    private static final String TAG = "JoystickReader";
+    public static final int SYNC_0 = 0xAA;
+    public static final int SYNC_1 = 0x55;
+    public static final int FRAME_SIZE = 8;
+    public static final int BUTTON_CALIBRATE = 1;
+    private static final int READ_BUFFER_SIZE = 256;
+
+    private final InputStream inputStream;
+    private final ControlCommandScheduler scheduler;
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private final byte[] frame = new byte[FRAME_SIZE];
+    private Thread readerThread;
+    private volatile boolean running;
+    private volatile Runnable readErrorListener;
+
+    // Parser state, only accessed on the reader thread.
+    private int frameLength;
+    private int lastButtons;
+    private boolean hasTarget;
+    private int yawCentidegrees;
+    private int pitchCentidegrees;
+    private int panSteps;
+    private int tiltSteps;
+    private boolean calibrate;
+    private long badFrames;
+
+    public JoystickReader(InputStream inputStream, ControlCommandScheduler scheduler) {
+        this.inputStream = inputStream;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets a callback run on the reader thread when the stream fails or ends while reading,
+     * e.g. to reconnect.
+     */
+    public void setReadErrorListener(Runnable readErrorListener) {
+        this.readErrorListener = readErrorListener;
+    }
+
+    public void start() {
+        running = true;
+        readerThread = new Thread(this::run, "JoystickReader");
+        readerThread.start();
+    }
+
+    /**
+     * Stops reading. The owner closes the socket to unblock a pending read.
+     */
+    public void stop() {
+        running = false;
+        if (readerThread != null) {
+            readerThread.interrupt();
+            readerThread = null;
+        }
+    }
+
+    public long getBadFrames() {
+        return badFrames;
+    }
+
+    private void run() {
+        Log.d(TAG, "Reading joystick");
+        try {
+            while (running) {
+                int length = inputStream.read(readBuffer, 0, readBuffer.length);
+                if (length < 0) {
+                    break;
+                }
+                parse(readBuffer, length);
+                publish();
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.e(TAG, "Joystick read failed", e);
+            }
+        }
+        Log.d(TAG, "Joystick reader stopped. Bad frames: " + badFrames);
+        Runnable listener = readErrorListener;
+        if (running && listener != null) {
+            listener.run();
+        }
+    }
+
+    void parse(byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            int b = data[i] & 0xFF;
+            if (frameLength == 0) {
+                if (b == SYNC_0) {
+                    frame[frameLength++] = (byte) b;
+                } else {
+                    onLegacyByte(b);
+                }
+                continue;
+            }
+            if (frameLength == 1 && b != SYNC_1) {
+                // Not a frame after all; a repeated sync byte may start the real one.
+                frameLength = b == SYNC_0 ? 1 : 0;
+                if (b != SYNC_0) {
+                    onLegacyByte(b);
+                }
+                continue;
+            }
+            frame[frameLength++] = (byte) b;
+            if (frameLength == FRAME_SIZE) {
+                frameLength = 0;
+                onFrame();
+            }
+        }
+    }
+
+    private void onFrame() {
+        int checksum = 0;
+        for (int i = 2; i < FRAME_SIZE - 1; i++) {
+            checksum ^= frame[i];
+        }
+        if ((byte) checksum != frame[FRAME_SIZE - 1]) {
+            badFrames++;
+            return;
+        }
+        yawCentidegrees = (short) (((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF));
+        pitchCentidegrees = (short) (((frame[4] & 0xFF) << 8) | (frame[5] & 0xFF));
+        hasTarget = true;
+        int buttons = frame[6] & 0xFF;
+        // Calibrate on press, not while held.
+        if ((buttons & BUTTON_CALIBRATE) != 0 && (lastButtons & BUTTON_CALIBRATE) == 0) {
+            calibrate = true;
+        }
+        lastButtons = buttons;
+    }
+
+    private void onLegacyByte(int code) {
+        switch (code) {
+            case ControlFrame.STEP_LEFT:
+                panSteps++;
+                break;
+            case ControlFrame.STEP_RIGHT:
+                panSteps--;
+                break;
+            case ControlFrame.STEP_UP:
+                tiltSteps++;
+                break;
+            case ControlFrame.STEP_DOWN:
+                tiltSteps--;
+                break;
+            case ControlFrame.CALIBRATE:
+                calibrate = true;
+                panSteps = 0;
+                tiltSteps = 0;
+                break;
+            default:
+                // Line noise between frames.
+                break;
+        }
+    }
+
+    private void publish() {
+        if (calibrate) {
+            scheduler.calibrate();
+            calibrate = false;
+        }
+        if (hasTarget) {
+            scheduler.setAbsoluteTarget(yawCentidegrees, pitchCentidegrees);
+            hasTarget = false;
+        }
+        if (panSteps != 0) {
+            scheduler.stepPan(panSteps);
+            panSteps = 0;
+        }
+        if (tiltSteps != 0) {
+            scheduler.stepTilt(tiltSteps);
+            tiltSteps = 0;
+        }
+    }
+}
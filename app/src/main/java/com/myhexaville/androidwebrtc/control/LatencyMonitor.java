@@ -0,0 +1,97 @@
+package com.myhexaville.androidwebrtc.control;
+
+import android.util.Log;
+
+import com.myhexaville.androidwebrtc.util.LatencyHistogram;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Per-stage latency histograms of the control loop.
+ * <p>
+ * <p>Viewer stages are measured against the viewer clock, camera stages against the camera
+ * clock, so no clock synchronization is needed. The one-way estimate is half the round trip.
+ * Only VIDEO_GLASS_TO_GLASS spans both devices; it relies on {@link ClockSync}.
+ */
+public class LatencyMonitor {
+    private static final String TAG = "LatencyMonitor";
+
+    public enum Stage {
+        // Viewer: sensor event handled -> control frame handed to the data channel.
+        SENSOR_TO_SEND,
+        // Viewer: control frame sent -> ack received.
+        ROUND_TRIP,
+        // Viewer: ROUND_TRIP / 2.
+        ONE_WAY_ESTIMATE,
+        // Camera: control frame decoded -> Bluetooth write and flush returned.
+        DECODE_TO_BLUETOOTH,
+        // Camera: average encode time of the sent video, from stats.
+        VIDEO_ENCODE,
+        // Viewer: jitter buffer, decode and render delay of the received video, from stats.
+        VIDEO_RECEIVE_DELAY,
+        // Viewer: VIDEO_RECEIVE_DELAY + round trip / 2, the frame latency after encoding.
+        VIDEO_FRAME_ESTIMATE,
+        // Viewer: stamped frame handed to WebRTC by the camera -> decoded frame delivered to
+        // the renderer, on the synchronized clock.
+        VIDEO_GLASS_TO_GLASS
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+
+    public LatencyMonitor() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public void record(Stage stage, long latencyUs) {
+        histograms[stage.ordinal()].record(latencyUs);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Writes the summary and bucket counts of every stage that has samples to |file|.
+     */
+    public boolean dump(File file) {
+        StringBuilder out = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            out.append("# ").append(stage).append(' ').append(histogram).append('\n');
+            histogram.appendBuckets(out);
+        }
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(out.toString());
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to dump latencies to " + file, e);
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+            if (histogram.getCount() != 0) {
+                out.append(stage).append(": ").append(histogram).append('\n');
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,220 @@
+package com.myhexaville.androidwebrtc.control;
+
+import android.util.Log;
+
+import com.myhexaville.androidwebrtc.web_rtc.PeerConnectionClient;
+
+import org.webrtc.DataChannel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Camera side of the control protocol: turns received control messages into servo step codes.
+ * <p>
+ * <p>The servo position is tracked in steps relative to the last calibration, so absolute
+ * targets ({@link ControlFrame#OP_ABSOLUTE}) are applied idempotently: repeating a target is
+ * a no-op and a lost target is corrected by the next one. Absolute frames older than the last
+ * applied one are dropped, which makes unordered, unreliable delivery safe. Calibration arrives
+ * on the reliable channel and carries the first control sequence number sent after it, so
+ * absolute frames overtaken by the calibration are dropped as well.
+ * <p>
+ * <p>The position only counts steps the {@link BluetoothCommandWriter} accepted; a move stops
+ * at the first step its queue can't take, and the next absolute target makes up for it. Steps
+ * the writer lost after accepting them, e.g. while Bluetooth was disconnected, leave the real
+ * servo position unknown, so the servos are re-centered with a calibration and moved back to
+ * the last absolute target.
+ * <p>
+ * <p>The same instance handles messages of both the control and the telemetry channel.
+ * <p>
+ * <p>Methods must be called from a single thread (the data channel observer thread).
+ */
+public class ServoController implements PeerConnectionClient.DataChannelHandler {
+    private static final String TAG = "ServoController";
+
+    private final int centidegreesPerStep;
+    private final BluetoothCommandWriter bluetoothWriter;
+    // Reused for every message.
+    private final ControlFrame frame = new ControlFrame();
+    private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(ControlFrame.FRAME_SIZE);
+    private final DataChannel.Buffer ackChannelBuffer = new DataChannel.Buffer(ackBuffer, true);
+    private int panPosition;
+    private int tiltPosition;
+    private boolean hasAbsoluteSequence;
+    private int lastAbsoluteSequence;
+    // Last applied absolute target, in steps.
+    private boolean hasAbsoluteTarget;
+    private int panTarget;
+    private int tiltTarget;
+    // Writer lost count already handled.
+    private long lostSteps;
+    // A calibration could not be queued yet.
+    private boolean calibratePending;
+
+    public ServoController(int centidegreesPerStep, BluetoothCommandWriter bluetoothWriter) {
+        this.centidegreesPerStep = centidegreesPerStep;
+        this.bluetoothWriter = bluetoothWriter;
+    }
+
+    @Override
+    public void onMessage(DataChannel channel, DataChannel.Buffer buffer) {
+        resyncIfNeeded();
+        if (!buffer.binary) {
+            // Legacy peers send the step code as decimal text.
+            int command = ControlFrame.parseLegacyCommand(buffer.data);
+            if (command >= 0) {
+                onStep(command);
+            }
+            return;
+        }
+        if (!ControlFrame.decode(buffer.data, frame)) {
+            Log.w(TAG, "Dropping malformed control frame");
+            return;
+        }
+        if (frame.opcode == ControlFrame.OP_CLOCK) {
+            sendClockReply(channel);
+            return;
+        }
+        if (frame.opcode != ControlFrame.OP_ACK) {
+            sendAck(channel);
+        }
+        switch (frame.opcode) {
+            case ControlFrame.OP_STEP:
+                onStep(frame.arg0);
+                break;
+            case ControlFrame.OP_CALIBRATE:
+                onStep(ControlFrame.CALIBRATE);
+                hasAbsoluteTarget = false;
+                hasAbsoluteSequence = true;
+                lastAbsoluteSequence = (frame.arg0 - 1) & 0xFFFF;
+                break;
+            case ControlFrame.OP_MOVE:
+                move(frame.arg0, frame.arg1);
+                break;
+            case ControlFrame.OP_ABSOLUTE:
+                applyAbsolute(frame.sequence, frame.arg0, frame.arg1);
+                break;
+            default:
+                Log.w(TAG, "Unknown control opcode " + frame.opcode);
+        }
+    }
+
+    // Returns false if the code was not queued; the tracked position is then unchanged.
+    private boolean onStep(int code) {
+        int pan = 0;
+        int tilt = 0;
+        switch (code) {
+            case ControlFrame.STEP_LEFT:
+                pan = 1;
+                break;
+            case ControlFrame.STEP_RIGHT:
+                pan = -1;
+                break;
+            case ControlFrame.STEP_UP:
+                tilt = 1;
+                break;
+            case ControlFrame.STEP_DOWN:
+                tilt = -1;
+                break;
+            case ControlFrame.CALIBRATE:
+                if (!calibrate()) {
+                    return false;
+                }
+                hasAbsoluteSequence = false;
+                return true;
+            default:
+                Log.w(TAG, "Unknown step code " + code);
+                return false;
+        }
+        if (!writeStep(code)) {
+            return false;
+        }
+        panPosition += pan;
+        tiltPosition += tilt;
+        return true;
+    }
+
+    // Queues a calibration, or keeps it pending if the queue is full.
+    private boolean calibrate() {
+        if (!writeStep(ControlFrame.CALIBRATE)) {
+            calibratePending = true;
+            return false;
+        }
+        // The servo controller re-centers on calibration.
+        calibratePending = false;
+        panPosition = 0;
+        tiltPosition = 0;
+        return true;
+    }
+
+    // Re-centers the servos if the writer lost steps, and moves them back to the last
+    // absolute target. Waits for the connection, since steps written without one are lost.
+    private void resyncIfNeeded() {
+        if (!bluetoothWriter.isConnected()) {
+            return;
+        }
+        long lost = bluetoothWriter.getLostCount();
+        if (lost != lostSteps) {
+            Log.w(TAG, (lost - lostSteps) + " servo steps lost, recalibrating");
+            lostSteps = lost;
+            calibratePending = true;
+        }
+        if (calibratePending && calibrate() && hasAbsoluteTarget) {
+            move(panTarget, tiltTarget);
+        }
+    }
+
+    private void applyAbsolute(int sequence, int yawCentidegrees, int pitchCentidegrees) {
+        if (hasAbsoluteSequence && !isNewer(sequence, lastAbsoluteSequence)) {
+            return;
+        }
+        hasAbsoluteSequence = true;
+        lastAbsoluteSequence = sequence;
+        hasAbsoluteTarget = true;
+        panTarget = Math.round((float) yawCentidegrees / centidegreesPerStep);
+        tiltTarget = Math.round((float) pitchCentidegrees / centidegreesPerStep);
+        move(panTarget - panPosition, tiltTarget - tiltPosition);
+    }
+
+    // Expands a relative move into steps, stopping at the first step that can't be queued.
+    private void move(int pan, int tilt) {
+        int panCode = pan > 0 ? ControlFrame.STEP_LEFT : ControlFrame.STEP_RIGHT;
+        for (int i = Math.abs(pan); i > 0; i--) {
+            if (!onStep(panCode)) {
+                return;
+            }
+        }
+        int tiltCode = tilt > 0 ? ControlFrame.STEP_UP : ControlFrame.STEP_DOWN;
+        for (int i = Math.abs(tilt); i > 0; i--) {
+            if (!onStep(tiltCode)) {
+                return;
+            }
+        }
+    }
+
+    // Echoes the frame back on the channel it came from so the viewer can measure the
+    // round trip. Acks on the unreliable channel may be lost; that only thins the samples.
+    private void sendAck(DataChannel channel) {
+        ControlFrame.encode(ackBuffer, ControlFrame.OP_ACK, frame.sequence, frame.timestampUs,
+                frame.opcode, 0);
+        channel.send(ackChannelBuffer);
+    }
+
+    private void sendClockReply(DataChannel channel) {
+        ControlFrame.encode(ackBuffer, ControlFrame.OP_CLOCK_REPLY, frame.sequence,
+                System.nanoTime() / 1000, (int) (frame.timestampUs >>> 16), (int) frame.timestampUs);
+        channel.send(ackChannelBuffer);
+    }
+
+    /**
+     * @return false if the code could not be queued.
+     */
+    protected boolean writeStep(int code) {
+        return bluetoothWriter.offer(code);
+    }
+
+    // Serial number arithmetic for 16 bit sequence numbers (RFC 1982).
+    private static boolean isNewer(int sequence, int reference) {
+        int distance = (sequence - reference) & 0xFFFF;
+        return distance != 0 && distance < 0x8000;
+    }
+}
@@ -0,0 +1,35 @@
+package com.myhexaville.androidwebrtc.control;
+
+import com.myhexaville.androidwebrtc.web_rtc.StatsEngine;
+import com.myhexaville.androidwebrtc.web_rtc.StatsSnapshot;
+
+/**
+ * Records video latency estimates from peer connection stats into the video stages of a
+ * {@link LatencyMonitor}. The camera reports its encode time; the viewer reports its receive
+ * delay and, with half the round trip, the latency of a frame from the encoder to the screen.
+ */
+public class VideoLatencyProbe implements StatsEngine.Listener {
+    private final LatencyMonitor latencyMonitor;
+
+    public VideoLatencyProbe(LatencyMonitor latencyMonitor) {
+        this.latencyMonitor = latencyMonitor;
+    }
+
+    @Override
+    public void onStats(StatsSnapshot snapshot) {
+        int sent = snapshot.findStream(StatsSnapshot.FLAG_VIDEO | StatsSnapshot.FLAG_SEND);
+        if (sent >= 0 && snapshot.encodeMs[sent] != StatsSnapshot.UNKNOWN) {
+            latencyMonitor.record(LatencyMonitor.Stage.VIDEO_ENCODE, snapshot.encodeMs[sent] * 1000L);
+        }
+        int received = snapshot.findStream(StatsSnapshot.FLAG_VIDEO);
+        if (received < 0 || snapshot.delayMs[received] == StatsSnapshot.UNKNOWN) {
+            return;
+        }
+        long delayUs = snapshot.delayMs[received] * 1000L;
+        latencyMonitor.record(LatencyMonitor.Stage.VIDEO_RECEIVE_DELAY, delayUs);
+        if (snapshot.rttMs != StatsSnapshot.UNKNOWN) {
+            latencyMonitor.record(LatencyMonitor.Stage.VIDEO_FRAME_ESTIMATE,
+                    delayUs + snapshot.rttMs * 1000L / 2);
+        }
+    }
+}
@@ -11,7 +11,9 @@
 package com.myhexaville.androidwebrtc.main;
 
 import android.Manifest;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.databinding.DataBindingUtil;
 import android.net.Uri;
 import android.os.Bundle;
@@ -19,6 +21,8 @@ import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.CompoundButton;
 import android.widget.EditText;
@@ -28,15 +32,29 @@ import android.widget.Toast;
 import com.myhexaville.androidwebrtc.R;
 import com.myhexaville.androidwebrtc.call.CallActivity;
 import com.myhexaville.androidwebrtc.databinding.ActivityMainBinding;
+import com.myhexaville.androidwebrtc.web_rtc.CodecBenchmark;
+import com.myhexaville.androidwebrtc.web_rtc.LocalSignalingServer;
+import com.myhexaville.androidwebrtc.web_rtc.PeerConnectionClient;
 
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
 
 import pub.devrel.easypermissions.AfterPermissionGranted;
 import pub.devrel.easypermissions.EasyPermissions;
 
+import static com.myhexaville.androidwebrtc.util.Constants.EXTRA_MEASURE_LATENCY;
 import static com.myhexaville.androidwebrtc.util.Constants.EXTRA_MODE;
 import static com.myhexaville.androidwebrtc.util.Constants.EXTRA_ROOMID;
+import static com.myhexaville.androidwebrtc.util.Constants.EXTRA_TELEOP;
+import static com.myhexaville.androidwebrtc.util.Constants.LOCAL_SIGNALING_PORT;
 
 /**
  * Handles the initial setup where the user selects which room to join.
@@ -45,6 +63,13 @@ public class MainActivity extends AppCompatActivity {
     private static final String LOG_TAG = "MainActivity";
     private static final int CONNECTION_REQUEST = 1;
     private static final int RC_CALL = 111;
+    // Starts and stops the room server hosted on this device, which lives as long as this
+    // activity. |localSignalingServer| is only accessed on this executor.
+    private final ExecutorService localSignalingExecutor = Executors.newSingleThreadExecutor();
+    private LocalSignalingServer localSignalingServer;
+    // Port of the running local room server, or 0.
+    private volatile int localSignalingPort;
+    private SharedPreferences sharedPref;
     private ActivityMainBinding binding;
     private boolean isCamera = false;
     private Switch sc;
@@ -54,6 +79,9 @@ public class MainActivity extends AppCompatActivity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
+        sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
+        // Measure the encoders before the first call, so that calls can pick the fastest codec.
+        CodecBenchmark.runIfNeeded(this);
         binding = DataBindingUtil.setContentView(this, R.layout.activity_main);
         binding.connectButton.setOnClickListener(v -> connect());
         binding.roomEdittext.requestFocus();
@@ -79,6 +107,121 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // The setting may have changed while the settings screen was shown.
+        updateLocalSignalingServer();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.connect_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_settings) {
+            startActivity(new Intent(this, SettingsActivity.class));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (isFinishing()) {
+            // Calls started from here reuse the peer connection factory and EGL context; release
+            // them with the app.
+            PeerConnectionClient.getInstance().shutdown();
+        }
+        // Runs after any start still queued.
+        localSignalingExecutor.execute(this::stopLocalSignalingServer);
+        localSignalingExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    private boolean isLocalSignalingEnabled() {
+        return sharedPref.getBoolean(getString(R.string.pref_local_signaling_key),
+                Boolean.valueOf(getString(R.string.pref_local_signaling_default)));
+    }
+
+    private void updateLocalSignalingServer() {
+        if (isLocalSignalingEnabled()) {
+            localSignalingExecutor.execute(this::startLocalSignalingServer);
+        } else {
+            localSignalingExecutor.execute(this::stopLocalSignalingServer);
+        }
+    }
+
+    // Runs on |localSignalingExecutor|.
+    private void startLocalSignalingServer() {
+        if (localSignalingServer != null) {
+            return;
+        }
+        LocalSignalingServer server = new LocalSignalingServer(LOCAL_SIGNALING_PORT);
+        try {
+            server.start();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to start the local room server", e);
+            showToast(getString(R.string.local_signaling_failed, e.getMessage()));
+            return;
+        }
+        localSignalingServer = server;
+        localSignalingPort = server.getPort();
+        String address = getLanAddress();
+        if (address != null) {
+            showToast(getString(R.string.local_signaling_started,
+                    "http://" + address + ":" + server.getPort()));
+        }
+    }
+
+    // Runs on |localSignalingExecutor|.
+    private void stopLocalSignalingServer() {
+        if (localSignalingServer != null) {
+            localSignalingPort = 0;
+            localSignalingServer.stop();
+            localSignalingServer = null;
+        }
+    }
+
+    private void showToast(final String text) {
+        final Context appContext = getApplicationContext();
+        runOnUiThread(() -> Toast.makeText(appContext, text, Toast.LENGTH_LONG).show());
+    }
+
+    /**
+     * Returns an IPv4 address other devices on the local network can reach, or null.
+     */
+    private static String getLanAddress() {
+        try {
+            for (NetworkInterface networkInterface
+                    : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                    continue;
+                }
+                for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                    if (address instanceof Inet4Address && address.isSiteLocalAddress()) {
+                        return address.getHostAddress();
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            Log.w(LOG_TAG, "Failed to list network interfaces", e);
+        }
+        return null;
+    }
+
+    private String getRoomServerUrl() {
+        int port = localSignalingPort;
+        if (port != 0) {
+            return "http://127.0.0.1:" + port;
+        }
+        return sharedPref.getString(getString(R.string.pref_room_server_url_key),
+                getString(R.string.pref_room_server_url_default));
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
@@ -97,8 +240,14 @@ public class MainActivity extends AppCompatActivity {
 
     private void connectToRoom(String roomId) {
         Intent intent = new Intent(this, CallActivity.class);
+        intent.setData(Uri.parse(getRoomServerUrl()));
         intent.putExtra(EXTRA_ROOMID, roomId);
         intent.putExtra(EXTRA_MODE, isCamera);
+        intent.putExtra(EXTRA_TELEOP, sharedPref.getBoolean(getString(R.string.pref_teleop_key),
+                Boolean.valueOf(getString(R.string.pref_teleop_default))));
+        intent.putExtra(EXTRA_MEASURE_LATENCY, sharedPref.getBoolean(
+                getString(R.string.pref_measure_latency_key),
+                Boolean.valueOf(getString(R.string.pref_measure_latency_default))));
         startActivityForResult(intent, CONNECTION_REQUEST);
     }
 
@@ -0,0 +1,66 @@
+package com.myhexaville.androidwebrtc.main;
+
+import android.app.Activity;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.os.Bundle;
+import android.preference.Preference;
+import android.preference.PreferenceFragment;
+
+import com.myhexaville.androidwebrtc.R;
+
+/**
+ * Settings screen for the preferences in res/xml/preferences.xml.
+ */
+public class SettingsActivity extends Activity implements OnSharedPreferenceChangeListener {
+    private SettingsFragment settingsFragment;
+    private String keyRoomServerUrl;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        keyRoomServerUrl = getString(R.string.pref_room_server_url_key);
+
+        settingsFragment = new SettingsFragment();
+        getFragmentManager()
+                .beginTransaction()
+                .replace(android.R.id.content, settingsFragment)
+                .commit();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        SharedPreferences sharedPreferences =
+                settingsFragment.getPreferenceScreen().getSharedPreferences();
+        sharedPreferences.registerOnSharedPreferenceChangeListener(this);
+        updateSummary(sharedPreferences, keyRoomServerUrl);
+    }
+
+    @Override
+    protected void onPause() {
+        settingsFragment.getPreferenceScreen().getSharedPreferences()
+                .unregisterOnSharedPreferenceChangeListener(this);
+        super.onPause();
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (key.equals(keyRoomServerUrl)) {
+            updateSummary(sharedPreferences, key);
+        }
+    }
+
+    private void updateSummary(SharedPreferences sharedPreferences, String key) {
+        Preference updatedPref = settingsFragment.findPreference(key);
+        updatedPref.setSummary(sharedPreferences.getString(key, ""));
+    }
+
+    public static class SettingsFragment extends PreferenceFragment {
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            addPreferencesFromResource(R.xml.preferences);
+        }
+    }
+}
@@ -17,18 +17,51 @@ import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.Scanner;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.myhexaville.androidwebrtc.util.Constants.HTTP_MAX_CONCURRENT_REQUESTS;
+import static com.myhexaville.androidwebrtc.util.Constants.HTTP_MAX_QUEUED_REQUESTS;
 
 /**
  * Asynchronous http requests implementation.
+ * <p>
+ * <p>Requests run on a shared bounded pool instead of a thread each. Response bodies are
+ * always read to the end and the connection is not disconnected, so HttpURLConnection can
+ * keep the TCP/TLS connection alive and reuse it for the next request to the same host.
  */
 public class AsyncHttpURLConnection {
     private static final int HTTP_TIMEOUT_MS = 8000;
     private static final String HTTP_ORIGIN = "https://appr.tc";
+    private static final long IDLE_THREAD_TIMEOUT_S = 30;
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            HTTP_MAX_CONCURRENT_REQUESTS, HTTP_MAX_CONCURRENT_REQUESTS,
+            IDLE_THREAD_TIMEOUT_S, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(HTTP_MAX_QUEUED_REQUESTS));
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    // Request metrics, shared by all instances.
+    private static final AtomicLong completedCount = new AtomicLong();
+    private static final AtomicLong failedCount = new AtomicLong();
+    private static final AtomicLong rejectedCount = new AtomicLong();
+    private static final AtomicLong cancelledCount = new AtomicLong();
+    private static final AtomicLong totalLatencyMs = new AtomicLong();
+
     private final String method;
     private final String url;
     private final String message;
     private final AsyncHttpEvents events;
     private String contentType;
+    private volatile Future<?> future;
+    private volatile HttpURLConnection connection;
+    private volatile boolean cancelled;
 
     /**
      * Http requests callbacks.
@@ -50,14 +83,105 @@ public class AsyncHttpURLConnection {
         this.contentType = contentType;
     }
 
-    public void send() {
-        Runnable runHttp = () -> sendHttpMessage();
-        new Thread(runHttp).start();
+    /**
+     * Sets how many requests may run at the same time. Further requests wait in a queue of
+     * HTTP_MAX_QUEUED_REQUESTS; when it is full they fail with onHttpError.
+     */
+    public static void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        if (maxConcurrentRequests > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(maxConcurrentRequests);
+            executor.setCorePoolSize(maxConcurrentRequests);
+        } else {
+            executor.setCorePoolSize(maxConcurrentRequests);
+            executor.setMaximumPoolSize(maxConcurrentRequests);
+        }
+    }
+
+    public static long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public static long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public static long getRejectedCount() {
+        return rejectedCount.get();
     }
 
-    private void sendHttpMessage() {
+    public static long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    public static int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public static int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the mean duration of completed requests, including time spent queued.
+     */
+    public static long getAverageLatencyMs() {
+        long completed = completedCount.get();
+        return completed == 0 ? 0 : totalLatencyMs.get() / completed;
+    }
+
+    public static String getMetricsSummary() {
+        return "completed=" + getCompletedCount() + " failed=" + getFailedCount()
+                + " rejected=" + getRejectedCount() + " cancelled=" + getCancelledCount()
+                + " active=" + getActiveCount() + " queued=" + getQueuedCount()
+                + " avg=" + getAverageLatencyMs() + "ms";
+    }
+
+    /**
+     * Queues the request on the shared pool.
+     *
+     * @return a future that completes after the callback ran, or null if the request was
+     * rejected because the queue is full.
+     */
+    public Future<?> send() {
+        final long queuedAtMs = System.currentTimeMillis();
+        try {
+            future = executor.submit(() -> sendHttpMessage(queuedAtMs));
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            events.onHttpError("HTTP " + method + " to " + url + " rejected: too many pending requests");
+            return null;
+        }
+        return future;
+    }
+
+    /**
+     * Cancels the request. No callback is delivered after this returns, unless one is
+     * already running.
+     */
+    public void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        cancelledCount.incrementAndGet();
+        Future<?> pending = future;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        // Aborts a blocking connect or read. The connection is not reused.
+        HttpURLConnection active = connection;
+        if (active != null) {
+            active.disconnect();
+        }
+    }
+
+    private void sendHttpMessage(long queuedAtMs) {
+        if (cancelled) {
+            return;
+        }
         try {
             HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            this.connection = connection;
             byte[] postData = new byte[0];
             if (message != null) {
                 postData = message.getBytes("UTF-8");
@@ -91,20 +215,41 @@ public class AsyncHttpURLConnection {
             // Get response.
             int responseCode = connection.getResponseCode();
             if (responseCode != 200) {
-                events.onHttpError("Non-200 response to " + method + " to URL: " + url + " : "
-                        + connection.getHeaderField(null));
-                connection.disconnect();
+                // Consume the error body so the connection can still be reused.
+                InputStream errorStream = connection.getErrorStream();
+                if (errorStream != null) {
+                    drainStream(errorStream);
+                    errorStream.close();
+                }
+                failedCount.incrementAndGet();
+                if (!cancelled) {
+                    events.onHttpError("Non-200 response to " + method + " to URL: " + url + " : "
+                            + connection.getHeaderField(null));
+                }
                 return;
             }
             InputStream responseStream = connection.getInputStream();
             String response = drainStream(responseStream);
+            // Closing a fully read stream returns the connection to the keep-alive pool;
+            // disconnect() would close the socket.
             responseStream.close();
-            connection.disconnect();
-            events.onHttpComplete(response);
+            completedCount.incrementAndGet();
+            totalLatencyMs.addAndGet(System.currentTimeMillis() - queuedAtMs);
+            if (!cancelled) {
+                events.onHttpComplete(response);
+            }
         } catch (SocketTimeoutException e) {
-            events.onHttpError("HTTP " + method + " to " + url + " timeout");
+            failedCount.incrementAndGet();
+            if (!cancelled) {
+                events.onHttpError("HTTP " + method + " to " + url + " timeout");
+            }
         } catch (IOException e) {
-            events.onHttpError("HTTP " + method + " to " + url + " error: " + e.getMessage());
+            failedCount.incrementAndGet();
+            if (!cancelled) {
+                events.onHttpError("HTTP " + method + " to " + url + " error: " + e.getMessage());
+            }
+        } finally {
+            this.connection = null;
         }
     }
 
@@ -3,14 +3,109 @@ package com.myhexaville.androidwebrtc.util;
 public class Constants {
     public static final String EXTRA_ROOMID = "org.appspot.apprtc.ROOMID";
     public static final String EXTRA_MODE = "MODE";
+    // Call with the low-latency teleoperation profile, and record video latency estimates.
+    public static final String EXTRA_TELEOP = "TELEOP";
+    public static final String EXTRA_MEASURE_LATENCY = "MEASURE_LATENCY";
+    // Profile used when the intent does not choose one; MainActivity passes the setting.
+    public static final boolean TELEOP_PROFILE_BY_DEFAULT = false;
     public static final int CAPTURE_PERMISSION_REQUEST_CODE = 1;
+    // Port of the room server hosted on this device when enabled in the settings.
+    public static final int LOCAL_SIGNALING_PORT = 8089;
 
     // List of mandatory application permissions.
     public static final String[] MANDATORY_PERMISSIONS = {"android.permission.MODIFY_AUDIO_SETTINGS",
             "android.permission.RECORD_AUDIO", "android.permission.INTERNET"};
 
+    // Pre-negotiated data channels: lossy realtime control and reliable telemetry.
+    public static final String CONTROL_CHANNEL_LABEL = "control";
+    public static final int CONTROL_CHANNEL_ID = 0;
+    public static final String TELEMETRY_CHANNEL_LABEL = "telemetry";
+    public static final int TELEMETRY_CHANNEL_ID = 1;
+    // Rate at which the viewer sends coalesced servo commands.
+    public static final int CONTROL_TICK_RATE_HZ = 50;
+    // Skip control ticks while more than this many bytes wait in the data channel.
+    public static final int CONTROL_MAX_BUFFERED_BYTES = 64;
+    // Stream absolute yaw/pitch targets instead of incremental steps.
+    public static final boolean CONTROL_ABSOLUTE_MODE = true;
+    // Re-send an unchanged absolute target every this many ticks to recover from losses.
+    public static final int CONTROL_ABSOLUTE_REFRESH_TICKS = 25;
+    // Angle moved by one servo step, in hundredths of a degree.
+    public static final int SERVO_CENTIDEGREES_PER_STEP = 200;
+    // In latency measurement mode the viewer probes the camera clock every this many control
+    // ticks, and uses the fastest round trip of the last few probes.
+    public static final int CLOCK_SYNC_INTERVAL_TICKS = 50;
+    public static final int CLOCK_SYNC_WINDOW = 16;
+    // Control loop latency histograms are written to this file in the app's external files
+    // directory on hangup.
+    public static final String CONTROL_LATENCY_DUMP_FILE = "control-latency.txt";
+    // Step codes that may wait for the Bluetooth writer before new ones are dropped.
+    public static final int BLUETOOTH_QUEUE_CAPACITY = 64;
+    // Bluetooth SPP connect attempts are aborted after this long and retried with backoff.
+    public static final long BLUETOOTH_CONNECT_TIMEOUT_MS = 5000;
+    // Signaling HTTP requests share a small pool so keep-alive connections are reused.
+    public static final int HTTP_MAX_CONCURRENT_REQUESTS = 2;
+    public static final int HTTP_MAX_QUEUED_REQUESTS = 64;
+    // Local ICE candidates gathered within this window are sent together, as one signaling
+    // message if the other party accepts batches.
+    public static final long ICE_CANDIDATE_BATCH_WINDOW_MS = 50;
+    public static final int ICE_CANDIDATE_BATCH_MAX_COUNT = 8;
+    // TURN/ICE server lists without a reported lifetime are cached this long. Lists in use are
+    // refreshed in the background this long before they expire.
+    public static final long ICE_SERVER_CACHE_TTL_MS = 10 * 60 * 1000;
+    public static final long ICE_SERVER_REFRESH_AHEAD_MS = 60 * 1000;
+    // Direct TCP signaling reads into a buffer that grows up to the frame size limit.
+    public static final int TCP_READ_BUFFER_BYTES = 16 * 1024;
+    public static final int TCP_MAX_FRAME_BYTES = 1024 * 1024;
+    // ICE candidates gathered ahead of the offer/answer while the room join is in flight.
+    public static final int ICE_CANDIDATE_POOL_SIZE = 2;
+    // Threads peer sessions are spread over; each is started when first needed.
+    public static final int PEER_SESSION_SHARD_COUNT = 2;
+    // Cap on the video bitrate sent to the viewer.
+    public static final int VIEWER_MAX_BITRATE_KBPS = 2500;
+    // Adapt the sent video bitrate and capture format to the measured uplink.
+    public static final boolean BANDWIDTH_ADAPTATION_ENABLED = true;
+    public static final int ADAPT_MIN_BITRATE_KBPS = 150;
+    // Share of the estimated send bandwidth given to video.
+    public static final int ADAPT_BWE_HEADROOM_PERCENT = 85;
+    // Bitrate changes smaller than this are ignored.
+    public static final int ADAPT_HYSTERESIS_PERCENT = 10;
+    // Stats results in a row the bitrate must have room to grow before it is raised, and the
+    // largest single raise.
+    public static final int ADAPT_UP_HOLD_RESULTS = 3;
+    public static final int ADAPT_MAX_STEP_UP_PERCENT = 25;
+    // Back off above this packet loss or round trip time.
+    public static final int ADAPT_LOSS_HIGH_PERMILLE = 100;
+    public static final int ADAPT_RTT_HIGH_MS = 400;
+    public static final int ADAPT_RTT_BACKOFF_PERCENT = 15;
+    // Encoded bits per captured pixel used to turn a bitrate into a capture format.
+    public static final int ADAPT_MILLIBITS_PER_PIXEL = 100;
+    // A smaller capture format is used at once, a larger one only this long after the last
+    // change.
+    public static final long ADAPT_FORMAT_UPGRADE_HOLD_MS = 10000;
+    // Video codec name that picks the codec CodecBenchmark measured fastest on this device.
+    public static final String VIDEO_CODEC_AUTO = "auto";
+    // First-run encoder benchmark: frames encoded back to back for throughput, then frames
+    // fed at CODEC_BENCHMARK_FPS for latency. Bump the version to discard cached results.
+    public static final int CODEC_BENCHMARK_THROUGHPUT_FRAMES = 60;
+    public static final int CODEC_BENCHMARK_LATENCY_FRAMES = 30;
+    public static final int CODEC_BENCHMARK_FPS = 30;
+    public static final int CODEC_BENCHMARK_VERSION = 1;
+    // Teleoperation profile: a small frame at a high rate starts sharp and keeps encoder and
+    // jitter buffer queues short.
+    public static final int TELEOP_VIDEO_WIDTH = 640;
+    public static final int TELEOP_VIDEO_HEIGHT = 480;
+    public static final int TELEOP_VIDEO_FPS = 30;
+    public static final int TELEOP_VIDEO_MAX_BITRATE_KBPS = 1500;
+    public static final int TELEOP_VIDEO_START_BITRATE_KBPS = 800;
+    public static final String TELEOP_VIDEO_CODEC = VIDEO_CODEC_AUTO;
+    // Keep at least this frame rate before trading it for resolution.
+    public static final int TELEOP_FRAMERATE_THRESHOLD = 24;
+    // Audio jitter buffer length in 10 ms packets; the default is 50.
+    public static final int TELEOP_AUDIO_JITTER_BUFFER_MAX_PACKETS = 10;
     // Peer connection statistics callback period in ms.
     public static final int STAT_CALLBACK_PERIOD = 1000;
+    // Statistics results kept per peer connection, two minutes at the callback period.
+    public static final int STATS_HISTORY_SIZE = 120;
     // Local preview screen position before call is connected.
     public static final int LOCAL_X_CONNECTING = 0;
     public static final int LOCAL_Y_CONNECTING = 0;
@@ -78,10 +78,18 @@ public interface AppRTCClient {
         public final String wssPostUrl;
         public final SessionDescription offerSdp;
         public final List<IceCandidate> iceCandidates;
+        // Whether the peer that sent |offerSdp| accepts "candidates" batches.
+        public final boolean offerBatchesCandidates;
 
         public SignalingParameters(List<PeerConnection.IceServer> iceServers, boolean initiator,
                                    String clientId, String wssUrl, String wssPostUrl, SessionDescription offerSdp,
                                    List<IceCandidate> iceCandidates) {
+            this(iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates, false);
+        }
+
+        public SignalingParameters(List<PeerConnection.IceServer> iceServers, boolean initiator,
+                                   String clientId, String wssUrl, String wssPostUrl, SessionDescription offerSdp,
+                                   List<IceCandidate> iceCandidates, boolean offerBatchesCandidates) {
             this.iceServers = iceServers;
             this.initiator = initiator;
             this.clientId = clientId;
@@ -89,6 +97,7 @@ public interface AppRTCClient {
             this.wssPostUrl = wssPostUrl;
             this.offerSdp = offerSdp;
             this.iceCandidates = iceCandidates;
+            this.offerBatchesCandidates = offerBatchesCandidates;
         }
     }
 
@@ -0,0 +1,162 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.myhexaville.androidwebrtc.util.Constants.ADAPT_BWE_HEADROOM_PERCENT;
+import static com.myhexaville.androidwebrtc.util.Constants.ADAPT_FORMAT_UPGRADE_HOLD_MS;
+import static com.myhexaville.androidwebrtc.util.Constants.ADAPT_HYSTERESIS_PERCENT;
+import static com.myhexaville.androidwebrtc.util.Constants.ADAPT_LOSS_HIGH_PERMILLE;
+import static com.myhexaville.androidwebrtc.util.Constants.ADAPT_MAX_STEP_UP_PERCENT;
+import static com.myhexaville.androidwebrtc.util.Constants.ADAPT_MILLIBITS_PER_PIXEL;
+import static com.myhexaville.androidwebrtc.util.Constants.ADAPT_RTT_BACKOFF_PERCENT;
+import static com.myhexaville.androidwebrtc.util.Constants.ADAPT_RTT_HIGH_MS;
+import static com.myhexaville.androidwebrtc.util.Constants.ADAPT_UP_HOLD_RESULTS;
+
+/**
+ * Closed loop that fits the sent video to the uplink. Each stats result yields a target
+ * bitrate from the estimated send bandwidth, lowered on high loss or round trip time; the
+ * applied max bitrate follows it with hysteresis, and the capture format is picked for the
+ * applied bitrate with {@link CaptureFormatChooser}.
+ * <p>
+ * <p>Drops are applied at once, raises only after the target stayed higher for a few results
+ * and in bounded steps, so a fluctuating cellular uplink does not make the encoder and the
+ * camera change settings on every result. Results must come from a single thread.
+ */
+public class BandwidthAdapter implements StatsEngine.Listener {
+
+    /**
+     * Applies the decisions, on the thread delivering the stats.
+     */
+    public interface Callback {
+        void onVideoMaxBitrate(int maxBitrateKbps);
+
+        void onCaptureFormat(int width, int height, int framerate);
+    }
+
+    private final Callback callback;
+    private final int minBitrateKbps;
+    private final int maxBitrateKbps;
+    private final int framerateThreshold;
+    private final List<CaptureFormat> formats = new ArrayList<>();
+    private int appliedBitrateKbps;
+    // Results in a row with room to raise the bitrate.
+    private int upResults;
+    private int width;
+    private int height;
+    private int framerate;
+    private long lastFormatChangeMs = -1;
+
+    /**
+     * |width|, |height| and |framerate| are the format the camera was started with; no larger
+     * format is chosen. The max bitrate starts at |maxBitrateKbps|.
+     */
+    public BandwidthAdapter(int width, int height, int framerate, int minBitrateKbps,
+                            int maxBitrateKbps, Callback callback) {
+        this(width, height, framerate, minBitrateKbps, maxBitrateKbps,
+                CaptureFormatChooser.FRAMERATE_THRESHOLD, callback);
+    }
+
+    /**
+     * Keeps |framerateThreshold| fps, where the bitrate allows, before lowering the frame
+     * rate for resolution.
+     */
+    public BandwidthAdapter(int width, int height, int framerate, int minBitrateKbps,
+                            int maxBitrateKbps, int framerateThreshold, Callback callback) {
+        this.callback = callback;
+        this.framerateThreshold = framerateThreshold;
+        this.minBitrateKbps = minBitrateKbps;
+        this.maxBitrateKbps = Math.max(minBitrateKbps, maxBitrateKbps);
+        this.width = width;
+        this.height = height;
+        this.framerate = framerate;
+        appliedBitrateKbps = this.maxBitrateKbps;
+        for (CaptureFormat format : CaptureFormatChooser.FORMATS) {
+            if (format.width * format.height <= width * height) {
+                formats.add(new CaptureFormat(format.width, format.height, 0,
+                        Math.min(format.framerate.max, framerate * 1000)));
+            }
+        }
+        if (formats.isEmpty()) {
+            formats.add(new CaptureFormat(width, height, 0, framerate * 1000));
+        }
+    }
+
+    public int getVideoMaxBitrateKbps() {
+        return appliedBitrateKbps;
+    }
+
+    @Override
+    public void onStats(StatsSnapshot snapshot) {
+        if (snapshot.availableSendBandwidthBps == StatsSnapshot.UNKNOWN) {
+            return;
+        }
+        if (lastFormatChangeMs < 0) {
+            lastFormatChangeMs = snapshot.timestampMs;
+        }
+        if (updateBitrate(snapshot)) {
+            callback.onVideoMaxBitrate(appliedBitrateKbps);
+        }
+        updateFormat(snapshot.timestampMs);
+    }
+
+    // Returns true if the applied bitrate changed.
+    private boolean updateBitrate(StatsSnapshot snapshot) {
+        int video = snapshot.findStream(StatsSnapshot.FLAG_VIDEO | StatsSnapshot.FLAG_SEND);
+        int lossPermille = video < 0 ? StatsSnapshot.UNKNOWN : snapshot.packetLossPermille[video];
+        int rttMs = snapshot.rttMs;
+        if (rttMs == StatsSnapshot.UNKNOWN && video >= 0) {
+            rttMs = snapshot.streamRttMs[video];
+        }
+
+        long targetKbps = (long) snapshot.availableSendBandwidthBps * ADAPT_BWE_HEADROOM_PERCENT / 100 / 1000;
+        if (lossPermille > ADAPT_LOSS_HIGH_PERMILLE) {
+            // Back off by half the loss rate.
+            targetKbps = Math.min(targetKbps, (long) appliedBitrateKbps * (2000 - lossPermille) / 2000);
+        }
+        if (rttMs > ADAPT_RTT_HIGH_MS) {
+            targetKbps = Math.min(targetKbps,
+                    (long) appliedBitrateKbps * (100 - ADAPT_RTT_BACKOFF_PERCENT) / 100);
+        }
+        targetKbps = Math.max(minBitrateKbps, Math.min(maxBitrateKbps, targetKbps));
+
+        if (targetKbps * 100 < (long) appliedBitrateKbps * (100 - ADAPT_HYSTERESIS_PERCENT)) {
+            upResults = 0;
+            appliedBitrateKbps = (int) targetKbps;
+            return true;
+        }
+        if (targetKbps * 100 > (long) appliedBitrateKbps * (100 + ADAPT_HYSTERESIS_PERCENT)) {
+            if (++upResults < ADAPT_UP_HOLD_RESULTS) {
+                return false;
+            }
+            upResults = 0;
+            appliedBitrateKbps = (int) Math.min(targetKbps,
+                    (long) appliedBitrateKbps * (100 + ADAPT_MAX_STEP_UP_PERCENT) / 100);
+            return true;
+        }
+        upResults = 0;
+        return false;
+    }
+
+    private void updateFormat(long nowMs) {
+        // Millipixels per second the applied bitrate can carry.
+        double bandwidth = appliedBitrateKbps * 1e9 / ADAPT_MILLIBITS_PER_PIXEL;
+        CaptureFormat best = CaptureFormatChooser.chooseFormat(formats, bandwidth, framerateThreshold);
+        int bestFramerate = Math.max(1, CaptureFormatChooser.calculateFramerate(bandwidth, best));
+        if (best.width == width && best.height == height && bestFramerate == framerate) {
+            return;
+        }
+        boolean larger = (long) best.width * best.height * bestFramerate
+                > (long) width * height * framerate;
+        if (larger && nowMs - lastFormatChangeMs < ADAPT_FORMAT_UPGRADE_HOLD_MS) {
+            return;
+        }
+        width = best.width;
+        height = best.height;
+        framerate = bestFramerate;
+        lastFormatChangeMs = nowMs;
+        callback.onCaptureFormat(width, height, framerate);
+    }
+}
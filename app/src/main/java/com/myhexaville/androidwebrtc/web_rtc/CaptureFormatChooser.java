@@ -0,0 +1,76 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Picks the capture format that makes the best use of a target bandwidth, given in
+ * millipixels per second like {@link CaptureFormat#framerate}.
+ * <p>
+ * <p>Below FRAMERATE_THRESHOLD fps the format with the higher frame rate wins, above it the
+ * one with the higher resolution.
+ */
+final class CaptureFormatChooser {
+    static final List<CaptureFormat> FORMATS =
+            Arrays.asList(new CaptureFormat(1280, 720, 0, 30000), new CaptureFormat(960, 540, 0, 30000),
+                    new CaptureFormat(640, 480, 0, 30000), new CaptureFormat(480, 360, 0, 30000),
+                    new CaptureFormat(320, 240, 0, 30000), new CaptureFormat(256, 144, 0, 30000));
+    // Prioritize framerate below this threshold and resolution above the threshold.
+    static final int FRAMERATE_THRESHOLD = 15;
+
+    private CaptureFormatChooser() {
+    }
+
+    static CaptureFormat chooseFormat(List<CaptureFormat> formats, double targetBandwidth) {
+        return chooseFormat(formats, targetBandwidth, FRAMERATE_THRESHOLD);
+    }
+
+    /**
+     * Like {@link #chooseFormat(List, double)}, keeping |framerateThreshold| fps before
+     * trading frame rate for resolution.
+     */
+    static CaptureFormat chooseFormat(List<CaptureFormat> formats, double targetBandwidth,
+                                      int framerateThreshold) {
+        CaptureFormat best = formats.get(0);
+        for (int i = 1; i < formats.size(); i++) {
+            CaptureFormat format = formats.get(i);
+            if (compare(targetBandwidth, framerateThreshold, format, best) > 0) {
+                best = format;
+            }
+        }
+        return best;
+    }
+
+    // Return the highest frame rate possible based on bandwidth and format.
+    static int calculateFramerate(double bandwidth, CaptureFormat format) {
+        return (int) Math.round(
+                Math.min(format.framerate.max, (int) Math.round(bandwidth / (format.width * format.height)))
+                        / 1000.0);
+    }
+
+    static long maxBandwidth(List<CaptureFormat> formats) {
+        long maxCaptureBandwidth = Long.MIN_VALUE;
+        for (CaptureFormat format : formats) {
+            maxCaptureBandwidth =
+                    Math.max(maxCaptureBandwidth, (long) format.width * format.height * format.framerate.max);
+        }
+        return maxCaptureBandwidth;
+    }
+
+    private static int compare(double targetBandwidth, int framerateThreshold,
+                               CaptureFormat first, CaptureFormat second) {
+        int firstFps = calculateFramerate(targetBandwidth, first);
+        int secondFps = calculateFramerate(targetBandwidth, second);
+
+        if (firstFps >= framerateThreshold && secondFps >= framerateThreshold
+                || firstFps == secondFps) {
+            // Compare resolution.
+            return first.width * first.height - second.width * second.height;
+        } else {
+            // Compare fps.
+            return firstFps - secondFps;
+        }
+    }
+}
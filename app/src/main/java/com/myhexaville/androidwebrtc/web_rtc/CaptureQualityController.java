@@ -18,21 +18,13 @@ import com.myhexaville.androidwebrtc.call.OnCallEvents;
 
 import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 /**
  * Control capture format based on a seekbar listener.
  */
 public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener {
-    private final List<CaptureFormat> formats =
-            Arrays.asList(new CaptureFormat(1280, 720, 0, 30000), new CaptureFormat(960, 540, 0, 30000),
-                    new CaptureFormat(640, 480, 0, 30000), new CaptureFormat(480, 360, 0, 30000),
-                    new CaptureFormat(320, 240, 0, 30000), new CaptureFormat(256, 144, 0, 30000));
-    // Prioritize framerate below this threshold and resolution above the threshold.
-    private static final int FRAMERATE_THRESHOLD = 15;
+    private final List<CaptureFormat> formats = CaptureFormatChooser.FORMATS;
     private TextView captureFormatText;
     private OnCallEvents callEvents;
     private int width = 0;
@@ -46,23 +38,6 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
         this.callEvents = callEvents;
     }
 
-    private final Comparator<CaptureFormat> compareFormats = new Comparator<CaptureFormat>() {
-        @Override
-        public int compare(CaptureFormat first, CaptureFormat second) {
-            int firstFps = calculateFramerate(targetBandwidth, first);
-            int secondFps = calculateFramerate(targetBandwidth, second);
-
-            if (firstFps >= FRAMERATE_THRESHOLD && secondFps >= FRAMERATE_THRESHOLD
-                    || firstFps == secondFps) {
-                // Compare resolution.
-                return first.width * first.height - second.width * second.height;
-            } else {
-                // Compare fps.
-                return firstFps - secondFps;
-            }
-        }
-    };
-
     @Override
     public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
         if (progress == 0) {
@@ -74,11 +49,7 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
         }
 
         // Extract max bandwidth (in millipixels / second).
-        long maxCaptureBandwidth = Long.MIN_VALUE;
-        for (CaptureFormat format : formats) {
-            maxCaptureBandwidth =
-                    Math.max(maxCaptureBandwidth, (long) format.width * format.height * format.framerate.max);
-        }
+        long maxCaptureBandwidth = CaptureFormatChooser.maxBandwidth(formats);
 
         // Fraction between 0 and 1.
         double bandwidthFraction = (double) progress / 100.0;
@@ -89,10 +60,10 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
         targetBandwidth = bandwidthFraction * maxCaptureBandwidth;
 
         // Choose the best format given a target bandwidth.
-        final CaptureFormat bestFormat = Collections.max(formats, compareFormats);
+        final CaptureFormat bestFormat = CaptureFormatChooser.chooseFormat(formats, targetBandwidth);
         width = bestFormat.width;
         height = bestFormat.height;
-        framerate = calculateFramerate(targetBandwidth, bestFormat);
+        framerate = CaptureFormatChooser.calculateFramerate(targetBandwidth, bestFormat);
         captureFormatText.setText(
                 String.format(captureFormatText.getContext().getString(R.string.format_description), width,
                         height, framerate));
@@ -106,11 +77,4 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
     public void onStopTrackingTouch(SeekBar seekBar) {
         callEvents.onCaptureFormatChange(width, height, framerate);
     }
-
-    // Return the highest frame rate possible based on bandwidth and format.
-    private int calculateFramerate(double bandwidth, CaptureFormat format) {
-        return (int) Math.round(
-                Math.min(format.framerate.max, (int) Math.round(bandwidth / (format.width * format.height)))
-                        / 1000.0);
-    }
 }
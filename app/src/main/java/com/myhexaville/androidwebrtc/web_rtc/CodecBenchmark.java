@@ -0,0 +1,360 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import com.myhexaville.androidwebrtc.util.LatencyHistogram;
+
+import org.webrtc.MediaCodecVideoEncoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.myhexaville.androidwebrtc.util.Constants.ADAPT_MILLIBITS_PER_PIXEL;
+import static com.myhexaville.androidwebrtc.util.Constants.CODEC_BENCHMARK_FPS;
+import static com.myhexaville.androidwebrtc.util.Constants.CODEC_BENCHMARK_LATENCY_FRAMES;
+import static com.myhexaville.androidwebrtc.util.Constants.CODEC_BENCHMARK_THROUGHPUT_FRAMES;
+import static com.myhexaville.androidwebrtc.util.Constants.CODEC_BENCHMARK_VERSION;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEOP_VIDEO_HEIGHT;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEOP_VIDEO_WIDTH;
+
+/**
+ * First-run micro-benchmark of the video encoders WebRTC would use on this device, with the
+ * results kept in shared preferences per device model.
+ * <p>
+ * <p>Each codec is measured at the capture sizes of the call profiles with synthetic byte
+ * buffer frames: first encoded back to back for throughput, then fed at the call frame rate
+ * for queue-to-output latency. A codec is measured on the hardware encoder the peer
+ * connection library accepts if there is one; otherwise VP8 and VP9 are measured on the
+ * platform software encoder as a stand-in for libvpx, and H.264 is skipped because this
+ * build has no software H.264 encoder.
+ * <p>
+ * <p>Encoding takes several seconds and competes with a call for the encoders, so start it
+ * with {@link #runIfNeeded} while no call is running, and {@link #cancel} it before a call
+ * starts; {@link PeerConnectionClient} does so before it acquires the factory.
+ */
+public final class CodecBenchmark {
+    private static final String TAG = "CodecBenchmark";
+    private static final String PREFERENCES_NAME = "codec_benchmark";
+
+    private static final String[] CODECS = {"VP8", "VP9", "H264"};
+    private static final String[] MIME_TYPES =
+            {"video/x-vnd.on2.vp8", "video/x-vnd.on2.vp9", "video/avc"};
+    // The teleoperation profile and the default profile's HD capture size.
+    private static final int[][] SIZES = {{TELEOP_VIDEO_WIDTH, TELEOP_VIDEO_HEIGHT}, {1920, 1080}};
+    // Encoder name prefixes MediaCodecVideoEncoder uses for hardware encoding.
+    private static final String[] HARDWARE_PREFIXES = {"OMX.qcom.", "OMX.Exynos.", "OMX.Intel."};
+    private static final String[] SOFTWARE_PREFIXES = {"OMX.google.", "c2.android."};
+    // Byte buffer color formats MediaCodecVideoEncoder supports, in its order of preference.
+    private static final int[] COLOR_FORMATS = {
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
+            MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
+            0x7FA30C04 /* COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m */};
+    private static final int KEY_FRAME_INTERVAL_S = 20;
+    private static final long DEQUEUE_TIMEOUT_US = 1000;
+    // Give up on frames not encoded this long after the last one was queued.
+    private static final long DRAIN_TIMEOUT_NS = 1000000000L;
+    // The synthetic picture pans down by a row per frame, over this many rows.
+    private static final int PAN_ROWS = 64;
+
+    private static final Object lock = new Object();
+    // The run in progress, if any. Guarded by |lock|.
+    private static Thread benchmarkThread;
+    // Set by cancel(); polled by the run between frames.
+    private static volatile boolean cancelled;
+
+    private CodecBenchmark() {
+    }
+
+    /**
+     * Returns the results cached for this device, or null if the benchmark has not completed
+     * on it yet. The list is empty if no encoder could be measured.
+     */
+    public static List<CodecBenchmarkResult> getCachedResults(Context context) {
+        SharedPreferences preferences =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        String results = preferences.getString(cacheKey(), null);
+        return results == null ? null : CodecBenchmarkResult.parse(results);
+    }
+
+    /**
+     * Runs the benchmark on a background thread and caches the results, unless they are
+     * cached already or a run is in progress.
+     */
+    public static void runIfNeeded(Context context) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (lock) {
+            if (benchmarkThread != null || getCachedResults(appContext) != null) {
+                return;
+            }
+            cancelled = false;
+            benchmarkThread = new Thread(() -> {
+                try {
+                    List<CodecBenchmarkResult> results = run();
+                    if (results != null) {
+                        appContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                                .edit()
+                                .putString(cacheKey(), CodecBenchmarkResult.format(results))
+                                .apply();
+                    }
+                } finally {
+                    synchronized (lock) {
+                        benchmarkThread = null;
+                    }
+                }
+            }, TAG);
+            benchmarkThread.start();
+        }
+    }
+
+    /**
+     * Stops a run started by {@link #runIfNeeded} and waits until it has released its
+     * encoder. Nothing is cached for a cancelled run, so the next {@link #runIfNeeded} starts
+     * over. Returns at once if no run is in progress.
+     */
+    public static void cancel() {
+        Thread thread;
+        synchronized (lock) {
+            thread = benchmarkThread;
+            if (thread == null) {
+                return;
+            }
+            cancelled = true;
+        }
+        Log.d(TAG, "Cancelling the benchmark");
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Measures every codec at every benchmark size. Blocks for several seconds.
+     *
+     * @return the results, or null if {@link #cancel} stopped the run started by
+     * {@link #runIfNeeded}.
+     */
+    public static List<CodecBenchmarkResult> run() {
+        long startMs = System.currentTimeMillis();
+        List<CodecBenchmarkResult> results = new ArrayList<>();
+        for (int i = 0; i < CODECS.length && !cancelled; i++) {
+            boolean hardware = isHardwareSupported(CODECS[i]);
+            String encoderName = findEncoder(MIME_TYPES[i], hardware);
+            if (encoderName == null) {
+                Log.d(TAG, "No usable " + CODECS[i] + " encoder");
+                continue;
+            }
+            for (int[] size : SIZES) {
+                if (cancelled) {
+                    break;
+                }
+                CodecBenchmarkResult result = measure(encoderName, CODECS[i], MIME_TYPES[i],
+                        hardware, size[0], size[1], CODEC_BENCHMARK_FPS);
+                if (result != null) {
+                    Log.d(TAG, encoderName + ": " + result);
+                    results.add(result);
+                }
+            }
+        }
+        if (cancelled) {
+            Log.d(TAG, "Benchmark cancelled after "
+                    + (System.currentTimeMillis() - startMs) + " ms");
+            return null;
+        }
+        Log.d(TAG, "Benchmark of " + Build.MODEL + " took "
+                + (System.currentTimeMillis() - startMs) + " ms");
+        return results;
+    }
+
+    // Results are kept per device model and OS version, since OS updates replace encoders.
+    private static String cacheKey() {
+        return Build.MODEL + "/" + Build.VERSION.SDK_INT + "/" + CODEC_BENCHMARK_VERSION;
+    }
+
+    private static boolean isHardwareSupported(String codec) {
+        switch (codec) {
+            case "VP8":
+                return MediaCodecVideoEncoder.isVp8HwSupported();
+            case "VP9":
+                return MediaCodecVideoEncoder.isVp9HwSupported();
+            case "H264":
+                return MediaCodecVideoEncoder.isH264HwSupported();
+            default:
+                return false;
+        }
+    }
+
+    // Returns the name of the hardware or software encoder for |mime|, or null.
+    private static String findEncoder(String mime, boolean hardware) {
+        if (!hardware && mime.equals("video/avc")) {
+            return null;
+        }
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder()
+                    || !startsWithAny(info.getName(), hardware ? HARDWARE_PREFIXES : SOFTWARE_PREFIXES)) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime)) {
+                    return info.getName();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWithAny(String name, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int findColorFormat(MediaCodecInfo.CodecCapabilities capabilities) {
+        for (int supported : COLOR_FORMATS) {
+            for (int format : capabilities.colorFormats) {
+                if (format == supported) {
+                    return format;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static CodecBenchmarkResult measure(String encoderName, String codec, String mime,
+                                                boolean hardware, int width, int height, int fps) {
+        MediaCodec encoder = null;
+        try {
+            encoder = MediaCodec.createByCodecName(encoderName);
+            int colorFormat = findColorFormat(encoder.getCodecInfo().getCapabilitiesForType(mime));
+            if (colorFormat < 0) {
+                Log.w(TAG, encoderName + " has no supported color format");
+                return null;
+            }
+            MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
+            format.setInteger(MediaFormat.KEY_BIT_RATE,
+                    (int) ((long) width * height * fps * ADAPT_MILLIBITS_PER_PIXEL / 1000));
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEY_FRAME_INTERVAL_S);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+
+            byte[] luma = createLuma(width, height + PAN_ROWS);
+            long startNs = System.nanoTime();
+            int encoded = encodeFrames(encoder, luma, width, height, fps, 0,
+                    CODEC_BENCHMARK_THROUGHPUT_FRAMES, 0, null);
+            double encodeFps = encoded * 1e9 / (System.nanoTime() - startNs);
+
+            LatencyHistogram latency = new LatencyHistogram();
+            encodeFrames(encoder, luma, width, height, fps, CODEC_BENCHMARK_THROUGHPUT_FRAMES,
+                    CODEC_BENCHMARK_LATENCY_FRAMES, 1000000000L / fps, latency);
+            if (cancelled) {
+                return null;
+            }
+            if (encoded == 0 || latency.getCount() == 0) {
+                Log.w(TAG, encoderName + " produced no output at " + width + "x" + height);
+                return null;
+            }
+            return new CodecBenchmarkResult(codec, hardware, width, height, encodeFps,
+                    latency.getMean(), latency.getPercentile(90));
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Benchmark of " + encoderName + " at " + width + "x" + height + " failed", e);
+            return null;
+        } finally {
+            if (encoder != null) {
+                try {
+                    encoder.stop();
+                } catch (IllegalStateException e) {
+                    // Never started.
+                }
+                encoder.release();
+            }
+        }
+    }
+
+    // Camera-like luma: a gradient with some noise, so motion search and entropy coding have
+    // work to do without the cost of encoding pure noise.
+    private static byte[] createLuma(int width, int rows) {
+        byte[] luma = new byte[width * rows];
+        Random random = new Random(width * rows);
+        for (int row = 0; row < rows; row++) {
+            for (int x = 0; x < width; x++) {
+                luma[row * width + x] = (byte) ((x + 2 * row) / 4 + random.nextInt(16));
+            }
+        }
+        return luma;
+    }
+
+    /**
+     * Queues |count| frames numbered from |firstFrame|, each |intervalNs| after the previous
+     * one, and drains the encoder until all of them are encoded, the drain times out or the
+     * run is cancelled.
+     * Records the queue-to-output latency of each frame in |latency| if not null.
+     *
+     * @return the number of frames encoded.
+     */
+    private static int encodeFrames(MediaCodec encoder, byte[] luma, int width, int height,
+                                    int fps, int firstFrame, int count, long intervalNs,
+                                    LatencyHistogram latency) {
+        int lumaSize = width * height;
+        byte[] chroma = new byte[lumaSize / 2];
+        Arrays.fill(chroma, (byte) 128);
+        // Queue time by presentation time of the frames not yet encoded.
+        Map<Long, Long> queuedNs = new HashMap<>();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int queued = 0;
+        int encoded = 0;
+        long nextQueueNs = System.nanoTime();
+        long lastQueueNs = nextQueueNs;
+        while (encoded < count && System.nanoTime() - lastQueueNs < DRAIN_TIMEOUT_NS
+                && !cancelled) {
+            if (queued < count && System.nanoTime() >= nextQueueNs) {
+                int index = encoder.dequeueInputBuffer(0);
+                if (index >= 0) {
+                    int frame = firstFrame + queued;
+                    ByteBuffer buffer = encoder.getInputBuffer(index);
+                    buffer.clear();
+                    int size = Math.min(buffer.remaining(), lumaSize + chroma.length);
+                    buffer.put(luma, (frame % PAN_ROWS) * width, Math.min(size, lumaSize));
+                    buffer.put(chroma, 0, size - Math.min(size, lumaSize));
+                    long presentationUs = frame * 1000000L / fps;
+                    lastQueueNs = System.nanoTime();
+                    queuedNs.put(presentationUs, lastQueueNs);
+                    encoder.queueInputBuffer(index, 0, size, presentationUs, 0);
+                    queued++;
+                    nextQueueNs += intervalNs;
+                }
+            }
+            int index = encoder.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+            if (index >= 0) {
+                Long queuedAtNs = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0
+                        ? null : queuedNs.remove(info.presentationTimeUs);
+                if (queuedAtNs != null) {
+                    encoded++;
+                    if (latency != null) {
+                        latency.record((System.nanoTime() - queuedAtNs) / 1000);
+                    }
+                }
+                encoder.releaseOutputBuffer(index, false);
+            }
+        }
+        return encoded;
+    }
+}
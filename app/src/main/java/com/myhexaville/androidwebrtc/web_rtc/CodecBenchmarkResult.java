@@ -0,0 +1,137 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Encode speed of one video codec at one resolution on this device, as measured by
+ * {@link CodecBenchmark}, and the rule that picks a codec from a set of results.
+ * <p>
+ * <p>|encodeFps| is the throughput with frames queued back to back; the latencies are from
+ * queueing a frame to getting its encoded output, with frames fed at the call frame rate.
+ */
+public final class CodecBenchmarkResult {
+    private static final String RESULT_SEPARATOR = ";";
+    private static final String FIELD_SEPARATOR = ",";
+    private static final int FIELD_COUNT = 7;
+
+    public final String codec;
+    // Whether a hardware encoder was measured; software results stand in for libvpx.
+    public final boolean hardware;
+    public final int width;
+    public final int height;
+    public final double encodeFps;
+    public final long meanLatencyUs;
+    public final long p90LatencyUs;
+
+    public CodecBenchmarkResult(String codec, boolean hardware, int width, int height,
+                                double encodeFps, long meanLatencyUs, long p90LatencyUs) {
+        this.codec = codec;
+        this.hardware = hardware;
+        this.width = width;
+        this.height = height;
+        this.encodeFps = encodeFps;
+        this.meanLatencyUs = meanLatencyUs;
+        this.p90LatencyUs = p90LatencyUs;
+    }
+
+    /**
+     * Returns the codec to prefer for a |width|x|height| call at |fps|, or null if |results|
+     * has nothing usable. Only results at the benchmarked resolution closest to the call's
+     * are compared. Of the codecs that keep up with |fps|, the one with the lowest 90th
+     * percentile latency wins; if none keeps up, the one with the highest throughput.
+     * Hardware results are skipped unless |hardwareAllowed|.
+     */
+    public static String chooseCodec(List<CodecBenchmarkResult> results, int width, int height,
+                                     int fps, boolean hardwareAllowed) {
+        long pixels = (long) width * height;
+        long closestPixels = -1;
+        for (CodecBenchmarkResult result : results) {
+            if (!hardwareAllowed && result.hardware) {
+                continue;
+            }
+            long resultPixels = (long) result.width * result.height;
+            if (closestPixels < 0
+                    || Math.abs(resultPixels - pixels) < Math.abs(closestPixels - pixels)) {
+                closestPixels = resultPixels;
+            }
+        }
+
+        CodecBenchmarkResult best = null;
+        for (CodecBenchmarkResult result : results) {
+            if ((!hardwareAllowed && result.hardware)
+                    || (long) result.width * result.height != closestPixels) {
+                continue;
+            }
+            if (best == null || result.isBetterThan(best, fps)) {
+                best = result;
+            }
+        }
+        return best == null ? null : best.codec;
+    }
+
+    private boolean isBetterThan(CodecBenchmarkResult other, int fps) {
+        boolean keepsUp = encodeFps >= fps;
+        boolean otherKeepsUp = other.encodeFps >= fps;
+        if (keepsUp != otherKeepsUp) {
+            return keepsUp;
+        }
+        if (keepsUp && p90LatencyUs != other.p90LatencyUs) {
+            return p90LatencyUs < other.p90LatencyUs;
+        }
+        return encodeFps > other.encodeFps;
+    }
+
+    /**
+     * Serializes |results| for {@link #parse}.
+     */
+    public static String format(List<CodecBenchmarkResult> results) {
+        StringBuilder builder = new StringBuilder();
+        for (CodecBenchmarkResult result : results) {
+            if (builder.length() > 0) {
+                builder.append(RESULT_SEPARATOR);
+            }
+            builder.append(result.codec).append(FIELD_SEPARATOR)
+                    .append(result.hardware ? 1 : 0).append(FIELD_SEPARATOR)
+                    .append(result.width).append(FIELD_SEPARATOR)
+                    .append(result.height).append(FIELD_SEPARATOR)
+                    .append(result.encodeFps).append(FIELD_SEPARATOR)
+                    .append(result.meanLatencyUs).append(FIELD_SEPARATOR)
+                    .append(result.p90LatencyUs);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Parses the output of {@link #format}, skipping malformed results.
+     */
+    public static List<CodecBenchmarkResult> parse(String text) {
+        List<CodecBenchmarkResult> results = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return results;
+        }
+        for (String entry : text.split(RESULT_SEPARATOR)) {
+            String[] fields = entry.split(FIELD_SEPARATOR);
+            if (fields.length != FIELD_COUNT || fields[0].isEmpty()) {
+                continue;
+            }
+            try {
+                results.add(new CodecBenchmarkResult(fields[0], Integer.parseInt(fields[1]) != 0,
+                        Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                        Double.parseDouble(fields[4]), Long.parseLong(fields[5]),
+                        Long.parseLong(fields[6])));
+            } catch (NumberFormatException e) {
+                // Skip it; the rest may still be usable.
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public String toString() {
+        return codec + (hardware ? " (hw) " : " (sw) ") + width + "x" + height + ": "
+                + String.format(Locale.US, "%.1f", encodeFps) + " fps, latency mean "
+                + meanLatencyUs / 1000.0 + " ms, p90 " + p90LatencyUs / 1000.0 + " ms";
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import android.util.Log;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+import org.webrtc.SessionDescription;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Implementation of AppRTCClient that uses direct TCP connection as the signaling channel.
+ * This eliminates the need for an external server. This class does not support loopback
+ * connections.
+ * <p>
+ * <p>The room id selects the mode: "0.0.0.0[:port]" (or any local wildcard address) listens
+ * for the peer and acts as the call initiator, any other IP address connects to a listening
+ * peer. Messages use the same JSON format as the WebSocket signaling.
+ */
+public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChannelEvents {
+    private static final String TAG = "DirectRTCClient";
+    private static final int DEFAULT_PORT = 8888;
+
+    // IPv4 octet, 0 to 255.
+    private static final String OCTET = "(?:25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)";
+    // IPv6 group, 1 to 4 hex digits.
+    private static final String GROUP = "[0-9a-fA-F]{1,4}";
+    // Eight groups, or fewer with "::". Always contains a colon, so a room id like "cafe" or
+    // "1234" is not taken for an address.
+    private static final String IPV6 = "(?:" + GROUP + "(?::" + GROUP + "){7}|"
+            + "(?:" + GROUP + "(?::" + GROUP + "){0,6})?::(?:" + GROUP + "(?::" + GROUP + "){0,6})?)";
+
+    // Regex pattern used for checking if room id looks like an IP. Group 1 is the address,
+    // the last group the optional port.
+    public static final Pattern IP_PATTERN = Pattern.compile("("
+            // IPv4 dotted quad
+            + "(?:" + OCTET + "\\.){3}" + OCTET + "|"
+            // IPv6
+            + "\\[" + IPV6 + "\\]|"
+            // IPv6 without []
+            + IPV6 + "|"
+            // Literals
+            + "localhost"
+            + ")"
+            // Optional port number
+            + "(:(\\d+))?");
+
+    private final ExecutorService executor;
+    private final SignalingEvents events;
+    private TCPChannelClient tcpClient;
+    private RoomConnectionParameters connectionParameters;
+    // Only used on |executor|.
+    private final SignalingCodec codec = new SignalingCodec();
+
+    private enum ConnectionState {NEW, CONNECTED, CLOSED, ERROR}
+
+    // All alterations of the room state should be done from inside the looper thread.
+    private ConnectionState roomState;
+
+    public DirectRTCClient(SignalingEvents events) {
+        this.events = events;
+
+        executor = Executors.newSingleThreadExecutor();
+        roomState = ConnectionState.NEW;
+    }
+
+    /**
+     * Returns true if |roomId| selects direct signaling, i.e. it is an IP address with an
+     * optional port.
+     */
+    public static boolean isDirectRoomId(String roomId) {
+        return IP_PATTERN.matcher(roomId).matches();
+    }
+
+    /**
+     * Returns the port of a room id's optional |portStr|, DEFAULT_PORT if it has none, or -1
+     * if it is not a valid TCP port.
+     */
+    static int parsePort(String portStr) {
+        if (portStr == null) {
+            return DEFAULT_PORT;
+        }
+        try {
+            int port = Integer.parseInt(portStr);
+            return port >= 1 && port <= 65535 ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Connects to the room, roomId in connectionsParameters is required. roomId must be a valid
+     * IP address matching IP_PATTERN.
+     */
+    @Override
+    public void connectToRoom(RoomConnectionParameters connectionParameters) {
+        this.connectionParameters = connectionParameters;
+
+        if (connectionParameters.loopback) {
+            reportError("Loopback connections aren't supported by DirectRTCClient.");
+        }
+
+        executor.execute(this::connectToRoomInternal);
+    }
+
+    @Override
+    public void disconnectFromRoom() {
+        executor.execute(this::disconnectFromRoomInternal);
+    }
+
+    /**
+     * Connects to the room.
+     * <p>
+     * <p>Runs on the looper thread.
+     */
+    private void connectToRoomInternal() {
+        this.roomState = ConnectionState.NEW;
+
+        String endpoint = connectionParameters.roomId;
+
+        Matcher matcher = IP_PATTERN.matcher(endpoint);
+        if (!matcher.matches()) {
+            reportError("roomId must match IP_PATTERN for DirectRTCClient.");
+            return;
+        }
+
+        String ip = matcher.group(1);
+        String portStr = matcher.group(matcher.groupCount());
+        int port = parsePort(portStr);
+        if (port < 0) {
+            reportError("Invalid port number: " + portStr);
+            return;
+        }
+
+        tcpClient = new TCPChannelClient(executor, this, ip, port);
+    }
+
+    /**
+     * Disconnects from the room.
+     * <p>
+     * <p>Runs on the looper thread.
+     */
+    private void disconnectFromRoomInternal() {
+        roomState = ConnectionState.CLOSED;
+
+        if (tcpClient != null) {
+            tcpClient.disconnect();
+            tcpClient = null;
+        }
+        executor.shutdown();
+    }
+
+    @Override
+    public void sendOfferSdp(final SessionDescription sdp) {
+        executor.execute(() -> {
+            if (roomState != ConnectionState.CONNECTED) {
+                reportError("Sending offer SDP in non connected state.");
+                return;
+            }
+            sendMessage(codec.encodeSdp(SignalingMessage.Type.OFFER, sdp.description));
+        });
+    }
+
+    @Override
+    public void sendAnswerSdp(final SessionDescription sdp) {
+        executor.execute(() -> sendMessage(codec.encodeSdp(SignalingMessage.Type.ANSWER, sdp.description)));
+    }
+
+    // Candidates are not batched: on a LAN each message costs a single TCP write.
+    @Override
+    public void sendLocalIceCandidate(final IceCandidate candidate) {
+        executor.execute(() -> {
+            if (roomState != ConnectionState.CONNECTED) {
+                reportError("Sending ICE candidate in non connected state.");
+                return;
+            }
+            sendMessage(codec.encodeCandidate(candidate));
+        });
+    }
+
+    /**
+     * Send removed Ice candidates to the other participant.
+     */
+    @Override
+    public void sendLocalIceCandidateRemovals(final IceCandidate[] candidates) {
+        executor.execute(() -> {
+            if (roomState != ConnectionState.CONNECTED) {
+                reportError("Sending ICE candidate removals in non connected state.");
+                return;
+            }
+            sendMessage(codec.encodeCandidates(
+                    SignalingMessage.Type.REMOVE_CANDIDATES, Arrays.asList(candidates)));
+        });
+    }
+
+    // -------------------------------------------------------------------
+    // TCPChannelClient event handlers
+
+    /**
+     * If the client is the server side, this will trigger onConnectedToRoom.
+     */
+    @Override
+    public void onTCPConnected(boolean isServer) {
+        if (isServer) {
+            roomState = ConnectionState.CONNECTED;
+
+            SignalingParameters parameters = new SignalingParameters(
+                    // Ice servers are not needed for direct connections.
+                    new LinkedList<PeerConnection.IceServer>(),
+                    isServer, // Server side acts as the initiator on direct connections.
+                    null, // clientId
+                    null, // wssUrl
+                    null, // wwsPostUrl
+                    null, // offerSdp
+                    null // iceCandidates
+            );
+            events.onConnectedToRoom(parameters);
+        }
+    }
+
+    @Override
+    public void onTCPMessage(String msg) {
+        try {
+            SignalingMessage message = codec.decodeMessage(msg);
+            switch (message.type) {
+                case CANDIDATE:
+                case CANDIDATES:
+                    for (IceCandidate candidate : ((SignalingMessage.Candidates) message).candidates) {
+                        events.onRemoteIceCandidate(candidate);
+                    }
+                    break;
+                case REMOVE_CANDIDATES:
+                    events.onRemoteIceCandidatesRemoved(((SignalingMessage.Candidates) message).toArray());
+                    break;
+                case ANSWER:
+                    events.onRemoteDescription(((SignalingMessage.Sdp) message).toSessionDescription());
+                    break;
+                case OFFER:
+                    SessionDescription sdp = ((SignalingMessage.Sdp) message).toSessionDescription();
+                    SignalingParameters parameters = new SignalingParameters(
+                            // Ice servers are not needed for direct connections.
+                            new LinkedList<PeerConnection.IceServer>(),
+                            false, // This code will only be run on the client side. So, we are not the initiator.
+                            null, // clientId
+                            null, // wssUrl
+                            null, // wssPostUrl
+                            sdp, // offerSdp
+                            null // iceCandidates
+                    );
+                    roomState = ConnectionState.CONNECTED;
+                    events.onConnectedToRoom(parameters);
+                    break;
+                case BYE:
+                    events.onChannelClose();
+                    break;
+            }
+        } catch (SignalingCodecException e) {
+            reportError("TCP message parsing error: " + e.getMessage() + ": " + msg);
+        }
+    }
+
+    @Override
+    public void onTCPError(String description) {
+        reportError("TCP connection error: " + description);
+    }
+
+    @Override
+    public void onTCPClose() {
+        events.onChannelClose();
+    }
+
+    // --------------------------------------------------------------------
+    // Helper functions.
+    private void reportError(final String errorMessage) {
+        Log.e(TAG, errorMessage);
+        executor.execute(() -> {
+            if (roomState != ConnectionState.ERROR) {
+                roomState = ConnectionState.ERROR;
+                events.onChannelError(errorMessage);
+            }
+        });
+    }
+
+    private void sendMessage(final String message) {
+        executor.execute(() -> tcpClient.send(message));
+    }
+}
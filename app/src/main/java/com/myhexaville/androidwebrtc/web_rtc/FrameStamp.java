@@ -0,0 +1,101 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a 32 bit value into the luma plane of a video frame and reads it back after
+ * encoding, scaling and decoding.
+ * <p>
+ * <p>The value and a CRC-8 are drawn as a grid of {@link #COLUMNS} x {@link #ROWS} black or
+ * white blocks in the top left corner, one block away from the edges. Block size is a fixed
+ * fraction of the shorter frame side, so the stamp survives resolution changes that keep the
+ * aspect ratio. Reading averages the inner half of every block and checks the CRC, so a
+ * frame that was cropped, rotated or encoded too coarsely is rejected rather than misread.
+ */
+public final class FrameStamp {
+    public static final int COLUMNS = 8;
+    public static final int ROWS = 5;
+    public static final int NOT_FOUND = -1;
+    // Shorter frame side / block size.
+    static final int BLOCK_DIVISOR = 24;
+    static final int MIN_BLOCK_SIZE = 4;
+    private static final byte LUMA_ONE = (byte) 235;
+    private static final byte LUMA_ZERO = 16;
+    private static final int LUMA_THRESHOLD = 128;
+
+    private FrameStamp() {
+    }
+
+    static int blockSize(int width, int height) {
+        return Math.max(MIN_BLOCK_SIZE, Math.min(width, height) / BLOCK_DIVISOR);
+    }
+
+    /**
+     * Stamps the low 32 bits of |value| into the luma plane |y|, which starts at index 0 and
+     * has rows of |stride| bytes, as in NV21 camera frames.
+     *
+     * @return false if the frame is too small for the stamp.
+     */
+    public static boolean write(byte[] y, int stride, int width, int height, long value) {
+        int block = blockSize(width, height);
+        if ((COLUMNS + 2) * block > width || (ROWS + 2) * block > height) {
+            return false;
+        }
+        long bits = ((value & 0xFFFFFFFFL) << 8) | crc8(value);
+        for (int bit = 0; bit < COLUMNS * ROWS; bit++) {
+            byte luma = ((bits >>> (COLUMNS * ROWS - 1 - bit)) & 1) != 0 ? LUMA_ONE : LUMA_ZERO;
+            int left = (1 + bit % COLUMNS) * block;
+            int top = (1 + bit / COLUMNS) * block;
+            for (int row = top; row < top + block; row++) {
+                int start = row * stride + left;
+                for (int i = start; i < start + block; i++) {
+                    y[i] = luma;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the stamp from the luma plane |y|, starting at its position, with rows of
+     * |stride| bytes. Does not change the buffer position.
+     *
+     * @return the stamped value, or {@link #NOT_FOUND}.
+     */
+    public static long read(ByteBuffer y, int stride, int width, int height) {
+        int block = blockSize(width, height);
+        if ((COLUMNS + 2) * block > width || (ROWS + 2) * block > height) {
+            return NOT_FOUND;
+        }
+        int base = y.position();
+        int margin = block / 4;
+        int inner = block - 2 * margin;
+        long bits = 0;
+        for (int bit = 0; bit < COLUMNS * ROWS; bit++) {
+            int left = (1 + bit % COLUMNS) * block + margin;
+            int top = (1 + bit / COLUMNS) * block + margin;
+            int sum = 0;
+            for (int row = top; row < top + inner; row++) {
+                int start = base + row * stride + left;
+                for (int i = start; i < start + inner; i++) {
+                    sum += y.get(i) & 0xFF;
+                }
+            }
+            bits = (bits << 1) | (sum >= LUMA_THRESHOLD * inner * inner ? 1 : 0);
+        }
+        long value = bits >>> 8;
+        return (bits & 0xFF) == crc8(value) ? value : NOT_FOUND;
+    }
+
+    // CRC-8 (polynomial x^8 + x^2 + x + 1) of the low 32 bits of |value|, high byte first.
+    static int crc8(long value) {
+        int crc = 0;
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            crc ^= (int) (value >>> shift) & 0xFF;
+            for (int i = 0; i < 8; i++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+            }
+        }
+        return crc;
+    }
+}
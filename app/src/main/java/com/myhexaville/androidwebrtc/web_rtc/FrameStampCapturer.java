@@ -0,0 +1,101 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.webrtc.CameraVideoCapturer;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoCapturer;
+
+/**
+ * Camera capturer wrapper that stamps every frame with the time it was handed to WebRTC, in
+ * milliseconds of this device's System.nanoTime() clock, see {@link FrameStamp}.
+ * <p>
+ * <p>Only byte buffer frames can be stamped, so the wrapped capturer should not capture to
+ * a texture; texture frames are passed on unstamped and counted.
+ */
+public class FrameStampCapturer implements CameraVideoCapturer {
+    private static final String TAG = "FrameStampCapturer";
+
+    private final VideoCapturer capturer;
+    // Only accessed on the capture thread.
+    private long stampedFrames;
+    private long unstampedFrames;
+
+    public FrameStampCapturer(VideoCapturer capturer) {
+        this.capturer = capturer;
+    }
+
+    @Override
+    public void initialize(SurfaceTextureHelper surfaceTextureHelper, Context applicationContext,
+                           final CapturerObserver observer) {
+        capturer.initialize(surfaceTextureHelper, applicationContext, new CapturerObserver() {
+            @Override
+            public void onCapturerStarted(boolean success) {
+                observer.onCapturerStarted(success);
+            }
+
+            @Override
+            public void onCapturerStopped() {
+                Log.d(TAG, "Stamped " + stampedFrames + " frames, " + unstampedFrames + " not stamped");
+                observer.onCapturerStopped();
+            }
+
+            @Override
+            public void onByteBufferFrameCaptured(byte[] data, int width, int height, int rotation,
+                                                  long timeStamp) {
+                // NV21: the luma plane comes first, with rows of |width| bytes.
+                if (FrameStamp.write(data, width, width, height, System.nanoTime() / 1000000)) {
+                    stampedFrames++;
+                } else {
+                    unstampedFrames++;
+                }
+                observer.onByteBufferFrameCaptured(data, width, height, rotation, timeStamp);
+            }
+
+            @Override
+            public void onTextureFrameCaptured(int width, int height, int oesTextureId,
+                                               float[] transformMatrix, int rotation, long timestamp) {
+                if (unstampedFrames++ == 0) {
+                    Log.w(TAG, "Texture frames can't be stamped");
+                }
+                observer.onTextureFrameCaptured(width, height, oesTextureId, transformMatrix,
+                        rotation, timestamp);
+            }
+        });
+    }
+
+    @Override
+    public void startCapture(int width, int height, int framerate) {
+        capturer.startCapture(width, height, framerate);
+    }
+
+    @Override
+    public void stopCapture() throws InterruptedException {
+        capturer.stopCapture();
+    }
+
+    @Override
+    public void changeCaptureFormat(int width, int height, int framerate) {
+        capturer.changeCaptureFormat(width, height, framerate);
+    }
+
+    @Override
+    public void dispose() {
+        capturer.dispose();
+    }
+
+    @Override
+    public boolean isScreencast() {
+        return capturer.isScreencast();
+    }
+
+    @Override
+    public void switchCamera(CameraSwitchHandler switchEventsHandler) {
+        if (capturer instanceof CameraVideoCapturer) {
+            ((CameraVideoCapturer) capturer).switchCamera(switchEventsHandler);
+        } else if (switchEventsHandler != null) {
+            switchEventsHandler.onCameraSwitchError("Not a camera");
+        }
+    }
+}
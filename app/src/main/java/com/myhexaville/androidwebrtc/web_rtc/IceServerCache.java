@@ -0,0 +1,334 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.PeerConnection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.myhexaville.androidwebrtc.util.Constants.ICE_SERVER_CACHE_TTL_MS;
+import static com.myhexaville.androidwebrtc.util.Constants.ICE_SERVER_REFRESH_AHEAD_MS;
+
+/**
+ * Process-wide cache of TURN/ICE server lists keyed by the room's ice_server_url.
+ * <p>
+ * <p>Lists are fetched on a background thread and kept until their credentials expire: after
+ * the lifetime the server reports or, if it reports none, after ICE_SERVER_CACHE_TTL_MS. While
+ * a call holds the cache with {@link #acquire()}, lists are refreshed shortly before they
+ * expire, so back-to-back calls and reconnects never wait for them; once the last call releases
+ * it, pending refreshes are cancelled and the thread may exit. The URL last seen for each room
+ * server is remembered, so the next join can fetch the list in parallel with the room request.
+ */
+public class IceServerCache {
+    private static final String TAG = "IceServerCache";
+    private static final int TURN_HTTP_TIMEOUT_MS = 5000;
+    private static final long IDLE_THREAD_TIMEOUT_S = 30;
+
+    private static final IceServerCache instance = new IceServerCache();
+
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // ice_server_url last returned by each room server origin.
+    private final Map<String, String> iceServerUrls = new ConcurrentHashMap<>();
+    // Number of calls holding the cache. Guarded by |this|.
+    private int users;
+
+    /**
+     * Receives the result of {@link #get}, either on the calling thread or on the cache's thread.
+     */
+    public interface IceServersCallback {
+        void onIceServers(List<PeerConnection.IceServer> servers);
+
+        void onIceServersError(String description);
+    }
+
+    private static class Entry {
+        final String url;
+        // Guarded by |this|.
+        List<PeerConnection.IceServer> servers;
+        long expiresAtMs;
+        boolean fetching;
+        final List<IceServersCallback> waiters = new ArrayList<>();
+        ScheduledFuture<?> refreshTask;
+
+        Entry(String url) {
+            this.url = url;
+        }
+    }
+
+    public static IceServerCache getInstance() {
+        return instance;
+    }
+
+    private IceServerCache() {
+        executor.setKeepAliveTime(IDLE_THREAD_TIMEOUT_S, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        // A cancelled refresh must not keep the thread waiting for its delay.
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Marks the start of a call. Cached lists are refreshed ahead of expiry until the matching
+     * {@link #release()}.
+     */
+    public void acquire() {
+        synchronized (this) {
+            if (users++ > 0) {
+                return;
+            }
+        }
+        for (Entry entry : entries.values()) {
+            scheduleRefresh(entry);
+        }
+    }
+
+    /**
+     * Marks the end of a call. Cancels the refreshes once no call holds the cache.
+     */
+    public void release() {
+        synchronized (this) {
+            if (users == 0 || --users > 0) {
+                return;
+            }
+        }
+        for (Entry entry : entries.values()) {
+            synchronized (entry) {
+                if (entry.refreshTask != null) {
+                    entry.refreshTask.cancel(false);
+                    entry.refreshTask = null;
+                }
+            }
+        }
+    }
+
+    private synchronized boolean inUse() {
+        return users > 0;
+    }
+
+    /**
+     * Starts fetching the ICE servers the room server at |roomUrl| returned last time, unless
+     * they are cached. Called before the room join so both requests run in parallel.
+     */
+    public void prefetch(String roomUrl) {
+        String iceServerUrl = iceServerUrls.get(origin(roomUrl));
+        if (iceServerUrl != null) {
+            Log.d(TAG, "Prefetching ICE servers from " + iceServerUrl);
+            fetchIfNeeded(getEntry(iceServerUrl));
+        }
+    }
+
+    /**
+     * Returns the unexpired ICE servers the room server at |roomUrl| returned last time, or an
+     * empty list. Never blocks, so the servers can seed an ICE candidate pool before the room
+     * join completes.
+     */
+    public List<PeerConnection.IceServer> peek(String roomUrl) {
+        String iceServerUrl = iceServerUrls.get(origin(roomUrl));
+        Entry entry = iceServerUrl == null ? null : entries.get(iceServerUrl);
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.servers != null && SystemClock.elapsedRealtime() < entry.expiresAtMs) {
+                    return entry.servers;
+                }
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Passes the ICE servers at |iceServerUrl| to |callback|: right away if they are cached and
+     * have not expired, otherwise once a fetch completes. Joins a prefetch in flight rather than
+     * starting another request, and never blocks.
+     *
+     * @param roomUrl Room URL that returned |iceServerUrl|, remembered for {@link #prefetch}.
+     */
+    public void get(String roomUrl, String iceServerUrl, IceServersCallback callback) {
+        iceServerUrls.put(origin(roomUrl), iceServerUrl);
+        Entry entry = getEntry(iceServerUrl);
+        List<PeerConnection.IceServer> cached = null;
+        synchronized (entry) {
+            if (entry.servers != null && SystemClock.elapsedRealtime() < entry.expiresAtMs) {
+                Log.d(TAG, "Using cached ICE servers from " + iceServerUrl);
+                cached = entry.servers;
+            } else {
+                entry.waiters.add(callback);
+            }
+            // Also starts a background refresh if the credentials expire soon.
+            fetchIfNeeded(entry);
+        }
+        if (cached != null) {
+            callback.onIceServers(cached);
+        }
+    }
+
+    private Entry getEntry(String iceServerUrl) {
+        Entry entry = entries.get(iceServerUrl);
+        if (entry == null) {
+            entry = new Entry(iceServerUrl);
+            Entry existing = entries.putIfAbsent(iceServerUrl, entry);
+            if (existing != null) {
+                entry = existing;
+            }
+        }
+        return entry;
+    }
+
+    private void fetchIfNeeded(final Entry entry) {
+        synchronized (entry) {
+            if (entry.fetching || (entry.servers != null
+                    && SystemClock.elapsedRealtime() < entry.expiresAtMs - ICE_SERVER_REFRESH_AHEAD_MS)) {
+                return;
+            }
+            entry.fetching = true;
+        }
+        executor.execute(() -> fetch(entry));
+    }
+
+    // Runs on |executor|.
+    private void fetch(final Entry entry) {
+        long lifetimeMs = ICE_SERVER_CACHE_TTL_MS;
+        List<PeerConnection.IceServer> servers = null;
+        String error = null;
+        try {
+            JSONObject responseJSON = requestTurnServers(entry.url);
+            servers = Collections.unmodifiableList(parseIceServers(responseJSON));
+            // appr.tc reports how long the TURN credentials are valid, e.g. "86400s".
+            String lifetime = responseJSON.optString("lifetimeDuration", "");
+            if (lifetime.endsWith("s")) {
+                try {
+                    lifetimeMs = (long) (Double.parseDouble(
+                            lifetime.substring(0, lifetime.length() - 1)) * 1000);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Unknown lifetimeDuration " + lifetime);
+                }
+            }
+        } catch (IOException | JSONException | RuntimeException e) {
+            // Waiters must hear back whatever went wrong.
+            Log.e(TAG, "Failed to fetch ICE servers from " + entry.url, e);
+            error = e.toString();
+        }
+
+        List<IceServersCallback> waiters;
+        synchronized (entry) {
+            entry.fetching = false;
+            if (servers != null) {
+                entry.servers = servers;
+                entry.expiresAtMs = SystemClock.elapsedRealtime() + lifetimeMs;
+            }
+            waiters = new ArrayList<>(entry.waiters);
+            entry.waiters.clear();
+        }
+        for (IceServersCallback waiter : waiters) {
+            if (servers != null) {
+                waiter.onIceServers(servers);
+            } else {
+                waiter.onIceServersError(error);
+            }
+        }
+        if (servers != null) {
+            scheduleRefresh(entry);
+        }
+    }
+
+    // Schedules a refresh ahead of expiry while a call holds the cache.
+    private void scheduleRefresh(final Entry entry) {
+        if (!inUse()) {
+            return;
+        }
+        synchronized (entry) {
+            if (entry.servers == null || entry.refreshTask != null) {
+                return;
+            }
+            long lifetimeMs = entry.expiresAtMs - SystemClock.elapsedRealtime();
+            long refreshDelayMs = Math.max(0, lifetimeMs - ICE_SERVER_REFRESH_AHEAD_MS);
+            entry.refreshTask = executor.schedule(() -> {
+                synchronized (entry) {
+                    entry.refreshTask = null;
+                }
+                Log.d(TAG, "Refreshing ICE servers from " + entry.url);
+                fetchIfNeeded(entry);
+            }, refreshDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Requests the TURN server list from a request URL. Runs on |executor|.
+    private static JSONObject requestTurnServers(String url) throws IOException, JSONException {
+        Log.d(TAG, "Request TURN from: " + url);
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("REFERER", "https://appr.tc");
+            connection.setConnectTimeout(TURN_HTTP_TIMEOUT_MS);
+            connection.setReadTimeout(TURN_HTTP_TIMEOUT_MS);
+            int responseCode = connection.getResponseCode();
+            if (responseCode != 200) {
+                InputStream errorStream = connection.getErrorStream();
+                if (errorStream != null) {
+                    errorStream.close();
+                }
+                throw new IOException("Non-200 response when requesting TURN server from " + url
+                        + " : " + connection.getHeaderField(null));
+            }
+            InputStream responseStream = connection.getInputStream();
+            String response;
+            try {
+                response = drainStream(responseStream);
+            } finally {
+                responseStream.close();
+            }
+            Log.d(TAG, "TURN response: " + response);
+            return new JSONObject(response);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static List<PeerConnection.IceServer> parseIceServers(JSONObject responseJSON)
+            throws JSONException {
+        List<PeerConnection.IceServer> turnServers = new ArrayList<>();
+        JSONArray iceServers = responseJSON.getJSONArray("iceServers");
+        for (int i = 0; i < iceServers.length(); ++i) {
+            JSONObject server = iceServers.getJSONObject(i);
+            JSONArray turnUrls = server.getJSONArray("urls");
+            String username = server.has("username") ? server.getString("username") : "";
+            String credential = server.has("credential") ? server.getString("credential") : "";
+            for (int j = 0; j < turnUrls.length(); j++) {
+                String turnUrl = turnUrls.getString(j);
+                turnServers.add(new PeerConnection.IceServer(turnUrl, username, credential));
+            }
+        }
+        return turnServers;
+    }
+
+    private static String origin(String roomUrl) {
+        try {
+            URL url = new URL(roomUrl);
+            return url.getProtocol() + "://" + url.getAuthority();
+        } catch (MalformedURLException e) {
+            return roomUrl;
+        }
+    }
+
+    // Return the contents of an InputStream as a String.
+    private static String drainStream(InputStream in) {
+        Scanner s = new Scanner(in).useDelimiter("\\A");
+        return s.hasNext() ? s.next() : "";
+    }
+}
@@ -0,0 +1,300 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+/**
+ * Minimal pull parser over a JSON text, modeled after android.util.JsonReader.
+ * <p>
+ * <p>Values are read straight from the input without building a tree. String values are
+ * unescaped into a single reused builder. The parser is lenient about commas and does not
+ * validate the whole document; it only reads what the caller asks for.
+ */
+final class JsonPullParser {
+    enum Token {BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, STRING, NUMBER, BOOLEAN, NULL, END}
+
+    private final StringBuilder stringBuffer = new StringBuilder();
+    private CharSequence input;
+    private int pos;
+    private int end;
+
+    JsonPullParser(CharSequence input) {
+        reset(input);
+    }
+
+    void reset(CharSequence input) {
+        this.input = input;
+        pos = 0;
+        end = input.length();
+    }
+
+    Token peek() throws SignalingCodecException {
+        skipWhitespace();
+        if (pos >= end) {
+            return Token.END;
+        }
+        char c = input.charAt(pos);
+        switch (c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '}':
+                return Token.END_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case ']':
+                return Token.END_ARRAY;
+            case '"':
+                return Token.STRING;
+            case 't':
+            case 'f':
+                return Token.BOOLEAN;
+            case 'n':
+                return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return Token.NUMBER;
+                }
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    void beginObject() throws SignalingCodecException {
+        expect('{');
+    }
+
+    void endObject() throws SignalingCodecException {
+        expect('}');
+    }
+
+    void beginArray() throws SignalingCodecException {
+        expect('[');
+    }
+
+    void endArray() throws SignalingCodecException {
+        expect(']');
+    }
+
+    /**
+     * Returns true if the current object or array has another member, consuming the comma
+     * that separates it from the previous one.
+     */
+    boolean hasNext() throws SignalingCodecException {
+        skipWhitespace();
+        if (pos >= end) {
+            throw error("Unterminated container");
+        }
+        char c = input.charAt(pos);
+        if (c == ',') {
+            pos++;
+            skipWhitespace();
+            return true;
+        }
+        return c != '}' && c != ']';
+    }
+
+    String nextName() throws SignalingCodecException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    String nextString() throws SignalingCodecException {
+        expect('"');
+        stringBuffer.setLength(0);
+        while (pos < end) {
+            char c = input.charAt(pos++);
+            if (c == '"') {
+                return stringBuffer.toString();
+            }
+            if (c != '\\') {
+                stringBuffer.append(c);
+                continue;
+            }
+            if (pos >= end) {
+                break;
+            }
+            char escaped = input.charAt(pos++);
+            switch (escaped) {
+                case 'n':
+                    stringBuffer.append('\n');
+                    break;
+                case 'r':
+                    stringBuffer.append('\r');
+                    break;
+                case 't':
+                    stringBuffer.append('\t');
+                    break;
+                case 'b':
+                    stringBuffer.append('\b');
+                    break;
+                case 'f':
+                    stringBuffer.append('\f');
+                    break;
+                case 'u':
+                    if (pos + 4 > end) {
+                        throw error("Truncated unicode escape");
+                    }
+                    stringBuffer.append((char) parseHex(pos, pos + 4));
+                    pos += 4;
+                    break;
+                default:
+                    // '"', '\\' and '/'.
+                    stringBuffer.append(escaped);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    /**
+     * Reads a number, or a string holding a number, as an int.
+     */
+    int nextInt() throws SignalingCodecException {
+        if (peek() == Token.STRING) {
+            String value = nextString();
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw error("Not an int: " + value);
+            }
+        }
+        int start = pos;
+        boolean negative = false;
+        if (pos < end && input.charAt(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+        long value = 0;
+        while (pos < end) {
+            char c = input.charAt(pos);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE + 1L) {
+                throw error("Int out of range");
+            }
+            pos++;
+        }
+        if (pos == start || (negative && pos == start + 1)) {
+            throw error("Expected a number");
+        }
+        if (pos < end && (input.charAt(pos) == '.' || input.charAt(pos) == 'e'
+                || input.charAt(pos) == 'E')) {
+            throw error("Not an int");
+        }
+        if (!negative && value > Integer.MAX_VALUE) {
+            throw error("Int out of range");
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    boolean nextBoolean() throws SignalingCodecException {
+        skipWhitespace();
+        if (matchLiteral("true")) {
+            return true;
+        }
+        if (matchLiteral("false")) {
+            return false;
+        }
+        throw error("Expected a boolean");
+    }
+
+    void nextNull() throws SignalingCodecException {
+        skipWhitespace();
+        if (!matchLiteral("null")) {
+            throw error("Expected null");
+        }
+    }
+
+    void skipValue() throws SignalingCodecException {
+        switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case STRING:
+                skipString();
+                break;
+            case NUMBER:
+            case BOOLEAN:
+            case NULL:
+                while (pos < end && "{}[],: \t\r\n".indexOf(input.charAt(pos)) < 0) {
+                    pos++;
+                }
+                break;
+            default:
+                throw error("No value to skip");
+        }
+    }
+
+    // Skips a string without unescaping it.
+    private void skipString() throws SignalingCodecException {
+        expect('"');
+        while (pos < end) {
+            char c = input.charAt(pos++);
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                pos++;
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private boolean matchLiteral(String literal) {
+        int length = literal.length();
+        if (pos + length > end) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (input.charAt(pos + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        pos += length;
+        return true;
+    }
+
+    private int parseHex(int from, int to) throws SignalingCodecException {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(input.charAt(i), 16);
+            if (digit < 0) {
+                throw error("Bad unicode escape");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private void expect(char expected) throws SignalingCodecException {
+        skipWhitespace();
+        if (pos >= end || input.charAt(pos) != expected) {
+            throw error("Expected '" + expected + "'");
+        }
+        pos++;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            char c = input.charAt(pos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private SignalingCodecException error(String message) {
+        return new SignalingCodecException(message + " at offset " + pos);
+    }
+}
@@ -0,0 +1,728 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Self-hosted stand-in for appr.tc: the room server's /join, /message and /leave endpoints
+ * plus the WebSocket relay (collider) register/send protocol, as used by
+ * {@link RoomParametersFetcher}, {@link WebSocketRTCClient} and {@link WebSocketChannelClient}.
+ * <p>
+ * <p>Plain Java apart from android.util.Log, so it runs on a device acting as the signaling
+ * host as well as in JVM unit tests. {@link #start()} binds the port and {@link #stop()} waits
+ * for the selector thread, so call both off the main thread. HTTP and WebSocket share one port and are served by a
+ * single non-blocking selector thread; room state lives in a {@link SignalingRoomRegistry}
+ * confined to that thread. Use "http://&lt;host&gt;:&lt;port&gt;" as the room URL; WebSocket
+ * URLs handed out in join responses use the Host header of the request.
+ */
+public class LocalSignalingServer {
+    private static final String TAG = "LocalSignalingServer";
+    private static final int READ_BUFFER_BYTES = 8 * 1024;
+    private static final int MAX_REQUEST_BYTES = 1024 * 1024;
+    private static final String WEBSOCKET_PATH = "/ws";
+    private static final String WEBSOCKET_POST_PATH = "/wspost";
+    private static final String ICE_CONFIG_PATH = "/iceconfig";
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    private final int requestedPort;
+    private final SignalingRoomRegistry registry = new SignalingRoomRegistry();
+    private final List<String[]> iceServers = new ArrayList<>();
+    private final AtomicLong httpRequests = new AtomicLong();
+    private final AtomicLong relayedMessages = new AtomicLong();
+    private final AtomicLong openConnections = new AtomicLong();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    /**
+     * @param port Port to listen on, or 0 to pick a free one.
+     */
+    public LocalSignalingServer(int port) {
+        this.requestedPort = port;
+    }
+
+    /**
+     * Adds a STUN or TURN server to the ICE server list returned to clients. Must be called
+     * before {@link #start()}.
+     */
+    public void addIceServer(String url, String username, String credential) {
+        iceServers.add(new String[]{url, username, credential});
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(requestedPort));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(this::run, "LocalSignalingServer");
+        selectorThread.start();
+        Log.i(TAG, "Listening on port " + getPort());
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public long getHttpRequestCount() {
+        return httpRequests.get();
+    }
+
+    /**
+     * Returns the number of messages delivered over WebSockets, including queued ones.
+     */
+    public long getRelayedMessageCount() {
+        return relayedMessages.get();
+    }
+
+    public long getOpenConnectionCount() {
+        return openConnections.get();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        Log.d(TAG, "Connection failed: " + e.getMessage());
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Selector failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+            running = false;
+            Log.i(TAG, "Stopped");
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            openConnections.incrementAndGet();
+        }
+    }
+
+    // -------------------------------------------------------------------
+    // Room server and relay requests.
+
+    private String handleJoin(String roomId, String host) {
+        SignalingRoomRegistry.JoinResult join = registry.join(roomId);
+        if (join.result != SignalingRoomRegistry.Result.SUCCESS) {
+            return "{\"result\":\"" + join.result.name() + "\",\"params\":{}}";
+        }
+        StringBuilder out = new StringBuilder(256);
+        out.append("{\"result\":\"SUCCESS\",\"params\":{\"room_id\":");
+        SignalingCodec.appendQuoted(out, roomId);
+        out.append(",\"client_id\":");
+        SignalingCodec.appendQuoted(out, join.clientId);
+        out.append(",\"is_initiator\":\"").append(join.initiator).append('"');
+        out.append(",\"messages\":[");
+        for (int i = 0; i < join.messages.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            SignalingCodec.appendQuoted(out, join.messages.get(i));
+        }
+        out.append("],\"wss_url\":");
+        SignalingCodec.appendQuoted(out, "ws://" + host + WEBSOCKET_PATH);
+        out.append(",\"wss_post_url\":");
+        SignalingCodec.appendQuoted(out, "http://" + host + WEBSOCKET_POST_PATH);
+        // ICE servers come from ice_server_url, which the client requests when pc_config has
+        // no TURN server.
+        out.append(",\"pc_config\":\"{\\\"iceServers\\\":[]}\",\"ice_server_url\":");
+        SignalingCodec.appendQuoted(out, "http://" + host + ICE_CONFIG_PATH);
+        out.append("}}");
+        return out.toString();
+    }
+
+    private String iceConfig() {
+        StringBuilder out = new StringBuilder("{\"iceServers\":[");
+        for (int i = 0; i < iceServers.size(); i++) {
+            String[] server = iceServers.get(i);
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append("{\"urls\":[");
+            SignalingCodec.appendQuoted(out, server[0]);
+            out.append("],\"username\":");
+            SignalingCodec.appendQuoted(out, server[1]);
+            out.append(",\"credential\":");
+            SignalingCodec.appendQuoted(out, server[2]);
+            out.append('}');
+        }
+        return out.append("]}").toString();
+    }
+
+    private static String result(SignalingRoomRegistry.Result result) {
+        return "{\"result\":\"" + result.name() + "\"}";
+    }
+
+    private static String envelope(String message, String error) {
+        StringBuilder out = new StringBuilder(message.length() + 32);
+        out.append("{\"msg\":");
+        SignalingCodec.appendQuoted(out, message);
+        out.append(",\"error\":");
+        SignalingCodec.appendQuoted(out, error);
+        return out.append('}').toString();
+    }
+
+    private static String webSocketAccept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII));
+            return base64(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // java.util.Base64 is not available on our minimum API level.
+    private static String base64(byte[] data) {
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xFF) << 16;
+            if (i + 1 < data.length) {
+                b |= (data[i + 1] & 0xFF) << 8;
+            }
+            if (i + 2 < data.length) {
+                b |= data[i + 2] & 0xFF;
+            }
+            out.append(alphabet.charAt((b >> 18) & 0x3F));
+            out.append(alphabet.charAt((b >> 12) & 0x3F));
+            out.append(i + 1 < data.length ? alphabet.charAt((b >> 6) & 0x3F) : '=');
+            out.append(i + 2 < data.length ? alphabet.charAt(b & 0x3F) : '=');
+        }
+        return out.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Close failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * One client connection. Starts as HTTP/1.1 with keep-alive and switches to WebSocket
+     * framing after an upgrade request.
+     */
+    private class Connection implements SignalingRoomRegistry.Peer {
+        private final SocketChannel channel;
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        private boolean webSocket;
+        private boolean closeAfterWrite;
+        private boolean closed;
+        // Payload of a fragmented WebSocket message.
+        private ByteBuffer fragments;
+        // Set once the WebSocket registered.
+        private String roomId;
+        private String clientId;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_REQUEST_BYTES) {
+                    throw new IOException("Request too large");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_REQUEST_BYTES));
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            boolean progress = true;
+            while (progress && !closed && in.hasRemaining()) {
+                progress = webSocket ? readFrame() : readHttpRequest();
+            }
+            if (!closed) {
+                in.compact();
+            }
+        }
+
+        // -------------------------------------------------------------------
+        // HTTP.
+
+        /**
+         * Handles one complete request from |in|. Returns false if more bytes are needed.
+         */
+        private boolean readHttpRequest() throws IOException {
+            int start = in.position();
+            int headerEnd = -1;
+            for (int i = start; i + 3 < in.limit(); i++) {
+                if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r'
+                        && in.get(i + 3) == '\n') {
+                    headerEnd = i;
+                    break;
+                }
+            }
+            if (headerEnd < 0) {
+                return false;
+            }
+            byte[] headerBytes = new byte[headerEnd - start];
+            in.get(headerBytes);
+            String[] lines = new String(headerBytes, StandardCharsets.ISO_8859_1).split("\r\n");
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US),
+                            lines[i].substring(colon + 1).trim());
+                }
+            }
+            int contentLength = 0;
+            String contentLengthHeader = headers.get("content-length");
+            if (contentLengthHeader != null) {
+                try {
+                    contentLength = Integer.parseInt(contentLengthHeader);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad Content-Length " + contentLengthHeader);
+                }
+            }
+            if (contentLength < 0 || headerEnd + 4 + contentLength - start > MAX_REQUEST_BYTES) {
+                throw new IOException("Bad Content-Length " + contentLength);
+            }
+            if (in.limit() < headerEnd + 4 + contentLength) {
+                // Body not complete yet, parse the request again once it is.
+                in.position(start);
+                return false;
+            }
+            in.position(headerEnd + 4);
+            byte[] body = new byte[contentLength];
+            in.get(body);
+
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length < 2) {
+                throw new IOException("Bad request line " + lines[0]);
+            }
+            httpRequests.incrementAndGet();
+            handleHttpRequest(requestLine[0], requestLine[1], headers,
+                    new String(body, StandardCharsets.UTF_8));
+            return true;
+        }
+
+        private void handleHttpRequest(String method, String path, Map<String, String> headers,
+                                       String body) {
+            Log.d(TAG, method + " " + path);
+            boolean keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+            String host = headers.containsKey("host") ? headers.get("host") : "localhost:" + getPort();
+            int query = path.indexOf('?');
+            String[] segments = (query >= 0 ? path.substring(0, query) : path).split("/");
+            String route = segments.length > 1 ? segments[1] : "";
+
+            if (route.equals(WEBSOCKET_PATH.substring(1)) && "websocket".equalsIgnoreCase(headers.get("upgrade"))
+                    && headers.containsKey("sec-websocket-key")) {
+                webSocket = true;
+                writeBytes(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n"
+                        + "Connection: Upgrade\r\nSec-WebSocket-Accept: "
+                        + webSocketAccept(headers.get("sec-websocket-key")) + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            switch (route) {
+                case "join":
+                    if (segments.length == 3) {
+                        writeHttpResponse(200, handleJoin(segments[2], host), keepAlive);
+                        return;
+                    }
+                    break;
+                case "message":
+                    if (segments.length == 4) {
+                        SignalingRoomRegistry.Result result =
+                                registry.postMessage(segments[2], segments[3], body);
+                        writeHttpResponse(200, result(result), keepAlive);
+                        return;
+                    }
+                    break;
+                case "leave":
+                    if (segments.length == 4) {
+                        registry.leave(segments[2], segments[3]);
+                        writeHttpResponse(200, "", keepAlive);
+                        return;
+                    }
+                    break;
+                case "wspost":
+                    if (segments.length == 4) {
+                        if (method.equals("POST")) {
+                            SignalingRoomRegistry.Result result =
+                                    registry.relay(segments[2], segments[3], body);
+                            writeHttpResponse(200, result == SignalingRoomRegistry.Result.SUCCESS
+                                    ? "OK" : result.name(), keepAlive);
+                        } else {
+                            // DELETE: the WebSocket is closed right after and unregisters then.
+                            writeHttpResponse(200, "", keepAlive);
+                        }
+                        return;
+                    }
+                    break;
+                case "iceconfig":
+                    writeHttpResponse(200, iceConfig(), keepAlive);
+                    return;
+            }
+            writeHttpResponse(404, "", keepAlive);
+        }
+
+        private void writeHttpResponse(int status, String body, boolean keepAlive) {
+            byte[] payload = body.getBytes(StandardCharsets.UTF_8);
+            String header = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Not Found")
+                    + "\r\nContent-Type: application/json\r\nContent-Length: " + payload.length
+                    + (keepAlive ? "\r\n\r\n" : "\r\nConnection: close\r\n\r\n");
+            queue(ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+            queue(ByteBuffer.wrap(payload));
+            if (!keepAlive) {
+                closeAfterWrite = true;
+            }
+            send();
+        }
+
+        // -------------------------------------------------------------------
+        // WebSocket.
+
+        /**
+         * Handles one complete frame from |in|. Returns false if more bytes are needed.
+         */
+        private boolean readFrame() throws IOException {
+            int start = in.position();
+            if (in.remaining() < 2) {
+                return false;
+            }
+            int b0 = in.get(start) & 0xFF;
+            int b1 = in.get(start + 1) & 0xFF;
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            boolean masked = (b1 & 0x80) != 0;
+            long length = b1 & 0x7F;
+            int headerLength = 2;
+            if (length == 126) {
+                if (in.remaining() < 4) {
+                    return false;
+                }
+                length = in.getShort(start + 2) & 0xFFFF;
+                headerLength = 4;
+            } else if (length == 127) {
+                if (in.remaining() < 10) {
+                    return false;
+                }
+                length = in.getLong(start + 2);
+                headerLength = 10;
+            }
+            if (length < 0 || length > MAX_REQUEST_BYTES) {
+                throw new IOException("Frame too large: " + length);
+            }
+            int maskOffset = start + headerLength;
+            if (masked) {
+                headerLength += 4;
+            }
+            if (in.remaining() < headerLength + length) {
+                return false;
+            }
+            byte[] payload = new byte[(int) length];
+            in.position(start + headerLength);
+            in.get(payload);
+            if (masked) {
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= in.get(maskOffset + (i & 3));
+                }
+            }
+
+            switch (opcode) {
+                case OPCODE_TEXT:
+                case OPCODE_CONTINUATION:
+                    if (opcode == OPCODE_TEXT) {
+                        fragments = null;
+                    }
+                    if (!fin || fragments != null) {
+                        appendFragment(payload);
+                        if (!fin) {
+                            return true;
+                        }
+                        fragments.flip();
+                        payload = new byte[fragments.remaining()];
+                        fragments.get(payload);
+                        fragments = null;
+                    }
+                    handleCommand(new String(payload, StandardCharsets.UTF_8));
+                    break;
+                case OPCODE_PING:
+                    writeFrame(OPCODE_PONG, payload);
+                    break;
+                case OPCODE_CLOSE:
+                    closeAfterWrite = true;
+                    writeFrame(OPCODE_CLOSE, payload);
+                    break;
+                default:
+                    break;
+            }
+            return true;
+        }
+
+        private void appendFragment(byte[] payload) throws IOException {
+            if (fragments == null) {
+                fragments = ByteBuffer.allocate(Math.max(payload.length, READ_BUFFER_BYTES));
+            }
+            if (fragments.remaining() < payload.length) {
+                int needed = fragments.position() + payload.length;
+                if (needed > MAX_REQUEST_BYTES) {
+                    throw new IOException("Message too large");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, fragments.capacity() * 2));
+                fragments.flip();
+                larger.put(fragments);
+                fragments = larger;
+            }
+            fragments.put(payload);
+        }
+
+        /**
+         * Handles {"cmd": "register", "roomid": ..., "clientid": ...} and
+         * {"cmd": "send", "msg": ...}.
+         */
+        private void handleCommand(String text) {
+            String cmd = null;
+            String commandRoomId = null;
+            String commandClientId = null;
+            String msg = null;
+            JsonPullParser parser = new JsonPullParser(text);
+            try {
+                parser.beginObject();
+                while (parser.hasNext()) {
+                    String name = parser.nextName();
+                    if (parser.peek() != JsonPullParser.Token.STRING) {
+                        parser.skipValue();
+                        continue;
+                    }
+                    switch (name) {
+                        case "cmd":
+                            cmd = parser.nextString();
+                            break;
+                        case "roomid":
+                            commandRoomId = parser.nextString();
+                            break;
+                        case "clientid":
+                            commandClientId = parser.nextString();
+                            break;
+                        case "msg":
+                            msg = parser.nextString();
+                            break;
+                        default:
+                            parser.skipValue();
+                    }
+                }
+                parser.endObject();
+            } catch (SignalingCodecException e) {
+                sendError("Invalid message: " + e.getMessage());
+                return;
+            }
+
+            if ("register".equals(cmd)) {
+                if (roomId != null) {
+                    sendError("Duplicated register request");
+                    return;
+                }
+                if (commandRoomId == null || commandClientId == null) {
+                    sendError("Missing roomid or clientid");
+                    return;
+                }
+                SignalingRoomRegistry.Result result =
+                        registry.register(commandRoomId, commandClientId, this);
+                if (result != SignalingRoomRegistry.Result.SUCCESS) {
+                    sendError("Register failed: " + result.name());
+                    return;
+                }
+                roomId = commandRoomId;
+                clientId = commandClientId;
+            } else if ("send".equals(cmd)) {
+                if (roomId == null) {
+                    sendError("Client not registered");
+                    return;
+                }
+                if (msg == null) {
+                    sendError("Missing msg");
+                    return;
+                }
+                SignalingRoomRegistry.Result result = registry.relay(roomId, clientId, msg);
+                if (result != SignalingRoomRegistry.Result.SUCCESS) {
+                    sendError("Send failed: " + result.name());
+                }
+            } else {
+                sendError("Invalid command " + cmd);
+            }
+        }
+
+        private void sendError(String error) {
+            Log.d(TAG, "WebSocket error: " + error);
+            writeFrame(OPCODE_TEXT, envelope("", error).getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void deliver(String message) {
+            relayedMessages.incrementAndGet();
+            writeFrame(OPCODE_TEXT, envelope(message, "").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writeFrame(int opcode, byte[] payload) {
+            ByteBuffer header = ByteBuffer.allocate(10);
+            header.put((byte) (0x80 | opcode));
+            if (payload.length < 126) {
+                header.put((byte) payload.length);
+            } else if (payload.length <= 0xFFFF) {
+                header.put((byte) 126);
+                header.putShort((short) payload.length);
+            } else {
+                header.put((byte) 127);
+                header.putLong(payload.length);
+            }
+            header.flip();
+            queue(header);
+            queue(ByteBuffer.wrap(payload));
+            send();
+        }
+
+        // -------------------------------------------------------------------
+        // Output.
+
+        private void writeBytes(byte[] bytes) {
+            queue(ByteBuffer.wrap(bytes));
+            send();
+        }
+
+        private void queue(ByteBuffer buffer) {
+            if (!closed) {
+                writeQueue.add(buffer);
+            }
+        }
+
+        private void send() {
+            try {
+                flush();
+            } catch (IOException e) {
+                Log.d(TAG, "Write failed: " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Writes queued buffers until the socket buffer is full, then waits for OP_WRITE.
+         */
+        void flush() throws IOException {
+            if (closed) {
+                return;
+            }
+            ByteBuffer[] batch = writeQueue.toArray(new ByteBuffer[writeQueue.size()]);
+            if (batch.length > 0) {
+                channel.write(batch);
+            }
+            while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+                writeQueue.poll();
+            }
+            if (writeQueue.isEmpty()) {
+                if (closeAfterWrite) {
+                    close();
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (roomId != null) {
+                registry.unregister(this);
+            }
+            closeQuietly(channel);
+            openConnections.decrementAndGet();
+        }
+    }
+}
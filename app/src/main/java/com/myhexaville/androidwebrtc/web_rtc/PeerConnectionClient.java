@@ -13,10 +13,10 @@ package com.myhexaville.androidwebrtc.web_rtc;
 import android.content.Context;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.myhexaville.androidwebrtc.call.CallActivity;
 import com.myhexaville.androidwebrtc.web_rtc.AppRTCClient.SignalingParameters;
 
 import org.webrtc.AudioSource;
@@ -31,12 +31,8 @@ import org.webrtc.MediaStream;
 import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnection.IceConnectionState;
 import org.webrtc.PeerConnectionFactory;
-import org.webrtc.RtpParameters;
-import org.webrtc.RtpSender;
-import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
 import org.webrtc.StatsObserver;
-import org.webrtc.StatsReport;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoRenderer;
 import org.webrtc.VideoSource;
@@ -46,17 +42,37 @@ import org.webrtc.voiceengine.WebRtcAudioUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+
+import static com.myhexaville.androidwebrtc.util.Constants.ADAPT_MIN_BITRATE_KBPS;
+import static com.myhexaville.androidwebrtc.util.Constants.BANDWIDTH_ADAPTATION_ENABLED;
+import static com.myhexaville.androidwebrtc.util.Constants.CONTROL_ABSOLUTE_MODE;
+import static com.myhexaville.androidwebrtc.util.Constants.CONTROL_CHANNEL_ID;
+import static com.myhexaville.androidwebrtc.util.Constants.CONTROL_CHANNEL_LABEL;
+import static com.myhexaville.androidwebrtc.util.Constants.ICE_CANDIDATE_POOL_SIZE;
+import static com.myhexaville.androidwebrtc.util.Constants.PEER_SESSION_SHARD_COUNT;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEMETRY_CHANNEL_ID;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEOP_AUDIO_JITTER_BUFFER_MAX_PACKETS;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEOP_FRAMERATE_THRESHOLD;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEOP_VIDEO_CODEC;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEOP_VIDEO_FPS;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEOP_VIDEO_HEIGHT;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEOP_VIDEO_MAX_BITRATE_KBPS;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEOP_VIDEO_START_BITRATE_KBPS;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEOP_VIDEO_WIDTH;
+import static com.myhexaville.androidwebrtc.util.Constants.TELEMETRY_CHANNEL_LABEL;
+import static com.myhexaville.androidwebrtc.util.Constants.VIDEO_CODEC_AUTO;
+import static com.myhexaville.androidwebrtc.util.Constants.VIEWER_MAX_BITRATE_KBPS;
 
 /**
  * Peer connection client implementation.
@@ -64,20 +80,22 @@ import java.util.regex.Pattern;
  * <p>All public methods are routed to local looper thread.
  * All PeerConnectionEvents callbacks are invoked from the same looper thread.
  * This class is a singleton.
+ * <p>
+ * <p>The factory and the local media sources outlive a call: {@link #close()} only tears
+ * down the peer connection, so the next call skips the native initialization and the camera
+ * open. They are released by {@link #shutdown()} once no call holds them.
  */
 public class PeerConnectionClient {
     public static final String VIDEO_TRACK_ID = "ARDAMSv0";
     public static final String AUDIO_TRACK_ID = "ARDAMSa0";
     public static final String VIDEO_TRACK_TYPE = "video";
     private static final String TAG = "PCRTCClient";
+    private static final String DATA_CHANNEL_LABEL = "ApprtcDemo data";
     private static final String VIDEO_CODEC_VP8 = "VP8";
     private static final String VIDEO_CODEC_VP9 = "VP9";
     private static final String VIDEO_CODEC_H264 = "H264";
-    private static final String AUDIO_CODEC_OPUS = "opus";
     private static final String AUDIO_CODEC_ISAC = "ISAC";
-    private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
     private static final String VIDEO_FLEXFEC_FIELDTRIAL = "WebRTC-FlexFEC-03/Enabled/";
-    private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
     private static final String AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation";
     private static final String AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT = "googAutoGainControl";
     private static final String AUDIO_HIGH_PASS_FILTER_CONSTRAINT = "googHighpassFilter";
@@ -86,16 +104,18 @@ public class PeerConnectionClient {
     private static final String DTLS_SRTP_KEY_AGREEMENT_CONSTRAINT = "DtlsSrtpKeyAgreement";
     private static final int HD_VIDEO_WIDTH = 1920;
     private static final int HD_VIDEO_HEIGHT = 1080;
-    private static final int BPS_IN_KBPS = 8000;
 
     private static final PeerConnectionClient instance = new PeerConnectionClient();
-    private final PCObserver pcObserver = new PCObserver();
-    private final SDPObserver sdpObserver = new SDPObserver();
+    // EGL context every call renders with, see getSharedEglBase(). Guarded by the class.
+    private static EglBase sharedEglBase;
+    // Runs the factory, the local media and session bookkeeping.
     private final ScheduledExecutorService executor;
+    // Runs the sessions, so they don't queue behind each other or the factory.
+    private final ShardedScheduler scheduler =
+            new ShardedScheduler("PeerSession", PEER_SESSION_SHARD_COUNT);
 
     private Context context;
     private PeerConnectionFactory factory;
-    private PeerConnection peerConnection;
     PeerConnectionFactory.Options options = null;
     private AudioSource audioSource;
     private VideoSource videoSource;
@@ -104,9 +124,7 @@ public class PeerConnectionClient {
     private String preferredVideoCodec;
     private boolean videoCapturerStopped;
     private boolean isError;
-    private Timer statsTimer;
     private VideoRenderer.Callbacks localRender;
-    private List<VideoRenderer.Callbacks> remoteRenders;
     private SignalingParameters signalingParameters;
     private MediaConstraints pcConstraints;
     private int videoWidth;
@@ -116,30 +134,63 @@ public class PeerConnectionClient {
     private ParcelFileDescriptor aecDumpFileDescriptor;
     private MediaConstraints sdpMediaConstraints;
     private PeerConnectionParameters peerConnectionParameters;
-    // Queued remote ICE candidates are consumed only after both local and
-    // remote descriptions are set. Similarly local ICE candidates are sent to
-    // remote peer after both local and remote description are set.
-    private LinkedList<IceCandidate> queuedRemoteCandidates;
     private PeerConnectionEvents events;
-    private boolean isInitiator;
-    private SessionDescription localSdp; // either offer or answer SDP
     private MediaStream mediaStream;
     private VideoCapturer videoCapturer;
+    // Capturer passed for the current call while |videoCapturer| is the previous call's. It
+    // replaces that one if the EGL context changed, see createLocalMediaInternal().
+    private VideoCapturer nextVideoCapturer;
     // enableVideo is set to true if video should be rendered and sent.
     private boolean renderVideo;
     private VideoTrack localVideoTrack;
-    private VideoTrack remoteVideoTrack;
-    private RtpSender localVideoSender;
     // enableAudio is set to true if audio should be sent.
     private boolean enableAudio;
     private AudioTrack localAudioTrack;
-    private DataChannel dataChannel;
+    // Message handlers keyed by channel label.
+    private final Map<String, DataChannelHandler> dataChannelHandlers = new ConcurrentHashMap<>();
     private boolean dataChannelEnabled;
+    // Calls between createPeerConnectionFactory() and close(). The factory and the media
+    // sources are disposed when this drops to zero after shutdown(). Only accessed on
+    // |executor|, like the factory and media source fields.
+    private int factoryRefCount;
+    private boolean shutdownRequested;
+    // Shared EGL contexts detached by shutdown(), released with the factory.
+    private final List<EglBase> eglBasesToRelease = new ArrayList<>();
+    // Parameters |factory| and the media sources were created with.
+    private PeerConnectionParameters factoryParameters;
+    private EglBase.Context hwAccelerationEglContext;
+    private EglBase.Context hwAccelerationRemoteEglContext;
+    // Decoded remote frames are textures unless a renderer needs their pixels.
+    private boolean decodeToTextures;
+    private VideoRenderer localVideoRenderer;
+    // Completion time of each startup stage relative to |startupStartMs|, 0 until reached.
+    // Only accessed on |executor|.
+    private final long[] stageDoneMs = new long[StartupStage.values().length];
+    private long startupStartMs;
+    // Open sessions keyed by id. Only accessed on |executor|.
+    private final Map<Integer, PeerSession> sessions = new LinkedHashMap<>();
+    private int nextSessionId = 1;
+    // Session of the call set up by createPeerConnection(); the methods of this class that
+    // mirror PeerSession apply to it. Read from sender threads.
+    private volatile PeerSession primarySession;
 
     /**
-     * Peer connection parameters.
+     * Stages of call startup, in the order they normally complete. FACTORY, LOCAL_MEDIA and
+     * ICE_POOL don't depend on the room response and run while the room join is in flight.
+     */
+    enum StartupStage {
+        FACTORY, LOCAL_MEDIA, ICE_POOL, SIGNALING, PEER_CONNECTION, ICE_CONNECTED,
+        FIRST_REMOTE_FRAME
+    }
+
+    /**
+     * Data channel parameters. Use -1 for maxRetransmitTimeMs and maxRetransmits to leave
+     * them unset; at most one of them may be set. |id| is only used for negotiated channels,
+     * which both peers create with the same id instead of using the in-band
+     * DATA_CHANNEL_OPEN handshake.
      */
     public static class DataChannelParameters {
+        public final String label;
         public final boolean ordered;
         public final int maxRetransmitTimeMs;
         public final int maxRetransmits;
@@ -149,6 +200,13 @@ public class PeerConnectionClient {
 
         public DataChannelParameters(boolean ordered, int maxRetransmitTimeMs, int maxRetransmits,
                                      String protocol, boolean negotiated, int id) {
+            this(DATA_CHANNEL_LABEL, ordered, maxRetransmitTimeMs, maxRetransmits, protocol,
+                    negotiated, id);
+        }
+
+        public DataChannelParameters(String label, boolean ordered, int maxRetransmitTimeMs,
+                                     int maxRetransmits, String protocol, boolean negotiated, int id) {
+            this.label = label;
             this.ordered = ordered;
             this.maxRetransmitTimeMs = maxRetransmitTimeMs;
             this.maxRetransmits = maxRetransmits;
@@ -181,15 +239,21 @@ public class PeerConnectionClient {
         public final boolean disableBuiltInAGC;
         public final boolean disableBuiltInNS;
         public final boolean enableLevelControl;
-        private final DataChannelParameters dataChannelParameters;
+        private final List<DataChannelParameters> dataChannelParameters;
+        // Video start bitrate in kbps, 0 for the default.
+        public final int videoStartBitrate;
+        // Trades retransmissions and buffering for latency: no generic NACK for video, a
+        // short audio jitter buffer and frame rate over resolution when adapting.
+        public final boolean lowLatency;
 
+        /**
+         * Parameters for a regular call. The video codec is the one {@link CodecBenchmark}
+         * measured fastest on the device, or VP8 until the benchmark has completed.
+         */
         public static PeerConnectionParameters createDefault() {
-
-            DataChannelParameters dataChannelParameters = new DataChannelParameters(true, 1000, 1000,
-            "TCP", true, 0);
             return new PeerConnectionParameters(true, false,
                     false, 0, 0, 0,
-                    0, "H264",
+                    0, VIDEO_CODEC_AUTO,
                     true,
                     false,
                     0, "OPUS",
@@ -200,7 +264,47 @@ public class PeerConnectionClient {
                     false,
                     false,
                     false,
-                    dataChannelParameters);
+                    createControlChannels());
+        }
+
+        /**
+         * Parameters for steering the camera, tuned for glass-to-glass latency rather than
+         * picture quality: a VGA frame at full rate with a start bitrate high enough to skip
+         * the blurry ramp-up, and FlexFEC repairing losses instead of NACK round trips. The
+         * video codec is the one {@link CodecBenchmark} measured fastest on the device.
+         */
+        public static PeerConnectionParameters createTeleop() {
+            return new PeerConnectionParameters(true, false,
+                    false, TELEOP_VIDEO_WIDTH, TELEOP_VIDEO_HEIGHT, TELEOP_VIDEO_FPS,
+                    TELEOP_VIDEO_MAX_BITRATE_KBPS, TELEOP_VIDEO_CODEC,
+                    true,
+                    true,
+                    0, "OPUS",
+                    false,
+                    false,
+                    false,
+                    false,
+                    false,
+                    false,
+                    false,
+                    createControlChannels(),
+                    TELEOP_VIDEO_START_BITRATE_KBPS, true);
+        }
+
+        private static List<DataChannelParameters> createControlChannels() {
+            // Absolute targets are idempotent, so the control channel can drop late messages
+            // instead of retransmitting them. Incremental steps need reliable, ordered delivery.
+            // Telemetry, calibration and configuration use a separate reliable channel, so a
+            // large upload never head-of-line blocks a servo command. Both channels are
+            // pre-negotiated so they open together with the SCTP association.
+            return Arrays.asList(
+                    CONTROL_ABSOLUTE_MODE
+                            ? new DataChannelParameters(CONTROL_CHANNEL_LABEL, false, -1, 0, "", true,
+                            CONTROL_CHANNEL_ID)
+                            : new DataChannelParameters(CONTROL_CHANNEL_LABEL, true, -1, -1, "", true,
+                            CONTROL_CHANNEL_ID),
+                    new DataChannelParameters(TELEMETRY_CHANNEL_LABEL, true, -1, -1, "", true,
+                            TELEMETRY_CHANNEL_ID));
         }
 
         public PeerConnectionParameters(boolean videoCallEnabled, boolean loopback, boolean tracing,
@@ -212,7 +316,7 @@ public class PeerConnectionClient {
             this(videoCallEnabled, loopback, tracing, videoWidth, videoHeight, videoFps, videoMaxBitrate,
                     videoCodec, videoCodecHwAcceleration, videoFlexfecEnabled, audioStartBitrate, audioCodec,
                     noAudioProcessing, aecDump, useOpenSLES, disableBuiltInAEC, disableBuiltInAGC,
-                    disableBuiltInNS, enableLevelControl, null);
+                    disableBuiltInNS, enableLevelControl, Collections.<DataChannelParameters>emptyList());
         }
 
         public PeerConnectionParameters(boolean videoCallEnabled, boolean loopback, boolean tracing,
@@ -221,6 +325,33 @@ public class PeerConnectionClient {
                                         String audioCodec, boolean noAudioProcessing, boolean aecDump, boolean useOpenSLES,
                                         boolean disableBuiltInAEC, boolean disableBuiltInAGC, boolean disableBuiltInNS,
                                         boolean enableLevelControl, DataChannelParameters dataChannelParameters) {
+            this(videoCallEnabled, loopback, tracing, videoWidth, videoHeight, videoFps, videoMaxBitrate,
+                    videoCodec, videoCodecHwAcceleration, videoFlexfecEnabled, audioStartBitrate, audioCodec,
+                    noAudioProcessing, aecDump, useOpenSLES, disableBuiltInAEC, disableBuiltInAGC,
+                    disableBuiltInNS, enableLevelControl, dataChannelParameters == null
+                            ? Collections.<DataChannelParameters>emptyList()
+                            : Collections.singletonList(dataChannelParameters));
+        }
+
+        public PeerConnectionParameters(boolean videoCallEnabled, boolean loopback, boolean tracing,
+                                        int videoWidth, int videoHeight, int videoFps, int videoMaxBitrate, String videoCodec,
+                                        boolean videoCodecHwAcceleration, boolean videoFlexfecEnabled, int audioStartBitrate,
+                                        String audioCodec, boolean noAudioProcessing, boolean aecDump, boolean useOpenSLES,
+                                        boolean disableBuiltInAEC, boolean disableBuiltInAGC, boolean disableBuiltInNS,
+                                        boolean enableLevelControl, List<DataChannelParameters> dataChannelParameters) {
+            this(videoCallEnabled, loopback, tracing, videoWidth, videoHeight, videoFps, videoMaxBitrate,
+                    videoCodec, videoCodecHwAcceleration, videoFlexfecEnabled, audioStartBitrate, audioCodec,
+                    noAudioProcessing, aecDump, useOpenSLES, disableBuiltInAEC, disableBuiltInAGC,
+                    disableBuiltInNS, enableLevelControl, dataChannelParameters, 0, false);
+        }
+
+        public PeerConnectionParameters(boolean videoCallEnabled, boolean loopback, boolean tracing,
+                                        int videoWidth, int videoHeight, int videoFps, int videoMaxBitrate, String videoCodec,
+                                        boolean videoCodecHwAcceleration, boolean videoFlexfecEnabled, int audioStartBitrate,
+                                        String audioCodec, boolean noAudioProcessing, boolean aecDump, boolean useOpenSLES,
+                                        boolean disableBuiltInAEC, boolean disableBuiltInAGC, boolean disableBuiltInNS,
+                                        boolean enableLevelControl, List<DataChannelParameters> dataChannelParameters,
+                                        int videoStartBitrate, boolean lowLatency) {
             this.videoCallEnabled = videoCallEnabled;
             this.loopback = loopback;
             this.tracing = tracing;
@@ -241,9 +372,19 @@ public class PeerConnectionClient {
             this.disableBuiltInNS = disableBuiltInNS;
             this.enableLevelControl = enableLevelControl;
             this.dataChannelParameters = dataChannelParameters;
+            this.videoStartBitrate = videoStartBitrate;
+            this.lowLatency = lowLatency;
         }
     }
 
+    /**
+     * Receives messages of one data channel. Invoked on the WebRTC signaling thread, so
+     * implementations should return quickly.
+     */
+    public interface DataChannelHandler {
+        void onMessage(DataChannel channel, DataChannel.Buffer buffer);
+    }
+
     /**
      * Peer connection events.
      */
@@ -281,9 +422,10 @@ public class PeerConnectionClient {
         void onPeerConnectionClosed();
 
         /**
-         * Callback fired once peer connection statistics is ready.
+         * Callback fired once peer connection statistics is ready. |snapshot| is reused for
+         * the next statistics.
          */
-        void onPeerConnectionStatsReady(final StatsReport[] reports);
+        void onPeerConnectionStatsReady(final StatsSnapshot snapshot);
 
         /**
          * Callback fired once peer connection error happened.
@@ -302,36 +444,99 @@ public class PeerConnectionClient {
         return instance;
     }
 
+    /**
+     * Returns the EGL context calls should render with, creating it if needed. With one context
+     * for all calls, the capturer and video source of a call are reused by the next one. Must
+     * not be released by callers; {@link #shutdown()} releases it with the factory.
+     */
+    public static synchronized EglBase getSharedEglBase() {
+        if (sharedEglBase == null) {
+            sharedEglBase = EglBase.create();
+        }
+        return sharedEglBase;
+    }
+
+    // Hands the shared EGL context over to the caller; the next call gets a new one.
+    private static synchronized EglBase detachSharedEglBase() {
+        EglBase eglBase = sharedEglBase;
+        sharedEglBase = null;
+        return eglBase;
+    }
+
     public void setPeerConnectionFactoryOptions(PeerConnectionFactory.Options options) {
         this.options = options;
     }
 
+    /**
+     * Starts a call. The factory left by an earlier call is reused if it was created with
+     * compatible parameters; otherwise it is (re)created. Every call must end with
+     * {@link #close()}.
+     */
     public void createPeerConnectionFactory(final Context context,
                                             final PeerConnectionParameters peerConnectionParameters, final PeerConnectionEvents events) {
         this.peerConnectionParameters = peerConnectionParameters;
         this.events = events;
         videoCallEnabled = peerConnectionParameters.videoCallEnabled;
-        dataChannelEnabled = peerConnectionParameters.dataChannelParameters != null;
-        // Reset variables to initial states.
-        this.context = null;
-        factory = null;
-        peerConnection = null;
-        preferIsac = false;
-        videoCapturerStopped = false;
-        isError = false;
-        queuedRemoteCandidates = null;
-        localSdp = null; // either offer or answer SDP
-        mediaStream = null;
-        videoCapturer = null;
-        renderVideo = true;
-        localVideoTrack = null;
-        remoteVideoTrack = null;
-        localVideoSender = null;
-        enableAudio = true;
-        localAudioTrack = null;
-        statsTimer = new Timer();
+        dataChannelEnabled = !peerConnectionParameters.dataChannelParameters.isEmpty();
+
+        final long startMs = SystemClock.elapsedRealtime();
+        executor.execute(() -> {
+            startupStartMs = startMs;
+            Arrays.fill(stageDoneMs, 0);
+            // The benchmark would compete with the call for the encoders and skew its results.
+            CodecBenchmark.cancel();
+            acquireFactoryInternal(context.getApplicationContext(), peerConnectionParameters);
+        });
+    }
+
+    /**
+     * Releases the factory, the media sources kept between calls and the shared EGL context.
+     * Takes effect when the last call is closed, or immediately if there is none.
+     */
+    public void shutdown() {
+        // Detached right away, so calls started meanwhile don't render with a context that is
+        // about to be released.
+        final EglBase eglBase = detachSharedEglBase();
+        executor.execute(() -> {
+            if (eglBase != null) {
+                eglBasesToRelease.add(eglBase);
+            }
+            shutdownRequested = true;
+            if (factoryRefCount == 0) {
+                shutdownInternal();
+            }
+        });
+    }
 
-        executor.execute(() -> createPeerConnectionFactoryInternal(context));
+    /**
+     * Starts the stages of the call that don't need the room response: opens the camera,
+     * creates the local audio and video tracks and a peer connection that gathers a pool of
+     * ICE candidates. Call right after {@link #createPeerConnectionFactory} so they run while
+     * the room join is in flight; {@link #createPeerConnection} then only applies the room's
+     * ICE servers and adds the streams and data channels.
+     *
+     * @param iceServers ICE servers known before the join, e.g. from {@link IceServerCache};
+     *                   may be empty, host candidates are pooled regardless.
+     */
+    public void prewarm(final EglBase.Context renderEGLContext,
+                        final VideoRenderer.Callbacks localRender, final VideoCapturer videoCapturer,
+                        final List<PeerConnection.IceServer> iceServers) {
+        if (peerConnectionParameters == null) {
+            Log.e(TAG, "Pre-warming peer connection without initializing factory.");
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                setVideoCapturerInternal(videoCapturer);
+                setLocalRenderInternal(localRender);
+                createMediaConstraintsInternal();
+                createLocalMediaInternal(renderEGLContext);
+                createIceCandidatePoolInternal(iceServers);
+            } catch (Exception e) {
+                reportError("Failed to pre-warm peer connection: " + e.getMessage());
+                throw e;
+            }
+        });
     }
 
     public void createPeerConnection(final EglBase.Context renderEGLContext,
@@ -341,14 +546,18 @@ public class PeerConnectionClient {
             Log.e(TAG, "Creating peer connection without initializing factory.");
             return;
         }
-        this.localRender = localRender;
-        this.remoteRenders = remoteRenders;
-        this.videoCapturer = videoCapturer;
         this.signalingParameters = signalingParameters;
+        final long signalingDoneMs = SystemClock.elapsedRealtime();
         executor.execute(() -> {
             try {
-                createMediaConstraintsInternal();
-                createPeerConnectionInternal(renderEGLContext);
+                markStage(StartupStage.SIGNALING, signalingDoneMs);
+                setVideoCapturerInternal(videoCapturer);
+                setLocalRenderInternal(localRender);
+                // Already done if the connection was pre-warmed.
+                if (pcConstraints == null) {
+                    createMediaConstraintsInternal();
+                }
+                createPeerConnectionInternal(renderEGLContext, remoteRenders);
             } catch (Exception e) {
                 reportError("Failed to create peer connection: " + e.getMessage());
                 throw e;
@@ -360,10 +569,129 @@ public class PeerConnectionClient {
         executor.execute(() -> closeInternal());
     }
 
+    /**
+     * Makes the decoder deliver remote frames in memory rather than as textures, so remote
+     * renderers can read their pixels. Applies to the call started next, after
+     * {@link #createPeerConnectionFactory}.
+     */
+    public void setDecodeToTextures(final boolean enable) {
+        executor.execute(() -> decodeToTextures = enable);
+    }
+
     public boolean isVideoCallEnabled() {
         return videoCallEnabled;
     }
 
+    private void acquireFactoryInternal(Context context, PeerConnectionParameters parameters) {
+        // Reset per-call state to initial values.
+        isError = false;
+        renderVideo = true;
+        enableAudio = true;
+        pcConstraints = null;
+        shutdownRequested = false;
+        decodeToTextures = true;
+        factoryRefCount++;
+
+        if (factory != null && !canShareFactory(factoryParameters, parameters)) {
+            if (factoryRefCount > 1) {
+                reportError("Peer connection factory is in use with other parameters.");
+                return;
+            }
+            Log.d(TAG, "Peer connection parameters changed, recreating the factory.");
+            disposeFactoryInternal();
+        }
+        setCodecPreferencesInternal(context);
+        if (factory == null) {
+            createPeerConnectionFactoryInternal(context);
+            factoryParameters = parameters;
+        } else {
+            Log.d(TAG, "Reusing peer connection factory.");
+            markStage(StartupStage.FACTORY);
+        }
+    }
+
+    // Whether a factory and media sources created with |a| can serve a call with |b|.
+    private static boolean canShareFactory(PeerConnectionParameters a, PeerConnectionParameters b) {
+        return a.videoCallEnabled == b.videoCallEnabled
+                && a.tracing == b.tracing
+                && a.videoWidth == b.videoWidth
+                && a.videoHeight == b.videoHeight
+                && a.videoFps == b.videoFps
+                && a.videoCodecHwAcceleration == b.videoCodecHwAcceleration
+                && a.videoFlexfecEnabled == b.videoFlexfecEnabled
+                && a.noAudioProcessing == b.noAudioProcessing
+                && a.useOpenSLES == b.useOpenSLES
+                && a.disableBuiltInAEC == b.disableBuiltInAEC
+                && a.disableBuiltInAGC == b.disableBuiltInAGC
+                && a.disableBuiltInNS == b.disableBuiltInNS
+                && a.enableLevelControl == b.enableLevelControl;
+    }
+
+    // The capturer of an earlier call keeps serving later ones that render with the same EGL
+    // context; otherwise the capturer passed for the later call takes over.
+    private void setVideoCapturerInternal(VideoCapturer capturer) {
+        if (capturer == null || capturer == videoCapturer || capturer == nextVideoCapturer) {
+            return;
+        }
+        if (videoCapturer == null) {
+            videoCapturer = capturer;
+            return;
+        }
+        if (nextVideoCapturer != null) {
+            nextVideoCapturer.dispose();
+        }
+        nextVideoCapturer = capturer;
+    }
+
+    // Replaces the capturer and video source of an earlier call by |nextVideoCapturer|. The
+    // source's SurfaceTextureHelper belongs to the EGL context of that call, which may be
+    // released. Not needed while calls use getSharedEglBase().
+    private void replaceLocalVideoInternal() {
+        Log.d(TAG, "EGL context changed, recreating the video source.");
+        if (localVideoTrack != null) {
+            mediaStream.removeTrack(localVideoTrack);
+            // Also disposes its renderer.
+            localVideoTrack.dispose();
+            localVideoTrack = null;
+            localVideoRenderer = null;
+        }
+        // Without a source the capturer was never started.
+        if (videoSource != null && !videoCapturerStopped) {
+            try {
+                videoCapturer.stopCapture();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        videoCapturer.dispose();
+        videoCapturer = nextVideoCapturer;
+        nextVideoCapturer = null;
+        videoCapturerStopped = false;
+        if (videoSource != null) {
+            videoSource.dispose();
+            videoSource = null;
+        }
+    }
+
+    // Moves the local video track to |render|, the preview of the current call.
+    private void setLocalRenderInternal(VideoRenderer.Callbacks render) {
+        if (render == localRender) {
+            return;
+        }
+        localRender = render;
+        if (localVideoTrack == null) {
+            return;
+        }
+        if (localVideoRenderer != null) {
+            localVideoTrack.removeRenderer(localVideoRenderer);
+            localVideoRenderer = null;
+        }
+        if (localRender != null) {
+            localVideoRenderer = new VideoRenderer(localRender);
+            localVideoTrack.addRenderer(localVideoRenderer);
+        }
+    }
+
     private void createPeerConnectionFactoryInternal(Context context) {
         PeerConnectionFactory.initializeInternalTracer();
         if (peerConnectionParameters.tracing) {
@@ -373,7 +701,6 @@ public class PeerConnectionClient {
         }
         Log.d(TAG,
                 "Create peer connection factory. Use video: " + peerConnectionParameters.videoCallEnabled);
-        isError = false;
 
         // Initialize field trials.
         if (peerConnectionParameters.videoFlexfecEnabled) {
@@ -383,21 +710,6 @@ public class PeerConnectionClient {
             PeerConnectionFactory.initializeFieldTrials("");
         }
 
-        // Check preferred video codec.
-        preferredVideoCodec = VIDEO_CODEC_VP8;
-        if (videoCallEnabled && peerConnectionParameters.videoCodec != null) {
-            if (peerConnectionParameters.videoCodec.equals(VIDEO_CODEC_VP9)) {
-                preferredVideoCodec = VIDEO_CODEC_VP9;
-            } else if (peerConnectionParameters.videoCodec.equals(VIDEO_CODEC_H264)) {
-                preferredVideoCodec = VIDEO_CODEC_H264;
-            }
-        }
-        Log.d(TAG, "Preferred video codec: " + preferredVideoCodec);
-
-        // Check if ISAC is used by default.
-        preferIsac = peerConnectionParameters.audioCodec != null
-                && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
-
         // Enable/disable OpenSL ES playback.
         if (!peerConnectionParameters.useOpenSLES) {
             Log.d(TAG, "Disable OpenSL ES audio even if device supports it");
@@ -442,6 +754,48 @@ public class PeerConnectionClient {
         this.context = context;
         factory = new PeerConnectionFactory(options);
         Log.d(TAG, "Peer connection factory created.");
+        markStage(StartupStage.FACTORY);
+    }
+
+    private void setCodecPreferencesInternal(Context context) {
+        // Check preferred video codec.
+        preferredVideoCodec = VIDEO_CODEC_VP8;
+        if (videoCallEnabled && peerConnectionParameters.videoCodec != null) {
+            if (peerConnectionParameters.videoCodec.equals(VIDEO_CODEC_VP9)) {
+                preferredVideoCodec = VIDEO_CODEC_VP9;
+            } else if (peerConnectionParameters.videoCodec.equals(VIDEO_CODEC_H264)) {
+                preferredVideoCodec = VIDEO_CODEC_H264;
+            } else if (peerConnectionParameters.videoCodec.equals(VIDEO_CODEC_AUTO)) {
+                String measuredCodec = chooseMeasuredCodec(context);
+                if (measuredCodec != null) {
+                    preferredVideoCodec = measuredCodec;
+                }
+            }
+        }
+        Log.d(TAG, "Preferred video codec: " + preferredVideoCodec);
+
+        // Check if ISAC is used by default.
+        preferIsac = peerConnectionParameters.audioCodec != null
+                && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
+    }
+
+    // Returns the codec CodecBenchmark measured fastest for this call's video, or null if
+    // the benchmark has not completed on this device yet.
+    private String chooseMeasuredCodec(Context context) {
+        List<CodecBenchmarkResult> results = CodecBenchmark.getCachedResults(context);
+        if (results == null) {
+            Log.d(TAG, "No codec benchmark results yet.");
+            return null;
+        }
+        int width = peerConnectionParameters.videoWidth;
+        int height = peerConnectionParameters.videoHeight;
+        if (width == 0 || height == 0) {
+            width = HD_VIDEO_WIDTH;
+            height = HD_VIDEO_HEIGHT;
+        }
+        int fps = peerConnectionParameters.videoFps == 0 ? 30 : peerConnectionParameters.videoFps;
+        return CodecBenchmarkResult.chooseCodec(results, width, height, fps,
+                peerConnectionParameters.videoCodecHwAcceleration);
     }
 
     private void createMediaConstraintsInternal() {
@@ -512,23 +866,80 @@ public class PeerConnectionClient {
         }
     }
 
-    private void createPeerConnectionInternal(EglBase.Context renderEGLContext) {
+    // Starts the capturer and creates the local media stream, or resumes the stream kept from
+    // an earlier call. The video source is only kept while calls render with the same EGL
+    // context. Does nothing if prewarm() already did.
+    private void createLocalMediaInternal(EglBase.Context renderEGLContext) {
         if (factory == null || isError) {
-            Log.e(TAG, "Peerconnection factory is not created");
             return;
         }
-        Log.d(TAG, "Create peer connection.");
+        EglBase.Context remoteEglContext = decodeToTextures ? renderEGLContext : null;
+        if (videoCallEnabled && (renderEGLContext != hwAccelerationEglContext
+                || remoteEglContext != hwAccelerationRemoteEglContext)) {
+            if (renderEGLContext != hwAccelerationEglContext && nextVideoCapturer != null) {
+                if (factoryRefCount == 1) {
+                    replaceLocalVideoInternal();
+                } else {
+                    Log.w(TAG, "Keeping the video source of the call in progress.");
+                }
+            }
+            // Normally the shared EGL context, so this only runs for the first call. Set before
+            // the video source is created, which takes the context from the factory.
+            Log.d(TAG, "EGLContext: " + renderEGLContext + ", decode to textures: " + decodeToTextures);
+            factory.setVideoHwAccelerationOptions(renderEGLContext, remoteEglContext);
+            hwAccelerationEglContext = renderEGLContext;
+            hwAccelerationRemoteEglContext = remoteEglContext;
+        }
+        if (nextVideoCapturer != null) {
+            Log.d(TAG, "Reusing the video capturer of the previous call.");
+            nextVideoCapturer.dispose();
+            nextVideoCapturer = null;
+        }
+        if (mediaStream != null) {
+            if (videoCallEnabled && localVideoTrack == null && videoCapturer != null) {
+                mediaStream.addTrack(createVideoTrack(videoCapturer));
+                videoCapturerStopped = false;
+            } else if (videoCapturer != null && videoCapturerStopped) {
+                Log.d(TAG, "Resume video source of the previous call.");
+                videoCapturer.startCapture(videoWidth, videoHeight, videoFps);
+                videoCapturerStopped = false;
+            }
+            if (localVideoTrack != null) {
+                localVideoTrack.setEnabled(renderVideo);
+            }
+            localAudioTrack.setEnabled(enableAudio);
+            markStage(StartupStage.LOCAL_MEDIA);
+            return;
+        }
 
-        Log.d(TAG, "PCConstraints: " + pcConstraints.toString());
-        queuedRemoteCandidates = new LinkedList<>();
+        // Set default WebRTC tracing and INFO libjingle logging.
+        // NOTE: this _must_ happen while |factory| is alive!
+        Logging.enableTracing("logcat:", EnumSet.of(Logging.TraceLevel.TRACE_DEFAULT));
+        Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO);
 
+        mediaStream = factory.createLocalMediaStream("ARDAMS");
         if (videoCallEnabled) {
-            Log.d(TAG, "EGLContext: " + renderEGLContext);
-            factory.setVideoHwAccelerationOptions(renderEGLContext, renderEGLContext);
+            mediaStream.addTrack(createVideoTrack(videoCapturer));
         }
+        mediaStream.addTrack(createAudioTrack());
+        markStage(StartupStage.LOCAL_MEDIA);
+    }
 
-        PeerConnection.RTCConfiguration rtcConfig =
-                new PeerConnection.RTCConfiguration(signalingParameters.iceServers);
+    // Creates the peer connection ahead of the room response so it gathers a pool of ICE
+    // candidates; they are used as soon as the local description is set.
+    private void createIceCandidatePoolInternal(List<PeerConnection.IceServer> iceServers) {
+        if (factory == null || isError || primarySession != null) {
+            return;
+        }
+        Log.d(TAG, "Create peer connection with " + ICE_CANDIDATE_POOL_SIZE
+                + " pooled ICE candidates, " + iceServers.size() + " ICE servers.");
+        primarySession = createSessionInternal(events, createRtcConfiguration(iceServers));
+        markStage(StartupStage.ICE_POOL);
+    }
+
+    private PeerConnection.RTCConfiguration createRtcConfiguration(
+            List<PeerConnection.IceServer> iceServers) {
+        PeerConnection.RTCConfiguration rtcConfig = new PeerConnection.RTCConfiguration(iceServers);
         // TCP candidates are only useful when connecting to a server that supports
         // ICE-TCP.
         rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
@@ -537,41 +948,41 @@ public class PeerConnectionClient {
         rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
         // Use ECDSA encryption.
         rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
+        rtcConfig.iceCandidatePoolSize = ICE_CANDIDATE_POOL_SIZE;
+        if (peerConnectionParameters.lowLatency) {
+            // Video waits for audio to stay in sync, so a short audio jitter buffer shortens both.
+            rtcConfig.audioJitterBufferMaxPackets = TELEOP_AUDIO_JITTER_BUFFER_MAX_PACKETS;
+            rtcConfig.audioJitterBufferFastAccelerate = true;
+        }
+        return rtcConfig;
+    }
 
-        peerConnection = factory.createPeerConnection(rtcConfig, pcConstraints, pcObserver);
-
-        if (dataChannelEnabled) {
-            DataChannel.Init init = new DataChannel.Init();
-//            init.ordered = peerConnectionParameters.dataChannelParameters.ordered;
-//            init.negotiated = peerConnectionParameters.dataChannelParameters.negotiated;
-//            init.maxRetransmits = peerConnectionParameters.dataChannelParameters.maxRetransmits;
-//            init.maxRetransmitTimeMs = peerConnectionParameters.dataChannelParameters.maxRetransmitTimeMs;
-//            init.id = peerConnectionParameters.dataChannelParameters.id;
-//            init.protocol = peerConnectionParameters.dataChannelParameters.protocol;
-            dataChannel = peerConnection.createDataChannel("ApprtcDemo data", init);
-            Log.wtf(TAG, "----------create data channel ----------");
-            if(dataChannel==null){
-                Log.wtf(TAG, "----------Null----------");
-            }
-            Log.wtf(TAG, dataChannel.state().toString());
-
+    private void createPeerConnectionInternal(EglBase.Context renderEGLContext,
+                                              List<VideoRenderer.Callbacks> remoteRenders) {
+        if (factory == null || isError) {
+            Log.e(TAG, "Peerconnection factory is not created");
+            return;
         }
-        isInitiator = false;
+        Log.d(TAG, "Create peer connection.");
 
-        // Set default WebRTC tracing and INFO libjingle logging.
-        // NOTE: this _must_ happen while |factory| is alive!
-        Logging.enableTracing("logcat:", EnumSet.of(Logging.TraceLevel.TRACE_DEFAULT));
-        Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO);
+        Log.d(TAG, "PCConstraints: " + pcConstraints.toString());
 
-        mediaStream = factory.createLocalMediaStream("ARDAMS");
-        if (videoCallEnabled) {
-            mediaStream.addTrack(createVideoTrack(videoCapturer));
-        }
+        createLocalMediaInternal(renderEGLContext);
 
-        mediaStream.addTrack(createAudioTrack());
-        peerConnection.addStream(mediaStream);
-        if (videoCallEnabled) {
-            findVideoSender();
+        PeerConnection.RTCConfiguration rtcConfig =
+                createRtcConfiguration(signalingParameters.iceServers);
+        if (primarySession == null) {
+            primarySession = createSessionInternal(events, rtcConfig);
+            if (primarySession == null) {
+                return;
+            }
+            // Already has the room's ICE servers.
+            rtcConfig = null;
+        }
+        primarySession.attach(rtcConfig, mediaStream, createMediaSettings(), remoteRenders);
+        primarySession.setBitrateBudget(VIEWER_MAX_BITRATE_KBPS);
+        if (videoCallEnabled && BANDWIDTH_ADAPTATION_ENABLED) {
+            startBandwidthAdaptationInternal(primarySession);
         }
 
         if (peerConnectionParameters.aecDump) {
@@ -588,6 +999,82 @@ public class PeerConnectionClient {
         }
 
         Log.d(TAG, "Peer connection created.");
+        markStage(StartupStage.PEER_CONNECTION);
+    }
+
+    // Creates a session and its peer connection, or returns null if it can't be created.
+    private PeerSession createSessionInternal(PeerConnectionEvents sessionEvents,
+                                              PeerConnection.RTCConfiguration rtcConfig) {
+        PeerSession session =
+                new PeerSession(this, nextSessionId++, scheduler.acquire(), sessionEvents);
+        PeerConnection peerConnection =
+                factory.createPeerConnection(rtcConfig, pcConstraints, session.getObserver());
+        if (peerConnection == null) {
+            scheduler.release(session.getExecutor());
+            sessionEvents.onPeerConnectionError("Failed to create peer connection.");
+            return null;
+        }
+        session.setPeerConnection(peerConnection);
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    private PeerSession.MediaSettings createMediaSettings() {
+        return new PeerSession.MediaSettings(sdpMediaConstraints,
+                dataChannelEnabled
+                        ? peerConnectionParameters.dataChannelParameters
+                        : Collections.<DataChannelParameters>emptyList(),
+                videoCallEnabled ? preferredVideoCodec : null, preferIsac,
+                peerConnectionParameters.audioStartBitrate, peerConnectionParameters.videoStartBitrate,
+                peerConnectionParameters.lowLatency);
+    }
+
+    // Drives the video max bitrate of |session| and the capture format from its stats.
+    private void startBandwidthAdaptationInternal(final PeerSession session) {
+        if (videoSource != null) {
+            // The source may still be adapted down by the previous call.
+            videoSource.adaptOutputFormat(videoWidth, videoHeight, videoFps);
+        }
+        int maxBitrateKbps = peerConnectionParameters.videoMaxBitrate > 0
+                ? peerConnectionParameters.videoMaxBitrate : VIEWER_MAX_BITRATE_KBPS;
+        int framerateThreshold = peerConnectionParameters.lowLatency
+                ? TELEOP_FRAMERATE_THRESHOLD : CaptureFormatChooser.FRAMERATE_THRESHOLD;
+        session.getStatsEngine().addListener(new BandwidthAdapter(videoWidth, videoHeight, videoFps,
+                ADAPT_MIN_BITRATE_KBPS, maxBitrateKbps, framerateThreshold, new BandwidthAdapter.Callback() {
+            @Override
+            public void onVideoMaxBitrate(int maxBitrateKbps) {
+                Log.d(TAG, "Adapting video max bitrate to " + maxBitrateKbps + " kbps");
+                session.setVideoMaxBitrate(maxBitrateKbps);
+            }
+
+            @Override
+            public void onCaptureFormat(final int width, final int height, final int framerate) {
+                executor.execute(() -> changeCaptureFormatInternal(width, height, framerate));
+            }
+        }));
+    }
+
+    // Called by a session once it is closed.
+    void onSessionClosed(final PeerSession session) {
+        executor.execute(() -> {
+            if (sessions.remove(session.getId()) == null) {
+                // Already removed by closeInternal().
+                return;
+            }
+            scheduler.release(session.getExecutor());
+            if (session == primarySession) {
+                primarySession = null;
+            }
+        });
+    }
+
+    // Called by a session when it reaches |stage|; only the primary session is timed.
+    void onSessionStage(final PeerSession session, final StartupStage stage) {
+        executor.execute(() -> {
+            if (session == primarySession) {
+                markStage(stage);
+            }
+        });
     }
 
     private void closeInternal() {
@@ -595,15 +1082,64 @@ public class PeerConnectionClient {
             factory.stopAecDump();
         }
         Log.d(TAG, "Closing peer connection.");
-        statsTimer.cancel();
-        if (dataChannel != null) {
-            dataChannel.dispose();
-            dataChannel = null;
+        boolean primaryClosed = primarySession != null;
+        // Peer connections must be disposed before the factory.
+        for (PeerSession session : sessions.values()) {
+            session.closeAndWait();
+            scheduler.release(session.getExecutor());
+        }
+        sessions.clear();
+        primarySession = null;
+        releaseFactoryInternal();
+        Log.d(TAG, "Closing peer connection done.");
+        if (!primaryClosed) {
+            // The primary session reports its own close.
+            events.onPeerConnectionClosed();
+        }
+    }
+
+    // Drops the reference of a closed call. The camera is stopped while no call is active.
+    private void releaseFactoryInternal() {
+        if (factoryRefCount == 0 || --factoryRefCount > 0) {
+            return;
+        }
+        if (shutdownRequested) {
+            shutdownInternal();
+            return;
+        }
+        if (videoCapturer != null && !videoCapturerStopped) {
+            Log.d(TAG, "Pausing capture until the next call.");
+            try {
+                videoCapturer.stopCapture();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            videoCapturerStopped = true;
+        }
+        // The preview belongs to the finished call.
+        setLocalRenderInternal(null);
+    }
+
+    private void shutdownInternal() {
+        disposeFactoryInternal();
+        // The video source, which rendered with them, is gone.
+        for (EglBase eglBase : eglBasesToRelease) {
+            eglBase.release();
         }
-        if (peerConnection != null) {
-            peerConnection.dispose();
-            peerConnection = null;
+        eglBasesToRelease.clear();
+    }
+
+    private void disposeFactoryInternal() {
+        shutdownRequested = false;
+        if (mediaStream != null) {
+            // Also disposes the local tracks and their renderers.
+            mediaStream.dispose();
+            mediaStream = null;
         }
+        localVideoTrack = null;
+        localAudioTrack = null;
+        localVideoRenderer = null;
+        localRender = null;
         Log.d(TAG, "Closing audio source.");
         if (audioSource != null) {
             audioSource.dispose();
@@ -611,15 +1147,21 @@ public class PeerConnectionClient {
         }
         Log.d(TAG, "Stopping capture.");
         if (videoCapturer != null) {
-            try {
-                videoCapturer.stopCapture();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+            if (!videoCapturerStopped) {
+                try {
+                    videoCapturer.stopCapture();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
             }
-            videoCapturerStopped = true;
             videoCapturer.dispose();
             videoCapturer = null;
         }
+        if (nextVideoCapturer != null) {
+            nextVideoCapturer.dispose();
+            nextVideoCapturer = null;
+        }
+        videoCapturerStopped = false;
         Log.d(TAG, "Closing video source.");
         if (videoSource != null) {
             videoSource.dispose();
@@ -629,12 +1171,39 @@ public class PeerConnectionClient {
         if (factory != null) {
             factory.dispose();
             factory = null;
+            PeerConnectionFactory.stopInternalTracingCapture();
+            PeerConnectionFactory.shutdownInternalTracer();
         }
+        factoryParameters = null;
+        hwAccelerationEglContext = null;
+        hwAccelerationRemoteEglContext = null;
+        context = null;
         options = null;
-        Log.d(TAG, "Closing peer connection done.");
-        events.onPeerConnectionClosed();
-        PeerConnectionFactory.stopInternalTracingCapture();
-        PeerConnectionFactory.shutdownInternalTracer();
+        Log.d(TAG, "Peer connection factory shut down.");
+    }
+
+    private void markStage(StartupStage stage) {
+        markStage(stage, SystemClock.elapsedRealtime());
+    }
+
+    // Records when |stage| completed and logs the whole startup timeline once the first remote
+    // frame is rendered. Runs on |executor|.
+    private void markStage(StartupStage stage, long doneMs) {
+        if (stageDoneMs[stage.ordinal()] != 0) {
+            return;
+        }
+        long elapsedMs = Math.max(1, doneMs - startupStartMs);
+        stageDoneMs[stage.ordinal()] = elapsedMs;
+        Log.d(TAG, "Startup stage " + stage + " done at +" + elapsedMs + " ms");
+        if (stage == StartupStage.FIRST_REMOTE_FRAME) {
+            StringBuilder timeline = new StringBuilder("Startup timeline:");
+            for (StartupStage s : StartupStage.values()) {
+                long ms = stageDoneMs[s.ordinal()];
+                timeline.append(' ').append(s.name().toLowerCase(Locale.US)).append('=')
+                        .append(ms == 0 ? "-" : "+" + ms + "ms");
+            }
+            Log.i(TAG, timeline.toString());
+        }
     }
 
     public boolean isHDVideo() {
@@ -645,36 +1214,12 @@ public class PeerConnectionClient {
         return videoWidth * videoHeight >= 1920 * 1080;
     }
 
-    private void getStats() {
-        if (peerConnection == null || isError) {
-            return;
-        }
-        boolean success = peerConnection.getStats(reports -> events.onPeerConnectionStatsReady(reports), null);
-        if (!success) {
-            Log.e(TAG, "getStats() returns false!");
-        }
-    }
-
-    public void enableStatsEvents(boolean enable, int periodMs) {
-        if (enable) {
-            try {
-                statsTimer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        executor.execute(new Runnable() {
-                            @Override
-                            public void run() {
-                                getStats();
-                            }
-                        });
-                    }
-                }, 0, periodMs);
-            } catch (Exception e) {
-                Log.e(TAG, "Can not schedule statistics timer", e);
+    public void enableStatsEvents(final boolean enable, final int periodMs) {
+        executor.execute(() -> {
+            if (primarySession != null) {
+                primarySession.enableStatsEvents(enable, periodMs);
             }
-        } else {
-            statsTimer.cancel();
-        }
+        });
     }
 
     public void setAudioEnabled(final boolean enable) {
@@ -687,97 +1232,53 @@ public class PeerConnectionClient {
     }
 
     public void setVideoEnabled(final boolean enable) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                renderVideo = enable;
-                if (localVideoTrack != null) {
-                    localVideoTrack.setEnabled(renderVideo);
-                }
-                if (remoteVideoTrack != null) {
-                    remoteVideoTrack.setEnabled(renderVideo);
-                }
+        executor.execute(() -> {
+            renderVideo = enable;
+            if (localVideoTrack != null) {
+                localVideoTrack.setEnabled(renderVideo);
+            }
+            for (PeerSession session : sessions.values()) {
+                session.setRemoteVideoEnabled(renderVideo);
             }
         });
     }
 
     public void createOffer() {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                if (peerConnection != null && !isError) {
-                    Log.d(TAG, "PC Create OFFER");
-                    isInitiator = true;
-                    peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
-                }
+        executor.execute(() -> {
+            if (primarySession != null) {
+                primarySession.createOffer();
             }
         });
     }
 
     public void createAnswer() {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                if (peerConnection != null && !isError) {
-                    Log.d(TAG, "PC create ANSWER");
-                    isInitiator = false;
-                    peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
-                }
+        executor.execute(() -> {
+            if (primarySession != null) {
+                primarySession.createAnswer();
             }
         });
     }
 
     public void addRemoteIceCandidate(final IceCandidate candidate) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                if (peerConnection != null && !isError) {
-                    if (queuedRemoteCandidates != null) {
-                        queuedRemoteCandidates.add(candidate);
-                    } else {
-                        peerConnection.addIceCandidate(candidate);
-                    }
-                }
+        executor.execute(() -> {
+            if (primarySession != null) {
+                primarySession.addRemoteIceCandidate(candidate);
             }
         });
     }
 
     public void removeRemoteIceCandidates(final IceCandidate[] candidates) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                if (peerConnection == null || isError) {
-                    return;
-                }
-                // Drain the queued remote candidates if there is any so that
-                // they are processed in the proper order.
-                drainCandidates();
-                peerConnection.removeIceCandidates(candidates);
+        executor.execute(() -> {
+            if (primarySession != null) {
+                primarySession.removeRemoteIceCandidates(candidates);
             }
         });
     }
 
     public void setRemoteDescription(final SessionDescription sdp) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                if (peerConnection == null || isError) {
-                    return;
-                }
-                String sdpDescription = sdp.description;
-                if (preferIsac) {
-                    sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-                }
-                if (videoCallEnabled) {
-                    sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
-                }
-                if (peerConnectionParameters.audioStartBitrate > 0) {
-                    sdpDescription = setStartBitrate(
-                            AUDIO_CODEC_OPUS, false, sdpDescription, peerConnectionParameters.audioStartBitrate);
-                }
-                Log.d(TAG, "Set remote SDP.");
-                SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDescription);
-                peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
+        executor.execute(() -> {
+            if (primarySession != null) {
+                primarySession.setRemoteDescription(sdp);
             }
         });
     }
@@ -806,32 +1307,9 @@ public class PeerConnectionClient {
     }
 
     public void setVideoMaxBitrate(final Integer maxBitrateKbps) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                if (peerConnection == null || localVideoSender == null || isError) {
-                    return;
-                }
-                Log.d(TAG, "Requested max video bitrate: " + maxBitrateKbps);
-                if (localVideoSender == null) {
-                    Log.w(TAG, "Sender is not ready.");
-                    return;
-                }
-
-                RtpParameters parameters = localVideoSender.getParameters();
-                if (parameters.encodings.size() == 0) {
-                    Log.w(TAG, "RtpParameters are not ready.");
-                    return;
-                }
-
-                for (RtpParameters.Encoding encoding : parameters.encodings) {
-                    // Null value means no limit.
-                    encoding.maxBitrateBps = maxBitrateKbps == null ? null : maxBitrateKbps * BPS_IN_KBPS;
-                }
-                if (!localVideoSender.setParameters(parameters)) {
-                    Log.e(TAG, "RtpSender.setParameters failed.");
-                }
-                Log.d(TAG, "Configured max video bitrate to: " + maxBitrateKbps);
+        executor.execute(() -> {
+            if (primarySession != null) {
+                primarySession.setVideoMaxBitrate(maxBitrateKbps);
             }
         });
     }
@@ -859,149 +1337,11 @@ public class PeerConnectionClient {
 
         localVideoTrack = factory.createVideoTrack(VIDEO_TRACK_ID, videoSource);
         localVideoTrack.setEnabled(renderVideo);
-        localVideoTrack.addRenderer(new VideoRenderer(localRender));
-        return localVideoTrack;
-    }
-
-    private void findVideoSender() {
-        for (RtpSender sender : peerConnection.getSenders()) {
-            if (sender.track() != null) {
-                String trackType = sender.track().kind();
-                if (trackType.equals(VIDEO_TRACK_TYPE)) {
-                    Log.d(TAG, "Found video sender.");
-                    localVideoSender = sender;
-                }
-            }
-        }
-    }
-
-    private static String setStartBitrate(
-            String codec, boolean isVideoCodec, String sdpDescription, int bitrateKbps) {
-        String[] lines = sdpDescription.split("\r\n");
-        int rtpmapLineIndex = -1;
-        boolean sdpFormatUpdated = false;
-        String codecRtpMap = null;
-        // Search for codec rtpmap in format
-        // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-        String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-        Pattern codecPattern = Pattern.compile(regex);
-        for (int i = 0; i < lines.length; i++) {
-            Matcher codecMatcher = codecPattern.matcher(lines[i]);
-            if (codecMatcher.matches()) {
-                codecRtpMap = codecMatcher.group(1);
-                rtpmapLineIndex = i;
-                break;
-            }
-        }
-        if (codecRtpMap == null) {
-            Log.w(TAG, "No rtpmap for " + codec + " codec");
-            return sdpDescription;
-        }
-        Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + " at " + lines[rtpmapLineIndex]);
-
-        // Check if a=fmtp string already exist in remote SDP for this codec and
-        // update it with new bitrate parameter.
-        regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-        codecPattern = Pattern.compile(regex);
-        for (int i = 0; i < lines.length; i++) {
-            Matcher codecMatcher = codecPattern.matcher(lines[i]);
-            if (codecMatcher.matches()) {
-                Log.d(TAG, "Found " + codec + " " + lines[i]);
-                if (isVideoCodec) {
-                    lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-                } else {
-                    lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
-                }
-                Log.d(TAG, "Update remote SDP line: " + lines[i]);
-                sdpFormatUpdated = true;
-                break;
-            }
-        }
-
-        StringBuilder newSdpDescription = new StringBuilder();
-        for (int i = 0; i < lines.length; i++) {
-            newSdpDescription.append(lines[i]).append("\r\n");
-            // Append new a=fmtp line if no such line exist for a codec.
-            if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-                String bitrateSet;
-                if (isVideoCodec) {
-                    bitrateSet =
-                            "a=fmtp:" + codecRtpMap + " " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-                } else {
-                    bitrateSet = "a=fmtp:" + codecRtpMap + " " + AUDIO_CODEC_PARAM_BITRATE + "="
-                            + (bitrateKbps * 1000);
-                }
-                Log.d(TAG, "Add remote SDP line: " + bitrateSet);
-                newSdpDescription.append(bitrateSet).append("\r\n");
-            }
-        }
-        return newSdpDescription.toString();
-    }
-
-    private static String preferCodec(String sdpDescription, String codec, boolean isAudio) {
-        String[] lines = sdpDescription.split("\r\n");
-        int mLineIndex = -1;
-        String codecRtpMap = null;
-        // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-        String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-        Pattern codecPattern = Pattern.compile(regex);
-        String mediaDescription = "m=video ";
-        if (isAudio) {
-            mediaDescription = "m=audio ";
-        }
-        for (int i = 0; (i < lines.length) && (mLineIndex == -1 || codecRtpMap == null); i++) {
-            if (lines[i].startsWith(mediaDescription)) {
-                mLineIndex = i;
-                continue;
-            }
-            Matcher codecMatcher = codecPattern.matcher(lines[i]);
-            if (codecMatcher.matches()) {
-                codecRtpMap = codecMatcher.group(1);
-            }
-        }
-        if (mLineIndex == -1) {
-            Log.w(TAG, "No " + mediaDescription + " line, so can't prefer " + codec);
-            return sdpDescription;
-        }
-        if (codecRtpMap == null) {
-            Log.w(TAG, "No rtpmap for " + codec);
-            return sdpDescription;
-        }
-        Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + ", prefer at " + lines[mLineIndex]);
-        String[] origMLineParts = lines[mLineIndex].split(" ");
-        if (origMLineParts.length > 3) {
-            StringBuilder newMLine = new StringBuilder();
-            int origPartIndex = 0;
-            // Format is: m=<media> <port> <proto> <fmt> ...
-            newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-            newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-            newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-            newMLine.append(codecRtpMap);
-            for (; origPartIndex < origMLineParts.length; origPartIndex++) {
-                if (!origMLineParts[origPartIndex].equals(codecRtpMap)) {
-                    newMLine.append(" ").append(origMLineParts[origPartIndex]);
-                }
-            }
-            lines[mLineIndex] = newMLine.toString();
-            Log.d(TAG, "Change media description: " + lines[mLineIndex]);
-        } else {
-            Log.e(TAG, "Wrong SDP media description format: " + lines[mLineIndex]);
-        }
-        StringBuilder newSdpDescription = new StringBuilder();
-        for (String line : lines) {
-            newSdpDescription.append(line).append("\r\n");
-        }
-        return newSdpDescription.toString();
-    }
-
-    private void drainCandidates() {
-        if (queuedRemoteCandidates != null) {
-            Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
-            for (IceCandidate candidate : queuedRemoteCandidates) {
-                peerConnection.addIceCandidate(candidate);
-            }
-            queuedRemoteCandidates = null;
+        if (localRender != null) {
+            localVideoRenderer = new VideoRenderer(localRender);
+            localVideoTrack.addRenderer(localVideoRenderer);
         }
+        return localVideoTrack;
     }
 
     private void switchCameraInternal() {
@@ -1041,215 +1381,39 @@ public class PeerConnectionClient {
         videoSource.adaptOutputFormat(width, height, framerate);
     }
 
-    // Implementation detail: observe ICE & stream changes and react accordingly.
-    private class PCObserver implements PeerConnection.Observer {
-        @Override
-        public void onIceCandidate(final IceCandidate candidate) {
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    events.onIceCandidate(candidate);
-                }
-            });
-        }
-
-        @Override
-        public void onIceCandidatesRemoved(final IceCandidate[] candidates) {
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    events.onIceCandidatesRemoved(candidates);
-                }
-            });
-        }
-
-        @Override
-        public void onSignalingChange(PeerConnection.SignalingState newState) {
-            Log.d(TAG, "SignalingState: " + newState);
-        }
-
-        @Override
-        public void onIceConnectionChange(final IceConnectionState newState) {
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    Log.d(TAG, "IceConnectionState: " + newState);
-                    if (newState == IceConnectionState.CONNECTED) {
-                        events.onIceConnected();
-                    } else if (newState == IceConnectionState.DISCONNECTED) {
-                        events.onIceDisconnected();
-                    } else if (newState == IceConnectionState.FAILED) {
-                        reportError("ICE connection failed.");
-                    }
-                }
-            });
-        }
-
-        @Override
-        public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
-            Log.d(TAG, "IceGatheringState: " + newState);
-        }
-
-        @Override
-        public void onIceConnectionReceivingChange(boolean receiving) {
-            Log.d(TAG, "IceConnectionReceiving changed to " + receiving);
-        }
-
-        @Override
-        public void onAddStream(final MediaStream stream) {
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    if (peerConnection == null || isError) {
-                        return;
-                    }
-                    if (stream.audioTracks.size() > 1 || stream.videoTracks.size() > 1) {
-                        reportError("Weird-looking stream: " + stream);
-                        return;
-                    }
-                    if (stream.videoTracks.size() == 1) {
-                        remoteVideoTrack = stream.videoTracks.get(0);
-                        remoteVideoTrack.setEnabled(renderVideo);
-                        for (VideoRenderer.Callbacks remoteRender : remoteRenders) {
-                            remoteVideoTrack.addRenderer(new VideoRenderer(remoteRender));
-                        }
-                    }
-                }
-            });
-        }
-
-        @Override
-        public void onRemoveStream(final MediaStream stream) {
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    remoteVideoTrack = null;
-                }
-            });
-        }
-
-        @Override
-        public void onDataChannel(final DataChannel dc) {
-            Log.d(TAG, "New Data channel " + dc.label());
-
-            if (!dataChannelEnabled)
-                return;
-
-            dc.registerObserver(new DataChannel.Observer() {
-                public void onBufferedAmountChange(long previousAmount) {
-                    Log.wtf(TAG, "Data channel buffered amount changed: " + dc.label() + ": " + dc.state());
-                }
-
-                @Override
-                public void onStateChange() {
-                    Log.wtf(TAG, "Data channel state changed: " + dc.label() + ": " + dc.state());
-                }
-
-                @Override
-                public void onMessage(final DataChannel.Buffer buffer) {
-                    if (buffer.binary) {
-                        Log.d(TAG, "Received binary msg over " + dc);
-                        return;
-                    }
-                    ByteBuffer data = buffer.data;
-                    final byte[] bytes = new byte[data.capacity()];
-                    data.get(bytes);
-                    String strData = new String(bytes);
-                    int msg = Integer.valueOf(strData);
-                    CallActivity.sendBluetoothData(msg);
-//                    Log.wtf(TAG, "------Got msg: " + msg + " over " + dc+"------");
-                }
-            });
-        }
-
-        @Override
-        public void onRenegotiationNeeded() {
-            // No need to do anything; AppRTC follows a pre-agreed-upon
-            // signaling/negotiation protocol.
-        }
+    /**
+     * Returns the local data channel with the given label, or null if it is not created.
+     */
+    public DataChannel getDataChannel(String label) {
+        PeerSession session = primarySession;
+        return session == null ? null : session.getDataChannel(label);
     }
 
-    // Implementation detail: handle offer creation/signaling and answer setting,
-    // as well as adding remote ICE candidates once the answer SDP is set.
-    private class SDPObserver implements SdpObserver {
-        @Override
-        public void onCreateSuccess(final SessionDescription origSdp) {
-            if (localSdp != null) {
-                reportError("Multiple SDP create.");
-                return;
-            }
-            String sdpDescription = origSdp.description;
-            if (preferIsac) {
-                sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-            }
-            if (videoCallEnabled) {
-                sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
-            }
-            final SessionDescription sdp = new SessionDescription(origSdp.type, sdpDescription);
-            localSdp = sdp;
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    if (peerConnection != null && !isError) {
-                        Log.d(TAG, "Set local SDP from " + sdp.type);
-                        peerConnection.setLocalDescription(sdpObserver, sdp);
-                    }
-                }
-            });
-        }
-
-        @Override
-        public void onSetSuccess() {
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    if (peerConnection == null || isError) {
-                        return;
-                    }
-                    if (isInitiator) {
-                        // For offering peer connection we first create offer and set
-                        // local SDP, then after receiving answer set remote SDP.
-                        if (peerConnection.getRemoteDescription() == null) {
-                            // We've just set our local SDP so time to send it.
-                            Log.d(TAG, "Local SDP set succesfully");
-                            events.onLocalDescription(localSdp);
-                        } else {
-                            // We've just set remote description, so drain remote
-                            // and send local ICE candidates.
-                            Log.d(TAG, "Remote SDP set succesfully");
-                            drainCandidates();
-                        }
-                    } else {
-                        // For answering peer connection we set remote SDP and then
-                        // create answer and set local SDP.
-                        if (peerConnection.getLocalDescription() != null) {
-                            // We've just set our local SDP so time to send it, drain
-                            // remote and send local ICE candidates.
-                            Log.d(TAG, "Local SDP set succesfully");
-                            events.onLocalDescription(localSdp);
-                            drainCandidates();
-                        } else {
-                            // We've just set remote SDP - do nothing for now -
-                            // answer will be created soon.
-                            Log.d(TAG, "Remote SDP set succesfully");
-                        }
-                    }
-                }
-            });
-        }
+    /**
+     * Returns the statistics of the primary session, or null if there is none.
+     */
+    public StatsEngine getStatsEngine() {
+        PeerSession session = primarySession;
+        return session == null ? null : session.getStatsEngine();
+    }
 
-        @Override
-        public void onCreateFailure(final String error) {
-            reportError("createSDP error: " + error);
+    /**
+     * Routes messages received over data channels labelled |label| to |handler|. May be
+     * called before the channels are created; pass null to remove the handler.
+     */
+    public void registerDataChannelHandler(String label, DataChannelHandler handler) {
+        if (handler == null) {
+            dataChannelHandlers.remove(label);
+        } else {
+            dataChannelHandlers.put(label, handler);
         }
+    }
 
-        @Override
-        public void onSetFailure(final String error) {
-            reportError("setSDP error: " + error);
-        }
+    DataChannelHandler getDataChannelHandler(String label) {
+        return dataChannelHandlers.get(label);
     }
 
-    public DataChannel getDataChannel(){
-        return this.dataChannel;
+    boolean isDataChannelEnabled() {
+        return dataChannelEnabled;
     }
 }
@@ -0,0 +1,681 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import android.util.Log;
+
+import com.myhexaville.androidwebrtc.web_rtc.PeerConnectionClient.DataChannelHandler;
+import com.myhexaville.androidwebrtc.web_rtc.PeerConnectionClient.DataChannelParameters;
+import com.myhexaville.androidwebrtc.web_rtc.PeerConnectionClient.PeerConnectionEvents;
+
+import org.webrtc.DataChannel;
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaConstraints;
+import org.webrtc.MediaStream;
+import org.webrtc.PeerConnection;
+import org.webrtc.PeerConnection.IceConnectionState;
+import org.webrtc.RtpParameters;
+import org.webrtc.RtpSender;
+import org.webrtc.SdpObserver;
+import org.webrtc.SessionDescription;
+import org.webrtc.VideoRenderer;
+import org.webrtc.VideoTrack;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.myhexaville.androidwebrtc.util.Constants.STATS_HISTORY_SIZE;
+
+/**
+ * One peer connection of a call: its signaling state, data channels and statistics. It
+ * sends the local media stream {@link PeerConnectionClient} keeps between calls.
+ * <p>
+ * <p>Public methods are routed to the session's executor, a shard shared with a few other
+ * sessions, and PeerConnectionEvents callbacks are invoked from it. Calls made before the
+ * local media is attached are queued until then.
+ */
+public class PeerSession {
+    private static final String TAG = "PeerSession";
+    private static final String AUDIO_CODEC_OPUS = "opus";
+    private static final String AUDIO_CODEC_ISAC = "ISAC";
+    private static final int BPS_IN_KBPS = 8000;
+
+    private final int id;
+    private final PeerConnectionClient client;
+    private final ScheduledExecutorService executor;
+    private final PeerConnectionEvents events;
+    private final PCObserver pcObserver = new PCObserver();
+    private final SDPObserver sdpObserver = new SDPObserver();
+    // Local data channels keyed by label. Read from sender threads.
+    private final Map<String, DataChannel> dataChannels = new ConcurrentHashMap<>();
+    private final StatsEngine statsEngine = new StatsEngine(STATS_HISTORY_SIZE);
+
+    // Only accessed on |executor|.
+    private PeerConnection peerConnection;
+    private MediaStream mediaStream;
+    private MediaSettings settings;
+    private List<VideoRenderer.Callbacks> remoteRenders;
+    // Calls made before attach(), run once the local media is added.
+    private List<Runnable> pendingCalls = new ArrayList<>();
+    private boolean closed;
+    private boolean isError;
+    // Queued remote ICE candidates are consumed only after both local and
+    // remote descriptions are set. Similarly local ICE candidates are sent to
+    // remote peer after both local and remote description are set.
+    private LinkedList<IceCandidate> queuedRemoteCandidates = new LinkedList<>();
+    private boolean isInitiator;
+    private SessionDescription localSdp; // either offer or answer SDP
+    private boolean renderVideo = true;
+    private VideoTrack remoteVideoTrack;
+    private RtpSender localVideoSender;
+    // Extra renderer on the remote video track that detects its first frame.
+    private VideoRenderer firstFrameRenderer;
+    // Max video bitrate asked for by the app and the cap set by the client; the lower one
+    // applies. Null means no limit.
+    private Integer requestedMaxBitrateKbps;
+    private Integer budgetMaxBitrateKbps;
+    private ScheduledFuture<?> statsFuture;
+
+    /**
+     * Call-wide settings a session needs to negotiate.
+     */
+    static class MediaSettings {
+        final MediaConstraints sdpMediaConstraints;
+        final List<DataChannelParameters> dataChannelParameters;
+        // Null if video is disabled.
+        final String preferredVideoCodec;
+        final boolean preferIsac;
+        final int audioStartBitrate;
+        final int videoStartBitrate;
+        final boolean lowLatency;
+
+        MediaSettings(MediaConstraints sdpMediaConstraints,
+                      List<DataChannelParameters> dataChannelParameters, String preferredVideoCodec,
+                      boolean preferIsac, int audioStartBitrate, int videoStartBitrate,
+                      boolean lowLatency) {
+            this.sdpMediaConstraints = sdpMediaConstraints;
+            this.dataChannelParameters = dataChannelParameters;
+            this.preferredVideoCodec = preferredVideoCodec;
+            this.preferIsac = preferIsac;
+            this.audioStartBitrate = audioStartBitrate;
+            this.videoStartBitrate = videoStartBitrate;
+            this.lowLatency = lowLatency;
+        }
+    }
+
+    PeerSession(PeerConnectionClient client, int id, ScheduledExecutorService executor,
+                PeerConnectionEvents events) {
+        this.client = client;
+        this.id = id;
+        this.executor = executor;
+        this.events = events;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    ScheduledExecutorService getExecutor() {
+        return executor;
+    }
+
+    PeerConnection.Observer getObserver() {
+        return pcObserver;
+    }
+
+    /**
+     * Takes over |peerConnection|, which may already be gathering pooled ICE candidates.
+     */
+    void setPeerConnection(final PeerConnection peerConnection) {
+        executor.execute(() -> {
+            if (closed) {
+                peerConnection.dispose();
+                return;
+            }
+            this.peerConnection = peerConnection;
+        });
+    }
+
+    /**
+     * Adds the shared local stream and the data channels, then runs the calls queued so far.
+     *
+     * @param rtcConfig Configuration replacing the one the connection was created with, or null.
+     */
+    void attach(final PeerConnection.RTCConfiguration rtcConfig, final MediaStream mediaStream,
+                final MediaSettings settings, final List<VideoRenderer.Callbacks> remoteRenders) {
+        executor.execute(() -> {
+            if (closed || peerConnection == null) {
+                return;
+            }
+            if (rtcConfig != null && !peerConnection.setConfiguration(rtcConfig)) {
+                // The pool keeps gathering from the servers it was created with.
+                Log.w(TAG, "Session " + id + ": failed to apply ICE servers.");
+            }
+            this.mediaStream = mediaStream;
+            this.settings = settings;
+            this.remoteRenders = remoteRenders;
+            for (DataChannelParameters params : settings.dataChannelParameters) {
+                createDataChannel(params);
+            }
+            peerConnection.addStream(mediaStream);
+            if (settings.preferredVideoCodec != null) {
+                findVideoSender();
+            }
+            Log.d(TAG, "Session " + id + " attached, " + pendingCalls.size() + " queued calls.");
+            List<Runnable> calls = pendingCalls;
+            pendingCalls = null;
+            for (Runnable call : calls) {
+                call.run();
+            }
+        });
+    }
+
+    // Runs |call| on |executor| once the session is attached; drops it if the session is
+    // closed.
+    private void run(final Runnable call) {
+        executor.execute(() -> {
+            if (closed) {
+                return;
+            }
+            if (pendingCalls != null) {
+                pendingCalls.add(call);
+            } else {
+                call.run();
+            }
+        });
+    }
+
+    public void createOffer() {
+        run(() -> {
+            if (!isError) {
+                Log.d(TAG, "Session " + id + ": create OFFER");
+                isInitiator = true;
+                peerConnection.createOffer(sdpObserver, settings.sdpMediaConstraints);
+            }
+        });
+    }
+
+    public void createAnswer() {
+        run(() -> {
+            if (!isError) {
+                Log.d(TAG, "Session " + id + ": create ANSWER");
+                isInitiator = false;
+                peerConnection.createAnswer(sdpObserver, settings.sdpMediaConstraints);
+            }
+        });
+    }
+
+    public void setRemoteDescription(final SessionDescription sdp) {
+        run(() -> {
+            if (isError) {
+                return;
+            }
+            String sdpDescription = mungeSdp(sdp.description, true);
+            Log.d(TAG, "Session " + id + ": set remote SDP.");
+            SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDescription);
+            peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
+        });
+    }
+
+    public void addRemoteIceCandidate(final IceCandidate candidate) {
+        run(() -> {
+            if (isError) {
+                return;
+            }
+            if (queuedRemoteCandidates != null) {
+                queuedRemoteCandidates.add(candidate);
+            } else {
+                peerConnection.addIceCandidate(candidate);
+            }
+        });
+    }
+
+    public void removeRemoteIceCandidates(final IceCandidate[] candidates) {
+        run(() -> {
+            if (isError) {
+                return;
+            }
+            // Drain the queued remote candidates if there is any so that
+            // they are processed in the proper order.
+            drainCandidates();
+            peerConnection.removeIceCandidates(candidates);
+        });
+    }
+
+    /**
+     * Limits the video bitrate sent to this peer; null removes the limit. The client's cap
+     * still applies.
+     */
+    public void setVideoMaxBitrate(final Integer maxBitrateKbps) {
+        run(() -> {
+            requestedMaxBitrateKbps = maxBitrateKbps;
+            applyVideoMaxBitrate();
+        });
+    }
+
+    void setBitrateBudget(final Integer maxBitrateKbps) {
+        run(() -> {
+            budgetMaxBitrateKbps = maxBitrateKbps;
+            applyVideoMaxBitrate();
+        });
+    }
+
+    void setRemoteVideoEnabled(final boolean enable) {
+        executor.execute(() -> {
+            renderVideo = enable;
+            if (remoteVideoTrack != null) {
+                remoteVideoTrack.setEnabled(renderVideo);
+            }
+        });
+    }
+
+    /**
+     * Polls statistics every |periodMs| and passes them to
+     * PeerConnectionEvents.onPeerConnectionStatsReady and the listeners of
+     * {@link #getStatsEngine()}.
+     */
+    public void enableStatsEvents(final boolean enable, final int periodMs) {
+        executor.execute(() -> {
+            if (statsFuture != null) {
+                statsFuture.cancel(false);
+                statsFuture = null;
+            }
+            if (enable && !closed) {
+                statsFuture = executor.scheduleAtFixedRate(
+                        () -> getStats(), 0, periodMs, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    public StatsEngine getStatsEngine() {
+        return statsEngine;
+    }
+
+    /**
+     * Returns the local data channel with the given label, or null if it is not created.
+     */
+    public DataChannel getDataChannel(String label) {
+        return dataChannels.get(label);
+    }
+
+    /**
+     * Closes the peer connection. The local media stays with the client.
+     */
+    public void close() {
+        executor.execute(() -> closeInternal());
+    }
+
+    // Closes the session from another thread and waits until it is closed.
+    void closeAndWait() {
+        try {
+            executor.submit(() -> closeInternal()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Session " + id + ": failed to close", e.getCause());
+        }
+    }
+
+    private void closeInternal() {
+        if (closed) {
+            return;
+        }
+        Log.d(TAG, "Closing session " + id + ".");
+        closed = true;
+        pendingCalls = null;
+        if (statsFuture != null) {
+            statsFuture.cancel(false);
+            statsFuture = null;
+        }
+        for (DataChannel dataChannel : dataChannels.values()) {
+            dataChannel.unregisterObserver();
+            dataChannel.dispose();
+        }
+        dataChannels.clear();
+        firstFrameRenderer = null;
+        if (peerConnection != null) {
+            // Detach the shared stream first, dispose() would dispose it with its tracks.
+            if (mediaStream != null) {
+                peerConnection.removeStream(mediaStream);
+            }
+            peerConnection.dispose();
+            peerConnection = null;
+        }
+        remoteVideoTrack = null;
+        localVideoSender = null;
+        events.onPeerConnectionClosed();
+        client.onSessionClosed(this);
+    }
+
+    private void reportError(final String errorMessage) {
+        Log.e(TAG, "Session " + id + " error: " + errorMessage);
+        executor.execute(() -> {
+            if (!isError) {
+                events.onPeerConnectionError(errorMessage);
+                isError = true;
+            }
+        });
+    }
+
+    private void getStats() {
+        if (peerConnection == null || isError) {
+            return;
+        }
+        boolean success = peerConnection.getStats(reports -> executor.execute(() -> {
+            if (!closed) {
+                events.onPeerConnectionStatsReady(statsEngine.update(reports));
+            }
+        }), null);
+        if (!success) {
+            Log.e(TAG, "getStats() returns false!");
+        }
+    }
+
+    private void applyVideoMaxBitrate() {
+        if (peerConnection == null || localVideoSender == null || isError) {
+            return;
+        }
+        Integer maxBitrateKbps = requestedMaxBitrateKbps;
+        if (maxBitrateKbps == null
+                || (budgetMaxBitrateKbps != null && budgetMaxBitrateKbps < maxBitrateKbps)) {
+            maxBitrateKbps = budgetMaxBitrateKbps;
+        }
+        RtpParameters parameters = localVideoSender.getParameters();
+        if (parameters.encodings.size() == 0) {
+            // Applied again once ICE connects.
+            Log.w(TAG, "RtpParameters are not ready.");
+            return;
+        }
+
+        for (RtpParameters.Encoding encoding : parameters.encodings) {
+            // Null value means no limit.
+            encoding.maxBitrateBps = maxBitrateKbps == null ? null : maxBitrateKbps * BPS_IN_KBPS;
+        }
+        if (!localVideoSender.setParameters(parameters)) {
+            Log.e(TAG, "RtpSender.setParameters failed.");
+        }
+        Log.d(TAG, "Session " + id + ": configured max video bitrate to: " + maxBitrateKbps);
+    }
+
+    private void createDataChannel(DataChannelParameters params) {
+        DataChannel.Init init = new DataChannel.Init();
+        init.ordered = params.ordered;
+        init.negotiated = params.negotiated;
+        init.maxRetransmits = params.maxRetransmits;
+        init.maxRetransmitTimeMs = params.maxRetransmitTimeMs;
+        init.protocol = params.protocol == null ? "" : params.protocol;
+        init.id = params.negotiated ? params.id : -1;
+        if (init.maxRetransmits >= 0 && init.maxRetransmitTimeMs >= 0) {
+            Log.w(TAG, "Both maxRetransmits and maxRetransmitTimeMs set, using maxRetransmits");
+            init.maxRetransmitTimeMs = -1;
+        }
+        DataChannel dataChannel = peerConnection.createDataChannel(params.label, init);
+        if (dataChannel == null) {
+            reportError("Failed to create data channel " + params.label);
+            return;
+        }
+        Log.d(TAG, "Created data channel " + params.label + ". Ordered: " + init.ordered
+                + ", max retransmits: " + init.maxRetransmits + ", max retransmit time: "
+                + init.maxRetransmitTimeMs + ", negotiated: " + init.negotiated + ", id: " + init.id);
+        dataChannels.put(params.label, dataChannel);
+        if (init.negotiated) {
+            // No onDataChannel callback fires for negotiated channels; the local channel
+            // also carries the remote peer's messages.
+            registerDataChannelObserver(dataChannel);
+        }
+    }
+
+    private void registerDataChannelObserver(final DataChannel dc) {
+        final String label = dc.label();
+        dc.registerObserver(new DataChannel.Observer() {
+            @Override
+            public void onBufferedAmountChange(long previousAmount) {
+            }
+
+            @Override
+            public void onStateChange() {
+                Log.d(TAG, "Data channel state changed: " + dc.label() + ": " + dc.state());
+            }
+
+            @Override
+            public void onMessage(final DataChannel.Buffer buffer) {
+                DataChannelHandler handler = client.getDataChannelHandler(label);
+                if (handler != null) {
+                    handler.onMessage(dc, buffer);
+                } else {
+                    Log.w(TAG, "No handler for message over data channel " + label);
+                }
+            }
+        });
+    }
+
+    private void findVideoSender() {
+        for (RtpSender sender : peerConnection.getSenders()) {
+            if (sender.track() != null) {
+                String trackType = sender.track().kind();
+                if (trackType.equals(PeerConnectionClient.VIDEO_TRACK_TYPE)) {
+                    Log.d(TAG, "Found video sender.");
+                    localVideoSender = sender;
+                }
+            }
+        }
+    }
+
+    // Applies codec preferences, the low latency feedback set and, for remote descriptions,
+    // the start bitrates in a single parse/serialize pass.
+    private String mungeSdp(String sdpDescription, boolean isRemote) {
+        SdpMunger munger = new SdpMunger(sdpDescription);
+        if (settings.preferIsac && !munger.preferCodec(AUDIO_CODEC_ISAC, true)) {
+            Log.w(TAG, "No audio rtpmap for " + AUDIO_CODEC_ISAC + ", can't prefer it");
+        }
+        if (settings.preferredVideoCodec != null
+                && !munger.preferCodec(settings.preferredVideoCodec, false)) {
+            Log.w(TAG, "No video rtpmap for " + settings.preferredVideoCodec + ", can't prefer it");
+        }
+        if (isRemote && settings.audioStartBitrate > 0
+                && !munger.setStartBitrate(AUDIO_CODEC_OPUS, false, settings.audioStartBitrate)) {
+            Log.w(TAG, "No rtpmap for " + AUDIO_CODEC_OPUS + " codec");
+        }
+        if (isRemote && settings.videoStartBitrate > 0 && settings.preferredVideoCodec != null
+                && !munger.setStartBitrate(settings.preferredVideoCodec, true, settings.videoStartBitrate)) {
+            Log.w(TAG, "No rtpmap for " + settings.preferredVideoCodec + " codec");
+        }
+        if (settings.lowLatency) {
+            // A retransmission arrives a round trip late, after the frame should have been
+            // shown; FlexFEC and keyframe requests (nack pli) recover instead.
+            munger.removeRtcpFeedback(PeerConnectionClient.VIDEO_TRACK_TYPE, "nack");
+        }
+        return munger.toString();
+    }
+
+    private void drainCandidates() {
+        if (queuedRemoteCandidates != null) {
+            Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
+            for (IceCandidate candidate : queuedRemoteCandidates) {
+                peerConnection.addIceCandidate(candidate);
+            }
+            queuedRemoteCandidates = null;
+        }
+    }
+
+    // Adds a renderer to |track| that reports the first remote frame and then removes itself.
+    private void watchFirstRemoteFrame(final VideoTrack track) {
+        firstFrameRenderer = new VideoRenderer(frame -> {
+            VideoRenderer.renderFrameDone(frame);
+            executor.execute(() -> {
+                if (firstFrameRenderer != null && track == remoteVideoTrack) {
+                    client.onSessionStage(this, PeerConnectionClient.StartupStage.FIRST_REMOTE_FRAME);
+                    track.removeRenderer(firstFrameRenderer);
+                    firstFrameRenderer = null;
+                }
+            });
+        });
+        track.addRenderer(firstFrameRenderer);
+    }
+
+    // Implementation detail: observe ICE & stream changes and react accordingly.
+    private class PCObserver implements PeerConnection.Observer {
+        @Override
+        public void onIceCandidate(final IceCandidate candidate) {
+            executor.execute(() -> events.onIceCandidate(candidate));
+        }
+
+        @Override
+        public void onIceCandidatesRemoved(final IceCandidate[] candidates) {
+            executor.execute(() -> events.onIceCandidatesRemoved(candidates));
+        }
+
+        @Override
+        public void onSignalingChange(PeerConnection.SignalingState newState) {
+            Log.d(TAG, "SignalingState: " + newState);
+        }
+
+        @Override
+        public void onIceConnectionChange(final IceConnectionState newState) {
+            executor.execute(() -> {
+                Log.d(TAG, "Session " + id + " IceConnectionState: " + newState);
+                if (newState == IceConnectionState.CONNECTED) {
+                    client.onSessionStage(PeerSession.this,
+                            PeerConnectionClient.StartupStage.ICE_CONNECTED);
+                    // Encodings are only known once negotiated.
+                    applyVideoMaxBitrate();
+                    events.onIceConnected();
+                } else if (newState == IceConnectionState.DISCONNECTED) {
+                    events.onIceDisconnected();
+                } else if (newState == IceConnectionState.FAILED) {
+                    reportError("ICE connection failed.");
+                }
+            });
+        }
+
+        @Override
+        public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
+            Log.d(TAG, "IceGatheringState: " + newState);
+        }
+
+        @Override
+        public void onIceConnectionReceivingChange(boolean receiving) {
+            Log.d(TAG, "IceConnectionReceiving changed to " + receiving);
+        }
+
+        @Override
+        public void onAddStream(final MediaStream stream) {
+            executor.execute(() -> {
+                if (peerConnection == null || isError) {
+                    return;
+                }
+                if (stream.audioTracks.size() > 1 || stream.videoTracks.size() > 1) {
+                    reportError("Weird-looking stream: " + stream);
+                    return;
+                }
+                if (stream.videoTracks.size() == 1) {
+                    remoteVideoTrack = stream.videoTracks.get(0);
+                    remoteVideoTrack.setEnabled(renderVideo);
+                    if (remoteRenders != null) {
+                        for (VideoRenderer.Callbacks remoteRender : remoteRenders) {
+                            remoteVideoTrack.addRenderer(new VideoRenderer(remoteRender));
+                        }
+                    }
+                    watchFirstRemoteFrame(remoteVideoTrack);
+                }
+            });
+        }
+
+        @Override
+        public void onRemoveStream(final MediaStream stream) {
+            executor.execute(() -> {
+                remoteVideoTrack = null;
+                firstFrameRenderer = null;
+            });
+        }
+
+        @Override
+        public void onDataChannel(final DataChannel dc) {
+            Log.d(TAG, "New Data channel " + dc.label());
+
+            if (!client.isDataChannelEnabled())
+                return;
+
+            registerDataChannelObserver(dc);
+        }
+
+        @Override
+        public void onRenegotiationNeeded() {
+            // No need to do anything; AppRTC follows a pre-agreed-upon
+            // signaling/negotiation protocol.
+        }
+    }
+
+    // Implementation detail: handle offer creation/signaling and answer setting,
+    // as well as adding remote ICE candidates once the answer SDP is set.
+    private class SDPObserver implements SdpObserver {
+        @Override
+        public void onCreateSuccess(final SessionDescription origSdp) {
+            executor.execute(() -> {
+                if (localSdp != null) {
+                    reportError("Multiple SDP create.");
+                    return;
+                }
+                String sdpDescription = mungeSdp(origSdp.description, false);
+                final SessionDescription sdp = new SessionDescription(origSdp.type, sdpDescription);
+                localSdp = sdp;
+                if (peerConnection != null && !isError) {
+                    Log.d(TAG, "Set local SDP from " + sdp.type);
+                    peerConnection.setLocalDescription(sdpObserver, sdp);
+                }
+            });
+        }
+
+        @Override
+        public void onSetSuccess() {
+            executor.execute(() -> {
+                if (peerConnection == null || isError) {
+                    return;
+                }
+                if (isInitiator) {
+                    // For offering peer connection we first create offer and set
+                    // local SDP, then after receiving answer set remote SDP.
+                    if (peerConnection.getRemoteDescription() == null) {
+                        // We've just set our local SDP so time to send it.
+                        Log.d(TAG, "Local SDP set succesfully");
+                        events.onLocalDescription(localSdp);
+                    } else {
+                        // We've just set remote description, so drain remote
+                        // and send local ICE candidates.
+                        Log.d(TAG, "Remote SDP set succesfully");
+                        drainCandidates();
+                    }
+                } else {
+                    // For answering peer connection we set remote SDP and then
+                    // create answer and set local SDP.
+                    if (peerConnection.getLocalDescription() != null) {
+                        // We've just set our local SDP so time to send it, drain
+                        // remote and send local ICE candidates.
+                        Log.d(TAG, "Local SDP set succesfully");
+                        events.onLocalDescription(localSdp);
+                        drainCandidates();
+                    } else {
+                        // We've just set remote SDP - do nothing for now -
+                        // answer will be created soon.
+                        Log.d(TAG, "Remote SDP set succesfully");
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCreateFailure(final String error) {
+            reportError("createSDP error: " + error);
+        }
+
+        @Override
+        public void onSetFailure(final String error) {
+            reportError("setSDP error: " + error);
+        }
+    }
+}
@@ -24,12 +24,9 @@ import org.webrtc.IceCandidate;
 import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.Scanner;
+import java.util.List;
 
 /**
  * AsyncTask that converts an AppRTC room URL into the set of signaling
@@ -37,10 +34,10 @@ import java.util.Scanner;
  */
 public class RoomParametersFetcher {
     private static final String TAG = "RoomRTCClient";
-    private static final int TURN_HTTP_TIMEOUT_MS = 5000;
     private final RoomParametersFetcherEvents events;
     private final String roomUrl;
     private final String roomMessage;
+    private final SignalingCodec codec = new SignalingCodec();
     private AsyncHttpURLConnection httpConnection;
 
     /**
@@ -68,6 +65,7 @@ public class RoomParametersFetcher {
 
     public void makeRequest() {
         Log.d(TAG, "Connecting to room: " + roomUrl);
+        IceServerCache.getInstance().prefetch(roomUrl);
         httpConnection =
                 new AsyncHttpURLConnection("POST", roomUrl, roomMessage, new AsyncHttpEvents() {
                     @Override
@@ -89,6 +87,7 @@ public class RoomParametersFetcher {
         try {
             LinkedList<IceCandidate> iceCandidates = null;
             SessionDescription offerSdp = null;
+            boolean offerBatchesCandidates = false;
             JSONObject roomJson = new JSONObject(response);
 
             String result = roomJson.getString("result");
@@ -106,21 +105,24 @@ public class RoomParametersFetcher {
             if (!initiator) {
                 iceCandidates = new LinkedList<IceCandidate>();
                 String messagesString = roomJson.getString("messages");
-                JSONArray messages = new JSONArray(messagesString);
-                for (int i = 0; i < messages.length(); ++i) {
-                    String messageString = messages.getString(i);
-                    JSONObject message = new JSONObject(messageString);
-                    String messageType = message.getString("type");
-                    Log.d(TAG, "GAE->C #" + i + " : " + messageString);
-                    if (messageType.equals("offer")) {
-                        offerSdp = new SessionDescription(
-                                SessionDescription.Type.fromCanonicalForm(messageType), message.getString("sdp"));
-                    } else if (messageType.equals("candidate")) {
-                        IceCandidate candidate = new IceCandidate(
-                                message.getString("id"), message.getInt("label"), message.getString("candidate"));
-                        iceCandidates.add(candidate);
-                    } else {
-                        Log.e(TAG, "Unknown message: " + messageString);
+                Log.d(TAG, "GAE->C: " + messagesString);
+                List<String> errors = new ArrayList<>();
+                List<SignalingMessage> messages = codec.decodeMessageList(messagesString, errors);
+                for (String error : errors) {
+                    Log.e(TAG, "Skipping queued message: " + error);
+                }
+                for (SignalingMessage message : messages) {
+                    switch (message.type) {
+                        case OFFER:
+                            offerSdp = ((SignalingMessage.Sdp) message).toSessionDescription();
+                            offerBatchesCandidates = ((SignalingMessage.Sdp) message).batchesCandidates;
+                            break;
+                        case CANDIDATE:
+                        case CANDIDATES:
+                            iceCandidates.addAll(((SignalingMessage.Candidates) message).candidates);
+                            break;
+                        default:
+                            Log.e(TAG, "Unexpected message: " + message.type);
                     }
                 }
             }
@@ -139,59 +141,36 @@ public class RoomParametersFetcher {
                     break;
                 }
             }
-            // Request TURN servers.
-            if (!isTurnPresent) {
-                LinkedList<PeerConnection.IceServer> turnServers =
-                        requestTurnServers(roomJson.getString("ice_server_url"));
-                for (PeerConnection.IceServer turnServer : turnServers) {
-                    Log.d(TAG, "TurnServer: " + turnServer);
-                    iceServers.add(turnServer);
-                }
+            final SignalingParameters params = new SignalingParameters(
+                    iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates,
+                    offerBatchesCandidates);
+            if (isTurnPresent) {
+                events.onSignalingParametersReady(params);
+                return;
             }
-
-            SignalingParameters params = new SignalingParameters(
-                    iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates);
-            events.onSignalingParametersReady(params);
+            // Request TURN servers, usually already cached or prefetched during the join. A fetch
+            // completes on the cache's thread, so this HTTP thread is not held meanwhile.
+            IceServerCache.getInstance().get(roomUrl, roomJson.getString("ice_server_url"),
+                    new IceServerCache.IceServersCallback() {
+                        @Override
+                        public void onIceServers(List<PeerConnection.IceServer> turnServers) {
+                            for (PeerConnection.IceServer turnServer : turnServers) {
+                                Log.d(TAG, "TurnServer: " + turnServer);
+                                params.iceServers.add(turnServer);
+                            }
+                            events.onSignalingParametersReady(params);
+                        }
+
+                        @Override
+                        public void onIceServersError(String description) {
+                            events.onSignalingParametersError("Room IO error: " + description);
+                        }
+                    });
         } catch (JSONException e) {
             events.onSignalingParametersError("Room JSON parsing error: " + e.toString());
-        } catch (IOException e) {
-            events.onSignalingParametersError("Room IO error: " + e.toString());
-        }
-    }
-
-    // Requests & returns a TURN ICE Server based on a request URL.  Must be run
-    // off the main thread!
-    private LinkedList<PeerConnection.IceServer> requestTurnServers(String url)
-            throws IOException, JSONException {
-        LinkedList<PeerConnection.IceServer> turnServers = new LinkedList<PeerConnection.IceServer>();
-        Log.d(TAG, "Request TURN from: " + url);
-        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-        connection.setDoOutput(true);
-        connection.setRequestProperty("REFERER", "https://appr.tc");
-        connection.setConnectTimeout(TURN_HTTP_TIMEOUT_MS);
-        connection.setReadTimeout(TURN_HTTP_TIMEOUT_MS);
-        int responseCode = connection.getResponseCode();
-        if (responseCode != 200) {
-            throw new IOException("Non-200 response when requesting TURN server from " + url + " : "
-                    + connection.getHeaderField(null));
-        }
-        InputStream responseStream = connection.getInputStream();
-        String response = drainStream(responseStream);
-        connection.disconnect();
-        Log.d(TAG, "TURN response: " + response);
-        JSONObject responseJSON = new JSONObject(response);
-        JSONArray iceServers = responseJSON.getJSONArray("iceServers");
-        for (int i = 0; i < iceServers.length(); ++i) {
-            JSONObject server = iceServers.getJSONObject(i);
-            JSONArray turnUrls = server.getJSONArray("urls");
-            String username = server.has("username") ? server.getString("username") : "";
-            String credential = server.has("credential") ? server.getString("credential") : "";
-            for (int j = 0; j < turnUrls.length(); j++) {
-                String turnUrl = turnUrls.getString(j);
-                turnServers.add(new PeerConnection.IceServer(turnUrl, username, credential));
-            }
+        } catch (SignalingCodecException e) {
+            events.onSignalingParametersError("Room message parsing error: " + e.getMessage());
         }
-        return turnServers;
     }
 
     // Return the list of ICE servers described by a WebRTCPeerConnection
@@ -209,10 +188,4 @@ public class RoomParametersFetcher {
         }
         return ret;
     }
-
-    // Return the contents of an InputStream as a String.
-    private static String drainStream(InputStream in) {
-        Scanner s = new Scanner(in).useDelimiter("\\A");
-        return s.hasNext() ? s.next() : "";
-    }
 }
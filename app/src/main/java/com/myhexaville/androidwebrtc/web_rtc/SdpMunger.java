@@ -0,0 +1,276 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory SDP model used to apply local and remote description edits.
+ * <p>
+ * <p>The description is split into lines once, m-sections are indexed together with
+ * their rtpmap/fmtp tables and payload lists, all edits are applied to that model and
+ * the result is serialized once by {@link #toString()}. The class has no Android
+ * dependencies so it can be exercised from plain JVM unit tests.
+ */
+public class SdpMunger {
+    private static final String LINE_SEPARATOR = "\r\n";
+    private static final String RTPMAP_PREFIX = "a=rtpmap:";
+    private static final String FMTP_PREFIX = "a=fmtp:";
+    private static final String RTCP_FB_PREFIX = "a=rtcp-fb:";
+    static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
+    static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
+
+    private final String original;
+    private final int originalLength;
+    private final String[] lines;
+    // Text emitted right after the line with the same index. Used for inserted
+    // a=fmtp lines so that indices recorded while parsing stay valid. Removed lines are set
+    // to null for the same reason.
+    private final String[] insertedAfter;
+    private final List<MediaSection> sections = new ArrayList<>();
+    private boolean modified;
+
+    /**
+     * A single m= section of the description.
+     */
+    public static class MediaSection {
+        public final String media;
+        final int mLineIndex;
+        // Payload types in m-line order.
+        final List<String> payloadTypes = new ArrayList<>();
+        // Payload type -> encoding name (e.g. "VP8", "opus").
+        final Map<String, String> rtpmapCodecs = new HashMap<>();
+        // Payload type -> a=rtpmap line index.
+        final Map<String, Integer> rtpmapLines = new HashMap<>();
+        // Payload type -> a=fmtp line index. Negative values -(i + 1) refer to a line
+        // inserted after line i.
+        final Map<String, Integer> fmtpLines = new HashMap<>();
+        // a=rtcp-fb line indices.
+        final List<Integer> rtcpFbLines = new ArrayList<>();
+
+        MediaSection(String media, int mLineIndex) {
+            this.media = media;
+            this.mLineIndex = mLineIndex;
+        }
+
+        /**
+         * Returns payload types of |codec| in m-line order.
+         */
+        public List<String> payloadTypesFor(String codec) {
+            List<String> result = new ArrayList<>();
+            for (String payloadType : payloadTypes) {
+                // Encoding names are case-insensitive (RFC 4855).
+                if (codec.equalsIgnoreCase(rtpmapCodecs.get(payloadType))) {
+                    result.add(payloadType);
+                }
+            }
+            return result;
+        }
+
+        public List<String> getPayloadTypes() {
+            return Collections.unmodifiableList(payloadTypes);
+        }
+    }
+
+    public SdpMunger(String sdpDescription) {
+        original = sdpDescription;
+        originalLength = sdpDescription.length();
+        lines = sdpDescription.split(LINE_SEPARATOR);
+        insertedAfter = new String[lines.length];
+        parse();
+    }
+
+    private void parse() {
+        MediaSection section = null;
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.startsWith("m=")) {
+                section = parseMediaLine(line, i);
+                sections.add(section);
+                continue;
+            }
+            if (section == null) {
+                continue;
+            }
+            if (line.startsWith(RTPMAP_PREFIX)) {
+                // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+                int space = line.indexOf(' ', RTPMAP_PREFIX.length());
+                int slash = space < 0 ? -1 : line.indexOf('/', space);
+                if (slash > space + 1) {
+                    String payloadType = line.substring(RTPMAP_PREFIX.length(), space);
+                    section.rtpmapCodecs.put(payloadType, line.substring(space + 1, slash));
+                    section.rtpmapLines.put(payloadType, i);
+                }
+            } else if (line.startsWith(FMTP_PREFIX)) {
+                int space = line.indexOf(' ', FMTP_PREFIX.length());
+                if (space > FMTP_PREFIX.length()) {
+                    section.fmtpLines.put(line.substring(FMTP_PREFIX.length(), space), i);
+                }
+            } else if (line.startsWith(RTCP_FB_PREFIX)) {
+                section.rtcpFbLines.add(i);
+            }
+        }
+    }
+
+    private static MediaSection parseMediaLine(String line, int index) {
+        // Format is: m=<media> <port> <proto> <fmt> ...
+        String[] parts = line.split(" ");
+        MediaSection section = new MediaSection(parts[0].substring(2), index);
+        for (int i = 3; i < parts.length; i++) {
+            section.payloadTypes.add(parts[i]);
+        }
+        return section;
+    }
+
+    public List<MediaSection> getMediaSections() {
+        return sections;
+    }
+
+    /**
+     * Returns the first m-section of the given media type ("audio" or "video"), or null.
+     */
+    public MediaSection findMediaSection(String media) {
+        for (MediaSection section : sections) {
+            if (section.media.equals(media)) {
+                return section;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves all payload types of |codec|, matched case-insensitively and kept in their order,
+     * to the front of the first audio or video m-line.
+     *
+     * @return false if there is no such m-line or codec in it.
+     */
+    public boolean preferCodec(String codec, boolean isAudio) {
+        MediaSection section = findMediaSection(isAudio ? "audio" : "video");
+        if (section == null) {
+            return false;
+        }
+        List<String> preferred = section.payloadTypesFor(codec);
+        if (preferred.isEmpty()) {
+            return false;
+        }
+        String[] mLineParts = lines[section.mLineIndex].split(" ");
+        if (mLineParts.length <= 3) {
+            return false;
+        }
+        List<String> reordered = new ArrayList<>(section.payloadTypes.size());
+        reordered.addAll(preferred);
+        for (String payloadType : section.payloadTypes) {
+            if (!preferred.contains(payloadType)) {
+                reordered.add(payloadType);
+            }
+        }
+        section.payloadTypes.clear();
+        section.payloadTypes.addAll(reordered);
+
+        StringBuilder mLine = new StringBuilder(lines[section.mLineIndex].length());
+        mLine.append(mLineParts[0]).append(' ').append(mLineParts[1]).append(' ').append(mLineParts[2]);
+        for (String payloadType : reordered) {
+            mLine.append(' ').append(payloadType);
+        }
+        lines[section.mLineIndex] = mLine.toString();
+        modified = true;
+        return true;
+    }
+
+    /**
+     * Sets x-google-start-bitrate (video) or maxaveragebitrate (audio) for the first
+     * payload type of |codec| in any m-section.
+     *
+     * @return false if there is no rtpmap for the codec.
+     */
+    public boolean setStartBitrate(String codec, boolean isVideoCodec, int bitrateKbps) {
+        if (isVideoCodec) {
+            return setCodecParameter(codec, VIDEO_CODEC_PARAM_START_BITRATE, bitrateKbps);
+        }
+        return setMaxAverageBitrate(codec, bitrateKbps);
+    }
+
+    /**
+     * Sets maxaveragebitrate for the first payload type of audio |codec|.
+     */
+    public boolean setMaxAverageBitrate(String codec, int bitrateKbps) {
+        return setCodecParameter(codec, AUDIO_CODEC_PARAM_BITRATE, bitrateKbps * 1000);
+    }
+
+    /**
+     * Appends |name|=|value| to the a=fmtp line of the first payload type of |codec|, adding
+     * an a=fmtp line after the rtpmap if the codec does not have one yet.
+     */
+    public boolean setCodecParameter(String codec, String name, int value) {
+        for (MediaSection section : sections) {
+            List<String> payloadTypes = section.payloadTypesFor(codec);
+            if (payloadTypes.isEmpty()) {
+                continue;
+            }
+            String payloadType = payloadTypes.get(0);
+            Integer fmtpIndex = section.fmtpLines.get(payloadType);
+            if (fmtpIndex == null) {
+                int rtpmapIndex = section.rtpmapLines.get(payloadType);
+                insertedAfter[rtpmapIndex] = FMTP_PREFIX + payloadType + " " + name + "=" + value;
+                section.fmtpLines.put(payloadType, -(rtpmapIndex + 1));
+            } else if (fmtpIndex >= 0) {
+                lines[fmtpIndex] += "; " + name + "=" + value;
+            } else {
+                insertedAfter[-fmtpIndex - 1] += "; " + name + "=" + value;
+            }
+            modified = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the a=rtcp-fb lines of every |media| m-section whose feedback type is exactly
+     * |feedback|, e.g. "nack" removes generic NACK but keeps "nack pli".
+     *
+     * @return the number of removed lines.
+     */
+    public int removeRtcpFeedback(String media, String feedback) {
+        int removed = 0;
+        for (MediaSection section : sections) {
+            if (!section.media.equals(media)) {
+                continue;
+            }
+            for (int index : section.rtcpFbLines) {
+                // a=rtcp-fb:<payload type> <type> [<subtype>]
+                String line = lines[index];
+                int space = line == null ? -1 : line.indexOf(' ', RTCP_FB_PREFIX.length());
+                if (space > 0 && line.substring(space + 1).trim().equals(feedback)) {
+                    lines[index] = null;
+                    removed++;
+                }
+            }
+        }
+        if (removed > 0) {
+            modified = true;
+        }
+        return removed;
+    }
+
+    /**
+     * Serializes the description. Returns the original string if nothing was changed.
+     */
+    @Override
+    public String toString() {
+        if (!modified) {
+            return original;
+        }
+        StringBuilder sdp = new StringBuilder(originalLength + 128);
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i] != null) {
+                sdp.append(lines[i]).append(LINE_SEPARATOR);
+            }
+            if (insertedAfter[i] != null) {
+                sdp.append(insertedAfter[i]).append(LINE_SEPARATOR);
+            }
+        }
+        return sdp.toString();
+    }
+}
@@ -0,0 +1,50 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Fixed set of single-thread executors that peer sessions are spread over, so a slow
+ * session only delays the sessions that share its shard.
+ * <p>
+ * <p>Each session stays on the shard it was assigned, which keeps its state confined to one
+ * thread. A new session goes to the shard serving the fewest sessions. A shard's thread is
+ * started when the shard is first assigned, so one-to-one calls only start one.
+ */
+final class ShardedScheduler {
+    private final String name;
+    // Null until first assigned. Guarded by |this|, like |loads|.
+    private final ScheduledExecutorService[] shards;
+    // Sessions assigned to each shard.
+    private final int[] loads;
+
+    ShardedScheduler(String name, int shardCount) {
+        this.name = name;
+        shards = new ScheduledExecutorService[shardCount];
+        loads = new int[shardCount];
+    }
+
+    synchronized ScheduledExecutorService acquire() {
+        int best = 0;
+        for (int i = 1; i < shards.length; i++) {
+            if (loads[i] < loads[best]) {
+                best = i;
+            }
+        }
+        if (shards[best] == null) {
+            final String threadName = name + "-" + best;
+            shards[best] = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, threadName));
+        }
+        loads[best]++;
+        return shards[best];
+    }
+
+    synchronized void release(ScheduledExecutorService shard) {
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i] == shard) {
+                loads[i]--;
+                return;
+            }
+        }
+    }
+}
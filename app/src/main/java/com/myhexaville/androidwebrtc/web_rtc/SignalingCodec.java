@@ -0,0 +1,300 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.webrtc.IceCandidate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes and encodes appr.tc signaling messages without intermediate JSON trees.
+ * <p>
+ * <p>Decoding walks the text once with a {@link JsonPullParser} and fills typed
+ * {@link SignalingMessage}s; fields may come in any order and unknown fields are skipped.
+ * Encoding appends straight into a reused builder. Instances keep parser and builder state,
+ * so each thread (or each client's looper) needs its own codec.
+ */
+public class SignalingCodec {
+    // Offer/answer field set by clients that accept "candidates" batches.
+    private static final String CANDIDATE_BATCHING = "candidateBatching";
+
+    private final JsonPullParser envelopeParser = new JsonPullParser("");
+    private final JsonPullParser messageParser = new JsonPullParser("");
+    private final StringBuilder out = new StringBuilder(1024);
+
+    /**
+     * Decodes a WebSocket server message: {"msg": "&lt;peer message JSON&gt;", "error": "..."}.
+     */
+    public SignalingMessage.Envelope decodeEnvelope(CharSequence text) throws SignalingCodecException {
+        JsonPullParser parser = envelopeParser;
+        parser.reset(text);
+        String msg = null;
+        String error = null;
+        parser.beginObject();
+        while (parser.hasNext()) {
+            String name = parser.nextName();
+            if (name.equals("msg") && parser.peek() == JsonPullParser.Token.STRING) {
+                msg = parser.nextString();
+            } else if (name.equals("error") && parser.peek() == JsonPullParser.Token.STRING) {
+                error = parser.nextString();
+            } else {
+                parser.skipValue();
+            }
+        }
+        parser.endObject();
+        if (msg != null && msg.length() > 0) {
+            return new SignalingMessage.Envelope(decodeMessage(msg), error);
+        }
+        return new SignalingMessage.Envelope(null, error);
+    }
+
+    /**
+     * Decodes a peer message such as {"type": "offer", "sdp": "..."}.
+     */
+    public SignalingMessage decodeMessage(CharSequence text) throws SignalingCodecException {
+        JsonPullParser parser = messageParser;
+        parser.reset(text);
+        String type = null;
+        String sdp = null;
+        String id = null;
+        String candidate = null;
+        int label = -1;
+        boolean batchesCandidates = false;
+        List<IceCandidate> candidates = null;
+        parser.beginObject();
+        while (parser.hasNext()) {
+            String name = parser.nextName();
+            switch (name) {
+                case "type":
+                    type = parser.nextString();
+                    break;
+                case "sdp":
+                    sdp = parser.nextString();
+                    break;
+                case "id":
+                    id = parser.nextString();
+                    break;
+                case "label":
+                    label = parser.nextInt();
+                    break;
+                case "candidate":
+                    candidate = parser.nextString();
+                    break;
+                case "candidates":
+                    candidates = readCandidateArray(parser);
+                    break;
+                case CANDIDATE_BATCHING:
+                    if (parser.peek() == JsonPullParser.Token.BOOLEAN) {
+                        batchesCandidates = parser.nextBoolean();
+                    } else {
+                        parser.skipValue();
+                    }
+                    break;
+                default:
+                    parser.skipValue();
+            }
+        }
+        parser.endObject();
+        if (type == null) {
+            throw new SignalingCodecException("Message without type");
+        }
+        switch (type) {
+            case "offer":
+            case "answer":
+                if (sdp == null) {
+                    throw new SignalingCodecException("No sdp in " + type);
+                }
+                return new SignalingMessage.Sdp(type.equals("offer")
+                        ? SignalingMessage.Type.OFFER : SignalingMessage.Type.ANSWER, sdp,
+                        batchesCandidates);
+            case "candidate":
+                if (id == null || candidate == null || label < 0) {
+                    throw new SignalingCodecException("Incomplete candidate");
+                }
+                List<IceCandidate> single = new ArrayList<>(1);
+                single.add(new IceCandidate(id, label, candidate));
+                return new SignalingMessage.Candidates(SignalingMessage.Type.CANDIDATE, single);
+            case "candidates":
+            case "remove-candidates":
+                if (candidates == null) {
+                    throw new SignalingCodecException("No candidates in " + type);
+                }
+                return new SignalingMessage.Candidates(type.equals("candidates")
+                        ? SignalingMessage.Type.CANDIDATES
+                        : SignalingMessage.Type.REMOVE_CANDIDATES, candidates);
+            case "bye":
+                return new SignalingMessage.Bye();
+            default:
+                throw new SignalingCodecException("Unknown message type " + type);
+        }
+    }
+
+    /**
+     * Decodes the "messages" field of a room join response: a JSON array of strings, each
+     * holding a peer message.
+     */
+    public List<SignalingMessage> decodeMessageList(CharSequence text) throws SignalingCodecException {
+        return decodeMessageList(text, null);
+    }
+
+    /**
+     * Like {@link #decodeMessageList(CharSequence)}, but skips peer messages that are
+     * malformed or of an unknown type and adds their errors to |errors|, if not null. Only a
+     * malformed array fails the whole list.
+     */
+    public List<SignalingMessage> decodeMessageList(CharSequence text, List<String> errors)
+            throws SignalingCodecException {
+        JsonPullParser parser = envelopeParser;
+        parser.reset(text);
+        List<SignalingMessage> messages = new ArrayList<>();
+        parser.beginArray();
+        while (parser.hasNext()) {
+            String message = parser.nextString();
+            try {
+                messages.add(decodeMessage(message));
+            } catch (SignalingCodecException e) {
+                if (errors != null) {
+                    errors.add(e.getMessage() + ": " + message);
+                }
+            }
+        }
+        parser.endArray();
+        return messages;
+    }
+
+    private static List<IceCandidate> readCandidateArray(JsonPullParser parser)
+            throws SignalingCodecException {
+        List<IceCandidate> candidates = new ArrayList<>();
+        parser.beginArray();
+        while (parser.hasNext()) {
+            String id = null;
+            String sdp = null;
+            int label = -1;
+            parser.beginObject();
+            while (parser.hasNext()) {
+                String name = parser.nextName();
+                switch (name) {
+                    case "id":
+                        id = parser.nextString();
+                        break;
+                    case "label":
+                        label = parser.nextInt();
+                        break;
+                    case "candidate":
+                        sdp = parser.nextString();
+                        break;
+                    default:
+                        parser.skipValue();
+                }
+            }
+            parser.endObject();
+            if (id == null || sdp == null || label < 0) {
+                throw new SignalingCodecException("Incomplete candidate");
+            }
+            candidates.add(new IceCandidate(id, label, sdp));
+        }
+        parser.endArray();
+        return candidates;
+    }
+
+    /**
+     * Encodes an offer or answer. The message advertises that this client accepts "candidates"
+     * batches; other clients ignore the extra field.
+     */
+    public String encodeSdp(SignalingMessage.Type type, String sdp) {
+        out.setLength(0);
+        out.append("{\"sdp\":");
+        appendQuoted(out, sdp);
+        out.append(",\"type\":\"").append(type.wireName).append("\",\"")
+                .append(CANDIDATE_BATCHING).append("\":true}");
+        return out.toString();
+    }
+
+    public String encodeCandidate(IceCandidate candidate) {
+        out.setLength(0);
+        out.append("{\"type\":\"candidate\",");
+        appendCandidateFields(out, candidate);
+        out.append('}');
+        return out.toString();
+    }
+
+    /**
+     * Encodes a "candidates" or "remove-candidates" message.
+     */
+    public String encodeCandidates(SignalingMessage.Type type, List<IceCandidate> candidates) {
+        out.setLength(0);
+        out.append("{\"type\":\"").append(type.wireName).append("\",\"candidates\":[");
+        for (int i = 0; i < candidates.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append('{');
+            appendCandidateFields(out, candidates.get(i));
+            out.append('}');
+        }
+        out.append("]}");
+        return out.toString();
+    }
+
+    public String encodeBye() {
+        return "{\"type\":\"bye\"}";
+    }
+
+    /**
+     * Wraps a peer message into a WebSocket server "send" command.
+     */
+    public String encodeSendCommand(String message) {
+        out.setLength(0);
+        out.append("{\"cmd\":\"send\",\"msg\":");
+        appendQuoted(out, message);
+        out.append('}');
+        return out.toString();
+    }
+
+    public String encodeRegisterCommand(String roomId, String clientId) {
+        out.setLength(0);
+        out.append("{\"cmd\":\"register\",\"roomid\":");
+        appendQuoted(out, roomId);
+        out.append(",\"clientid\":");
+        appendQuoted(out, clientId);
+        out.append('}');
+        return out.toString();
+    }
+
+    private static void appendCandidateFields(StringBuilder out, IceCandidate candidate) {
+        out.append("\"label\":").append(candidate.sdpMLineIndex).append(",\"id\":");
+        appendQuoted(out, candidate.sdpMid);
+        out.append(",\"candidate\":");
+        appendQuoted(out, candidate.sdp);
+    }
+
+    static void appendQuoted(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
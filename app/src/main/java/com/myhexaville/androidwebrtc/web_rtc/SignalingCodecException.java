@@ -0,0 +1,12 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+/**
+ * Thrown by {@link SignalingCodec} for malformed or unknown signaling messages.
+ */
+public class SignalingCodecException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public SignalingCodecException(String message) {
+        super(message);
+    }
+}
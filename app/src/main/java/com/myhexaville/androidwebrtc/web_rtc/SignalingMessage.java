@@ -0,0 +1,91 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Typed signaling message exchanged with the other participant through the room or
+ * WebSocket server. Decoded and encoded by {@link SignalingCodec}.
+ */
+public abstract class SignalingMessage {
+    public enum Type {
+        OFFER("offer"), ANSWER("answer"), CANDIDATE("candidate"), CANDIDATES("candidates"),
+        REMOVE_CANDIDATES("remove-candidates"), BYE("bye");
+
+        // Value of the "type" field on the wire.
+        public final String wireName;
+
+        Type(String wireName) {
+            this.wireName = wireName;
+        }
+    }
+
+    public final Type type;
+
+    SignalingMessage(Type type) {
+        this.type = type;
+    }
+
+    /**
+     * Offer or answer.
+     */
+    public static class Sdp extends SignalingMessage {
+        public final String sdp;
+        // Whether the sender accepts "candidates" batches. Only this app sets the flag.
+        public final boolean batchesCandidates;
+
+        public Sdp(Type type, String sdp) {
+            this(type, sdp, false);
+        }
+
+        public Sdp(Type type, String sdp, boolean batchesCandidates) {
+            super(type);
+            this.sdp = sdp;
+            this.batchesCandidates = batchesCandidates;
+        }
+
+        public SessionDescription toSessionDescription() {
+            return new SessionDescription(
+                    SessionDescription.Type.fromCanonicalForm(type.wireName), sdp);
+        }
+    }
+
+    /**
+     * A single candidate, a batch of candidates, or candidates to remove.
+     */
+    public static class Candidates extends SignalingMessage {
+        public final List<IceCandidate> candidates;
+
+        public Candidates(Type type, List<IceCandidate> candidates) {
+            super(type);
+            this.candidates = Collections.unmodifiableList(candidates);
+        }
+
+        public IceCandidate[] toArray() {
+            return candidates.toArray(new IceCandidate[candidates.size()]);
+        }
+    }
+
+    public static class Bye extends SignalingMessage {
+        public Bye() {
+            super(Type.BYE);
+        }
+    }
+
+    /**
+     * Envelope of a WebSocket server message: either a peer message or a server error.
+     */
+    public static class Envelope {
+        // The peer message, or null if the server sent an error.
+        public final SignalingMessage message;
+        public final String error;
+
+        Envelope(SignalingMessage message, String error) {
+            this.message = message;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Room state of {@link LocalSignalingServer}, following the appr.tc room server and its
+ * WebSocket relay (collider).
+ * <p>
+ * <p>A room holds at most two clients. The first to join is the initiator; messages it posts
+ * while alone are saved and handed to the second client in its join response. Once both are
+ * in the room, messages are relayed over the WebSocket of the other client, or queued until
+ * that client registers its WebSocket.
+ * <p>
+ * <p>Not thread safe; the server only uses it from its selector thread.
+ */
+final class SignalingRoomRegistry {
+    static final int MAX_ROOM_CLIENTS = 2;
+    // Messages queued for a client that has not registered its WebSocket yet.
+    static final int MAX_QUEUED_MESSAGES = 64;
+
+    enum Result {SUCCESS, FULL, UNKNOWN_ROOM, UNKNOWN_CLIENT, DUPLICATE_CLIENT, QUEUE_FULL}
+
+    /**
+     * WebSocket of a registered client.
+     */
+    interface Peer {
+        void deliver(String message);
+    }
+
+    private static class Client {
+        final String id;
+        // Saved by the room server while the client is alone in the room.
+        final List<String> savedMessages = new ArrayList<>();
+        // Queued by the relay until the client registers.
+        final List<String> queuedMessages = new ArrayList<>();
+        Peer peer;
+
+        Client(String id) {
+            this.id = id;
+        }
+    }
+
+    private static class Room {
+        final Map<String, Client> clients = new LinkedHashMap<>();
+    }
+
+    static class JoinResult {
+        final Result result;
+        final String clientId;
+        final boolean initiator;
+        final List<String> messages;
+
+        JoinResult(Result result, String clientId, boolean initiator, List<String> messages) {
+            this.result = result;
+            this.clientId = clientId;
+            this.initiator = initiator;
+            this.messages = messages;
+        }
+    }
+
+    private final Map<String, Room> rooms = new HashMap<>();
+    private final Map<Peer, Client> registeredPeers = new IdentityHashMap<>();
+    private long nextClientId = 1;
+
+    JoinResult join(String roomId) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            room = new Room();
+            rooms.put(roomId, room);
+        }
+        if (room.clients.size() >= MAX_ROOM_CLIENTS) {
+            return new JoinResult(Result.FULL, null, false, Collections.<String>emptyList());
+        }
+        String clientId = Long.toString(nextClientId++);
+        boolean initiator = room.clients.isEmpty();
+        List<String> messages = new ArrayList<>();
+        for (Client other : room.clients.values()) {
+            messages.addAll(other.savedMessages);
+            other.savedMessages.clear();
+        }
+        room.clients.put(clientId, new Client(clientId));
+        return new JoinResult(Result.SUCCESS, clientId, initiator, messages);
+    }
+
+    /**
+     * Handles a message posted to the room server. The message is saved if the client is alone
+     * in the room, otherwise it is relayed to the other client.
+     */
+    Result postMessage(String roomId, String clientId, String message) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            return Result.UNKNOWN_ROOM;
+        }
+        Client client = room.clients.get(clientId);
+        if (client == null) {
+            return Result.UNKNOWN_CLIENT;
+        }
+        if (room.clients.size() == 1) {
+            client.savedMessages.add(message);
+            return Result.SUCCESS;
+        }
+        return relay(roomId, clientId, message);
+    }
+
+    void leave(String roomId, String clientId) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            return;
+        }
+        Client client = room.clients.remove(clientId);
+        if (client != null && client.peer != null) {
+            registeredPeers.remove(client.peer);
+        }
+        if (room.clients.isEmpty()) {
+            rooms.remove(roomId);
+        }
+    }
+
+    /**
+     * Attaches the WebSocket of a joined client and delivers what was queued for it.
+     */
+    Result register(String roomId, String clientId, Peer peer) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            return Result.UNKNOWN_ROOM;
+        }
+        Client client = room.clients.get(clientId);
+        if (client == null) {
+            return Result.UNKNOWN_CLIENT;
+        }
+        if (client.peer != null) {
+            return Result.DUPLICATE_CLIENT;
+        }
+        client.peer = peer;
+        registeredPeers.put(peer, client);
+        for (String message : client.queuedMessages) {
+            peer.deliver(message);
+        }
+        client.queuedMessages.clear();
+        return Result.SUCCESS;
+    }
+
+    /**
+     * Detaches a WebSocket, e.g. when it closes. The client stays in the room until it leaves.
+     */
+    void unregister(Peer peer) {
+        Client client = registeredPeers.remove(peer);
+        if (client != null) {
+            client.peer = null;
+        }
+    }
+
+    /**
+     * Relays a message to the other client in the room over its WebSocket.
+     */
+    Result relay(String roomId, String fromClientId, String message) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            return Result.UNKNOWN_ROOM;
+        }
+        if (!room.clients.containsKey(fromClientId)) {
+            return Result.UNKNOWN_CLIENT;
+        }
+        for (Client other : room.clients.values()) {
+            if (other.id.equals(fromClientId)) {
+                continue;
+            }
+            if (other.peer != null) {
+                other.peer.deliver(message);
+            } else if (other.queuedMessages.size() < MAX_QUEUED_MESSAGES) {
+                other.queuedMessages.add(message);
+            } else {
+                return Result.QUEUE_FULL;
+            }
+        }
+        return Result.SUCCESS;
+    }
+
+    int getRoomCount() {
+        return rooms.size();
+    }
+}
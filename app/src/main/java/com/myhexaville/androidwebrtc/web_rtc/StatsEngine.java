@@ -0,0 +1,291 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.webrtc.StatsReport;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Turns legacy getStats() results into {@link StatsSnapshot}s and keeps the last few in a
+ * ring.
+ * <p>
+ * <p>Values are parsed straight from the report strings into preallocated snapshots, and
+ * bitrates and loss are computed against the previous result, so a steady stream of
+ * results allocates nothing. The ring can be written out as a compact binary dump, see
+ * {@link #dump}.
+ */
+public class StatsEngine {
+    // "STAT", followed by a version byte and the record count.
+    static final int DUMP_MAGIC = 0x53544154;
+    static final int DUMP_VERSION = 2;
+    static final int DUMP_HEADER_BYTES = 4 + 1 + 2;
+
+    /**
+     * Receives every parsed result. The snapshot is reused for later results.
+     */
+    public interface Listener {
+        void onStats(StatsSnapshot snapshot);
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Guarded by |this|.
+    private final StatsSnapshot[] history;
+    private int historyStart;
+    private int historySize;
+    private StatsSnapshot current = new StatsSnapshot();
+    private StatsSnapshot previous = new StatsSnapshot();
+
+    public StatsEngine(int historyCapacity) {
+        history = new StatsSnapshot[historyCapacity];
+        for (int i = 0; i < historyCapacity; i++) {
+            history[i] = new StatsSnapshot();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Parses one getStats() result, records it and notifies the listeners. Results must be
+     * passed in order from a single thread.
+     *
+     * @return the parsed snapshot, valid until the next call.
+     */
+    public StatsSnapshot update(StatsReport[] reports) {
+        StatsSnapshot snapshot;
+        synchronized (this) {
+            StatsSnapshot swap = previous;
+            previous = current;
+            current = swap;
+            current.clear();
+            for (StatsReport report : reports) {
+                parseReport(report, current);
+            }
+            computeRates(previous, current);
+            int slot = (historyStart + historySize) % history.length;
+            if (historySize < history.length) {
+                historySize++;
+            } else {
+                historyStart = (historyStart + 1) % history.length;
+            }
+            history[slot].copyFrom(current);
+            snapshot = current;
+        }
+        for (Listener listener : listeners) {
+            listener.onStats(snapshot);
+        }
+        return snapshot;
+    }
+
+    public synchronized int getHistorySize() {
+        return historySize;
+    }
+
+    /**
+     * Copies the result recorded |age| results ago (0 is the latest) into |out|.
+     */
+    public synchronized void getHistory(int age, StatsSnapshot out) {
+        if (age < 0 || age >= historySize) {
+            throw new IndexOutOfBoundsException("age " + age + " of " + historySize);
+        }
+        out.copyFrom(history[(historyStart + historySize - 1 - age) % history.length]);
+    }
+
+    public synchronized int getDumpSize() {
+        int size = DUMP_HEADER_BYTES;
+        for (int i = 0; i < historySize; i++) {
+            size += history[(historyStart + i) % history.length].getRecordBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Writes the recorded results, oldest first, to |out|, which needs
+     * {@link #getDumpSize()} bytes left. Records are read back with
+     * {@link StatsSnapshot#readFrom} after {@link #readDumpHeader}.
+     */
+    public synchronized void dump(ByteBuffer out) {
+        out.putInt(DUMP_MAGIC);
+        out.put((byte) DUMP_VERSION);
+        out.putShort((short) historySize);
+        for (int i = 0; i < historySize; i++) {
+            history[(historyStart + i) % history.length].writeTo(out);
+        }
+    }
+
+    /**
+     * Checks the header of a dump and returns its record count.
+     */
+    public static int readDumpHeader(ByteBuffer in) {
+        if (in.getInt() != DUMP_MAGIC || in.get() != DUMP_VERSION) {
+            throw new IllegalArgumentException("Not a stats dump");
+        }
+        return in.getShort() & 0xFFFF;
+    }
+
+    private static void parseReport(StatsReport report, StatsSnapshot out) {
+        switch (report.type) {
+            case "ssrc":
+                parseSsrcReport(report, out);
+                break;
+            case "VideoBwe":
+                for (StatsReport.Value value : report.values) {
+                    switch (value.name) {
+                        case "googAvailableSendBandwidth":
+                            out.availableSendBandwidthBps = (int) parseLong(value.value);
+                            break;
+                        case "googAvailableReceiveBandwidth":
+                            out.availableReceiveBandwidthBps = (int) parseLong(value.value);
+                            break;
+                        case "googTargetEncBitrate":
+                            out.targetEncodeBitrateBps = (int) parseLong(value.value);
+                            break;
+                        case "googActualEncBitrate":
+                            out.actualEncodeBitrateBps = (int) parseLong(value.value);
+                            break;
+                    }
+                }
+                break;
+            case "googCandidatePair":
+                boolean active = false;
+                int rttMs = StatsSnapshot.UNKNOWN;
+                for (StatsReport.Value value : report.values) {
+                    switch (value.name) {
+                        case "googActiveConnection":
+                            active = "true".equals(value.value);
+                            break;
+                        case "googRtt":
+                            rttMs = (int) parseLong(value.value);
+                            break;
+                    }
+                }
+                if (active) {
+                    out.rttMs = rttMs;
+                }
+                break;
+        }
+        out.timestampMs = Math.max(out.timestampMs, (long) report.timestamp);
+    }
+
+    private static void parseSsrcReport(StatsReport report, StatsSnapshot out) {
+        long ssrc = StatsSnapshot.UNKNOWN;
+        int flags = report.id.endsWith("_send") ? StatsSnapshot.FLAG_SEND : 0;
+        for (StatsReport.Value value : report.values) {
+            if ("ssrc".equals(value.name)) {
+                ssrc = parseLong(value.value);
+            } else if ("mediaType".equals(value.name) && "video".equals(value.value)) {
+                flags |= StatsSnapshot.FLAG_VIDEO;
+            }
+        }
+        if (ssrc < 0) {
+            return;
+        }
+        int i = out.addStream((int) ssrc, flags);
+        if (i < 0) {
+            return;
+        }
+        for (StatsReport.Value value : report.values) {
+            switch (value.name) {
+                case "bytesSent":
+                case "bytesReceived":
+                    out.bytes[i] = parseLong(value.value);
+                    break;
+                case "packetsSent":
+                case "packetsReceived":
+                    out.packets[i] = parseLong(value.value);
+                    break;
+                case "packetsLost":
+                    out.packetsLost[i] = parseLong(value.value);
+                    break;
+                case "googRtt":
+                    out.streamRttMs[i] = (int) parseLong(value.value);
+                    break;
+                case "googJitterReceived":
+                    out.jitterMs[i] = (int) parseLong(value.value);
+                    break;
+                case "googFrameRateSent":
+                case "googFrameRateDecoded":
+                    out.frameRate[i] = (int) parseLong(value.value);
+                    break;
+                case "googAvgEncodeMs":
+                    out.encodeMs[i] = (int) parseLong(value.value);
+                    break;
+                case "googFrameWidthSent":
+                case "googFrameWidthReceived":
+                    out.frameWidth[i] = (int) parseLong(value.value);
+                    break;
+                case "googFrameHeightSent":
+                case "googFrameHeightReceived":
+                    out.frameHeight[i] = (int) parseLong(value.value);
+                    break;
+                case "googCurrentDelayMs":
+                    out.delayMs[i] = (int) parseLong(value.value);
+                    break;
+            }
+        }
+    }
+
+    // Fills in the bitrate and loss of each row of |current| from the same row of |previous|.
+    private static void computeRates(StatsSnapshot previous, StatsSnapshot current) {
+        long intervalMs = previous.timestampMs == 0 ? 0 : current.timestampMs - previous.timestampMs;
+        current.intervalMs = (int) Math.max(0, intervalMs);
+        if (intervalMs <= 0) {
+            return;
+        }
+        for (int i = 0; i < current.streamCount; i++) {
+            int p = previous.findStream(current.ssrc[i], current.flags[i]);
+            if (p < 0) {
+                continue;
+            }
+            long bytes = current.bytes[i] - previous.bytes[p];
+            if (current.bytes[i] >= 0 && previous.bytes[p] >= 0 && bytes >= 0) {
+                current.bitrateBps[i] = (int) (bytes * 8 * 1000 / intervalMs);
+            }
+            long packets = current.packets[i] - previous.packets[p];
+            long lost = current.packetsLost[i] - previous.packetsLost[p];
+            if (current.packetsLost[i] >= 0 && previous.packetsLost[p] >= 0
+                    && packets >= 0 && lost >= 0) {
+                // Sent packets include the lost ones; received packets don't.
+                long expected = (current.flags[i] & StatsSnapshot.FLAG_SEND) != 0
+                        ? packets : packets + lost;
+                current.packetLossPermille[i] =
+                        expected == 0 ? 0 : (int) Math.min(1000, lost * 1000 / expected);
+            }
+        }
+    }
+
+    // Parses the integer part of a decimal stats value without allocating; returns UNKNOWN if
+    // |s| does not start with a number.
+    static long parseLong(String s) {
+        if (s == null) {
+            return StatsSnapshot.UNKNOWN;
+        }
+        int length = s.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && s.charAt(0) == '-') {
+            negative = true;
+            i++;
+        }
+        long result = 0;
+        int digits = 0;
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            result = result * 10 + (c - '0');
+            digits++;
+        }
+        if (digits == 0) {
+            return StatsSnapshot.UNKNOWN;
+        }
+        return negative ? -result : result;
+    }
+}
@@ -0,0 +1,203 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Primitive view of one legacy getStats() result: the connection-wide bandwidth estimate and
+ * round trip time, plus one row per SSRC. Rates and loss are computed by {@link StatsEngine}
+ * over the interval since the previous result.
+ * <p>
+ * <p>Snapshots are reused; the one handed to listeners is overwritten by the next result, so
+ * use {@link #copyFrom} to keep it. Values a result did not report are {@link #UNKNOWN}.
+ */
+public final class StatsSnapshot {
+    public static final int MAX_STREAMS = 8;
+    public static final int UNKNOWN = -1;
+    // Row flags.
+    public static final int FLAG_VIDEO = 1;
+    public static final int FLAG_SEND = 2;
+    // Bytes of one record in a binary dump.
+    static final int RECORD_HEADER_BYTES = 8 + 5 * 4 + 1;
+    static final int RECORD_STREAM_BYTES = 4 + 1 + 4 + 4 + 8 * 2;
+
+    public long timestampMs;
+    // Ms since the previous result, 0 for the first one.
+    public int intervalMs;
+    public int availableSendBandwidthBps;
+    public int availableReceiveBandwidthBps;
+    public int targetEncodeBitrateBps;
+    public int actualEncodeBitrateBps;
+    // Of the active candidate pair.
+    public int rttMs;
+
+    public int streamCount;
+    public final int[] ssrc = new int[MAX_STREAMS];
+    public final int[] flags = new int[MAX_STREAMS];
+    // Cumulative counters, sent or received depending on FLAG_SEND.
+    public final long[] bytes = new long[MAX_STREAMS];
+    public final long[] packets = new long[MAX_STREAMS];
+    public final long[] packetsLost = new long[MAX_STREAMS];
+    // Over the last interval.
+    public final int[] bitrateBps = new int[MAX_STREAMS];
+    public final int[] packetLossPermille = new int[MAX_STREAMS];
+    public final int[] jitterMs = new int[MAX_STREAMS];
+    public final int[] streamRttMs = new int[MAX_STREAMS];
+    public final int[] frameRate = new int[MAX_STREAMS];
+    public final int[] encodeMs = new int[MAX_STREAMS];
+    public final int[] frameWidth = new int[MAX_STREAMS];
+    public final int[] frameHeight = new int[MAX_STREAMS];
+    // Received video: jitter buffer, decode and render delay of the last frame.
+    public final int[] delayMs = new int[MAX_STREAMS];
+
+    public StatsSnapshot() {
+        clear();
+    }
+
+    public void clear() {
+        timestampMs = 0;
+        intervalMs = 0;
+        availableSendBandwidthBps = UNKNOWN;
+        availableReceiveBandwidthBps = UNKNOWN;
+        targetEncodeBitrateBps = UNKNOWN;
+        actualEncodeBitrateBps = UNKNOWN;
+        rttMs = UNKNOWN;
+        streamCount = 0;
+    }
+
+    /**
+     * Returns the row of |ssrc| with |flags|, or -1.
+     */
+    public int findStream(int ssrc, int flags) {
+        for (int i = 0; i < streamCount; i++) {
+            if (this.ssrc[i] == ssrc && this.flags[i] == flags) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the first row with |flags|, e.g. the sent video stream, or -1.
+     */
+    public int findStream(int flags) {
+        for (int i = 0; i < streamCount; i++) {
+            if (this.flags[i] == flags) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Adds an empty row, or returns -1 if the table is full.
+    int addStream(int ssrc, int flags) {
+        if (streamCount == MAX_STREAMS) {
+            return -1;
+        }
+        int i = streamCount++;
+        this.ssrc[i] = ssrc;
+        this.flags[i] = flags;
+        bytes[i] = UNKNOWN;
+        packets[i] = UNKNOWN;
+        packetsLost[i] = UNKNOWN;
+        bitrateBps[i] = UNKNOWN;
+        packetLossPermille[i] = UNKNOWN;
+        jitterMs[i] = UNKNOWN;
+        streamRttMs[i] = UNKNOWN;
+        frameRate[i] = UNKNOWN;
+        encodeMs[i] = UNKNOWN;
+        frameWidth[i] = UNKNOWN;
+        frameHeight[i] = UNKNOWN;
+        delayMs[i] = UNKNOWN;
+        return i;
+    }
+
+    public void copyFrom(StatsSnapshot other) {
+        timestampMs = other.timestampMs;
+        intervalMs = other.intervalMs;
+        availableSendBandwidthBps = other.availableSendBandwidthBps;
+        availableReceiveBandwidthBps = other.availableReceiveBandwidthBps;
+        targetEncodeBitrateBps = other.targetEncodeBitrateBps;
+        actualEncodeBitrateBps = other.actualEncodeBitrateBps;
+        rttMs = other.rttMs;
+        streamCount = other.streamCount;
+        int n = streamCount;
+        System.arraycopy(other.ssrc, 0, ssrc, 0, n);
+        System.arraycopy(other.flags, 0, flags, 0, n);
+        System.arraycopy(other.bytes, 0, bytes, 0, n);
+        System.arraycopy(other.packets, 0, packets, 0, n);
+        System.arraycopy(other.packetsLost, 0, packetsLost, 0, n);
+        System.arraycopy(other.bitrateBps, 0, bitrateBps, 0, n);
+        System.arraycopy(other.packetLossPermille, 0, packetLossPermille, 0, n);
+        System.arraycopy(other.jitterMs, 0, jitterMs, 0, n);
+        System.arraycopy(other.streamRttMs, 0, streamRttMs, 0, n);
+        System.arraycopy(other.frameRate, 0, frameRate, 0, n);
+        System.arraycopy(other.encodeMs, 0, encodeMs, 0, n);
+        System.arraycopy(other.frameWidth, 0, frameWidth, 0, n);
+        System.arraycopy(other.frameHeight, 0, frameHeight, 0, n);
+        System.arraycopy(other.delayMs, 0, delayMs, 0, n);
+    }
+
+    int getRecordBytes() {
+        return RECORD_HEADER_BYTES + streamCount * RECORD_STREAM_BYTES;
+    }
+
+    /**
+     * Writes the snapshot as one binary record. Cumulative byte and packet counters are left
+     * out; per-stream values are clamped to 16 bits except the bitrate and lost packets.
+     */
+    void writeTo(ByteBuffer out) {
+        out.putLong(timestampMs);
+        out.putInt(intervalMs);
+        out.putInt(availableSendBandwidthBps);
+        out.putInt(availableReceiveBandwidthBps);
+        out.putInt(actualEncodeBitrateBps);
+        out.putInt(rttMs);
+        out.put((byte) streamCount);
+        for (int i = 0; i < streamCount; i++) {
+            out.putInt(ssrc[i]);
+            out.put((byte) flags[i]);
+            out.putInt(bitrateBps[i]);
+            out.putInt((int) Math.min(packetsLost[i], Integer.MAX_VALUE));
+            out.putShort(clampShort(packetLossPermille[i]));
+            out.putShort(clampShort(jitterMs[i]));
+            out.putShort(clampShort(streamRttMs[i]));
+            out.putShort(clampShort(frameRate[i]));
+            out.putShort(clampShort(encodeMs[i]));
+            out.putShort(clampShort(frameWidth[i]));
+            out.putShort(clampShort(frameHeight[i]));
+            out.putShort(clampShort(delayMs[i]));
+        }
+    }
+
+    /**
+     * Reads a record written by {@link StatsEngine#dump}. Values that are not dumped are set
+     * to {@link #UNKNOWN}.
+     */
+    public void readFrom(ByteBuffer in) {
+        clear();
+        timestampMs = in.getLong();
+        intervalMs = in.getInt();
+        availableSendBandwidthBps = in.getInt();
+        availableReceiveBandwidthBps = in.getInt();
+        actualEncodeBitrateBps = in.getInt();
+        rttMs = in.getInt();
+        int count = in.get();
+        for (int n = 0; n < count; n++) {
+            int i = addStream(in.getInt(), in.get());
+            bitrateBps[i] = in.getInt();
+            packetsLost[i] = in.getInt();
+            packetLossPermille[i] = in.getShort();
+            jitterMs[i] = in.getShort();
+            streamRttMs[i] = in.getShort();
+            frameRate[i] = in.getShort();
+            encodeMs[i] = in.getShort();
+            frameWidth[i] = in.getShort();
+            frameHeight[i] = in.getShort();
+            delayMs[i] = in.getShort();
+        }
+    }
+
+    private static short clampShort(int value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+}
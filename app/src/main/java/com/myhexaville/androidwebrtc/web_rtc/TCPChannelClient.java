@@ -14,31 +14,59 @@ import android.util.Log;
 
 import org.webrtc.ThreadUtils;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.myhexaville.androidwebrtc.util.Constants.TCP_MAX_FRAME_BYTES;
+import static com.myhexaville.androidwebrtc.util.Constants.TCP_READ_BUFFER_BYTES;
 
 /**
  * Replacement for WebSocketChannelClient for direct communication between two IP addresses. Handles
  * the signaling between the two clients using a TCP connection.
  * <p>
+ * <p>All sockets are non-blocking and served by a single selector thread. Each message is sent as
+ * a frame: a 4-byte big-endian payload length followed by the UTF-8 payload, so messages may
+ * contain line breaks. Queued messages are written with one gathering write.
+ * <p>
  * <p>All public methods should be called from a looper executor thread
  * passed in a constructor, otherwise exception will be thrown.
  * All events are dispatched on the same thread.
  */
 public class TCPChannelClient {
     private static final String TAG = "TCPChannelClient";
+    // Upper bound of buffers passed to a single gathering write.
+    private static final int MAX_GATHER_BUFFERS = 32;
 
     private final ExecutorService executor;
     private final ThreadUtils.ThreadChecker executorThreadCheck;
     private final TCPChannelEvents eventListener;
-    private TCPSocket socket;
+    // Frames queued on the executor thread, written by the selector thread.
+    private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private SelectorThread selectorThread;
+    // Set by the selector thread once connected, cleared when the connection is lost.
+    private volatile SocketChannel peerChannel;
+    private volatile boolean flushPending;
+    private volatile boolean closed;
+    // Only used on the executor thread.
+    private boolean connected;
 
     /**
      * Callback interface for messages delivered on TCP Connection. All callbacks are invoked from the
@@ -77,13 +105,15 @@ public class TCPChannelClient {
             return;
         }
 
-        if (address.isAnyLocalAddress()) {
-            socket = new TCPSocketServer(address, port);
-        } else {
-            socket = new TCPSocketClient(address, port);
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            reportError("Failed to open selector: " + e.getMessage());
+            return;
         }
 
-        socket.start();
+        selectorThread = new SelectorThread(address, port, address.isAnyLocalAddress());
+        selectorThread.start();
     }
 
     /**
@@ -92,18 +122,41 @@ public class TCPChannelClient {
     public void disconnect() {
         executorThreadCheck.checkIsOnValidThread();
 
-        socket.disconnect();
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        closeQuietly(peerChannel);
+        peerChannel = null;
+        if (selectorThread != null) {
+            closeQuietly(selectorThread.serverChannel);
+            selector.wakeup();
+        }
+
+        if (connected) {
+            dispatch(eventListener::onTCPClose);
+        }
     }
 
     /**
-     * Sends a message on the socket.
+     * Sends a message to the other party.
      *
      * @param message Message to be sent.
      */
     public void send(String message) {
         executorThreadCheck.checkIsOnValidThread();
 
-        socket.send(message);
+        if (peerChannel == null) {
+            reportError("Sending data on closed socket.");
+            return;
+        }
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        Log.v(TAG, "Send " + payload.length + " bytes");
+        writeQueue.add(TCPFrameDecoder.encodeHeader(payload.length));
+        writeQueue.add(ByteBuffer.wrap(payload));
+        flushPending = true;
+        selector.wakeup();
     }
 
     /**
@@ -111,240 +164,251 @@ public class TCPChannelClient {
      */
     private void reportError(final String message) {
         Log.e(TAG, "TCP Error: " + message);
-        executor.execute(() -> eventListener.onTCPError(message));
+        dispatch(() -> eventListener.onTCPError(message));
     }
 
-    /**
-     * Base class for server and client sockets. Contains a listening thread that will call
-     * eventListener.onTCPMessage on new messages.
-     */
-    private abstract class TCPSocket extends Thread {
-        // Lock for editing out and rawSocket
-        protected final Object rawSocketLock;
-        private PrintWriter out;
-        private Socket rawSocket;
-
-        /**
-         * Connect to the peer, potentially a slow operation.
-         *
-         * @return Socket connection, null if connection failed.
-         */
-        public abstract Socket connect();
+    // Events may still arrive from the selector thread after the owner shut the executor down.
+    private void dispatch(Runnable event) {
+        try {
+            executor.execute(event);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Dropping event, executor is shut down.");
+        }
+    }
 
-        /**
-         * Returns true if sockets is a server rawSocket.
-         */
-        public abstract boolean isServer();
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close channel: " + e.getMessage());
+        }
+    }
 
-        TCPSocket() {
-            rawSocketLock = new Object();
+    /**
+     * The selector thread. Opens the listening or connecting channel, then serves the accept,
+     * connect, reads and writes of the connection until the client is disconnected.
+     */
+    private class SelectorThread extends Thread {
+        private final InetAddress address;
+        private final int port;
+        private final boolean server;
+        private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+        private final TCPFrameDecoder decoder =
+                new TCPFrameDecoder(TCP_READ_BUFFER_BYTES, TCP_MAX_FRAME_BYTES);
+        private final List<String> decoded = new ArrayList<>();
+        private SelectionKey peerKey;
+        // Closed from the executor thread on disconnect.
+        volatile ServerSocketChannel serverChannel;
+
+        SelectorThread(InetAddress address, int port, boolean server) {
+            super(TAG);
+            this.address = address;
+            this.port = port;
+            this.server = server;
         }
 
-        /**
-         * The listening thread.
-         */
         @Override
         public void run() {
-            Log.d(TAG, "Listening thread started...");
-
-            // Receive connection to temporary variable first, so we don't block.
-            Socket tempSocket = connect();
-            BufferedReader in;
-
-            Log.d(TAG, "TCP connection established.");
-
-            synchronized (rawSocketLock) {
-                if (rawSocket != null) {
-                    Log.e(TAG, "Socket already existed and will be replaced.");
-                }
-
-                rawSocket = tempSocket;
-
-                // Connecting failed, error has already been reported, just exit.
-                if (rawSocket == null) {
-                    return;
-                }
-
-                try {
-                    out = new PrintWriter(rawSocket.getOutputStream(), true);
-                    in = new BufferedReader(new InputStreamReader(rawSocket.getInputStream()));
-                } catch (IOException e) {
-                    reportError("Failed to open IO on rawSocket: " + e.getMessage());
-                    return;
+            Log.d(TAG, "Selector thread started...");
+            try {
+                if (server) {
+                    listen();
+                } else {
+                    connect();
                 }
-            }
-
-            Log.v(TAG, "Execute onTCPConnected");
-            executor.execute(() -> {
-                Log.v(TAG, "Run onTCPConnected");
-                eventListener.onTCPConnected(isServer());
-            });
-
-            while (true) {
-                final String message;
-                try {
-                    message = in.readLine();
-                } catch (IOException e) {
-                    synchronized (rawSocketLock) {
-                        // If socket was closed, this is expected.
-                        if (rawSocket == null) {
-                            break;
-                        }
+                while (!closed) {
+                    selector.select();
+                    if (closed) {
+                        break;
+                    }
+                    if (flushPending && peerKey != null && peerKey.isValid()) {
+                        flushPending = false;
+                        flush();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
                     }
-
-                    reportError("Failed to read from rawSocket: " + e.getMessage());
-                    break;
                 }
-
-                // No data received, rawSocket probably closed.
-                if (message == null) {
-                    break;
+            } catch (IOException e) {
+                if (!closed) {
+                    reportError("Selector failed: " + e.getMessage());
                 }
-
-                executor.execute(() -> {
-                    Log.v(TAG, "Receive: " + message);
-                    eventListener.onTCPMessage(message);
-                });
+            } catch (RuntimeException e) {
+                // E.g. an unusable address; report it rather than crash the app.
+                Log.e(TAG, "Selector thread failed", e);
+                if (!closed) {
+                    reportError("Selector failed: " + e);
+                }
+            } finally {
+                closeQuietly(serverChannel);
+                closeQuietly(selector);
             }
+            Log.d(TAG, "Selector thread exiting...");
+        }
 
-            Log.d(TAG, "Receiving thread exiting...");
+        private void listen() throws IOException {
+            Log.d(TAG, "Listening on [" + address.getHostAddress() + "]:" + Integer.toString(port));
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            serverChannel = channel;
+            try {
+                channel.socket().bind(new InetSocketAddress(address, port));
+            } catch (IOException e) {
+                throw new IOException("Failed to create server socket: " + e.getMessage(), e);
+            }
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+        }
 
-            // Close the rawSocket if it is still open.
-            disconnect();
+        private void connect() throws IOException {
+            Log.d(TAG, "Connecting to [" + address.getHostAddress() + "]:" + Integer.toString(port));
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(address, port))) {
+                onConnected(channel);
+            } else {
+                peerKey = channel.register(selector, SelectionKey.OP_CONNECT);
+            }
         }
 
-        /**
-         * Closes the rawSocket if it is still open. Also fires the onTCPClose event.
-         */
-        public void disconnect() {
+        private void handle(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
             try {
-                synchronized (rawSocketLock) {
-                    if (rawSocket != null) {
-                        rawSocket.close();
-                        rawSocket = null;
-                        out = null;
-
-                        executor.execute(() -> eventListener.onTCPClose());
+                if (key.isAcceptable()) {
+                    accept();
+                    return;
+                }
+                if (key.isConnectable()) {
+                    try {
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        if (channel.finishConnect()) {
+                            onConnected(channel);
+                        }
+                    } catch (IOException e) {
+                        reportError("Failed to connect: " + e.getMessage());
+                        closeConnection();
                     }
+                    return;
+                }
+                if (key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
                 }
             } catch (IOException e) {
-                reportError("Failed to close rawSocket: " + e.getMessage());
+                if (!closed) {
+                    reportError("Connection failed: " + e.getMessage());
+                    closeConnection();
+                }
+            } catch (CancelledKeyException e) {
+                // disconnect() closed the channel meanwhile.
             }
         }
 
-        /**
-         * Sends a message on the socket. Should only be called on the executor thread.
-         */
-        public void send(String message) {
-            Log.v(TAG, "Send: " + message);
-
-            synchronized (rawSocketLock) {
-                if (out == null) {
-                    reportError("Sending data on closed socket.");
+        private void accept() {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+                if (channel == null) {
                     return;
                 }
-
-                out.write(message + "\n");
-                out.flush();
+                if (peerChannel != null) {
+                    Log.w(TAG, "Rejecting connection, already connected.");
+                    closeQuietly(channel);
+                    return;
+                }
+                channel.configureBlocking(false);
+                onConnected(channel);
+            } catch (IOException e) {
+                if (!closed) {
+                    reportError("Failed to receive connection: " + e.getMessage());
+                }
             }
         }
-    }
-
-    private class TCPSocketServer extends TCPSocket {
-        // Server socket is also guarded by rawSocketLock.
-        private ServerSocket serverSocket;
-
-        final private InetAddress address;
-        final private int port;
 
-        public TCPSocketServer(InetAddress address, int port) {
-            this.address = address;
-            this.port = port;
+        private void onConnected(SocketChannel channel) throws IOException {
+            channel.socket().setTcpNoDelay(true);
+            peerKey = channel.register(selector, SelectionKey.OP_READ);
+            peerChannel = channel;
+            Log.d(TAG, "TCP connection established.");
+            dispatch(() -> {
+                connected = true;
+                eventListener.onTCPConnected(server);
+            });
         }
 
         /**
-         * Opens a listening socket and waits for a connection.
+         * Reads what is available and dispatches every complete frame.
          */
-        @Override
-        public Socket connect() {
-            Log.d(TAG, "Listening on [" + address.getHostAddress() + "]:" + Integer.toString(port));
-
-            final ServerSocket tempSocket;
-            try {
-                tempSocket = new ServerSocket(port, 0, address);
-            } catch (IOException e) {
-                reportError("Failed to create server socket: " + e.getMessage());
-                return null;
+        private void read() throws IOException {
+            SocketChannel channel = (SocketChannel) peerKey.channel();
+            if (channel.read(decoder.getReadBuffer()) < 0) {
+                // No data received, peer closed the connection.
+                closeConnection();
+                return;
             }
-
-            synchronized (rawSocketLock) {
-                if (serverSocket != null) {
-                    Log.e(TAG, "Server rawSocket was already listening and new will be opened.");
-                }
-
-                serverSocket = tempSocket;
-            }
-
-            try {
-                return tempSocket.accept();
-            } catch (IOException e) {
-                reportError("Failed to receive connection: " + e.getMessage());
-                return null;
+            decoded.clear();
+            decoder.decode(decoded);
+            for (final String message : decoded) {
+                dispatch(() -> {
+                    Log.v(TAG, "Receive: " + message);
+                    eventListener.onTCPMessage(message);
+                });
             }
         }
 
         /**
-         * Closes the listening socket and calls super.
+         * Writes queued frames with gathering writes until the queue is empty or the socket
+         * buffer is full, in which case the rest is written on OP_WRITE.
          */
-        @Override
-        public void disconnect() {
+        private void flush() throws IOException {
+            SocketChannel channel = (SocketChannel) peerKey.channel();
+            ByteBuffer[] batch = gatherBuffers;
             try {
-                synchronized (rawSocketLock) {
-                    if (serverSocket != null) {
-                        serverSocket.close();
-                        serverSocket = null;
+                while (true) {
+                    int count = 0;
+                    for (ByteBuffer queued : writeQueue) {
+                        if (count == batch.length) {
+                            break;
+                        }
+                        batch[count++] = queued;
+                    }
+                    if (count == 0) {
+                        peerKey.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                    channel.write(batch, 0, count);
+                    ByteBuffer head;
+                    while ((head = writeQueue.peek()) != null && !head.hasRemaining()) {
+                        writeQueue.poll();
+                    }
+                    if (batch[count - 1].hasRemaining()) {
+                        peerKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
                     }
                 }
-            } catch (IOException e) {
-                reportError("Failed to close server socket: " + e.getMessage());
+            } catch (CancelledKeyException e) {
+                // disconnect() closed the channel meanwhile; the queue is dropped with it.
+            } finally {
+                Arrays.fill(batch, null);
             }
-
-            super.disconnect();
-        }
-
-        @Override
-        public boolean isServer() {
-            return true;
         }
-    }
-
-    private class TCPSocketClient extends TCPSocket {
-        final private InetAddress address;
-        final private int port;
 
-        public TCPSocketClient(InetAddress address, int port) {
-            this.address = address;
-            this.port = port;
-        }
-
-        /**
-         * Connects to the peer.
-         */
-        @Override
-        public Socket connect() {
-            Log.d(TAG, "Connecting to [" + address.getHostAddress() + "]:" + Integer.toString(port));
-
-            try {
-                return new Socket(address, port);
-            } catch (IOException e) {
-                reportError("Failed to connect: " + e.getMessage());
-                return null;
+        // Losing the connection closes the whole client.
+        private void closeConnection() {
+            if (peerKey != null) {
+                closeQuietly(peerKey.channel());
             }
-        }
-
-        @Override
-        public boolean isServer() {
-            return false;
+            Log.d(TAG, "Connection closed.");
+            dispatch(TCPChannelClient.this::disconnect);
         }
     }
 }
@@ -0,0 +1,81 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Splits the byte stream of a {@link TCPChannelClient} connection into messages. Each
+ * message is a frame: a 4-byte big-endian payload length followed by the UTF-8 payload.
+ * <p>
+ * <p>Bytes are read into {@link #getReadBuffer()}, which may hold partial frames between
+ * reads and grows for frames larger than it, up to |maxFrameBytes| of payload.
+ */
+final class TCPFrameDecoder {
+    static final int HEADER_BYTES = 4;
+
+    private final int maxFrameBytes;
+    private ByteBuffer readBuffer;
+    private byte[] decodeBuffer;
+
+    TCPFrameDecoder(int bufferBytes, int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+        readBuffer = ByteBuffer.allocateDirect(bufferBytes);
+        decodeBuffer = new byte[bufferBytes];
+    }
+
+    /**
+     * Returns the header of a frame with |payloadLength| bytes of payload.
+     */
+    static ByteBuffer encodeHeader(int payloadLength) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(0, payloadLength);
+        return header;
+    }
+
+    /**
+     * Returns the buffer to read into. May change after {@link #decode}.
+     */
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * Appends every complete frame read so far to |messages| and keeps the rest for the next
+     * read.
+     *
+     * @throws IOException if a frame length is negative or larger than |maxFrameBytes|; the
+     *                     stream can't be resynchronized after that.
+     */
+    void decode(List<String> messages) throws IOException {
+        ByteBuffer buffer = readBuffer;
+        buffer.flip();
+        int needed = 0;
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int length = buffer.getInt(buffer.position());
+            if (length < 0 || length > maxFrameBytes) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            if (buffer.remaining() < HEADER_BYTES + length) {
+                needed = HEADER_BYTES + length;
+                break;
+            }
+            buffer.position(buffer.position() + HEADER_BYTES);
+            if (decodeBuffer.length < length) {
+                decodeBuffer = new byte[Math.max(length, decodeBuffer.length * 2)];
+            }
+            buffer.get(decodeBuffer, 0, length);
+            messages.add(new String(decodeBuffer, 0, length, StandardCharsets.UTF_8));
+        }
+        buffer.compact();
+        if (needed > buffer.capacity()) {
+            // Frame larger than the buffer, e.g. an SDP with many codecs.
+            ByteBuffer larger = ByteBuffer.allocateDirect(
+                    Math.min(Math.max(needed, buffer.capacity() * 2), maxFrameBytes + HEADER_BYTES));
+            buffer.flip();
+            larger.put(buffer);
+            readBuffer = larger;
+        }
+    }
+}
@@ -17,8 +17,6 @@ import android.util.Log;
 import com.myhexaville.androidwebrtc.util.AsyncHttpURLConnection;
 import com.myhexaville.androidwebrtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -41,6 +39,8 @@ public class WebSocketChannelClient {
     private static final int CLOSE_TIMEOUT = 1000;
     private final WebSocketChannelEvents events;
     private final Handler handler;
+    // Only used on |handler|.
+    private final SignalingCodec codec = new SignalingCodec();
     private WebSocketConnection ws;
     private WebSocketObserver wsObserver;
     private String wsServerUrl;
@@ -117,22 +117,15 @@ public class WebSocketChannelClient {
             return;
         }
         Log.d(TAG, "Registering WebSocket for room " + roomID + ". ClientID: " + clientID);
-        JSONObject json = new JSONObject();
-        try {
-            json.put("cmd", "register");
-            json.put("roomid", roomID);
-            json.put("clientid", clientID);
-            Log.d(TAG, "C->WSS: " + json.toString());
-            ws.sendTextMessage(json.toString());
-            state = WebSocketConnectionState.REGISTERED;
-            // Send any previously accumulated messages.
-            for (String sendMessage : wsSendQueue) {
-                send(sendMessage);
-            }
-            wsSendQueue.clear();
-        } catch (JSONException e) {
-            reportError("WebSocket register JSON error: " + e.getMessage());
+        String registerMessage = codec.encodeRegisterCommand(roomID, clientID);
+        Log.d(TAG, "C->WSS: " + registerMessage);
+        ws.sendTextMessage(registerMessage);
+        state = WebSocketConnectionState.REGISTERED;
+        // Send any previously accumulated messages.
+        for (String sendMessage : wsSendQueue) {
+            send(sendMessage);
         }
+        wsSendQueue.clear();
     }
 
     public void send(String message) {
@@ -150,16 +143,9 @@ public class WebSocketChannelClient {
                 Log.e(TAG, "WebSocket send() in error or closed state : " + message);
                 return;
             case REGISTERED:
-                JSONObject json = new JSONObject();
-                try {
-                    json.put("cmd", "send");
-                    json.put("msg", message);
-                    message = json.toString();
-                    Log.d(TAG, "C->WSS: " + message);
-                    ws.sendTextMessage(message);
-                } catch (JSONException e) {
-                    reportError("WebSocket send JSON error: " + e.getMessage());
-                }
+                message = codec.encodeSendCommand(message);
+                Log.d(TAG, "C->WSS: " + message);
+                ws.sendTextMessage(message);
                 break;
         }
     }
@@ -176,7 +162,7 @@ public class WebSocketChannelClient {
         Log.d(TAG, "Disconnect WebSocket. State: " + state);
         if (state == WebSocketConnectionState.REGISTERED) {
             // Send "bye" to WebSocket server.
-            send("{\"type\": \"bye\"}");
+            send(codec.encodeBye());
             state = WebSocketConnectionState.CONNECTED;
             // Send http DELETE to http WebSocket server.
             sendWSSMessage("DELETE", "");
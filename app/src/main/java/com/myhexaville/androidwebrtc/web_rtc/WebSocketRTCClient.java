@@ -12,18 +12,25 @@ package com.myhexaville.androidwebrtc.web_rtc;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.myhexaville.androidwebrtc.util.AsyncHttpURLConnection;
 import com.myhexaville.androidwebrtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
 import com.myhexaville.androidwebrtc.web_rtc.RoomParametersFetcher.RoomParametersFetcherEvents;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.myhexaville.androidwebrtc.util.Constants.ICE_CANDIDATE_BATCH_MAX_COUNT;
+import static com.myhexaville.androidwebrtc.util.Constants.ICE_CANDIDATE_BATCH_WINDOW_MS;
+
 /**
  * Negotiates signaling for chatting with https://appr.tc "rooms".
  * Uses the client<->server specifics of the apprtc AppEngine webapp.
@@ -33,6 +40,12 @@ import org.webrtc.SessionDescription;
  * onConnectedToRoom() callback with room parameters is invoked.
  * Messages to other party (with local Ice candidates and answer SDP) can
  * be sent after WebSocket connection is established.
+ * <p>
+ * <p>Local ICE candidates are coalesced: a candidate that follows the previous send by more
+ * than ICE_CANDIDATE_BATCH_WINDOW_MS goes out immediately, while candidates gathered in a
+ * burst are collected until the window ends or ICE_CANDIDATE_BATCH_MAX_COUNT is reached and
+ * sent together. They go as one "candidates" message only once the other party's offer or
+ * answer says it accepts batches; the appr.tc web client only knows "candidate" messages.
  */
 public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.WebSocketChannelEvents {
     private static final String TAG = "WSRTCClient";
@@ -45,6 +58,8 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
     private enum MessageType {MESSAGE, LEAVE}
 
     private final Handler handler;
+    // Only used on |handler|.
+    private final SignalingCodec codec = new SignalingCodec();
     private boolean initiator;
     private SignalingEvents events;
     private WebSocketChannelClient wsClient;
@@ -52,6 +67,13 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
     private RoomConnectionParameters connectionParameters;
     private String messageUrl;
     private String leaveUrl;
+    // Local candidates waiting for the batch window to end. Only accessed on |handler|.
+    private final List<IceCandidate> pendingCandidates = new ArrayList<>();
+    private final Runnable flushCandidatesTask = this::flushLocalIceCandidates;
+    private boolean candidateFlushScheduled;
+    private long lastCandidateSendMs = -ICE_CANDIDATE_BATCH_WINDOW_MS;
+    // Set once the other party's offer or answer advertises batch support.
+    private boolean peerBatchesCandidates;
 
     public WebSocketRTCClient(SignalingEvents events) {
         this.events = events;
@@ -104,6 +126,9 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
     // Disconnect from room and send bye messages - runs on a local looper thread.
     private void disconnectFromRoomInternal() {
         Log.d(TAG, "Disconnect. Room state: " + roomState);
+        handler.removeCallbacks(flushCandidatesTask);
+        candidateFlushScheduled = false;
+        pendingCandidates.clear();
         if (roomState == ConnectionState.CONNECTED) {
             Log.d(TAG, "Closing room.");
             sendPostMessage(MessageType.LEAVE, leaveUrl, null);
@@ -112,6 +137,7 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
         if (wsClient != null) {
             wsClient.disconnect(true);
         }
+        Log.d(TAG, "HTTP signaling: " + AsyncHttpURLConnection.getMetricsSummary());
     }
 
     // Helper functions to get connection, post message and leave message URLs
@@ -145,6 +171,7 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
             Log.w(TAG, "No offer SDP in room response.");
         }
         initiator = signalingParameters.initiator;
+        peerBatchesCandidates = signalingParameters.offerBatchesCandidates;
         messageUrl = getMessageUrl(connectionParameters, signalingParameters);
         leaveUrl = getLeaveUrl(connectionParameters, signalingParameters);
         Log.d(TAG, "Message URL: " + messageUrl);
@@ -168,10 +195,8 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
                 return;
             }
             Log.wtf(TAG, "-----------send------------");
-            JSONObject json = new JSONObject();
-            jsonPut(json, "sdp", sdp.description);
-            jsonPut(json, "type", "offer");
-            sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+            sendPostMessage(MessageType.MESSAGE, messageUrl,
+                    codec.encodeSdp(SignalingMessage.Type.OFFER, sdp.description));
             if (connectionParameters.loopback) {
                 // In loopback mode rename this offer to answer and route it back.
                 SessionDescription sdpAnswer = new SessionDescription(
@@ -189,10 +214,7 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
                 Log.e(TAG, "Sending answer in loopback mode.");
                 return;
             }
-            JSONObject json = new JSONObject();
-            jsonPut(json, "sdp", sdp.description);
-            jsonPut(json, "type", "answer");
-            wsClient.send(json.toString());
+            wsClient.send(codec.encodeSdp(SignalingMessage.Type.ANSWER, sdp.description));
         });
     }
 
@@ -200,52 +222,89 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
     @Override
     public void sendLocalIceCandidate(final IceCandidate candidate) {
         handler.post(() -> {
-            JSONObject json = new JSONObject();
-            jsonPut(json, "type", "candidate");
-            jsonPut(json, "label", candidate.sdpMLineIndex);
-            jsonPut(json, "id", candidate.sdpMid);
-            jsonPut(json, "candidate", candidate.sdp);
-            if (initiator) {
-                // Call initiator sends ice candidates to GAE server.
-                if (roomState != ConnectionState.CONNECTED) {
-                    reportError("Sending ICE candidate in non connected state.");
-                    return;
-                }
-                sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
-                if (connectionParameters.loopback) {
-                    events.onRemoteIceCandidate(candidate);
+            pendingCandidates.add(candidate);
+            if (candidateFlushScheduled) {
+                if (pendingCandidates.size() >= ICE_CANDIDATE_BATCH_MAX_COUNT) {
+                    handler.removeCallbacks(flushCandidatesTask);
+                    flushLocalIceCandidates();
                 }
+                return;
+            }
+            long sinceLastSendMs = SystemClock.uptimeMillis() - lastCandidateSendMs;
+            if (sinceLastSendMs >= ICE_CANDIDATE_BATCH_WINDOW_MS) {
+                // Not in a burst; do not delay the candidate.
+                flushLocalIceCandidates();
             } else {
-                // Call receiver sends ice candidates to websocket server.
-                wsClient.send(json.toString());
+                candidateFlushScheduled = true;
+                handler.postDelayed(flushCandidatesTask, ICE_CANDIDATE_BATCH_WINDOW_MS - sinceLastSendMs);
             }
         });
     }
 
+    // Sends all pending local candidates: as one "candidates" message if the other party
+    // accepts batches, otherwise as back to back "candidate" messages.
+    private void flushLocalIceCandidates() {
+        candidateFlushScheduled = false;
+        if (pendingCandidates.isEmpty()) {
+            return;
+        }
+        lastCandidateSendMs = SystemClock.uptimeMillis();
+        IceCandidate[] candidates = pendingCandidates.toArray(new IceCandidate[pendingCandidates.size()]);
+        if (initiator && roomState != ConnectionState.CONNECTED) {
+            pendingCandidates.clear();
+            reportError("Sending ICE candidate in non connected state.");
+            return;
+        }
+        if (peerBatchesCandidates && candidates.length > 1) {
+            sendCandidateMessage(
+                    codec.encodeCandidates(SignalingMessage.Type.CANDIDATES, pendingCandidates));
+        } else {
+            for (IceCandidate candidate : candidates) {
+                sendCandidateMessage(codec.encodeCandidate(candidate));
+            }
+        }
+        pendingCandidates.clear();
+        if (initiator && connectionParameters.loopback) {
+            for (IceCandidate candidate : candidates) {
+                events.onRemoteIceCandidate(candidate);
+            }
+        }
+    }
+
+    private void sendCandidateMessage(String message) {
+        if (initiator) {
+            // Call initiator sends ice candidates to GAE server.
+            sendPostMessage(MessageType.MESSAGE, messageUrl, message);
+        } else {
+            // Call receiver sends ice candidates to websocket server.
+            wsClient.send(message);
+        }
+    }
+
     // Send removed Ice candidates to the other participant.
     @Override
     public void sendLocalIceCandidateRemovals(final IceCandidate[] candidates) {
         handler.post(() -> {
-            JSONObject json = new JSONObject();
-            jsonPut(json, "type", "remove-candidates");
-            JSONArray jsonArray = new JSONArray();
-            for (final IceCandidate candidate : candidates) {
-                jsonArray.put(toJsonCandidate(candidate));
+            // Removals must not overtake the candidates they remove.
+            if (candidateFlushScheduled) {
+                handler.removeCallbacks(flushCandidatesTask);
+                flushLocalIceCandidates();
             }
-            jsonPut(json, "candidates", jsonArray);
+            String message = codec.encodeCandidates(
+                    SignalingMessage.Type.REMOVE_CANDIDATES, Arrays.asList(candidates));
             if (initiator) {
                 // Call initiator sends ice candidates to GAE server.
                 if (roomState != ConnectionState.CONNECTED) {
                     reportError("Sending ICE candidate removals in non connected state.");
                     return;
                 }
-                sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+                sendPostMessage(MessageType.MESSAGE, messageUrl, message);
                 if (connectionParameters.loopback) {
                     events.onRemoteIceCandidatesRemoved(candidates);
                 }
             } else {
                 // Call receiver sends ice candidates to websocket server.
-                wsClient.send(json.toString());
+                wsClient.send(message);
             }
         });
     }
@@ -261,51 +320,48 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
             return;
         }
         try {
-            JSONObject json = new JSONObject(msg);
-            String msgText = json.getString("msg");
-            String errorText = json.optString("error");
-            if (msgText.length() > 0) {
-                json = new JSONObject(msgText);
-                String type = json.optString("type");
-                if (type.equals("candidate")) {
-                    events.onRemoteIceCandidate(toJavaCandidate(json));
-                } else if (type.equals("remove-candidates")) {
-                    JSONArray candidateArray = json.getJSONArray("candidates");
-                    IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
-                    for (int i = 0; i < candidateArray.length(); ++i) {
-                        candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
+            SignalingMessage.Envelope envelope = codec.decodeEnvelope(msg);
+            if (envelope.message == null) {
+                if (envelope.error != null && envelope.error.length() > 0) {
+                    reportError("WebSocket error message: " + envelope.error);
+                } else {
+                    reportError("Unexpected WebSocket message: " + msg);
+                }
+                return;
+            }
+            SignalingMessage message = envelope.message;
+            switch (message.type) {
+                case CANDIDATE:
+                case CANDIDATES:
+                    for (IceCandidate candidate : ((SignalingMessage.Candidates) message).candidates) {
+                        events.onRemoteIceCandidate(candidate);
                     }
-                    events.onRemoteIceCandidatesRemoved(candidates);
-                } else if (type.equals("answer")) {
+                    break;
+                case REMOVE_CANDIDATES:
+                    events.onRemoteIceCandidatesRemoved(((SignalingMessage.Candidates) message).toArray());
+                    break;
+                case ANSWER:
                     if (initiator) {
-                        SessionDescription sdp = new SessionDescription(
-                                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
-                        events.onRemoteDescription(sdp);
+                        peerBatchesCandidates = ((SignalingMessage.Sdp) message).batchesCandidates;
+                        events.onRemoteDescription(((SignalingMessage.Sdp) message).toSessionDescription());
                     } else {
                         reportError("Received answer for call initiator: " + msg);
                     }
-                } else if (type.equals("offer")) {
+                    break;
+                case OFFER:
                     if (!initiator) {
-                        SessionDescription sdp = new SessionDescription(
-                                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
-                        events.onRemoteDescription(sdp);
+                        peerBatchesCandidates = ((SignalingMessage.Sdp) message).batchesCandidates;
+                        events.onRemoteDescription(((SignalingMessage.Sdp) message).toSessionDescription());
                     } else {
                         reportError("Received offer for call receiver: " + msg);
                     }
-                } else if (type.equals("bye")) {
+                    break;
+                case BYE:
                     events.onChannelClose();
-                } else {
-                    reportError("Unexpected WebSocket message: " + msg);
-                }
-            } else {
-                if (errorText != null && errorText.length() > 0) {
-                    reportError("WebSocket error message: " + errorText);
-                } else {
-                    reportError("Unexpected WebSocket message: " + msg);
-                }
+                    break;
             }
-        } catch (JSONException e) {
-            reportError("WebSocket message JSON parsing error: " + e.toString());
+        } catch (SignalingCodecException e) {
+            reportError("WebSocket message parsing error: " + e.getMessage() + ": " + msg);
         }
     }
 
@@ -331,15 +387,6 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
         });
     }
 
-    // Put a |key|->|value| mapping in |json|.
-    private static void jsonPut(JSONObject json, String key, Object value) {
-        try {
-            json.put(key, value);
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     // Send SDP or ICE candidate to a room server.
     private void sendPostMessage(
             final MessageType messageType, final String url, final String message) {
@@ -372,19 +419,4 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
                 });
         httpConnection.send();
     }
-
-    // Converts a Java candidate to a JSONObject.
-    private JSONObject toJsonCandidate(final IceCandidate candidate) {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "label", candidate.sdpMLineIndex);
-        jsonPut(json, "id", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
-        return json;
-    }
-
-    // Converts a JSON candidate to a Java object.
-    IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
-        return new IceCandidate(
-                json.getString("id"), json.getInt("label"), json.getString("candidate"));
-    }
 }
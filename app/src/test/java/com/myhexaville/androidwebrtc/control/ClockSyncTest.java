@@ -0,0 +1,51 @@
+package com.myhexaville.androidwebrtc.control;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link ClockSync}.
+ */
+public class ClockSyncTest {
+    // Camera clock minus viewer clock.
+    private static final long OFFSET_US = 5000000000L;
+
+    @Test
+    public void usesFastestRoundTrip() {
+        ClockSync clockSync = new ClockSync(4);
+        assertFalse(clockSync.hasOffset());
+        // 10 ms there, 30 ms back: the midpoint is 10 ms off.
+        long sendUs = 7000000000L;
+        assertTrue(clockSync.onReply(sendUs + 10000 + OFFSET_US, sendUs & 0xFFFFFFFFL, sendUs + 40000));
+        assertEquals(OFFSET_US - 10000, clockSync.getOffsetUs());
+        // 2 ms each way.
+        sendUs += 1000000;
+        assertTrue(clockSync.onReply(sendUs + 2000 + OFFSET_US, sendUs & 0xFFFFFFFFL, sendUs + 4000));
+        assertEquals(OFFSET_US, clockSync.getOffsetUs());
+        assertEquals(4000, clockSync.getRoundTripUs());
+        assertEquals(123 + OFFSET_US, clockSync.toCameraUs(123));
+    }
+
+    @Test
+    public void forgetsSamplesOutsideWindow() {
+        ClockSync clockSync = new ClockSync(2);
+        long sendUs = 1000000;
+        clockSync.onReply(sendUs + 1000 + OFFSET_US, sendUs, sendUs + 2000);
+        for (int i = 0; i < 2; i++) {
+            sendUs += 1000000;
+            clockSync.onReply(sendUs + 5000 + OFFSET_US + 300, sendUs, sendUs + 10000);
+        }
+        assertEquals(OFFSET_US + 300, clockSync.getOffsetUs());
+        assertEquals(10000, clockSync.getRoundTripUs());
+    }
+
+    @Test
+    public void rejectsReplyFromTheFuture() {
+        ClockSync clockSync = new ClockSync(2);
+        assertFalse(clockSync.onReply(OFFSET_US, 2000, 1000));
+        assertFalse(clockSync.hasOffset());
+    }
+}
@@ -0,0 +1,84 @@
+package com.myhexaville.androidwebrtc.control;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit tests for {@link ControlCommandScheduler}, driven tick by tick.
+ */
+public class ControlCommandSchedulerTest {
+    private static final int REFRESH_TICKS = 25;
+
+    @Test
+    public void coalescesStepsIntoOneMove() {
+        RecordingSender sender = new RecordingSender();
+        ControlCommandScheduler scheduler = createScheduler(sender);
+        scheduler.stepPan(2);
+        scheduler.stepPan(3);
+        scheduler.stepTilt(-1);
+        scheduler.tick();
+        scheduler.tick();
+
+        assertEquals(1, sender.frames.size());
+        assertFrame(sender.frames.get(0), ControlFrame.OP_MOVE, 5, -1);
+    }
+
+    @Test
+    public void discardsStepsInAbsoluteMode() {
+        RecordingSender sender = new RecordingSender();
+        ControlCommandScheduler scheduler = createScheduler(sender);
+        scheduler.setAbsoluteTarget(1000, -500);
+        scheduler.stepPan(4);
+        scheduler.stepTilt(-3);
+        scheduler.tick();
+
+        assertEquals(1, sender.frames.size());
+        assertFrame(sender.frames.get(0), ControlFrame.OP_ABSOLUTE, 1000, -500);
+        assertEquals(7, scheduler.getDiscardedSteps());
+
+        // Steps discarded in absolute mode are not sent after leaving it; new ones are.
+        scheduler.clearAbsoluteTarget();
+        scheduler.tick();
+        assertEquals(1, sender.frames.size());
+        scheduler.stepPan(1);
+        scheduler.tick();
+        assertEquals(2, sender.frames.size());
+        assertFrame(sender.frames.get(1), ControlFrame.OP_MOVE, 1, 0);
+        assertEquals(7, scheduler.getDiscardedSteps());
+    }
+
+    private static ControlCommandScheduler createScheduler(RecordingSender sender) {
+        return new ControlCommandScheduler(sender, new RecordingSender(), new LatencyMonitor(),
+                64, REFRESH_TICKS);
+    }
+
+    private static void assertFrame(int[] frame, int opcode, int arg0, int arg1) {
+        assertEquals(opcode, frame[0]);
+        assertEquals(arg0, frame[1]);
+        assertEquals(arg1, frame[2]);
+    }
+
+    // Open channel with nothing buffered that records the frames sent.
+    private static class RecordingSender extends ControlChannelSender {
+        final List<int[]> frames = new ArrayList<>();
+
+        RecordingSender() {
+            super(null, "test");
+        }
+
+        @Override
+        public long getBufferedAmount() {
+            return 0;
+        }
+
+        @Override
+        public synchronized boolean send(int opcode, int arg0, int arg1, long timestampUs) {
+            frames.add(new int[]{opcode, arg0, arg1});
+            return true;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit tests for {@link BandwidthAdapter} fed with hand-built stats snapshots.
+ */
+public class BandwidthAdapterTest {
+
+    private static class RecordingCallback implements BandwidthAdapter.Callback {
+        int bitrateChanges;
+        int maxBitrateKbps;
+        int formatChanges;
+        int width;
+        int height;
+        int framerate;
+
+        @Override
+        public void onVideoMaxBitrate(int maxBitrateKbps) {
+            bitrateChanges++;
+            this.maxBitrateKbps = maxBitrateKbps;
+        }
+
+        @Override
+        public void onCaptureFormat(int width, int height, int framerate) {
+            formatChanges++;
+            this.width = width;
+            this.height = height;
+            this.framerate = framerate;
+        }
+    }
+
+    private final StatsSnapshot snapshot = new StatsSnapshot();
+
+    private StatsSnapshot stats(long timestampMs, int sendBandwidthKbps, int lossPermille, int rttMs) {
+        snapshot.clear();
+        snapshot.timestampMs = timestampMs;
+        snapshot.intervalMs = 1000;
+        snapshot.availableSendBandwidthBps = sendBandwidthKbps * 1000;
+        snapshot.rttMs = rttMs;
+        int video = snapshot.addStream(1, StatsSnapshot.FLAG_VIDEO | StatsSnapshot.FLAG_SEND);
+        snapshot.packetLossPermille[video] = lossPermille;
+        return snapshot;
+    }
+
+    @Test
+    public void dropsAtOnceAndRaisesAfterHold() {
+        RecordingCallback callback = new RecordingCallback();
+        BandwidthAdapter adapter = new BandwidthAdapter(1280, 720, 30, 150, 2500, callback);
+
+        adapter.onStats(stats(1000, 1000, 0, 50));
+        assertEquals(1, callback.bitrateChanges);
+        assertEquals(850, callback.maxBitrateKbps);
+
+        // Room to grow must last three results, then the raise is bounded to 25%.
+        adapter.onStats(stats(2000, 3000, 0, 50));
+        adapter.onStats(stats(3000, 3000, 0, 50));
+        assertEquals(1, callback.bitrateChanges);
+        adapter.onStats(stats(4000, 3000, 0, 50));
+        assertEquals(2, callback.bitrateChanges);
+        assertEquals(1062, callback.maxBitrateKbps);
+    }
+
+    @Test
+    public void ignoresSmallFluctuations() {
+        RecordingCallback callback = new RecordingCallback();
+        BandwidthAdapter adapter = new BandwidthAdapter(1280, 720, 30, 150, 2500, callback);
+        adapter.onStats(stats(1000, 1000, 0, 50));
+        for (int i = 0; i < 10; i++) {
+            adapter.onStats(stats(2000 + i * 1000, i % 2 == 0 ? 950 : 1050, 0, 50));
+        }
+        assertEquals(1, callback.bitrateChanges);
+        assertEquals(850, adapter.getVideoMaxBitrateKbps());
+    }
+
+    @Test
+    public void backsOffOnLossAndRtt() {
+        RecordingCallback callback = new RecordingCallback();
+        BandwidthAdapter adapter = new BandwidthAdapter(1280, 720, 30, 150, 2000, callback);
+        // 40% loss halves to 80%.
+        adapter.onStats(stats(1000, 5000, 400, 50));
+        assertEquals(1600, callback.maxBitrateKbps);
+        adapter.onStats(stats(2000, 5000, 0, 800));
+        assertEquals(1360, callback.maxBitrateKbps);
+        // Never below the floor.
+        adapter.onStats(stats(3000, 10, 0, 50));
+        assertEquals(150, callback.maxBitrateKbps);
+    }
+
+    @Test
+    public void downgradesFormatAtOnceAndUpgradesAfterHold() {
+        RecordingCallback callback = new RecordingCallback();
+        BandwidthAdapter adapter = new BandwidthAdapter(1280, 720, 30, 150, 2500, callback);
+
+        // 510 kbps carry 5.1 Mpixel/s: VGA is the largest format above FRAMERATE_THRESHOLD fps.
+        adapter.onStats(stats(1000, 600, 0, 50));
+        assertEquals(510, callback.maxBitrateKbps);
+        assertEquals(1, callback.formatChanges);
+        assertEquals(640, callback.width);
+        assertEquals(480, callback.height);
+        assertEquals(17, callback.framerate);
+
+        // The bitrate recovers, but the format waits for the hold to pass.
+        for (int i = 0; i < 6; i++) {
+            adapter.onStats(stats(2000 + i * 1000, 3000, 0, 50));
+        }
+        assertEquals(796, adapter.getVideoMaxBitrateKbps());
+        assertEquals(1, callback.formatChanges);
+        adapter.onStats(stats(11000, 3000, 0, 50));
+        assertEquals(2, callback.formatChanges);
+        assertEquals(960, callback.width);
+        assertEquals(540, callback.height);
+        assertEquals(15, callback.framerate);
+    }
+}
@@ -0,0 +1,74 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Local unit tests for codec selection and serialization in {@link CodecBenchmarkResult}.
+ */
+public class CodecBenchmarkResultTest {
+
+    private static final List<CodecBenchmarkResult> RESULTS = Arrays.asList(
+            new CodecBenchmarkResult("VP8", false, 640, 480, 45.0, 18000, 25000),
+            new CodecBenchmarkResult("H264", true, 640, 480, 240.0, 9000, 12000),
+            new CodecBenchmarkResult("VP9", true, 640, 480, 120.0, 14000, 30000),
+            new CodecBenchmarkResult("VP8", false, 1920, 1080, 8.5, 110000, 140000),
+            new CodecBenchmarkResult("H264", true, 1920, 1080, 28.0, 30000, 36000),
+            new CodecBenchmarkResult("VP9", true, 1920, 1080, 26.0, 25000, 28000));
+
+    @Test
+    public void prefersLowestLatencyOfCodecsThatKeepUp() {
+        assertEquals("H264", CodecBenchmarkResult.chooseCodec(RESULTS, 640, 480, 30, true));
+        // VP8 only keeps up at 480p without hardware.
+        assertEquals("VP8", CodecBenchmarkResult.chooseCodec(RESULTS, 640, 480, 30, false));
+    }
+
+    @Test
+    public void prefersHighestThroughputIfNoCodecKeepsUp() {
+        assertEquals("H264", CodecBenchmarkResult.chooseCodec(RESULTS, 1920, 1080, 30, true));
+        // At 25 fps both hardware codecs keep up and VP9 has the lower latency.
+        assertEquals("VP9", CodecBenchmarkResult.chooseCodec(RESULTS, 1920, 1080, 25, true));
+    }
+
+    @Test
+    public void comparesClosestBenchmarkedResolution() {
+        assertEquals("VP9", CodecBenchmarkResult.chooseCodec(RESULTS, 1600, 900, 25, true));
+        assertEquals("H264", CodecBenchmarkResult.chooseCodec(RESULTS, 320, 240, 30, true));
+        assertEquals("VP8", CodecBenchmarkResult.chooseCodec(RESULTS, 1920, 1080, 30, false));
+    }
+
+    @Test
+    public void noResultsChooseNothing() {
+        assertNull(CodecBenchmarkResult.chooseCodec(
+                Collections.<CodecBenchmarkResult>emptyList(), 640, 480, 30, true));
+        assertNull(CodecBenchmarkResult.chooseCodec(RESULTS.subList(1, 3), 640, 480, 30, false));
+    }
+
+    @Test
+    public void formatAndParseRoundTrip() {
+        List<CodecBenchmarkResult> parsed =
+                CodecBenchmarkResult.parse(CodecBenchmarkResult.format(RESULTS));
+        assertEquals(RESULTS.size(), parsed.size());
+        for (int i = 0; i < RESULTS.size(); i++) {
+            assertEquals(RESULTS.get(i).toString(), parsed.get(i).toString());
+        }
+        assertEquals(0, CodecBenchmarkResult.parse("").size());
+        assertEquals(0, CodecBenchmarkResult.parse(null).size());
+    }
+
+    @Test
+    public void parseSkipsMalformedResults() {
+        List<CodecBenchmarkResult> parsed =
+                CodecBenchmarkResult.parse("VP8,0,640,480,x,1,2;H264,1,640,480;VP9,1,640,480,60.5,10,20");
+        assertEquals(1, parsed.size());
+        assertEquals("VP9", parsed.get(0).codec);
+        assertEquals(60.5, parsed.get(0).encodeFps, 0);
+        assertEquals(20, parsed.get(0).p90LatencyUs);
+    }
+}
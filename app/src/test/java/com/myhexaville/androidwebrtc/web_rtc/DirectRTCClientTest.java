@@ -0,0 +1,56 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.junit.Test;
+
+import java.util.regex.Matcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for the room ids {@link DirectRTCClient} takes for IP addresses.
+ */
+public class DirectRTCClientTest {
+
+    @Test
+    public void acceptsAddressLiterals() {
+        for (String roomId : new String[] {"192.168.1.20", "10.0.0.1:8888", "255.255.255.255",
+                "[::1]", "[fe80::1]:9000", "::1", "fe80::21a:2bff:fe3c:4d5e",
+                "2001:db8:0:0:0:0:2:1", "[2001:db8:0:0:0:0:2:1]:443", "localhost", "localhost:8888"}) {
+            assertTrue(roomId, DirectRTCClient.isDirectRoomId(roomId));
+        }
+    }
+
+    @Test
+    public void rejectsRoomNames() {
+        for (String roomId : new String[] {"1234", "cafe", "beef:80", "12345678", "1.2.3",
+                "256.1.1.1", "1.2.3.4.5", "1234:5678", "[cafe]", "room-1", ""}) {
+            assertFalse(roomId, DirectRTCClient.isDirectRoomId(roomId));
+        }
+    }
+
+    @Test
+    public void splitsAddressAndPort() {
+        Matcher matcher = DirectRTCClient.IP_PATTERN.matcher("[fe80::1]:9000");
+        assertTrue(matcher.matches());
+        assertEquals("[fe80::1]", matcher.group(1));
+        assertEquals("9000", matcher.group(matcher.groupCount()));
+
+        matcher = DirectRTCClient.IP_PATTERN.matcher("192.168.1.20");
+        assertTrue(matcher.matches());
+        assertEquals("192.168.1.20", matcher.group(1));
+        assertNull(matcher.group(matcher.groupCount()));
+    }
+
+    @Test
+    public void parsesOnlyTcpPorts() {
+        assertEquals(8888, DirectRTCClient.parsePort(null));
+        assertEquals(1, DirectRTCClient.parsePort("1"));
+        assertEquals(65535, DirectRTCClient.parsePort("65535"));
+        assertEquals(-1, DirectRTCClient.parsePort("0"));
+        assertEquals(-1, DirectRTCClient.parsePort("65536"));
+        assertEquals(-1, DirectRTCClient.parsePort("70000"));
+    }
+}
@@ -0,0 +1,54 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Local unit tests for {@link FrameStamp}.
+ */
+public class FrameStampTest {
+
+    private static byte[] grayFrame(int width, int height) {
+        byte[] y = new byte[width * height];
+        for (int i = 0; i < y.length; i++) {
+            y[i] = (byte) (96 + i % 64);
+        }
+        return y;
+    }
+
+    @Test
+    public void readsBackWrittenValue() {
+        byte[] y = grayFrame(640, 480);
+        FrameStamp.write(y, 640, 640, 480, 0x1234ABCDL);
+        assertEquals(0x1234ABCDL, FrameStamp.read(ByteBuffer.wrap(y), 640, 640, 480));
+        FrameStamp.write(y, 640, 640, 480, 0xFFFFFFFFL + 5);
+        assertEquals(4, FrameStamp.read(ByteBuffer.wrap(y), 640, 640, 480));
+    }
+
+    @Test
+    public void survivesDownscalingAndPadding() {
+        byte[] y = grayFrame(640, 480);
+        FrameStamp.write(y, 640, 640, 480, 987654321L);
+        // Half the size, decoded into a plane with padded rows.
+        int stride = 336;
+        ByteBuffer scaled = ByteBuffer.allocate(stride * 240);
+        for (int row = 0; row < 240; row++) {
+            for (int column = 0; column < 320; column++) {
+                scaled.put(row * stride + column, y[row * 2 * 640 + column * 2]);
+            }
+        }
+        assertEquals(987654321L, FrameStamp.read(scaled, stride, 320, 240));
+    }
+
+    @Test
+    public void rejectsUnstampedAndTinyFrames() {
+        assertEquals(FrameStamp.NOT_FOUND,
+                FrameStamp.read(ByteBuffer.wrap(grayFrame(640, 480)), 640, 640, 480));
+        assertFalse(FrameStamp.write(new byte[32 * 24], 32, 32, 24, 1));
+        assertEquals(FrameStamp.NOT_FOUND, FrameStamp.read(ByteBuffer.allocate(32 * 24), 32, 32, 24));
+    }
+}
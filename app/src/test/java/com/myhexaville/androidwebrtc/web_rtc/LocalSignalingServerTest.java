@@ -0,0 +1,73 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link LocalSignalingServer} and {@link SignalingRoomRegistry}.
+ */
+public class LocalSignalingServerTest {
+
+    @Test
+    public void queuesRelayUntilRegistered() {
+        SignalingRoomRegistry registry = new SignalingRoomRegistry();
+        SignalingRoomRegistry.JoinResult first = registry.join("room");
+        assertEquals(SignalingRoomRegistry.Result.SUCCESS,
+                registry.postMessage("room", first.clientId, "offer"));
+        SignalingRoomRegistry.JoinResult second = registry.join("room");
+        assertTrue(first.initiator);
+        assertFalse(second.initiator);
+        assertEquals(1, second.messages.size());
+        assertEquals(SignalingRoomRegistry.Result.FULL, registry.join("room").result);
+
+        // Both are in the room now, so posted messages go through the relay.
+        assertEquals(SignalingRoomRegistry.Result.SUCCESS,
+                registry.postMessage("room", first.clientId, "candidate"));
+        final List<String> delivered = new ArrayList<>();
+        registry.register("room", second.clientId, delivered::add);
+        assertEquals(1, delivered.size());
+        assertEquals("candidate", delivered.get(0));
+
+        registry.leave("room", first.clientId);
+        registry.leave("room", second.clientId);
+        assertEquals(0, registry.getRoomCount());
+    }
+
+    @Test
+    public void rejectsThirdClient() throws Exception {
+        LocalSignalingServer server = new LocalSignalingServer(0);
+        server.start();
+        try {
+            String roomUrl = "http://127.0.0.1:" + server.getPort();
+            assertTrue(SignalingLoadGenerator.SimulatedClient.join(roomUrl, "full").initiator);
+            assertFalse(SignalingLoadGenerator.SimulatedClient.join(roomUrl, "full").initiator);
+            assertNull(SignalingLoadGenerator.SimulatedClient.join(roomUrl, "full"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void completesCallsUnderLoad() throws Exception {
+        LocalSignalingServer server = new LocalSignalingServer(0);
+        server.start();
+        try {
+            SignalingLoadGenerator.Report report = new SignalingLoadGenerator(
+                    "http://127.0.0.1:" + server.getPort(), 8).run(50);
+            assertEquals(0, report.failures);
+            assertEquals(50, report.call.getCount());
+            assertEquals(100, report.join.getCount());
+            // Answer, candidates, the late candidate and bye of every call.
+            assertEquals(50 * 7, server.getRelayedMessageCount());
+        } finally {
+            server.stop();
+        }
+    }
+}
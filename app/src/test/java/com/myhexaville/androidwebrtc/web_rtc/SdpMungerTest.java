@@ -0,0 +1,316 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.junit.Test;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link SdpMunger} using trimmed Chrome and Firefox descriptions.
+ */
+public class SdpMungerTest {
+    private static final String CHROME_OFFER = "v=0\r\n"
+            + "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n"
+            + "s=-\r\n"
+            + "t=0 0\r\n"
+            + "a=group:BUNDLE audio video data\r\n"
+            + "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 0 8 106 105 13 126\r\n"
+            + "c=IN IP4 0.0.0.0\r\n"
+            + "a=mid:audio\r\n"
+            + "a=rtpmap:111 opus/48000/2\r\n"
+            + "a=rtcp-fb:111 transport-cc\r\n"
+            + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+            + "a=rtpmap:103 ISAC/16000\r\n"
+            + "a=rtpmap:104 ISAC/32000\r\n"
+            + "a=rtpmap:9 G722/8000\r\n"
+            + "a=rtpmap:0 PCMU/8000\r\n"
+            + "a=rtpmap:8 PCMA/8000\r\n"
+            + "a=rtpmap:106 CN/32000\r\n"
+            + "a=rtpmap:105 CN/16000\r\n"
+            + "a=rtpmap:13 CN/8000\r\n"
+            + "a=rtpmap:126 telephone-event/8000\r\n"
+            + "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 102\r\n"
+            + "c=IN IP4 0.0.0.0\r\n"
+            + "a=mid:video\r\n"
+            + "a=rtpmap:96 VP8/90000\r\n"
+            + "a=rtcp-fb:96 nack\r\n"
+            + "a=rtcp-fb:96 nack pli\r\n"
+            + "a=rtpmap:97 rtx/90000\r\n"
+            + "a=fmtp:97 apt=96\r\n"
+            + "a=rtpmap:98 VP9/90000\r\n"
+            + "a=rtpmap:99 rtx/90000\r\n"
+            + "a=fmtp:99 apt=98\r\n"
+            + "a=rtpmap:100 H264/90000\r\n"
+            + "a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n"
+            + "a=rtpmap:101 rtx/90000\r\n"
+            + "a=fmtp:101 apt=100\r\n"
+            + "a=rtpmap:102 red/90000\r\n"
+            + "m=application 9 DTLS/SCTP 5000\r\n"
+            + "c=IN IP4 0.0.0.0\r\n"
+            + "a=mid:data\r\n"
+            + "a=sctpmap:5000 webrtc-datachannel 1024\r\n";
+
+    private static final String FIREFOX_ANSWER = "v=0\r\n"
+            + "o=mozilla...THIS_IS_SDPARTA-53.0 5225424405584564393 0 IN IP4 0.0.0.0\r\n"
+            + "s=-\r\n"
+            + "t=0 0\r\n"
+            + "a=group:BUNDLE sdparta_0 sdparta_1\r\n"
+            + "m=audio 9 UDP/TLS/RTP/SAVPF 109 9 0 8\r\n"
+            + "c=IN IP4 0.0.0.0\r\n"
+            + "a=mid:sdparta_0\r\n"
+            + "a=rtpmap:109 opus/48000/2\r\n"
+            + "a=rtpmap:9 G722/8000/1\r\n"
+            + "a=rtpmap:0 PCMU/8000\r\n"
+            + "a=rtpmap:8 PCMA/8000\r\n"
+            + "m=video 9 UDP/TLS/RTP/SAVPF 120 126 97\r\n"
+            + "c=IN IP4 0.0.0.0\r\n"
+            + "a=mid:sdparta_1\r\n"
+            + "a=fmtp:126 profile-level-id=42e01f;level-asymmetry-allowed=1;packetization-mode=1\r\n"
+            + "a=fmtp:97 profile-level-id=42e01f;level-asymmetry-allowed=1\r\n"
+            + "a=fmtp:120 max-fs=12288;max-fr=60\r\n"
+            + "a=rtpmap:120 VP8/90000\r\n"
+            + "a=rtpmap:126 H264/90000\r\n"
+            + "a=rtpmap:97 H264/90000\r\n";
+
+    // Video section of a Chrome 71 offer as relayed by appr.tc, with several H.264 and VP9
+    // profiles.
+    private static final String APPRTC_CHROME_OFFER = "v=0\r\n"
+            + "o=- 2263283574146532571 2 IN IP4 127.0.0.1\r\n"
+            + "s=-\r\n"
+            + "t=0 0\r\n"
+            + "a=group:BUNDLE 0 1\r\n"
+            + "a=msid-semantic: WMS ARDAMS\r\n"
+            + "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 0 8 106 105 13 110 112 113 126\r\n"
+            + "c=IN IP4 0.0.0.0\r\n"
+            + "a=mid:0\r\n"
+            + "a=sendrecv\r\n"
+            + "a=rtcp-mux\r\n"
+            + "a=rtpmap:111 opus/48000/2\r\n"
+            + "a=rtcp-fb:111 transport-cc\r\n"
+            + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+            + "a=rtpmap:103 ISAC/16000\r\n"
+            + "a=rtpmap:104 ISAC/32000\r\n"
+            + "a=rtpmap:9 G722/8000\r\n"
+            + "a=rtpmap:0 PCMU/8000\r\n"
+            + "a=rtpmap:8 PCMA/8000\r\n"
+            + "a=rtpmap:106 CN/32000\r\n"
+            + "a=rtpmap:105 CN/16000\r\n"
+            + "a=rtpmap:13 CN/8000\r\n"
+            + "a=rtpmap:110 telephone-event/48000\r\n"
+            + "a=rtpmap:112 telephone-event/32000\r\n"
+            + "a=rtpmap:113 telephone-event/16000\r\n"
+            + "a=rtpmap:126 telephone-event/8000\r\n"
+            + "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 102 122 127 121 125 107 108 109 124 120 123\r\n"
+            + "c=IN IP4 0.0.0.0\r\n"
+            + "a=mid:1\r\n"
+            + "a=sendrecv\r\n"
+            + "a=rtcp-mux\r\n"
+            + "a=rtcp-rsize\r\n"
+            + "a=rtpmap:96 VP8/90000\r\n"
+            + "a=rtcp-fb:96 goog-remb\r\n"
+            + "a=rtcp-fb:96 transport-cc\r\n"
+            + "a=rtcp-fb:96 ccm fir\r\n"
+            + "a=rtcp-fb:96 nack\r\n"
+            + "a=rtcp-fb:96 nack pli\r\n"
+            + "a=rtpmap:97 rtx/90000\r\n"
+            + "a=fmtp:97 apt=96\r\n"
+            + "a=rtpmap:98 VP9/90000\r\n"
+            + "a=fmtp:98 profile-id=0\r\n"
+            + "a=rtpmap:99 rtx/90000\r\n"
+            + "a=fmtp:99 apt=98\r\n"
+            + "a=rtpmap:100 VP9/90000\r\n"
+            + "a=fmtp:100 profile-id=2\r\n"
+            + "a=rtpmap:101 rtx/90000\r\n"
+            + "a=fmtp:101 apt=100\r\n"
+            + "a=rtpmap:102 H264/90000\r\n"
+            + "a=fmtp:102 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42001f\r\n"
+            + "a=rtpmap:122 rtx/90000\r\n"
+            + "a=fmtp:122 apt=102\r\n"
+            + "a=rtpmap:127 H264/90000\r\n"
+            + "a=fmtp:127 level-asymmetry-allowed=1;packetization-mode=0;profile-level-id=42001f\r\n"
+            + "a=rtpmap:121 rtx/90000\r\n"
+            + "a=fmtp:121 apt=127\r\n"
+            + "a=rtpmap:125 H264/90000\r\n"
+            + "a=fmtp:125 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n"
+            + "a=rtpmap:107 rtx/90000\r\n"
+            + "a=fmtp:107 apt=125\r\n"
+            + "a=rtpmap:108 H264/90000\r\n"
+            + "a=fmtp:108 level-asymmetry-allowed=1;packetization-mode=0;profile-level-id=42e01f\r\n"
+            + "a=rtpmap:109 rtx/90000\r\n"
+            + "a=fmtp:109 apt=108\r\n"
+            + "a=rtpmap:124 red/90000\r\n"
+            + "a=rtpmap:120 rtx/90000\r\n"
+            + "a=fmtp:120 apt=124\r\n"
+            + "a=rtpmap:123 ulpfec/90000\r\n";
+
+    // The regex based PeerConnectionClient.preferCodec that SdpMunger replaced, less logging.
+    private static String legacyPreferCodec(String sdpDescription, String codec, boolean isAudio) {
+        String[] lines = sdpDescription.split("\r\n");
+        int mLineIndex = -1;
+        String codecRtpMap = null;
+        Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
+        String mediaDescription = isAudio ? "m=audio " : "m=video ";
+        for (int i = 0; (i < lines.length) && (mLineIndex == -1 || codecRtpMap == null); i++) {
+            if (lines[i].startsWith(mediaDescription)) {
+                mLineIndex = i;
+                continue;
+            }
+            Matcher codecMatcher = codecPattern.matcher(lines[i]);
+            if (codecMatcher.matches()) {
+                codecRtpMap = codecMatcher.group(1);
+            }
+        }
+        if (mLineIndex == -1 || codecRtpMap == null) {
+            return sdpDescription;
+        }
+        String[] origMLineParts = lines[mLineIndex].split(" ");
+        StringBuilder newMLine = new StringBuilder();
+        newMLine.append(origMLineParts[0]).append(" ").append(origMLineParts[1]).append(" ")
+                .append(origMLineParts[2]).append(" ").append(codecRtpMap);
+        for (int i = 3; i < origMLineParts.length; i++) {
+            if (!origMLineParts[i].equals(codecRtpMap)) {
+                newMLine.append(" ").append(origMLineParts[i]);
+            }
+        }
+        lines[mLineIndex] = newMLine.toString();
+        StringBuilder newSdpDescription = new StringBuilder();
+        for (String line : lines) {
+            newSdpDescription.append(line).append("\r\n");
+        }
+        return newSdpDescription.toString();
+    }
+
+    private static String preferCodec(String sdp, String codec, boolean isAudio) {
+        SdpMunger munger = new SdpMunger(sdp);
+        munger.preferCodec(codec, isAudio);
+        return munger.toString();
+    }
+
+    @Test
+    public void preferCodecMatchesLegacyForSinglePayloadCodecs() {
+        for (String codec : new String[] {"VP8", "opus", "G722", "PCMU"}) {
+            boolean isAudio = !codec.equals("VP8");
+            assertEquals(legacyPreferCodec(APPRTC_CHROME_OFFER, codec, isAudio),
+                    preferCodec(APPRTC_CHROME_OFFER, codec, isAudio));
+        }
+        assertEquals(legacyPreferCodec(CHROME_OFFER, "H264", false),
+                preferCodec(CHROME_OFFER, "H264", false));
+    }
+
+    @Test
+    public void preferCodecDiffersFromLegacyOnlyInLaterPayloadTypes() {
+        String legacy = legacyPreferCodec(APPRTC_CHROME_OFFER, "H264", false);
+        String munged = preferCodec(APPRTC_CHROME_OFFER, "H264", false);
+        // Legacy moved only the first H.264 profile; the other three stayed behind VP8.
+        assertTrue(legacy.contains(
+                "m=video 9 UDP/TLS/RTP/SAVPF 102 96 97 98 99 100 101 122 127 121 125 107 108 109 124 120 123\r\n"));
+        assertTrue(munged.contains(
+                "m=video 9 UDP/TLS/RTP/SAVPF 102 127 125 108 96 97 98 99 100 101 122 121 107 109 124 120 123\r\n"));
+        // Everything but the video m-line is identical.
+        String[] legacyLines = legacy.split("\r\n");
+        String[] mungedLines = munged.split("\r\n");
+        assertEquals(legacyLines.length, mungedLines.length);
+        int differences = 0;
+        for (int i = 0; i < legacyLines.length; i++) {
+            if (!legacyLines[i].equals(mungedLines[i])) {
+                assertTrue(legacyLines[i].startsWith("m=video "));
+                differences++;
+            }
+        }
+        assertEquals(1, differences);
+
+        assertTrue(preferCodec(APPRTC_CHROME_OFFER, "VP9", false).contains(
+                "m=video 9 UDP/TLS/RTP/SAVPF 98 100 96 97 99 101 102 122 127 121 125 107 108 109 124 120 123\r\n"));
+        assertTrue(legacyPreferCodec(APPRTC_CHROME_OFFER, "VP9", false).contains(
+                "m=video 9 UDP/TLS/RTP/SAVPF 98 96 97 99 100 101 102 122 127 121 125 107 108 109 124 120 123\r\n"));
+    }
+
+    @Test
+    public void unmodifiedDescriptionIsReturnedAsIs() {
+        SdpMunger munger = new SdpMunger(CHROME_OFFER);
+        assertSame(CHROME_OFFER, munger.toString());
+        assertEquals(3, munger.getMediaSections().size());
+    }
+
+    @Test
+    public void preferVideoCodecMovesPayloadToFront() {
+        SdpMunger munger = new SdpMunger(CHROME_OFFER);
+        assertTrue(munger.preferCodec("H264", false));
+        String sdp = munger.toString();
+        assertTrue(sdp.contains("m=video 9 UDP/TLS/RTP/SAVPF 100 96 97 98 99 101 102\r\n"));
+        // Audio section is untouched.
+        assertTrue(sdp.contains("m=audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 0 8 106 105 13 126\r\n"));
+        assertEquals(CHROME_OFFER.length(), sdp.length());
+    }
+
+    @Test
+    public void preferCodecMovesAllPayloadTypesOfCodec() {
+        SdpMunger munger = new SdpMunger(FIREFOX_ANSWER);
+        assertTrue(munger.preferCodec("H264", false));
+        assertTrue(munger.toString().contains("m=video 9 UDP/TLS/RTP/SAVPF 126 97 120\r\n"));
+    }
+
+    @Test
+    public void preferAudioCodecIsCaseInsensitive() {
+        SdpMunger munger = new SdpMunger(CHROME_OFFER);
+        assertTrue(munger.preferCodec("isac", true));
+        assertTrue(munger.toString().contains(
+                "m=audio 9 UDP/TLS/RTP/SAVPF 103 104 111 9 0 8 106 105 13 126\r\n"));
+    }
+
+    @Test
+    public void preferMissingCodecFails() {
+        SdpMunger munger = new SdpMunger(FIREFOX_ANSWER);
+        assertFalse(munger.preferCodec("VP9", false));
+        assertFalse(munger.preferCodec("ISAC", true));
+        assertSame(FIREFOX_ANSWER, munger.toString());
+    }
+
+    @Test
+    public void startBitrateIsAppendedToExistingFmtp() {
+        SdpMunger munger = new SdpMunger(CHROME_OFFER);
+        assertTrue(munger.setStartBitrate("opus", false, 32));
+        assertTrue(munger.toString().contains(
+                "a=fmtp:111 minptime=10;useinbandfec=1; maxaveragebitrate=32000\r\n"));
+    }
+
+    @Test
+    public void startBitrateAddsFmtpAfterRtpmap() {
+        SdpMunger munger = new SdpMunger(CHROME_OFFER);
+        assertTrue(munger.setStartBitrate("VP8", true, 1000));
+        assertTrue(munger.toString().contains(
+                "a=rtpmap:96 VP8/90000\r\na=fmtp:96 x-google-start-bitrate=1000\r\n"));
+    }
+
+    @Test
+    public void editsAreAppliedInSinglePass() {
+        SdpMunger munger = new SdpMunger(CHROME_OFFER);
+        assertTrue(munger.preferCodec("VP9", false));
+        assertTrue(munger.setStartBitrate("VP9", true, 800));
+        assertTrue(munger.setCodecParameter("VP9", "x-google-max-bitrate", 1500));
+        assertTrue(munger.setMaxAverageBitrate("opus", 24));
+        String sdp = munger.toString();
+        assertTrue(sdp.contains("m=video 9 UDP/TLS/RTP/SAVPF 98 96 97 99 100 101 102\r\n"));
+        assertTrue(sdp.contains("a=rtpmap:98 VP9/90000\r\n"
+                + "a=fmtp:98 x-google-start-bitrate=800; x-google-max-bitrate=1500\r\n"));
+        assertTrue(sdp.contains("a=fmtp:111 minptime=10;useinbandfec=1; maxaveragebitrate=24000\r\n"));
+        assertTrue(sdp.endsWith("a=sctpmap:5000 webrtc-datachannel 1024\r\n"));
+    }
+
+    @Test
+    public void removeRtcpFeedbackKeepsSubtypes() {
+        SdpMunger munger = new SdpMunger(CHROME_OFFER);
+        assertEquals(0, munger.removeRtcpFeedback("audio", "nack"));
+        assertEquals(1, munger.removeRtcpFeedback("video", "nack"));
+        String sdp = munger.toString();
+        assertFalse(sdp.contains("a=rtcp-fb:96 nack\r\n"));
+        assertTrue(sdp.contains("a=rtpmap:96 VP8/90000\r\na=rtcp-fb:96 nack pli\r\n"));
+        assertTrue(sdp.contains("a=rtcp-fb:111 transport-cc\r\n"));
+        assertEquals(CHROME_OFFER.length() - "a=rtcp-fb:96 nack\r\n".length(), sdp.length());
+    }
+}
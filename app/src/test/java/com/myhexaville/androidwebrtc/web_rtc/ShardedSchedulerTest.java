@@ -0,0 +1,39 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Local unit tests for {@link ShardedScheduler}.
+ */
+public class ShardedSchedulerTest {
+
+    @Test
+    public void oneSessionAtATimeReusesOneShard() {
+        ShardedScheduler scheduler = new ShardedScheduler("test", 2);
+        ScheduledExecutorService first = scheduler.acquire();
+        scheduler.release(first);
+        ScheduledExecutorService second = scheduler.acquire();
+        assertSame(first, second);
+        scheduler.release(second);
+        first.shutdown();
+    }
+
+    @Test
+    public void concurrentSessionsGoToTheLeastLoadedShard() {
+        ShardedScheduler scheduler = new ShardedScheduler("test", 2);
+        ScheduledExecutorService first = scheduler.acquire();
+        ScheduledExecutorService second = scheduler.acquire();
+        assertNotSame(first, second);
+        scheduler.release(first);
+        assertSame(first, scheduler.acquire());
+        // Ties go to the first shard.
+        assertSame(first, scheduler.acquire());
+        first.shutdown();
+        second.shutdown();
+    }
+}
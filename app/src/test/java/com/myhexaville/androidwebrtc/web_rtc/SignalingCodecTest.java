@@ -0,0 +1,125 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit tests for {@link SignalingCodec} using messages captured from appr.tc.
+ */
+public class SignalingCodecTest {
+    private static final String WSS_CANDIDATE = "{\"msg\":\"{\\\"type\\\":\\\"candidate\\\","
+            + "\\\"label\\\":0,\\\"id\\\":\\\"audio\\\",\\\"candidate\\\":\\\"candidate:842163049 1 udp "
+            + "1677729535 203.0.113.7 41024 typ srflx raddr 192.168.1.20 rport 41024 generation 0 "
+            + "ufrag 3TQk network-cost 50\\\"}\",\"error\":\"\"}";
+    private static final String WSS_OFFER = "{\"msg\": \"{\\\"sdp\\\":\\\"v=0\\\\r\\\\no=- "
+            + "4611731400430051336 2 IN IP4 127.0.0.1\\\\r\\\\ns=-\\\\r\\\\n\\\","
+            + "\\\"type\\\":\\\"offer\\\"}\", \"error\": \"\"}";
+    private static final String WSS_ERROR = "{\"msg\":\"\",\"error\":\"Unknown client\"}";
+    private static final String ROOM_MESSAGES = "[\"{\\\"type\\\":\\\"offer\\\","
+            + "\\\"sdp\\\":\\\"v=0\\\\r\\\\n\\\"}\", \"{\\\"type\\\":\\\"candidate\\\",\\\"label\\\":1,"
+            + "\\\"id\\\":\\\"video\\\",\\\"candidate\\\":\\\"candidate:1 1 udp 2122260223 "
+            + "192.168.1.20 53421 typ host\\\"}\"]";
+
+    @Test
+    public void decodesCandidateEnvelope() throws Exception {
+        SignalingMessage.Envelope envelope = new SignalingCodec().decodeEnvelope(WSS_CANDIDATE);
+        assertEquals(SignalingMessage.Type.CANDIDATE, envelope.message.type);
+        IceCandidate candidate = ((SignalingMessage.Candidates) envelope.message).candidates.get(0);
+        assertEquals("audio", candidate.sdpMid);
+        assertEquals(0, candidate.sdpMLineIndex);
+        assertTrue(candidate.sdp.startsWith("candidate:842163049 1 udp"));
+    }
+
+    @Test
+    public void decodesOfferWithEscapedLineBreaks() throws Exception {
+        SignalingMessage.Envelope envelope = new SignalingCodec().decodeEnvelope(WSS_OFFER);
+        assertEquals(SignalingMessage.Type.OFFER, envelope.message.type);
+        assertEquals("v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\n",
+                ((SignalingMessage.Sdp) envelope.message).sdp);
+    }
+
+    @Test
+    public void decodesServerError() throws Exception {
+        SignalingMessage.Envelope envelope = new SignalingCodec().decodeEnvelope(WSS_ERROR);
+        assertNull(envelope.message);
+        assertEquals("Unknown client", envelope.error);
+    }
+
+    @Test
+    public void decodesRoomMessageList() throws Exception {
+        List<SignalingMessage> messages = new SignalingCodec().decodeMessageList(ROOM_MESSAGES);
+        assertEquals(2, messages.size());
+        assertEquals(SignalingMessage.Type.OFFER, messages.get(0).type);
+        assertEquals(SignalingMessage.Type.CANDIDATE, messages.get(1).type);
+        assertEquals(1, ((SignalingMessage.Candidates) messages.get(1)).candidates.get(0).sdpMLineIndex);
+    }
+
+    @Test
+    public void skipsUndecodableRoomMessages() throws Exception {
+        String messages = "[\"{\\\"type\\\":\\\"pranswer\\\"}\", \"{\\\"type\\\":\\\"candidate\\\"}\", "
+                + "\"not json\", " + ROOM_MESSAGES.substring(1);
+        List<String> errors = new ArrayList<>();
+        List<SignalingMessage> decoded = new SignalingCodec().decodeMessageList(messages, errors);
+        assertEquals(2, decoded.size());
+        assertEquals(SignalingMessage.Type.OFFER, decoded.get(0).type);
+        assertEquals(SignalingMessage.Type.CANDIDATE, decoded.get(1).type);
+        assertEquals(3, errors.size());
+        assertTrue(errors.get(0).endsWith(": {\"type\":\"pranswer\"}"));
+    }
+
+    @Test
+    public void roundTripsCandidateBatch() throws Exception {
+        SignalingCodec codec = new SignalingCodec();
+        List<IceCandidate> candidates = Arrays.asList(
+                new IceCandidate("audio", 0, "candidate:1 1 udp 2122260223 10.0.0.2 5000 typ host"),
+                new IceCandidate("video", 1, "candidate:2 1 tcp 1518280447 10.0.0.2 9 typ host \"x\""));
+        String encoded = codec.encodeCandidates(SignalingMessage.Type.CANDIDATES, candidates);
+        SignalingMessage decoded = codec.decodeMessage(encoded);
+        assertEquals(SignalingMessage.Type.CANDIDATES, decoded.type);
+        List<IceCandidate> result = ((SignalingMessage.Candidates) decoded).candidates;
+        assertEquals(2, result.size());
+        assertEquals("video", result.get(1).sdpMid);
+        assertEquals(candidates.get(1).sdp, result.get(1).sdp);
+    }
+
+    @Test
+    public void roundTripsSendCommand() throws Exception {
+        SignalingCodec codec = new SignalingCodec();
+        String answer = codec.encodeSdp(SignalingMessage.Type.ANSWER, "v=0\r\na=\"quoted\"\r\n");
+        // The server relays the "msg" string unchanged, so the envelope decodes the same way.
+        SignalingMessage.Envelope envelope = codec.decodeEnvelope(codec.encodeSendCommand(answer));
+        assertEquals(SignalingMessage.Type.ANSWER, envelope.message.type);
+        assertEquals("v=0\r\na=\"quoted\"\r\n", ((SignalingMessage.Sdp) envelope.message).sdp);
+    }
+
+    @Test
+    public void advertisesCandidateBatchingInSdp() throws Exception {
+        SignalingCodec codec = new SignalingCodec();
+        SignalingMessage.Sdp ours = (SignalingMessage.Sdp) codec.decodeMessage(
+                codec.encodeSdp(SignalingMessage.Type.OFFER, "v=0\r\n"));
+        assertTrue(ours.batchesCandidates);
+        // Offers from the appr.tc web client don't carry the flag.
+        SignalingMessage.Sdp web = (SignalingMessage.Sdp) codec.decodeMessage(
+                "{\"type\":\"offer\",\"sdp\":\"v=0\\r\\n\"}");
+        assertFalse(web.batchesCandidates);
+    }
+
+    @Test
+    public void rejectsUnknownType() {
+        try {
+            new SignalingCodec().decodeMessage("{\"type\":\"hello\"}");
+            fail();
+        } catch (SignalingCodecException expected) {
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import com.myhexaville.androidwebrtc.util.LatencyHistogram;
+
+import org.webrtc.IceCandidate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator for appr.tc style signaling servers. Every simulated call is a pair of
+ * clients going through join, offer and candidates over the room server, answer and
+ * candidates over the WebSocket relay, bye and leave, like {@link WebSocketRTCClient} does.
+ * <p>
+ * <p>Run main() with [room url] [calls] [concurrency]. Without a room URL a
+ * {@link LocalSignalingServer} is started on a free port.
+ */
+public class SignalingLoadGenerator {
+    private static final int SOCKET_TIMEOUT_MS = 10000;
+    private static final int CANDIDATES_PER_CLIENT = 4;
+
+    private final String roomUrl;
+    private final int concurrency;
+    private final String runId = Long.toString(System.nanoTime(), 36);
+
+    /**
+     * Results of one run. Latencies are in microseconds.
+     */
+    public static class Report {
+        public final int calls;
+        public final int failures;
+        public final long elapsedMs;
+        // HTTP join, including the saved offer and candidates for the second client.
+        public final LatencyHistogram join;
+        // WebSocket send to delivery at the other client.
+        public final LatencyHistogram relay;
+        // First join to both clients left.
+        public final LatencyHistogram call;
+
+        Report(int calls, int failures, long elapsedMs, LatencyHistogram join,
+               LatencyHistogram relay, LatencyHistogram call) {
+            this.calls = calls;
+            this.failures = failures;
+            this.elapsedMs = elapsedMs;
+            this.join = join;
+            this.relay = relay;
+            this.call = call;
+        }
+
+        @Override
+        public String toString() {
+            return "calls=" + calls + " failures=" + failures + " elapsed=" + elapsedMs + "ms"
+                    + " rate=" + (elapsedMs > 0 ? calls * 1000L / elapsedMs : calls) + "/s"
+                    + "\njoin " + join + "\nrelay " + relay + "\ncall " + call;
+        }
+    }
+
+    public SignalingLoadGenerator(String roomUrl, int concurrency) {
+        this.roomUrl = roomUrl;
+        this.concurrency = concurrency;
+    }
+
+    public Report run(int calls) throws InterruptedException {
+        final AtomicInteger failures = new AtomicInteger();
+        final LatencyHistogram join = new LatencyHistogram();
+        final LatencyHistogram relay = new LatencyHistogram();
+        final LatencyHistogram call = new LatencyHistogram();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            final String roomId = "load-" + runId + "-" + i;
+            executor.execute(() -> {
+                try {
+                    runCall(roomId, join, relay, call);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    System.err.println(roomId + ": " + e);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        return new Report(calls, failures.get(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), join, relay, call);
+    }
+
+    private void runCall(String roomId, LatencyHistogram joinLatency, LatencyHistogram relayLatency,
+                         LatencyHistogram callLatency) throws IOException, SignalingCodecException {
+        SignalingCodec codec = new SignalingCodec();
+        long callStart = System.nanoTime();
+
+        long start = System.nanoTime();
+        SimulatedClient caller = SimulatedClient.join(roomUrl, roomId);
+        joinLatency.record(micros(start));
+        check(caller.initiator, "first client is not the initiator");
+        caller.openWebSocket();
+        caller.postMessage(codec.encodeSdp(SignalingMessage.Type.OFFER, sdp()));
+        for (int i = 0; i < CANDIDATES_PER_CLIENT; i++) {
+            caller.postMessage(codec.encodeCandidate(candidate(i)));
+        }
+
+        start = System.nanoTime();
+        SimulatedClient callee = SimulatedClient.join(roomUrl, roomId);
+        joinLatency.record(micros(start));
+        check(!callee.initiator, "second client is the initiator");
+        check(callee.messages.size() == 1 + CANDIDATES_PER_CLIENT,
+                "expected offer and candidates, got " + callee.messages.size() + " messages");
+        callee.openWebSocket();
+
+        // Answer and candidates travel over the relay to the caller.
+        callee.sendOverWebSocket(codec.encodeSdp(SignalingMessage.Type.ANSWER, sdp()));
+        for (int i = 0; i < CANDIDATES_PER_CLIENT; i++) {
+            callee.sendOverWebSocket(codec.encodeCandidate(candidate(i)));
+        }
+        for (int i = 0; i < 1 + CANDIDATES_PER_CLIENT; i++) {
+            SignalingMessage message = caller.receive(codec);
+            if (message.type == SignalingMessage.Type.ANSWER) {
+                relayLatency.record(micros(sentAt(((SignalingMessage.Sdp) message).sdp)));
+            }
+        }
+
+        // A late candidate posted by the caller is relayed as the callee is in the room now.
+        caller.postMessage(codec.encodeCandidate(candidate(CANDIDATES_PER_CLIENT)));
+        check(callee.receive(codec).type == SignalingMessage.Type.CANDIDATE, "expected candidate");
+
+        callee.sendOverWebSocket(codec.encodeBye());
+        check(caller.receive(codec).type == SignalingMessage.Type.BYE, "expected bye");
+        callee.leave();
+        caller.leave();
+        callLatency.record(micros(callStart));
+    }
+
+    private static String sdp() {
+        return "v=0\r\no=- 0 2 IN IP4 127.0.0.1\r\ns=-\r\na=x-sent:" + System.nanoTime() + "\r\n";
+    }
+
+    private static long sentAt(String sdp) {
+        int start = sdp.indexOf("a=x-sent:") + "a=x-sent:".length();
+        return Long.parseLong(sdp.substring(start, sdp.indexOf('\r', start)));
+    }
+
+    private static IceCandidate candidate(int index) {
+        return new IceCandidate("video", 1, "candidate:" + index + " 1 udp 2122260223 192.168.1."
+                + (20 + index) + " " + (50000 + index) + " typ host generation 0");
+    }
+
+    private static long micros(long startNs) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNs);
+    }
+
+    private static void check(boolean condition, String message) throws IOException {
+        if (!condition) {
+            throw new IOException(message);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LocalSignalingServer server = null;
+        String roomUrl;
+        if (args.length > 0 && args[0].startsWith("http")) {
+            roomUrl = args[0];
+        } else {
+            server = new LocalSignalingServer(0);
+            server.start();
+            roomUrl = "http://127.0.0.1:" + server.getPort();
+        }
+        int calls = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        System.out.println("Driving " + calls + " calls (" + 2 * calls + " clients) against "
+                + roomUrl + " with concurrency " + concurrency);
+        Report report = new SignalingLoadGenerator(roomUrl, concurrency).run(calls);
+        System.out.println(report);
+        if (server != null) {
+            System.out.println("Server: " + server.getHttpRequestCount() + " HTTP requests, "
+                    + server.getRelayedMessageCount() + " relayed messages");
+            server.stop();
+        }
+    }
+
+    /**
+     * One appr.tc client: room server over HTTP, relay over a blocking WebSocket.
+     */
+    static class SimulatedClient {
+        final String roomUrl;
+        final String roomId;
+        final String clientId;
+        final boolean initiator;
+        final List<String> messages;
+        final String wssUrl;
+        private Socket socket;
+        private DataInputStream in;
+        private OutputStream out;
+        private final Random random = new Random();
+
+        private SimulatedClient(String roomUrl, String roomId, String clientId, boolean initiator,
+                                List<String> messages, String wssUrl) {
+            this.roomUrl = roomUrl;
+            this.roomId = roomId;
+            this.clientId = clientId;
+            this.initiator = initiator;
+            this.messages = messages;
+            this.wssUrl = wssUrl;
+        }
+
+        /**
+         * Joins a room, returns null if the room is full.
+         */
+        static SimulatedClient join(String roomUrl, String roomId)
+                throws IOException, SignalingCodecException {
+            String response = post(roomUrl + "/join/" + roomId, "");
+            JsonPullParser parser = new JsonPullParser(response);
+            String result = null;
+            String clientId = null;
+            String wssUrl = null;
+            boolean initiator = false;
+            List<String> messages = new ArrayList<>();
+            parser.beginObject();
+            while (parser.hasNext()) {
+                String name = parser.nextName();
+                if (name.equals("result")) {
+                    result = parser.nextString();
+                } else if (name.equals("params")) {
+                    parser.beginObject();
+                    while (parser.hasNext()) {
+                        String param = parser.nextName();
+                        switch (param) {
+                            case "client_id":
+                                clientId = parser.nextString();
+                                break;
+                            case "is_initiator":
+                                initiator = Boolean.parseBoolean(parser.nextString());
+                                break;
+                            case "wss_url":
+                                wssUrl = parser.nextString();
+                                break;
+                            case "messages":
+                                parser.beginArray();
+                                while (parser.hasNext()) {
+                                    messages.add(parser.nextString());
+                                }
+                                parser.endArray();
+                                break;
+                            default:
+                                parser.skipValue();
+                        }
+                    }
+                    parser.endObject();
+                } else {
+                    parser.skipValue();
+                }
+            }
+            parser.endObject();
+            if ("FULL".equals(result)) {
+                return null;
+            }
+            check("SUCCESS".equals(result), "join failed: " + response);
+            return new SimulatedClient(roomUrl, roomId, clientId, initiator, messages, wssUrl);
+        }
+
+        void postMessage(String message) throws IOException {
+            String response = post(roomUrl + "/message/" + roomId + "/" + clientId, message);
+            check(response.contains("SUCCESS"), "message failed: " + response);
+        }
+
+        void leave() throws IOException {
+            post(roomUrl + "/leave/" + roomId + "/" + clientId, "");
+            if (socket != null) {
+                writeFrame(0x8, new byte[0]);
+                socket.close();
+            }
+        }
+
+        void openWebSocket() throws IOException {
+            URI uri = URI.create(wssUrl);
+            socket = new Socket(uri.getHost(), uri.getPort());
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+            byte[] nonce = new byte[16];
+            random.nextBytes(nonce);
+            String request = "GET " + uri.getPath() + " HTTP/1.1\r\nHost: " + uri.getHost() + ":"
+                    + uri.getPort() + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(nonce) + "\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n\r\n";
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            StringBuilder response = new StringBuilder();
+            while (response.length() < 4 || response.lastIndexOf("\r\n\r\n") != response.length() - 4) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("WebSocket handshake closed");
+                }
+                response.append((char) b);
+            }
+            check(response.indexOf("HTTP/1.1 101") == 0, "WebSocket upgrade failed: " + response);
+            writeText(new SignalingCodec().encodeRegisterCommand(roomId, clientId));
+        }
+
+        void sendOverWebSocket(String message) throws IOException {
+            writeText(new SignalingCodec().encodeSendCommand(message));
+        }
+
+        /**
+         * Blocks for the next relayed message.
+         */
+        SignalingMessage receive(SignalingCodec codec) throws IOException, SignalingCodecException {
+            while (true) {
+                int b0 = in.readUnsignedByte();
+                int b1 = in.readUnsignedByte();
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                byte[] payload = new byte[(int) length];
+                in.readFully(payload);
+                if ((b0 & 0x0F) != 0x1) {
+                    continue;
+                }
+                SignalingMessage.Envelope envelope =
+                        codec.decodeEnvelope(new String(payload, StandardCharsets.UTF_8));
+                check(envelope.message != null, "relay error: " + envelope.error);
+                return envelope.message;
+            }
+        }
+
+        private void writeText(String text) throws IOException {
+            writeFrame(0x1, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Client frames are masked.
+        private void writeFrame(int opcode, byte[] payload) throws IOException {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 14);
+            frame.write(0x80 | opcode);
+            if (payload.length < 126) {
+                frame.write(0x80 | payload.length);
+            } else if (payload.length <= 0xFFFF) {
+                frame.write(0x80 | 126);
+                frame.write(payload.length >> 8);
+                frame.write(payload.length);
+            } else {
+                frame.write(0x80 | 127);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    frame.write((int) ((long) payload.length >> shift));
+                }
+            }
+            byte[] mask = new byte[4];
+            random.nextBytes(mask);
+            frame.write(mask, 0, 4);
+            for (int i = 0; i < payload.length; i++) {
+                frame.write(payload[i] ^ mask[i & 3]);
+            }
+            out.write(frame.toByteArray());
+            out.flush();
+        }
+
+        private static String post(String url, String body) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(SOCKET_TIMEOUT_MS);
+            connection.setReadTimeout(SOCKET_TIMEOUT_MS);
+            connection.setDoOutput(true);
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            connection.setFixedLengthStreamingMode(bytes.length);
+            OutputStream outStream = connection.getOutputStream();
+            outStream.write(bytes);
+            outStream.close();
+            check(connection.getResponseCode() == 200, "HTTP " + connection.getResponseCode());
+            InputStream responseStream = connection.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = responseStream.read(buffer)) > 0) {
+                response.write(buffer, 0, read);
+            }
+            responseStream.close();
+            return response.toString("UTF-8");
+        }
+    }
+}
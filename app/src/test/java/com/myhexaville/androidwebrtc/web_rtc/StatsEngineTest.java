@@ -0,0 +1,134 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit tests for {@link StatsEngine} using trimmed legacy getStats() results.
+ */
+public class StatsEngineTest {
+
+    private static StatsReport[] result(double timestampMs, long bytesSent, long packetsSent,
+                                        long packetsLost, long bytesReceived, long packetsReceived,
+                                        long packetsLostReceived) {
+        return new StatsReport[]{
+                new StatsReport("bweforvideo", "VideoBwe", timestampMs, new StatsReport.Value[]{
+                        new StatsReport.Value("googAvailableSendBandwidth", "1500000"),
+                        new StatsReport.Value("googActualEncBitrate", "1200000"),
+                }),
+                new StatsReport("Conn-audio-1-0", "googCandidatePair", timestampMs, new StatsReport.Value[]{
+                        new StatsReport.Value("googRtt", "45"),
+                        new StatsReport.Value("googActiveConnection", "true"),
+                }),
+                new StatsReport("Conn-audio-1-1", "googCandidatePair", timestampMs, new StatsReport.Value[]{
+                        new StatsReport.Value("googActiveConnection", "false"),
+                        new StatsReport.Value("googRtt", "300"),
+                }),
+                new StatsReport("ssrc_3010913234_send", "ssrc", timestampMs, new StatsReport.Value[]{
+                        new StatsReport.Value("ssrc", "3010913234"),
+                        new StatsReport.Value("mediaType", "video"),
+                        new StatsReport.Value("bytesSent", Long.toString(bytesSent)),
+                        new StatsReport.Value("packetsSent", Long.toString(packetsSent)),
+                        new StatsReport.Value("packetsLost", Long.toString(packetsLost)),
+                        new StatsReport.Value("googRtt", "48"),
+                        new StatsReport.Value("googFrameRateSent", "30"),
+                        new StatsReport.Value("googAvgEncodeMs", "7"),
+                        new StatsReport.Value("googFrameWidthSent", "1280"),
+                        new StatsReport.Value("googFrameHeightSent", "720"),
+                }),
+                new StatsReport("ssrc_1234_recv", "ssrc", timestampMs, new StatsReport.Value[]{
+                        new StatsReport.Value("ssrc", "1234"),
+                        new StatsReport.Value("mediaType", "audio"),
+                        new StatsReport.Value("bytesReceived", Long.toString(bytesReceived)),
+                        new StatsReport.Value("packetsReceived", Long.toString(packetsReceived)),
+                        new StatsReport.Value("packetsLost", Long.toString(packetsLostReceived)),
+                        new StatsReport.Value("googJitterReceived", "12"),
+                }),
+                new StatsReport("ssrc_5678_recv", "ssrc", timestampMs, new StatsReport.Value[]{
+                        new StatsReport.Value("ssrc", "5678"),
+                        new StatsReport.Value("mediaType", "video"),
+                        new StatsReport.Value("googFrameRateDecoded", "29"),
+                        new StatsReport.Value("googCurrentDelayMs", "83"),
+                }),
+        };
+    }
+
+    @Test
+    public void computesRatesFromConsecutiveResults() {
+        StatsEngine engine = new StatsEngine(4);
+        StatsSnapshot first = engine.update(result(10000, 100000, 100, 0, 5000, 50, 0));
+        assertEquals(0, first.intervalMs);
+        assertEquals(StatsSnapshot.UNKNOWN, first.bitrateBps[0]);
+
+        StatsSnapshot second = engine.update(result(11000, 350000, 300, 10, 9000, 95, 5));
+        assertEquals(1000, second.intervalMs);
+        assertEquals(1500000, second.availableSendBandwidthBps);
+        assertEquals(1200000, second.actualEncodeBitrateBps);
+        assertEquals(45, second.rttMs);
+        assertEquals(3, second.streamCount);
+
+        int video = second.findStream(StatsSnapshot.FLAG_VIDEO | StatsSnapshot.FLAG_SEND);
+        assertEquals((int) 3010913234L, second.ssrc[video]);
+        assertEquals(2000000, second.bitrateBps[video]);
+        // 10 of the 200 packets sent in the interval were lost.
+        assertEquals(50, second.packetLossPermille[video]);
+        assertEquals(48, second.streamRttMs[video]);
+        assertEquals(30, second.frameRate[video]);
+        assertEquals(7, second.encodeMs[video]);
+        assertEquals(1280, second.frameWidth[video]);
+        assertEquals(720, second.frameHeight[video]);
+
+        int audio = second.findStream(1234, 0);
+        assertEquals(32000, second.bitrateBps[audio]);
+        // 5 lost, 45 received.
+        assertEquals(100, second.packetLossPermille[audio]);
+        assertEquals(12, second.jitterMs[audio]);
+
+        int received = second.findStream(StatsSnapshot.FLAG_VIDEO);
+        assertEquals(29, second.frameRate[received]);
+        assertEquals(83, second.delayMs[received]);
+    }
+
+    @Test
+    public void keepsLatestResultsAndDumpsThem() {
+        StatsEngine engine = new StatsEngine(3);
+        for (int i = 0; i < 5; i++) {
+            engine.update(result(1000 * (i + 1), 1000 * i, 10 * i, 0, 100 * i, i, 0));
+        }
+        assertEquals(3, engine.getHistorySize());
+        StatsSnapshot snapshot = new StatsSnapshot();
+        engine.getHistory(0, snapshot);
+        assertEquals(5000, snapshot.timestampMs);
+        engine.getHistory(2, snapshot);
+        assertEquals(3000, snapshot.timestampMs);
+
+        ByteBuffer dump = ByteBuffer.allocate(engine.getDumpSize());
+        engine.dump(dump);
+        assertEquals(0, dump.remaining());
+        dump.flip();
+        assertEquals(3, StatsEngine.readDumpHeader(dump));
+        StatsSnapshot read = new StatsSnapshot();
+        for (int i = 0; i < 3; i++) {
+            read.readFrom(dump);
+            assertEquals(1000 * (i + 3), read.timestampMs);
+            assertEquals(3, read.streamCount);
+            int video = read.findStream(StatsSnapshot.FLAG_VIDEO | StatsSnapshot.FLAG_SEND);
+            assertEquals(8000, read.bitrateBps[video]);
+            assertEquals(720, read.frameHeight[video]);
+            assertEquals(83, read.delayMs[read.findStream(StatsSnapshot.FLAG_VIDEO)]);
+        }
+        assertEquals(0, dump.remaining());
+    }
+
+    @Test
+    public void parsesIntegerPrefix() {
+        assertEquals(42, StatsEngine.parseLong("42"));
+        assertEquals(-3, StatsEngine.parseLong("-3"));
+        assertEquals(7, StatsEngine.parseLong("7.25"));
+        assertEquals(StatsSnapshot.UNKNOWN, StatsEngine.parseLong("n/a"));
+    }
+}
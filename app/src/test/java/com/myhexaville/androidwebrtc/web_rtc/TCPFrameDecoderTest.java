@@ -0,0 +1,128 @@
+package com.myhexaville.androidwebrtc.web_rtc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit tests for {@link TCPFrameDecoder} fed the way a socket delivers bytes: in chunks
+ * that don't line up with frames.
+ */
+public class TCPFrameDecoderTest {
+    private static final int BUFFER_BYTES = 16;
+    private static final int MAX_FRAME_BYTES = 64;
+
+    @Test
+    public void decodesFramesFedOneByteAtATime() throws IOException {
+        TCPFrameDecoder decoder = new TCPFrameDecoder(BUFFER_BYTES, MAX_FRAME_BYTES);
+        byte[] stream = concat(frame("hello"), frame(""), frame("line\nbreak"));
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < stream.length; i++) {
+            feed(decoder, Arrays.copyOfRange(stream, i, i + 1), messages);
+            if (i < TCPFrameDecoder.HEADER_BYTES + 4) {
+                assertTrue(messages.isEmpty());
+            }
+        }
+        assertEquals(Arrays.asList("hello", "", "line\nbreak"), messages);
+    }
+
+    @Test
+    public void decodesSeveralFramesInOneRead() throws IOException {
+        TCPFrameDecoder decoder = new TCPFrameDecoder(BUFFER_BYTES, MAX_FRAME_BYTES);
+        List<String> messages = new ArrayList<>();
+        feed(decoder, concat(frame("a"), frame("b"), frame("c")), messages);
+        assertEquals(Arrays.asList("a", "b", "c"), messages);
+    }
+
+    @Test
+    public void keepsMessageSplitAcrossReads() throws IOException {
+        TCPFrameDecoder decoder = new TCPFrameDecoder(BUFFER_BYTES, MAX_FRAME_BYTES);
+        byte[] stream = concat(frame("first"), frame("second"));
+        List<String> messages = new ArrayList<>();
+        // Ends inside the header of the second frame, then inside its payload.
+        feed(decoder, Arrays.copyOfRange(stream, 0, 11), messages);
+        assertEquals(Collections.singletonList("first"), messages);
+        feed(decoder, Arrays.copyOfRange(stream, 11, 15), messages);
+        assertEquals(1, messages.size());
+        feed(decoder, Arrays.copyOfRange(stream, 15, stream.length), messages);
+        assertEquals(Arrays.asList("first", "second"), messages);
+    }
+
+    @Test
+    public void growsForFramesLargerThanTheBuffer() throws IOException {
+        TCPFrameDecoder decoder = new TCPFrameDecoder(BUFFER_BYTES, MAX_FRAME_BYTES);
+        char[] chars = new char[MAX_FRAME_BYTES];
+        Arrays.fill(chars, 'x');
+        String large = new String(chars);
+        byte[] stream = frame(large);
+        List<String> messages = new ArrayList<>();
+        for (int offset = 0; offset < stream.length; offset += BUFFER_BYTES / 2) {
+            feed(decoder, Arrays.copyOfRange(stream, offset,
+                    Math.min(offset + BUFFER_BYTES / 2, stream.length)), messages);
+        }
+        assertEquals(Collections.singletonList(large), messages);
+    }
+
+    @Test
+    public void decodesMultiByteCharactersSplitAcrossReads() throws IOException {
+        TCPFrameDecoder decoder = new TCPFrameDecoder(BUFFER_BYTES, MAX_FRAME_BYTES);
+        String text = "caf\u00e9 \u00fcber \u20ac \ud83d\ude00";
+        byte[] stream = frame(text);
+        List<String> messages = new ArrayList<>();
+        // The first read ends inside the two-byte e-acute.
+        feed(decoder, Arrays.copyOfRange(stream, 0, 8), messages);
+        feed(decoder, Arrays.copyOfRange(stream, 8, stream.length), messages);
+        assertEquals(Collections.singletonList(text), messages);
+    }
+
+    @Test
+    public void rejectsOversizedLength() {
+        assertRejected(MAX_FRAME_BYTES + 1);
+        assertRejected(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void rejectsNegativeLength() {
+        assertRejected(-1);
+        assertRejected(Integer.MIN_VALUE);
+    }
+
+    private static void assertRejected(int length) {
+        TCPFrameDecoder decoder = new TCPFrameDecoder(BUFFER_BYTES, MAX_FRAME_BYTES);
+        try {
+            feed(decoder, TCPFrameDecoder.encodeHeader(length).array(), new ArrayList<String>());
+            fail("Accepted frame length " + length);
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains(Integer.toString(length)));
+        }
+    }
+
+    private static void feed(TCPFrameDecoder decoder, byte[] chunk, List<String> messages)
+            throws IOException {
+        decoder.getReadBuffer().put(chunk);
+        decoder.decode(messages);
+    }
+
+    private static byte[] frame(String message) {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        return concat(TCPFrameDecoder.encodeHeader(payload.length).array(), payload);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}